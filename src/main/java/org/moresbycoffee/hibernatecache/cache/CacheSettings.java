@@ -0,0 +1,547 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.hibernate.cache.CacheException;
+
+/**
+ * The configuration properties of the {@link TinyLfuRegionFactory}.
+ * <p>
+ * Every property can be set for all the regions with the <code>hibernatecache.default.</code>
+ * prefix and can be overridden for a single region with the
+ * <code>hibernatecache.region.&lt;region name&gt;.</code> prefix, e.g.
+ * <pre>
+ * &lt;property name="hibernatecache.default.max_entries" value="10000" /&gt;
+ * &lt;property name="hibernatecache.region.org.moresbycoffee.hibernatecache.domain.Line.max_entries" value="100" /&gt;
+ * </pre>
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class CacheSettings {
+
+    /** The prefix of the properties applied to every region. */
+    public static final String DEFAULT_PREFIX = "hibernatecache.default.";
+
+    /** The prefix of the region specific properties. */
+    public static final String REGION_PREFIX = "hibernatecache.region.";
+
+    /** The maximum number of entries in a region. */
+    public static final String MAX_ENTRIES = "max_entries";
+
+    /** The default of the {@link #MAX_ENTRIES}. */
+    public static final long DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * The storage of the entity regions: <code>heap</code> (default), <code>offheap</code>, <code>long_keyed</code> or <code>shared</code>.
+     * @see Storage
+     */
+    public static final String STORAGE = "storage";
+
+    /** The maximum number of bytes allocated in direct memory by an off-heap region. */
+    public static final String OFFHEAP_MAX_BYTES = "offheap.max_bytes";
+
+    /** The default of the {@link #OFFHEAP_MAX_BYTES}. (64MB) */
+    public static final long DEFAULT_OFFHEAP_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** The size of the segments of the off-heap regions in bytes. */
+    public static final String OFFHEAP_SEGMENT_SIZE = "offheap.segment_size";
+
+    /** The default of the {@link #OFFHEAP_SEGMENT_SIZE}. (1MB) */
+    public static final long DEFAULT_OFFHEAP_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The directory of the files of the shared regions, the file of a region is <code>&lt;region name&gt;.shm</code>.
+     * The default is the <code>hibernatecache</code> directory in the temporary directory.
+     */
+    public static final String SHARED_DIRECTORY = "shared.directory";
+
+    /** The size of the data area of the file of a shared region in bytes. */
+    public static final String SHARED_MAX_BYTES = "shared.max_bytes";
+
+    /** The default of the {@link #SHARED_MAX_BYTES}. (64MB) */
+    public static final long DEFAULT_SHARED_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The heap budget in bytes shared by the on-heap regions, see {@link org.moresbycoffee.hibernatecache.cache.store.MemoryBudget}.
+     * It can be set only with the <code>hibernatecache.default.</code> prefix. If it is set the capacity of the
+     * on-heap regions is their allocation from the budget and the {@link #MAX_ENTRIES} is only the expected
+     * number of entries, otherwise (default) the capacity is the {@link #MAX_ENTRIES}.
+     */
+    public static final String MEMORY_MAX_BYTES = "memory.max_bytes";
+
+    /**
+     * The codec of the regions moving the entries out of the heap (off-heap and shared stores):
+     * <code>compact</code> (default) or <code>serialization</code>.
+     * @see Codec
+     */
+    public static final String CODEC = "codec";
+
+    /**
+     * The maximum number of committed versions kept per key by the read-write regions.
+     * <code>0</code> (default) keeps only the current value, which is served only to the
+     * transactions started after the value has been cached.
+     */
+    public static final String MAX_VERSIONS = "read_write.max_versions";
+
+    /** The default of the {@link #MAX_VERSIONS}. */
+    public static final long DEFAULT_MAX_VERSIONS = 0;
+
+    /**
+     * The maximum staleness in milliseconds of the entries of a nonstrict read-write region, see
+     * {@link org.moresbycoffee.hibernatecache.cache.strategy.AdaptiveTtl}. If it is set the entries expire
+     * after a time-to-live adapted to the write rate of their keys, at most after this time.
+     * <code>0</code> (default) keeps the entries until they are removed or evicted.
+     */
+    public static final String MAX_STALENESS = "nonstrict.max_staleness";
+
+    /** The default of the {@link #MAX_STALENESS}. */
+    public static final long DEFAULT_MAX_STALENESS = 0;
+
+    /**
+     * The targeted ratio of the stale reads of a nonstrict read-write region with {@link #MAX_STALENESS}.
+     * The lower the ratio the shorter the time-to-live of the frequently written keys.
+     */
+    public static final String STALE_READ_RATIO = "nonstrict.stale_read_ratio";
+
+    /** The default of the {@link #STALE_READ_RATIO}. */
+    public static final double DEFAULT_STALE_READ_RATIO = 0.01;
+
+    /**
+     * The part of the time-to-live after the frequently read entries of a nonstrict read-write entity region with
+     * {@link #MAX_STALENESS} are reloaded in the background, see {@link org.moresbycoffee.hibernatecache.cache.warmup.RefreshAhead}.
+     * E.g. <code>0.8</code> reloads the entries read repeatedly in the last fifth of their time-to-live.
+     * <code>0</code> (default) disables the refresh-ahead.
+     */
+    public static final String REFRESH_AHEAD = "nonstrict.refresh_ahead";
+
+    /** The maximum number of entities reloaded by a single statement of the refresh-ahead. */
+    public static final String REFRESH_AHEAD_BATCH_SIZE = "nonstrict.refresh_ahead.batch_size";
+
+    /** The default of the {@link #REFRESH_AHEAD_BATCH_SIZE}. */
+    public static final long DEFAULT_REFRESH_AHEAD_BATCH_SIZE = 32;
+
+    /**
+     * The number of the threads reloading the entries of the refresh-ahead. It can be set only with
+     * the <code>hibernatecache.default.</code> prefix, the default is <code>1</code>.
+     */
+    public static final String REFRESH_AHEAD_THREADS = "refresh_ahead.threads";
+
+    /**
+     * The maximum time in milliseconds a thread missing an entry of an entity or collection region waits for
+     * another thread which is already loading the same key, see
+     * {@link org.moresbycoffee.hibernatecache.cache.strategy.InFlightLoads}. After the timeout the thread
+     * loads the entry from the database itself. <code>0</code> (default) disables the coalescing of the misses.
+     */
+    public static final String COALESCE_TIMEOUT = "coalesce.timeout";
+
+    /** The default of the {@link #COALESCE_TIMEOUT}. */
+    public static final long DEFAULT_COALESCE_TIMEOUT = 0;
+
+    /**
+     * The maximum number of the identifiers known to be missing from the table of an entity region, see
+     * {@link org.moresbycoffee.hibernatecache.cache.region.NegativeCache}. The finds of these identifiers
+     * return <tt>null</tt> without a statement. <code>0</code> (default) disables the negative caching.
+     */
+    public static final String NEGATIVE_MAX_ENTRIES = "negative.max_entries";
+
+    /** The default of the {@link #NEGATIVE_MAX_ENTRIES}. */
+    public static final long DEFAULT_NEGATIVE_MAX_ENTRIES = 0;
+
+    /**
+     * The maximum number of entities loaded by a single statement when the entities of a cached
+     * query result are missing from the persistence context and the entity regions.
+     * It is set for the query result regions, <code>1</code> loads the entities one by one, e.g.
+     * <code>hibernatecache.region.org.hibernate.cache.internal.StandardQueryCache.query.batch_size</code>
+     * for the default query cache region.
+     */
+    public static final String QUERY_BATCH_SIZE = "query.batch_size";
+
+    /** The default of the {@link #QUERY_BATCH_SIZE}. */
+    public static final long DEFAULT_QUERY_BATCH_SIZE = 32;
+
+    /**
+     * <code>true</code> if the entity or collection region is loaded from the database
+     * when the session factory starts, see {@link org.moresbycoffee.hibernatecache.cache.warmup.CacheWarmUp}.
+     */
+    public static final String WARMUP = "warmup";
+
+    /** The number of identifiers read by a warm-up task of a region. */
+    public static final String WARMUP_CHUNK_SIZE = "warmup.chunk_size";
+
+    /** The default of the {@link #WARMUP_CHUNK_SIZE}. */
+    public static final long DEFAULT_WARMUP_CHUNK_SIZE = 10000;
+
+    /**
+     * The number of the threads loading the regions at startup. It can be set only with
+     * the <code>hibernatecache.default.</code> prefix, the default is the number of the processors.
+     */
+    public static final String WARMUP_THREADS = "warmup.threads";
+
+    /**
+     * The file the regions are restored from when the session factory starts and written to when it is closed,
+     * see {@link org.moresbycoffee.hibernatecache.cache.region.RegionSnapshot}. It can be set only with the
+     * <code>hibernatecache.default.</code> prefix, no snapshot is used by default.
+     */
+    public static final String SNAPSHOT_FILE = "snapshot.file";
+
+    /**
+     * The possible values of the {@link CacheSettings#STORAGE} property.
+     */
+    public enum Storage {
+        /** The entries are stored on the heap in a {@link org.moresbycoffee.hibernatecache.cache.store.TinyLfuCache}. */
+        HEAP,
+        /** The entries are serialized into direct memory by an {@link org.moresbycoffee.hibernatecache.cache.store.OffHeapCacheStore}. */
+        OFFHEAP,
+        /** The entries with <code>Long</code> identifier are stored in a {@link org.moresbycoffee.hibernatecache.cache.store.LongKeyedCacheStore}. */
+        LONG_KEYED,
+        /**
+         * The entries are serialized into a memory mapped file shared by the processes of the host
+         * by a {@link org.moresbycoffee.hibernatecache.cache.store.SharedMemoryCacheStore}.
+         */
+        SHARED
+    }
+
+    /**
+     * The possible values of the {@link CacheSettings#CODEC} property.
+     */
+    public enum Codec {
+        /** The entries are written by the {@link org.moresbycoffee.hibernatecache.cache.codec.CompactCodec}. */
+        COMPACT,
+        /** The entries are written by the Java serialization, see {@link org.moresbycoffee.hibernatecache.cache.codec.SerializationCodec}. */
+        SERIALIZATION
+    }
+
+    private final Properties properties;
+
+    /**
+     * @param properties The properties of the session factory. (NonNull)
+     */
+    public CacheSettings(final Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The maximum number of entries in the region.
+     */
+    public long getMaxEntries(final String regionName) {
+        return getLong(regionName, MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The storage of the region. (NonNull)
+     * @throws CacheException If the value of the property is invalid.
+     */
+    public Storage getStorage(final String regionName) {
+        final String value = getProperty(regionName, STORAGE);
+        if (value == null || value.length() == 0) {
+            return Storage.HEAP;
+        }
+        try {
+            return Storage.valueOf(value.toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            throw new CacheException("Invalid value of the " + STORAGE + " property of the " + regionName + " region: " + value, e);
+        }
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The maximum number of bytes allocated by the off-heap region.
+     */
+    public long getOffHeapMaxBytes(final String regionName) {
+        return getLong(regionName, OFFHEAP_MAX_BYTES, DEFAULT_OFFHEAP_MAX_BYTES);
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The segment size of the off-heap region.
+     */
+    public int getOffHeapSegmentSize(final String regionName) {
+        return (int) getLong(regionName, OFFHEAP_SEGMENT_SIZE, DEFAULT_OFFHEAP_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The file of the shared region. (NonNull)
+     */
+    public File getSharedFile(final String regionName) {
+        final String value = getProperty(regionName, SHARED_DIRECTORY);
+        final File directory = value == null || value.length() == 0
+                ? new File(System.getProperty("java.io.tmpdir"), "hibernatecache") : new File(value);
+        return new File(directory, regionName + ".shm");
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The size of the data area of the shared region.
+     */
+    public long getSharedMaxBytes(final String regionName) {
+        return getLong(regionName, SHARED_MAX_BYTES, DEFAULT_SHARED_MAX_BYTES);
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The codec of the region. (NonNull)
+     * @throws CacheException If the value of the property is invalid.
+     */
+    public Codec getCodec(final String regionName) {
+        final String value = getProperty(regionName, CODEC);
+        if (value == null || value.length() == 0) {
+            return Codec.COMPACT;
+        }
+        try {
+            return Codec.valueOf(value.toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            throw new CacheException("Invalid value of the " + CODEC + " property of the " + regionName + " region: " + value, e);
+        }
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The maximum number of committed versions kept per key, <code>0</code> if multi-versioning is disabled.
+     */
+    public int getMaxVersions(final String regionName) {
+        return (int) Math.max(0, getLong(regionName, MAX_VERSIONS, DEFAULT_MAX_VERSIONS));
+    }
+
+    /**
+     * @param regionName The name of the entity or collection region. (NonNull)
+     * @return The maximum staleness of the entries in milliseconds, <code>0</code> if the entries don't expire.
+     */
+    public long getMaxStaleness(final String regionName) {
+        return Math.max(0, getLong(regionName, MAX_STALENESS, DEFAULT_MAX_STALENESS));
+    }
+
+    /**
+     * @param regionName The name of the entity or collection region. (NonNull)
+     * @return The targeted ratio of the stale reads, between <code>0</code> (exclusive) and <code>1</code>.
+     * @throws CacheException If the value is not a number or it is out of range.
+     */
+    public double getStaleReadRatio(final String regionName) {
+        final double ratio = getDouble(regionName, STALE_READ_RATIO, DEFAULT_STALE_READ_RATIO);
+        if (ratio <= 0 || ratio > 1) {
+            throw new CacheException("The " + STALE_READ_RATIO + " property of the " + regionName + " region has to be in (0, 1]: " + ratio);
+        }
+        return ratio;
+    }
+
+    /**
+     * @param regionName The name of the entity region. (NonNull)
+     * @return The part of the time-to-live after the entries are reloaded, <code>0</code> if the refresh-ahead is disabled.
+     * @throws CacheException If the value is not a number or it is out of range.
+     */
+    public double getRefreshAhead(final String regionName) {
+        final double refreshAhead = getDouble(regionName, REFRESH_AHEAD, 0);
+        if (refreshAhead < 0 || refreshAhead >= 1) {
+            throw new CacheException("The " + REFRESH_AHEAD + " property of the " + regionName + " region has to be in [0, 1): " + refreshAhead);
+        }
+        return refreshAhead;
+    }
+
+    /**
+     * @param regionName The name of the entity region. (NonNull)
+     * @return The maximum number of entities reloaded by a statement, at least <code>1</code>.
+     */
+    public int getRefreshAheadBatchSize(final String regionName) {
+        return (int) Math.max(1, getLong(regionName, REFRESH_AHEAD_BATCH_SIZE, DEFAULT_REFRESH_AHEAD_BATCH_SIZE));
+    }
+
+    /**
+     * @return The number of the threads of the refresh-ahead, at least <code>1</code>.
+     * @throws CacheException If the value is not a number.
+     */
+    public int getRefreshAheadThreads() {
+        final String value = trim(properties.getProperty(DEFAULT_PREFIX + REFRESH_AHEAD_THREADS));
+        if (value == null || value.length() == 0) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (final NumberFormatException e) {
+            throw new CacheException("Invalid value of the " + REFRESH_AHEAD_THREADS + " property: " + value, e);
+        }
+    }
+
+    /**
+     * @param regionName The name of the entity or collection region. (NonNull)
+     * @return The maximum time in milliseconds a miss waits for a concurrent load, <code>0</code> if the misses aren't coalesced.
+     */
+    public long getCoalesceTimeout(final String regionName) {
+        return Math.max(0, getLong(regionName, COALESCE_TIMEOUT, DEFAULT_COALESCE_TIMEOUT));
+    }
+
+    /**
+     * @param regionName The name of the entity region. (NonNull)
+     * @return The maximum number of the missing identifiers cached, <code>0</code> if the negative caching is disabled.
+     */
+    public long getNegativeMaxEntries(final String regionName) {
+        return Math.max(0, getLong(regionName, NEGATIVE_MAX_ENTRIES, DEFAULT_NEGATIVE_MAX_ENTRIES));
+    }
+
+    /**
+     * @param regionName The name of the query result region. (NonNull)
+     * @return The maximum number of the missing entities of a query result loaded by a statement, at least <code>1</code>.
+     */
+    public int getQueryBatchSize(final String regionName) {
+        return (int) Math.max(1, getLong(regionName, QUERY_BATCH_SIZE, DEFAULT_QUERY_BATCH_SIZE));
+    }
+
+    /**
+     * @param regionName The name of the entity or collection region. (NonNull)
+     * @return <code>true</code> if the region is loaded at startup.
+     */
+    public boolean isWarmUp(final String regionName) {
+        final String value = getProperty(regionName, WARMUP);
+        return value != null && Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @param regionName The name of the entity or collection region. (NonNull)
+     * @return The number of identifiers read by a warm-up task of the region, at least <code>1</code>.
+     */
+    public long getWarmUpChunkSize(final String regionName) {
+        return Math.max(1, getLong(regionName, WARMUP_CHUNK_SIZE, DEFAULT_WARMUP_CHUNK_SIZE));
+    }
+
+    /**
+     * @return The number of the threads loading the regions at startup, at least <code>1</code>.
+     * @throws CacheException If the value is not a number.
+     */
+    public int getWarmUpThreads() {
+        final String value = trim(properties.getProperty(DEFAULT_PREFIX + WARMUP_THREADS));
+        if (value == null || value.length() == 0) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (final NumberFormatException e) {
+            throw new CacheException("Invalid value of the " + WARMUP_THREADS + " property: " + value, e);
+        }
+    }
+
+    /**
+     * @return The heap budget of the on-heap regions in bytes, <code>0</code> if it isn't set.
+     * @throws CacheException If the value is not a number.
+     */
+    public long getMemoryMaxBytes() {
+        final String value = trim(properties.getProperty(DEFAULT_PREFIX + MEMORY_MAX_BYTES));
+        if (value == null || value.length() == 0) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (final NumberFormatException e) {
+            throw new CacheException("Invalid value of the " + MEMORY_MAX_BYTES + " property: " + value, e);
+        }
+    }
+
+    /**
+     * @return The snapshot file of the regions or <tt>null</tt>.
+     */
+    public File getSnapshotFile() {
+        final String value = trim(properties.getProperty(DEFAULT_PREFIX + SNAPSHOT_FILE));
+        return value == null || value.length() == 0 ? null : new File(value);
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @param name The name of the property without prefix. (NonNull)
+     * @return The region specific value, the default value if there is no region specific, or <tt>null</tt>.
+     */
+    public String getProperty(final String regionName, final String name) {
+        final String value = properties.getProperty(REGION_PREFIX + regionName + "." + name);
+        return value != null ? value.trim() : trim(properties.getProperty(DEFAULT_PREFIX + name));
+    }
+
+    /**
+     * @param name The name of the property without prefix. (NonNull)
+     * @return <code>true</code> if the property is set by default or for any of the regions.
+     */
+    public boolean isSet(final String name) {
+        for (final String key : properties.stringPropertyNames()) {
+            if ((key.startsWith(DEFAULT_PREFIX) || key.startsWith(REGION_PREFIX)) && key.endsWith("." + name)) {
+                final String value = trim(properties.getProperty(key));
+                if (value != null && value.length() > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @param name The name of the property without prefix. (NonNull)
+     * @param defaultValue The value used if the property is not set.
+     * @return The value of the property.
+     * @throws CacheException If the value is not a number.
+     */
+    public long getLong(final String regionName, final String name, final long defaultValue) {
+        final String value = getProperty(regionName, name);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            throw new CacheException("Invalid value of the " + name + " property of the " + regionName + " region: " + value, e);
+        }
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @param name The name of the property without prefix. (NonNull)
+     * @param defaultValue The value used if the property is not set.
+     * @return The value of the property.
+     * @throws CacheException If the value is not a number.
+     */
+    public double getDouble(final String regionName, final String name, final double defaultValue) {
+        final String value = getProperty(regionName, name);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (final NumberFormatException e) {
+            throw new CacheException("Invalid value of the " + name + " property of the " + regionName + " region: " + value, e);
+        }
+    }
+
+    private static String trim(final String value) {
+        return value == null ? null : value.trim();
+    }
+
+}
@@ -0,0 +1,378 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.internal.Timestamper;
+import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.CollectionRegion;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.NaturalIdRegion;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cache.spi.TimestampsRegion;
+import org.hibernate.cache.spi.access.AccessType;
+import org.hibernate.cfg.Settings;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactCodec;
+import org.moresbycoffee.hibernatecache.cache.codec.EntryCodec;
+import org.moresbycoffee.hibernatecache.cache.codec.SerializationCodec;
+import org.moresbycoffee.hibernatecache.cache.query.WriteLog;
+import org.moresbycoffee.hibernatecache.cache.region.BaseRegion;
+import org.moresbycoffee.hibernatecache.cache.region.CollectionRegionImpl;
+import org.moresbycoffee.hibernatecache.cache.region.EntityRegionImpl;
+import org.moresbycoffee.hibernatecache.cache.region.NegativeCache;
+import org.moresbycoffee.hibernatecache.cache.region.QueryResultsRegionImpl;
+import org.moresbycoffee.hibernatecache.cache.region.RegionSnapshot;
+import org.moresbycoffee.hibernatecache.cache.region.TimestampsRegionImpl;
+import org.moresbycoffee.hibernatecache.cache.stat.CacheLatency;
+import org.moresbycoffee.hibernatecache.cache.stat.CacheMisses;
+import org.moresbycoffee.hibernatecache.cache.store.CacheStore;
+import org.moresbycoffee.hibernatecache.cache.store.LongKeyedCacheStore;
+import org.moresbycoffee.hibernatecache.cache.store.MemoryBudget;
+import org.moresbycoffee.hibernatecache.cache.store.OffHeapCacheStore;
+import org.moresbycoffee.hibernatecache.cache.store.SharedMemoryCacheStore;
+import org.moresbycoffee.hibernatecache.cache.store.TinyLfuCache;
+import org.moresbycoffee.hibernatecache.cache.store.UnboundedCacheStore;
+import org.moresbycoffee.hibernatecache.cache.strategy.NonStrictReadWriteEntityRegionAccessStrategy;
+import org.moresbycoffee.hibernatecache.cache.strategy.ReadWriteEntityRegionAccessStrategy;
+import org.moresbycoffee.hibernatecache.cache.warmup.CacheWarmUp;
+import org.moresbycoffee.hibernatecache.cache.warmup.RefreshAhead;
+
+/**
+ * In-process {@link RegionFactory} storing the entries in {@link TinyLfuCache}s.
+ * <p>
+ * The regions are sized by the {@link CacheSettings#MAX_ENTRIES} property.
+ * The W-TinyLFU eviction keeps the frequently used entries even if
+ * a large number of entries are read only once (e.g. by a scan).
+ * The update timestamps region is never evicted.
+ * <p>
+ * The entity regions can keep the serialized entries in direct memory
+ * if their {@link CacheSettings#STORAGE} property is <code>offheap</code>, see {@link OffHeapCacheStore},
+ * or in a primitive <code>long</code> keyed table if it is <code>long_keyed</code>, see {@link LongKeyedCacheStore}.
+ * The entity and collection regions with the {@link CacheSettings#WARMUP} property are loaded at startup, see {@link CacheWarmUp}.
+ * The nonstrict read-write entity regions with the {@link CacheSettings#REFRESH_AHEAD} property reload their frequently
+ * read entries before they expire, see {@link RefreshAhead}.
+ * The entity regions with the {@link CacheSettings#NEGATIVE_MAX_ENTRIES} property remember the identifiers
+ * missing from the database, see {@link NegativeCache}.
+ * The regions can be written to and restored from a snapshot file, see {@link RegionSnapshot}.
+ * The entries moved out of the heap are encoded by the {@link CacheSettings#CODEC} of the region, see {@link CompactCodec}.
+ * <p>
+ * Usage in the <code>persistence.xml</code>:
+ * <pre>
+ * &lt;property name="hibernate.cache.region.factory_class" value="org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory" /&gt;
+ * </pre>
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class TinyLfuRegionFactory implements RegionFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(TinyLfuRegionFactory.class);
+
+    private Settings settings;
+
+    private CacheSettings cacheSettings;
+
+    private transient WriteLog writeLog;
+
+    private transient CacheWarmUp warmUp;
+
+    private transient RefreshAhead refreshAhead;
+
+    private transient CompactCodec codec;
+
+    private transient CacheLatency latency;
+
+    private transient CacheMisses misses;
+
+    /** The heap budget of the on-heap regions, <tt>null</tt> if the {@link CacheSettings#MEMORY_MAX_BYTES} isn't set. */
+    private transient MemoryBudget memoryBudget;
+
+    /** The regions built by the factory by their names. */
+    private transient Map<String, BaseRegion> regions;
+
+    /** Writes the snapshot of the regions when the first region is destroyed, <tt>null</tt> if no snapshot is configured. */
+    private transient Runnable snapshotWriter;
+
+    @Override
+    public void start(final Settings settings, final Properties properties) throws CacheException {
+        this.settings = settings;
+        this.cacheSettings = new CacheSettings(properties);
+        this.writeLog = new WriteLog();
+        this.warmUp = new CacheWarmUp(cacheSettings);
+        this.refreshAhead = new RefreshAhead(cacheSettings);
+        this.codec = new CompactCodec();
+        this.latency = new CacheLatency();
+        this.misses = new CacheMisses();
+        ReadWriteEntityRegionAccessStrategy.registerCodecs(codec);
+        NonStrictReadWriteEntityRegionAccessStrategy.registerCodecs(codec);
+        final long memoryMaxBytes = cacheSettings.getMemoryMaxBytes();
+        this.memoryBudget = memoryMaxBytes > 0 ? new MemoryBudget(memoryMaxBytes) : null;
+        this.regions = new ConcurrentHashMap<String, BaseRegion>();
+        final File snapshotFile = cacheSettings.getSnapshotFile();
+        this.snapshotWriter = snapshotFile == null ? null : new Runnable() {
+            private final AtomicBoolean written = new AtomicBoolean();
+
+            @Override
+            public void run() {
+                if (written.compareAndSet(false, true)) {
+                    try {
+                        writeSnapshot(snapshotFile);
+                    } catch (final IOException e) {
+                        LOG.warn("The snapshot of the regions can't be written to " + snapshotFile, e);
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public void stop() {
+        /* NOP */
+    }
+
+    /**
+     * The loaded entries are put into the cache only if they are not there yet.
+     */
+    @Override
+    public boolean isMinimalPutsEnabledByDefault() {
+        return true;
+    }
+
+    @Override
+    public AccessType getDefaultAccessType() {
+        return AccessType.READ_WRITE;
+    }
+
+    @Override
+    public long nextTimestamp() {
+        return Timestamper.next();
+    }
+
+    @Override
+    public EntityRegion buildEntityRegion(final String regionName, final Properties properties, final CacheDataDescription metadata) throws CacheException {
+        final CacheStore<Object, Object> store;
+        switch (cacheSettings.getStorage(regionName)) {
+            case OFFHEAP:
+                final long maxBytes = cacheSettings.getOffHeapMaxBytes(regionName);
+                LOG.debug("Building off-heap region " + regionName + " with " + maxBytes + " bytes.");
+                store = new OffHeapCacheStore(maxBytes, cacheSettings.getOffHeapSegmentSize(regionName), codecOf(regionName));
+                break;
+            case LONG_KEYED:
+                final long maxEntries = cacheSettings.getMaxEntries(regionName);
+                LOG.debug("Building long keyed region " + regionName + " with " + maxEntries + " maximum entries.");
+                store = new LongKeyedCacheStore((int) Math.min(maxEntries, Integer.MAX_VALUE), createStore(regionName));
+                break;
+            case SHARED:
+                final File file = cacheSettings.getSharedFile(regionName);
+                LOG.debug("Building shared region " + regionName + " in " + file);
+                store = new SharedMemoryCacheStore(file, cacheSettings.getMaxEntries(regionName), cacheSettings.getSharedMaxBytes(regionName),
+                                                   codecOf(regionName));
+                break;
+            default:
+                store = createStore(regionName);
+                break;
+        }
+        final EntityRegionImpl region = new EntityRegionImpl(regionName, store, settings, cacheSettings, metadata);
+        region.setRefreshAhead(refreshAhead);
+        final long negativeMaxEntries = cacheSettings.getNegativeMaxEntries(regionName);
+        if (negativeMaxEntries > 0) {
+            LOG.debug("Caching at most " + negativeMaxEntries + " missing identifiers of region " + regionName);
+            region.setNegativeCache(new NegativeCache((int) Math.min(negativeMaxEntries, Integer.MAX_VALUE)));
+        }
+        return register(region);
+    }
+
+    /**
+     * Natural id caching is not supported.
+     * @throws CacheException Always.
+     */
+    @Override
+    public NaturalIdRegion buildNaturalIdRegion(final String regionName, final Properties properties, final CacheDataDescription metadata) throws CacheException {
+        throw new CacheException("Natural id regions are not supported by " + getClass().getName() + ": " + regionName);
+    }
+
+    @Override
+    public CollectionRegion buildCollectionRegion(final String regionName, final Properties properties, final CacheDataDescription metadata) throws CacheException {
+        return register(new CollectionRegionImpl(regionName, createStore(regionName), settings, cacheSettings, metadata));
+    }
+
+    @Override
+    public QueryResultsRegion buildQueryResultsRegion(final String regionName, final Properties properties) throws CacheException {
+        return register(new QueryResultsRegionImpl(regionName, createStore(regionName)));
+    }
+
+    @Override
+    public TimestampsRegion buildTimestampsRegion(final String regionName, final Properties properties) throws CacheException {
+        return register(new TimestampsRegionImpl(regionName, new UnboundedCacheStore<Object, Object>(), writeLog));
+    }
+
+    /**
+     * @return The writes of the tables tracked for the
+     *         {@link org.moresbycoffee.hibernatecache.cache.query.DependencyTrackingQueryCache DependencyTrackingQueryCache}.
+     *         (NonNull after the factory has been started)
+     */
+    public WriteLog getWriteLog() {
+        return writeLog;
+    }
+
+    /**
+     * @return The loader of the regions configured with the {@link CacheSettings#WARMUP} property. (NonNull after the factory has been started)
+     */
+    public CacheWarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * @return The reloader of the entries of the regions configured with the {@link CacheSettings#REFRESH_AHEAD} property.
+     *         (NonNull after the factory has been started)
+     */
+    public RefreshAhead getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * @return The latencies of the regions, recorded if the session factory uses the
+     *         {@link org.moresbycoffee.hibernatecache.cache.stat.LatencyStatistics LatencyStatistics}.
+     *         (NonNull after the factory has been started)
+     */
+    public CacheLatency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return The database loads attributed to the reasons of the misses, recorded if the session factory uses the
+     *         {@link org.moresbycoffee.hibernatecache.cache.stat.LatencyStatistics LatencyStatistics}.
+     *         (NonNull after the factory has been started)
+     */
+    public CacheMisses getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return <code>true</code> if the {@link CacheSettings#NEGATIVE_MAX_ENTRIES} is set for any of the entity regions.
+     *         (Valid after the factory has been started)
+     */
+    public boolean isNegativeCacheEnabled() {
+        return cacheSettings.isSet(CacheSettings.NEGATIVE_MAX_ENTRIES);
+    }
+
+    /**
+     * @return The codec of the off-heap and shared regions and the snapshots, bound to the metamodel by the
+     *         {@link org.moresbycoffee.hibernatecache.cache.codec.CodecIntegrator CodecIntegrator}.
+     *         (NonNull after the factory has been started)
+     */
+    public CompactCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return The heap budget shared by the on-heap regions or <tt>null</tt> if the
+     *         {@link CacheSettings#MEMORY_MAX_BYTES} property isn't set.
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return The file configured by the {@link CacheSettings#SNAPSHOT_FILE} property or <tt>null</tt>.
+     */
+    public File getSnapshotFile() {
+        return cacheSettings.getSnapshotFile();
+    }
+
+    /**
+     * Writes the entries of the regions built by the factory into a snapshot file.
+     * It is called when the session factory is closed if the {@link CacheSettings#SNAPSHOT_FILE} is set.
+     *
+     * @param file The snapshot file. (NonNull)
+     * @return The number of the written entries.
+     * @throws IOException If the file can't be written.
+     * @see RegionSnapshot
+     */
+    public long writeSnapshot(final File file) throws IOException {
+        return RegionSnapshot.write(regions.values(), file, codec);
+    }
+
+    /**
+     * Restores the entries of a snapshot file into the regions built by the factory.
+     * It is called when the session factory has been created if the {@link CacheSettings#SNAPSHOT_FILE} exists.
+     *
+     * @param file The snapshot file. (NonNull)
+     * @return The number of the restored entries.
+     * @throws IOException If the file can't be read.
+     * @see RegionSnapshot
+     */
+    public long restoreSnapshot(final File file) throws IOException {
+        return RegionSnapshot.restore(regions, file, codec);
+    }
+
+    /**
+     * @return The configuration of the regions. (NonNull after the factory has been started)
+     */
+    protected final CacheSettings getCacheSettings() {
+        return cacheSettings;
+    }
+
+    private <R extends BaseRegion> R register(final R region) {
+        region.setDestroyListener(snapshotWriter);
+        region.setLatencies(latency.forRegion(region.getName()));
+        region.setMisses(misses);
+        regions.put(region.getName(), region);
+        return region;
+    }
+
+    private EntryCodec codecOf(final String regionName) {
+        return cacheSettings.getCodec(regionName) == CacheSettings.Codec.SERIALIZATION ? SerializationCodec.INSTANCE : codec;
+    }
+
+    private CacheStore<Object, Object> createStore(final String regionName) {
+        final long maxEntries = cacheSettings.getMaxEntries(regionName);
+        if (memoryBudget != null) {
+            LOG.debug("Building region " + regionName + " sharing the memory budget of " + memoryBudget.getMaxBytes() + " bytes.");
+            return memoryBudget.createCache(regionName, maxEntries);
+        }
+        LOG.debug("Building region " + regionName + " with " + maxEntries + " maximum entries.");
+        return new TinyLfuCache<Object, Object>(maxEntries);
+    }
+
+}
@@ -0,0 +1,821 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.codec;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.entry.CacheEntry;
+import org.hibernate.cache.spi.entry.CollectionCacheEntry;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+/**
+ * {@link EntryCodec} writing a compact binary layout without class descriptors.
+ * <p>
+ * Every value starts with a one byte tag. The tags identify the common values of the entries:
+ * the boxed primitives, strings, dates, arrays and lists of them, and the cache keys and entries of Hibernate.
+ * The other classes can be {@link #register(int, Class, TypeCodec) registered} with their own tags,
+ * the values of the unknown classes are written by the Java serialization.
+ * <p>
+ * The codec is bound to the metamodel of the session factory by the {@link CodecIntegrator}. When it is bound:
+ * <ul>
+ * <li>the names of the entities and the collection roles are written as their hashes;</li>
+ * <li>the {@link CacheKey}s are written without their type, it is looked up from the persisters when they are read;</li>
+ * <li>the disassembled state of the {@link CacheEntry}s is written by the schema of the entity: a null bitmap and
+ *     the values of the properties without tags, unless a value differs from the type of its property.</li>
+ * </ul>
+ * The layout is the same in every process using the same mapping, the {@link CacheKey}s are encoded the same
+ * way every time, so the encoded keys can be compared.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class CompactCodec implements EntryCodec {
+
+    /** The smallest tag of the {@link #register(int, Class, TypeCodec) registered} classes. */
+    public static final int MIN_EXTENSION_TAG = 64;
+
+    private static final int NULL                   = 0;
+    private static final int TRUE                   = 1;
+    private static final int FALSE                  = 2;
+    private static final int BYTE                   = 3;
+    private static final int SHORT                  = 4;
+    private static final int INTEGER                = 5;
+    private static final int LONG                   = 6;
+    private static final int FLOAT                  = 7;
+    private static final int DOUBLE                 = 8;
+    private static final int CHARACTER              = 9;
+    private static final int STRING                 = 10;
+    private static final int DATE                   = 11;
+    private static final int TIMESTAMP              = 12;
+    private static final int SQL_DATE               = 13;
+    private static final int SQL_TIME               = 14;
+    private static final int BIG_DECIMAL            = 15;
+    private static final int BIG_INTEGER            = 16;
+    private static final int BYTE_ARRAY             = 17;
+    private static final int LONG_ARRAY             = 18;
+    private static final int OBJECT_ARRAY           = 19;
+    private static final int SERIALIZABLE_ARRAY     = 20;
+    private static final int ARRAY_LIST             = 21;
+    private static final int UUID_VALUE             = 22;
+    private static final int CACHE_KEY              = 23;
+    private static final int CACHE_ENTRY            = 24;
+    private static final int COLLECTION_CACHE_ENTRY = 25;
+    private static final int SERIALIZED             = 26;
+
+    /* The flags of the cache entries. */
+    private static final int UNFETCHED = 1;
+    private static final int SCHEMA    = 2;
+
+    /* The kinds of the cache keys. */
+    private static final int ENTITY_KEY     = 0;
+    private static final int COLLECTION_KEY = 1;
+
+    /** The tags of the classes written by the codec itself. */
+    private static final Map<Class<?>, Integer> TAGS = new HashMap<Class<?>, Integer>();
+
+    static {
+        TAGS.put(Byte.class,                 Integer.valueOf(BYTE));
+        TAGS.put(Short.class,                Integer.valueOf(SHORT));
+        TAGS.put(Integer.class,              Integer.valueOf(INTEGER));
+        TAGS.put(Long.class,                 Integer.valueOf(LONG));
+        TAGS.put(Float.class,                Integer.valueOf(FLOAT));
+        TAGS.put(Double.class,               Integer.valueOf(DOUBLE));
+        TAGS.put(Character.class,            Integer.valueOf(CHARACTER));
+        TAGS.put(String.class,               Integer.valueOf(STRING));
+        TAGS.put(Date.class,                 Integer.valueOf(DATE));
+        TAGS.put(Timestamp.class,            Integer.valueOf(TIMESTAMP));
+        TAGS.put(java.sql.Date.class,        Integer.valueOf(SQL_DATE));
+        TAGS.put(Time.class,                 Integer.valueOf(SQL_TIME));
+        TAGS.put(BigDecimal.class,           Integer.valueOf(BIG_DECIMAL));
+        TAGS.put(BigInteger.class,           Integer.valueOf(BIG_INTEGER));
+        TAGS.put(byte[].class,               Integer.valueOf(BYTE_ARRAY));
+        TAGS.put(long[].class,               Integer.valueOf(LONG_ARRAY));
+        TAGS.put(Object[].class,             Integer.valueOf(OBJECT_ARRAY));
+        TAGS.put(Serializable[].class,       Integer.valueOf(SERIALIZABLE_ARRAY));
+        TAGS.put(ArrayList.class,            Integer.valueOf(ARRAY_LIST));
+        TAGS.put(UUID.class,                 Integer.valueOf(UUID_VALUE));
+        TAGS.put(CacheKey.class,             Integer.valueOf(CACHE_KEY));
+        TAGS.put(CacheEntry.class,           Integer.valueOf(CACHE_ENTRY));
+        TAGS.put(CollectionCacheEntry.class, Integer.valueOf(COLLECTION_CACHE_ENTRY));
+    }
+
+    /** The package private constructor of the {@link CacheEntry} used by its deserialization. */
+    private static final Constructor<CacheEntry> CACHE_ENTRY_CONSTRUCTOR =
+            accessible(CacheEntry.class, Serializable[].class, String.class, boolean.class, Object.class);
+
+    /** The package private constructor of the {@link CollectionCacheEntry} used by its deserialization. */
+    private static final Constructor<CollectionCacheEntry> COLLECTION_CACHE_ENTRY_CONSTRUCTOR =
+            accessible(CollectionCacheEntry.class, Serializable.class);
+
+    /** The tenant identifier of the {@link CacheKey} which has no getter. */
+    private static final Field CACHE_KEY_TENANT_ID = accessible(CacheKey.class, "tenantId");
+
+    /** The registered classes by their classes and tags. */
+    private final Map<Class<?>, Extension<?>> extensions = new ConcurrentHashMap<Class<?>, Extension<?>>();
+    private final Extension<?>[] extensionsByTag = new Extension<?>[256];
+
+    /** The session factory of the metamodel, <tt>null</tt> until the codec is bound. */
+    private volatile SessionFactoryImplementor factory;
+
+    /** The names of the metamodel, <tt>null</tt> until they are first used after the codec is bound. */
+    private volatile Metamodel metamodel;
+
+    /** The property kinds of the entities by their names. */
+    private final ConcurrentHashMap<String, Kind[]> schemas = new ConcurrentHashMap<String, Kind[]>();
+
+    /**
+     * Registers a class written by its own codec. The class has to be registered with the same tag
+     * everywhere the encoded values are read.
+     *
+     * @param tag The tag of the class, between {@link #MIN_EXTENSION_TAG} and <code>255</code>.
+     * @param type The class of the values, the instances of its subclasses are not written by the type codec. (NonNull)
+     * @param typeCodec The codec of the values. (NonNull)
+     * @throws IllegalArgumentException If the tag is out of range or it has been registered for another class.
+     */
+    public synchronized <T> void register(final int tag, final Class<T> type, final TypeCodec<T> typeCodec) {
+        if (tag < MIN_EXTENSION_TAG || tag > 255) {
+            throw new IllegalArgumentException("The tag has to be between " + MIN_EXTENSION_TAG + " and 255: " + tag);
+        }
+        if (extensionsByTag[tag] != null && extensionsByTag[tag].type != type) {
+            throw new IllegalArgumentException("The tag " + tag + " has been registered for " + extensionsByTag[tag].type.getName());
+        }
+        final Extension<T> extension = new Extension<T>(tag, type, typeCodec);
+        extensionsByTag[tag] = extension;
+        extensions.put(type, extension);
+    }
+
+    /**
+     * Binds the codec to the metamodel of the session factory. The persisters are looked up when they are first used.
+     *
+     * @param sessionFactory The session factory. (NonNull)
+     */
+    public void bind(final SessionFactoryImplementor sessionFactory) {
+        this.factory = sessionFactory;
+        this.metamodel = null;
+        this.schemas.clear();
+    }
+
+    @Override
+    public byte[] encode(final Object value) {
+        final CompactOutput out = new CompactOutput(this);
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object decode(final byte[] bytes) {
+        final CompactInput in = new CompactInput(this, bytes);
+        final Object value = read(in);
+        if (!in.isEnd()) {
+            throw new CacheException("The encoded entry has not been read completely.");
+        }
+        return value;
+    }
+
+    /**
+     * Writes the tag and the value.
+     */
+    void write(final CompactOutput out, final Object value) {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        if (value instanceof Boolean) {
+            out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+            return;
+        }
+        final Integer tag = TAGS.get(value.getClass());
+        if (tag == null) {
+            final Extension<?> extension = extensions.get(value.getClass());
+            if (extension != null) {
+                out.writeByte(extension.tag);
+                extension.write(value, out);
+            } else {
+                out.writeByte(SERIALIZED);
+                final byte[] bytes = SerializationCodec.INSTANCE.encode(value);
+                out.writeVarInt(bytes.length);
+                out.writeBytes(bytes);
+            }
+            return;
+        }
+        final int t = tag.intValue();
+        switch (t) {
+            case CACHE_KEY:
+                if (!writeCacheKey(out, (CacheKey) value)) {
+                    out.writeByte(SERIALIZED);
+                    final byte[] bytes = SerializationCodec.INSTANCE.encode(value);
+                    out.writeVarInt(bytes.length);
+                    out.writeBytes(bytes);
+                }
+                return;
+            case CACHE_ENTRY:
+                out.writeByte(t);
+                writeCacheEntry(out, (CacheEntry) value);
+                return;
+            case COLLECTION_CACHE_ENTRY:
+                out.writeByte(t);
+                final Serializable[] state = ((CollectionCacheEntry) value).getState();
+                out.writeObject(state);
+                return;
+            default:
+                out.writeByte(t);
+                writeValue(out, t, value);
+                return;
+        }
+    }
+
+    /**
+     * Reads the tag and the value.
+     */
+    Object read(final CompactInput in) {
+        final int tag = in.readByte() & 0xff;
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case CACHE_KEY:
+                return readCacheKey(in);
+            case CACHE_ENTRY:
+                return readCacheEntry(in);
+            case COLLECTION_CACHE_ENTRY:
+                return newInstance(COLLECTION_CACHE_ENTRY_CONSTRUCTOR, in.readObject());
+            case SERIALIZED:
+                return SerializationCodec.INSTANCE.decode(in.readBytes(in.readVarInt()));
+            default:
+                if (tag >= MIN_EXTENSION_TAG) {
+                    final Extension<?> extension = extensionsByTag[tag];
+                    if (extension == null) {
+                        throw new CacheException("Unknown tag of the encoded value: " + tag);
+                    }
+                    return extension.codec.read(in);
+                }
+                return readValue(in, tag);
+        }
+    }
+
+    /**
+     * Writes a value of the classes of the {@link #TAGS} without tag.
+     */
+    private static void writeValue(final CompactOutput out, final int tag, final Object value) {
+        switch (tag) {
+            case BYTE:
+                out.writeByte(((Byte) value).byteValue());
+                break;
+            case SHORT:
+                out.writeSignedVarInt(((Short) value).shortValue());
+                break;
+            case INTEGER:
+                out.writeSignedVarInt(((Integer) value).intValue());
+                break;
+            case LONG:
+                out.writeSignedVarLong(((Long) value).longValue());
+                break;
+            case FLOAT:
+                out.writeInt(Float.floatToIntBits(((Float) value).floatValue()));
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToLongBits(((Double) value).doubleValue()));
+                break;
+            case CHARACTER:
+                out.writeVarInt(((Character) value).charValue());
+                break;
+            case STRING:
+                out.writeString((String) value);
+                break;
+            case DATE:
+            case SQL_DATE:
+            case SQL_TIME:
+                out.writeSignedVarLong(((Date) value).getTime());
+                break;
+            case TIMESTAMP:
+                out.writeSignedVarLong(((Timestamp) value).getTime());
+                out.writeVarInt(((Timestamp) value).getNanos());
+                break;
+            case BIG_DECIMAL:
+                final byte[] unscaled = ((BigDecimal) value).unscaledValue().toByteArray();
+                out.writeSignedVarInt(((BigDecimal) value).scale());
+                out.writeVarInt(unscaled.length);
+                out.writeBytes(unscaled);
+                break;
+            case BIG_INTEGER:
+                final byte[] integer = ((BigInteger) value).toByteArray();
+                out.writeVarInt(integer.length);
+                out.writeBytes(integer);
+                break;
+            case BYTE_ARRAY:
+                out.writeVarInt(((byte[]) value).length);
+                out.writeBytes((byte[]) value);
+                break;
+            case LONG_ARRAY:
+                out.writeVarInt(((long[]) value).length);
+                for (final long element : (long[]) value) {
+                    out.writeSignedVarLong(element);
+                }
+                break;
+            case OBJECT_ARRAY:
+            case SERIALIZABLE_ARRAY:
+                out.writeVarInt(((Object[]) value).length);
+                for (final Object element : (Object[]) value) {
+                    out.writeObject(element);
+                }
+                break;
+            case ARRAY_LIST:
+                out.writeVarInt(((List<?>) value).size());
+                for (final Object element : (List<?>) value) {
+                    out.writeObject(element);
+                }
+                break;
+            case UUID_VALUE:
+                out.writeLong(((UUID) value).getMostSignificantBits());
+                out.writeLong(((UUID) value).getLeastSignificantBits());
+                break;
+            default:
+                throw new CacheException("Unknown tag: " + tag);
+        }
+    }
+
+    /**
+     * Reads a value written by the {@link #writeValue(CompactOutput, int, Object)}.
+     */
+    private static Object readValue(final CompactInput in, final int tag) {
+        switch (tag) {
+            case BYTE:
+                return Byte.valueOf((byte) in.readByte());
+            case SHORT:
+                return Short.valueOf((short) in.readSignedVarInt());
+            case INTEGER:
+                return Integer.valueOf(in.readSignedVarInt());
+            case LONG:
+                return Long.valueOf(in.readSignedVarLong());
+            case FLOAT:
+                return Float.valueOf(Float.intBitsToFloat(in.readInt()));
+            case DOUBLE:
+                return Double.valueOf(Double.longBitsToDouble(in.readLong()));
+            case CHARACTER:
+                return Character.valueOf((char) in.readVarInt());
+            case STRING:
+                return in.readString();
+            case DATE:
+                return new Date(in.readSignedVarLong());
+            case SQL_DATE:
+                return new java.sql.Date(in.readSignedVarLong());
+            case SQL_TIME:
+                return new Time(in.readSignedVarLong());
+            case TIMESTAMP:
+                final Timestamp timestamp = new Timestamp(in.readSignedVarLong());
+                timestamp.setNanos(in.readVarInt());
+                return timestamp;
+            case BIG_DECIMAL:
+                final int scale = in.readSignedVarInt();
+                return new BigDecimal(new BigInteger(in.readBytes(in.readVarInt())), scale);
+            case BIG_INTEGER:
+                return new BigInteger(in.readBytes(in.readVarInt()));
+            case BYTE_ARRAY:
+                return in.readBytes(in.readVarInt());
+            case LONG_ARRAY:
+                final long[] longs = new long[checkLength(in.readVarInt())];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = in.readSignedVarLong();
+                }
+                return longs;
+            case OBJECT_ARRAY:
+                final Object[] objects = new Object[checkLength(in.readVarInt())];
+                for (int i = 0; i < objects.length; i++) {
+                    objects[i] = in.readObject();
+                }
+                return objects;
+            case SERIALIZABLE_ARRAY:
+                final Serializable[] serializables = new Serializable[checkLength(in.readVarInt())];
+                for (int i = 0; i < serializables.length; i++) {
+                    serializables[i] = (Serializable) in.readObject();
+                }
+                return serializables;
+            case ARRAY_LIST:
+                final int size = checkLength(in.readVarInt());
+                final List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(in.readObject());
+                }
+                return list;
+            case UUID_VALUE:
+                return new UUID(in.readLong(), in.readLong());
+            default:
+                throw new CacheException("Unknown tag of the encoded value: " + tag);
+        }
+    }
+
+    /**
+     * @return <tt>false</tt> if the key can't be written without its type.
+     */
+    private boolean writeCacheKey(final CompactOutput out, final CacheKey key) {
+        final Metamodel names = metamodel();
+        if (names == null) {
+            return false;
+        }
+        final String name = key.getEntityOrRoleName();
+        final int kind;
+        if (names.entities.containsKey(name)) {
+            kind = ENTITY_KEY;
+        } else if (names.collections.containsKey(name)) {
+            kind = COLLECTION_KEY;
+        } else {
+            return false;
+        }
+        out.writeByte(CACHE_KEY);
+        out.writeByte(kind);
+        out.writeName(name);
+        out.writeString((String) fieldValue(CACHE_KEY_TENANT_ID, key));
+        out.writeObject(key.getKey());
+        return true;
+    }
+
+    private CacheKey readCacheKey(final CompactInput in) {
+        final int kind = in.readByte();
+        final String name = in.readString();
+        final String tenantId = in.readString();
+        final Serializable id = (Serializable) in.readObject();
+        final SessionFactoryImplementor sessionFactory = factory;
+        if (sessionFactory == null) {
+            throw new CacheException("The codec is not bound to a session factory, the key of " + name + " can't be read.");
+        }
+        final Type type = kind == ENTITY_KEY ? sessionFactory.getEntityPersister(name).getIdentifierType()
+                                             : sessionFactory.getCollectionPersister(name).getKeyType();
+        return new CacheKey(id, type, name, tenantId, sessionFactory);
+    }
+
+    private void writeCacheEntry(final CompactOutput out, final CacheEntry entry) {
+        final Serializable[] state = entry.getDisassembledState();
+        final Kind[] schema = schemaOf(entry.getSubclass());
+        final boolean matches = schema != null && matches(schema, state);
+        out.writeName(entry.getSubclass());
+        out.writeByte((entry.areLazyPropertiesUnfetched() ? UNFETCHED : 0) | (matches ? SCHEMA : 0));
+        out.writeObject(entry.getVersion());
+        if (!matches) {
+            out.writeObject(state);
+            return;
+        }
+        /* The null bitmap and the values without tags. */
+        int bits = 0;
+        for (int i = 0; i < state.length; i++) {
+            if (state[i] == null) {
+                bits |= 1 << (i & 7);
+            }
+            if ((i & 7) == 7 || i == state.length - 1) {
+                out.writeByte(bits);
+                bits = 0;
+            }
+        }
+        for (int i = 0; i < state.length; i++) {
+            if (state[i] != null) {
+                schema[i].write(out, state[i]);
+            }
+        }
+    }
+
+    private CacheEntry readCacheEntry(final CompactInput in) {
+        final String subclass = in.readString();
+        final int flags = in.readByte();
+        final Object version = in.readObject();
+        final Serializable[] state;
+        if ((flags & SCHEMA) == 0) {
+            state = (Serializable[]) in.readObject();
+        } else {
+            final Kind[] schema = schemaOf(subclass);
+            if (schema == null) {
+                throw new CacheException("The codec is not bound to a session factory, the entry of " + subclass + " can't be read.");
+            }
+            state = new Serializable[schema.length];
+            final boolean[] nulls = new boolean[schema.length];
+            int bits = 0;
+            for (int i = 0; i < schema.length; i++) {
+                if ((i & 7) == 0) {
+                    bits = in.readByte();
+                }
+                nulls[i] = (bits & 1 << (i & 7)) != 0;
+            }
+            for (int i = 0; i < schema.length; i++) {
+                if (!nulls[i]) {
+                    state[i] = schema[i].read(in);
+                }
+            }
+        }
+        return newInstance(CACHE_ENTRY_CONSTRUCTOR, state, subclass, Boolean.valueOf((flags & UNFETCHED) != 0), version);
+    }
+
+    /**
+     * @return <tt>true</tt> if the values have the types of the properties.
+     */
+    private static boolean matches(final Kind[] schema, final Serializable[] state) {
+        if (schema.length != state.length) {
+            return false;
+        }
+        for (int i = 0; i < state.length; i++) {
+            if (state[i] != null && schema[i].type != null && state[i].getClass() != schema[i].type) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The kinds of the properties of the entity or <tt>null</tt> if the codec is not bound or the entity is unknown.
+     */
+    private Kind[] schemaOf(final String entityName) {
+        final Kind[] cached = schemas.get(entityName);
+        if (cached != null) {
+            return cached;
+        }
+        final Metamodel names = metamodel();
+        if (names == null || !names.entities.containsKey(entityName)) {
+            return null;
+        }
+        final SessionFactoryImplementor sessionFactory = factory;
+        final EntityPersister persister = sessionFactory.getEntityPersister(entityName);
+        final Type[] types = persister.getPropertyTypes();
+        final Kind[] schema = new Kind[types.length];
+        for (int i = 0; i < types.length; i++) {
+            Class<?> type = types[i].getReturnedClass();
+            if (types[i] instanceof EntityType) {
+                /* The associations are disassembled to the identifiers of the associated entities. */
+                type = ((EntityType) types[i]).getIdentifierOrUniqueKeyType(sessionFactory).getReturnedClass();
+            } else if (types[i].isAssociationType() || types[i].isComponentType()) {
+                type = null;
+            }
+            schema[i] = Kind.of(type);
+        }
+        schemas.put(entityName, schema);
+        return schema;
+    }
+
+    /**
+     * @return <tt>true</tt> if the name is an entity or collection role of the bound metamodel.
+     */
+    boolean isName(final String name) {
+        final Metamodel names = metamodel();
+        return names != null && name.equals(names.byHash.get(Integer.valueOf(name.hashCode())));
+    }
+
+    /**
+     * @return The entity name or collection role with the hash.
+     * @throws CacheException If the name is not in the bound metamodel.
+     */
+    String nameOf(final int hash) {
+        final Metamodel names = metamodel();
+        final String name = names == null ? null : names.byHash.get(Integer.valueOf(hash));
+        if (name == null) {
+            throw new CacheException("Unknown entity name or collection role hash: " + hash);
+        }
+        return name;
+    }
+
+    /**
+     * @return The names of the bound metamodel, or <tt>null</tt> if the codec is not bound or the metamodel is not built yet.
+     */
+    private Metamodel metamodel() {
+        Metamodel names = metamodel;
+        if (names == null) {
+            final SessionFactoryImplementor sessionFactory = factory;
+            if (sessionFactory == null) {
+                return null;
+            }
+            final Map<?, ?> entities = sessionFactory.getAllClassMetadata();
+            final Map<?, ?> collections = sessionFactory.getAllCollectionMetadata();
+            if (entities == null || collections == null) {
+                return null;
+            }
+            names = new Metamodel(entities, collections);
+            metamodel = names;
+        }
+        return names;
+    }
+
+    private static int checkLength(final int length) {
+        if (length < 0) {
+            throw new CacheException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    private static <T> Constructor<T> accessible(final Class<T> type, final Class<?>... parameterTypes) {
+        try {
+            final Constructor<T> constructor = type.getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (final NoSuchMethodException e) {
+            throw new IllegalStateException("The constructor of " + type.getName() + " is not found.", e);
+        }
+    }
+
+    private static Field accessible(final Class<?> type, final String name) {
+        try {
+            final Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (final NoSuchFieldException e) {
+            throw new IllegalStateException("The " + name + " field of " + type.getName() + " is not found.", e);
+        }
+    }
+
+    private static Object fieldValue(final Field field, final Object object) {
+        try {
+            return field.get(object);
+        } catch (final IllegalAccessException e) {
+            throw new CacheException("The " + field.getName() + " of " + object + " can't be read.", e);
+        }
+    }
+
+    private static <T> T newInstance(final Constructor<T> constructor, final Object... arguments) {
+        try {
+            return constructor.newInstance(arguments);
+        } catch (final InstantiationException e) {
+            throw new CacheException("The " + constructor.getDeclaringClass().getName() + " can't be created.", e);
+        } catch (final IllegalAccessException e) {
+            throw new CacheException("The " + constructor.getDeclaringClass().getName() + " can't be created.", e);
+        } catch (final InvocationTargetException e) {
+            throw new CacheException("The " + constructor.getDeclaringClass().getName() + " can't be created.", e.getCause());
+        }
+    }
+
+    /**
+     * The entity names and collection roles of the metamodel.
+     */
+    private static final class Metamodel {
+
+        final Map<?, ?> entities;
+        final Map<?, ?> collections;
+
+        /** The names by their hashes, the names with colliding hashes are written as strings. */
+        final Map<Integer, String> byHash = new HashMap<Integer, String>();
+
+        Metamodel(final Map<?, ?> entities, final Map<?, ?> collections) {
+            this.entities = entities;
+            this.collections = collections;
+            final Map<Integer, String> collisions = new HashMap<Integer, String>();
+            for (final Object name : entities.keySet()) {
+                add((String) name, collisions);
+            }
+            for (final Object name : collections.keySet()) {
+                add((String) name, collisions);
+            }
+            for (final Integer hash : collisions.keySet()) {
+                byHash.remove(hash);
+            }
+        }
+
+        private void add(final String name, final Map<Integer, String> collisions) {
+            final Integer hash = Integer.valueOf(name.hashCode());
+            final String previous = byHash.put(hash, name);
+            if (previous != null && !previous.equals(name)) {
+                collisions.put(hash, name);
+            }
+        }
+    }
+
+    /**
+     * A class registered with its own {@link TypeCodec}.
+     */
+    private static final class Extension<T> {
+
+        final int tag;
+        final Class<T> type;
+        final TypeCodec<T> codec;
+
+        Extension(final int tag, final Class<T> type, final TypeCodec<T> codec) {
+            this.tag = tag;
+            this.type = type;
+            this.codec = codec;
+        }
+
+        void write(final Object value, final CompactOutput out) {
+            codec.write(type.cast(value), out);
+        }
+    }
+
+    /**
+     * The types of the properties of the entities written without tags.
+     */
+    private enum Kind {
+        LONG(Long.class) {
+            @Override
+            void write(final CompactOutput out, final Object value) {
+                out.writeSignedVarLong(((Long) value).longValue());
+            }
+            @Override
+            Serializable read(final CompactInput in) {
+                return Long.valueOf(in.readSignedVarLong());
+            }
+        },
+        INTEGER(Integer.class) {
+            @Override
+            void write(final CompactOutput out, final Object value) {
+                out.writeSignedVarInt(((Integer) value).intValue());
+            }
+            @Override
+            Serializable read(final CompactInput in) {
+                return Integer.valueOf(in.readSignedVarInt());
+            }
+        },
+        BOOLEAN(Boolean.class) {
+            @Override
+            void write(final CompactOutput out, final Object value) {
+                out.writeBoolean(((Boolean) value).booleanValue());
+            }
+            @Override
+            Serializable read(final CompactInput in) {
+                return Boolean.valueOf(in.readBoolean());
+            }
+        },
+        STRING(String.class) {
+            @Override
+            void write(final CompactOutput out, final Object value) {
+                out.writeString((String) value);
+            }
+            @Override
+            Serializable read(final CompactInput in) {
+                return in.readString();
+            }
+        },
+        /** Any other type, written with its tag. */
+        ANY(null) {
+            @Override
+            void write(final CompactOutput out, final Object value) {
+                out.writeObject(value);
+            }
+            @Override
+            Serializable read(final CompactInput in) {
+                return (Serializable) in.readObject();
+            }
+        };
+
+        /** The class of the values, <tt>null</tt> for any class. */
+        final Class<?> type;
+
+        Kind(final Class<?> type) {
+            this.type = type;
+        }
+
+        abstract void write(CompactOutput out, Object value);
+
+        abstract Serializable read(CompactInput in);
+
+        static Kind of(final Class<?> type) {
+            for (final Kind kind : values()) {
+                if (kind.type != null && kind.type == type) {
+                    return kind;
+                }
+            }
+            return ANY;
+        }
+    }
+
+}
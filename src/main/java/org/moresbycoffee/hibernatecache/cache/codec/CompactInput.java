@@ -0,0 +1,160 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.cache.CacheException;
+
+/**
+ * The input of the {@link CompactCodec}, reads an entry written by a {@link CompactOutput}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class CompactInput {
+
+    private final CompactCodec codec;
+
+    private final byte[] bytes;
+
+    private int position;
+
+    /** The strings read so far, <tt>null</tt> until the first string. */
+    private List<String> strings;
+
+    CompactInput(final CompactCodec codec, final byte[] bytes) {
+        this.codec = codec;
+        this.bytes = bytes;
+    }
+
+    public int readByte() {
+        if (position >= bytes.length) {
+            throw new CacheException("Unexpected end of the encoded entry.");
+        }
+        return bytes[position++];
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CacheException("Malformed variable length integer.");
+    }
+
+    public long readSignedVarLong() {
+        final long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public int readVarInt() {
+        return (int) readVarLong();
+    }
+
+    public int readSignedVarInt() {
+        final int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public int readInt() {
+        return (readByte() & 0xff) << 24 | (readByte() & 0xff) << 16 | (readByte() & 0xff) << 8 | readByte() & 0xff;
+    }
+
+    public long readLong() {
+        return (long) readInt() << 32 | readInt() & 0xffffffffL;
+    }
+
+    public byte[] readBytes(final int length) {
+        if (length < 0 || position + length > bytes.length) {
+            throw new CacheException("Unexpected end of the encoded entry.");
+        }
+        final byte[] value = new byte[length];
+        System.arraycopy(bytes, position, value, 0, length);
+        position += length;
+        return value;
+    }
+
+    /**
+     * @return The string written by the {@link CompactOutput#writeString(String)} or {@link CompactOutput#writeName(String)}.
+     */
+    public String readString() {
+        final int header = readVarInt();
+        switch (header & 3) {
+            case CompactOutput.STRING_NULL:
+                return null;
+            case CompactOutput.STRING_REFERENCE:
+                final int index = header >>> 2;
+                if (strings == null || index >= strings.size()) {
+                    throw new CacheException("Invalid string reference: " + index);
+                }
+                return strings.get(index);
+            case CompactOutput.STRING_INLINE:
+                final int length = header >>> 2;
+                if (length < 0 || position + length > bytes.length) {
+                    throw new CacheException("Unexpected end of the encoded entry.");
+                }
+                final String value = new String(bytes, position, length, CompactOutput.UTF8);
+                position += length;
+                if (strings == null) {
+                    strings = new ArrayList<String>();
+                }
+                strings.add(value);
+                return value;
+            default:
+                return codec.nameOf(readInt());
+        }
+    }
+
+    /**
+     * @return The value written by the {@link CompactOutput#writeObject(Object)}.
+     */
+    public Object readObject() {
+        return codec.read(this);
+    }
+
+    /**
+     * @return <tt>true</tt> if the whole entry has been read.
+     */
+    boolean isEnd() {
+        return position == bytes.length;
+    }
+
+}
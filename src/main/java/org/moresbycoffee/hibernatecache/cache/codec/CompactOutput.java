@@ -0,0 +1,183 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.codec;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The output of the {@link CompactCodec}, an entry is written by a single output.
+ * <p>
+ * The integers are written as variable length integers (7 bits per byte), the signed ones zigzag encoded.
+ * The strings are dictionary coded: a string repeated in the entry is written only once, the later occurrences
+ * refer to the first one; the names of the entities and the collection roles are written as their 4 bytes hashes
+ * if the codec is bound to the metamodel.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class CompactOutput {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* The kinds of the string headers, the header is the payload shifted by 2 bits or-ed with the kind. */
+    static final int STRING_NULL      = 0;
+    static final int STRING_REFERENCE = 1;
+    static final int STRING_INLINE    = 2;
+    static final int STRING_NAME      = 3;
+
+    private final CompactCodec codec;
+
+    private byte[] bytes = new byte[64];
+
+    private int position;
+
+    /** The strings written so far and their index, <tt>null</tt> until the first string. */
+    private Map<String, Integer> strings;
+
+    CompactOutput(final CompactCodec codec) {
+        this.codec = codec;
+    }
+
+    public void writeByte(final int value) {
+        ensure(1);
+        bytes[position++] = (byte) value;
+    }
+
+    public void writeBoolean(final boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Writes a not negative number on 1-9 bytes.
+     */
+    public void writeVarLong(final long value) {
+        ensure(10);
+        long remaining = value;
+        while ((remaining & ~0x7fL) != 0) {
+            bytes[position++] = (byte) ((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        bytes[position++] = (byte) remaining;
+    }
+
+    /**
+     * Writes a number close to zero on few bytes.
+     */
+    public void writeSignedVarLong(final long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a not negative number on 1-5 bytes.
+     */
+    public void writeVarInt(final int value) {
+        writeVarLong(value & 0xffffffffL);
+    }
+
+    public void writeSignedVarInt(final int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void writeInt(final int value) {
+        ensure(4);
+        bytes[position++] = (byte) (value >>> 24);
+        bytes[position++] = (byte) (value >>> 16);
+        bytes[position++] = (byte) (value >>> 8);
+        bytes[position++] = (byte) value;
+    }
+
+    public void writeLong(final long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeBytes(final byte[] value) {
+        ensure(value.length);
+        System.arraycopy(value, 0, bytes, position, value.length);
+        position += value.length;
+    }
+
+    /**
+     * @param value The string, written only once per entry. (Nullable)
+     */
+    public void writeString(final String value) {
+        if (value == null) {
+            writeVarInt(STRING_NULL);
+            return;
+        }
+        if (strings == null) {
+            strings = new HashMap<String, Integer>();
+        } else {
+            final Integer index = strings.get(value);
+            if (index != null) {
+                writeVarInt(index.intValue() << 2 | STRING_REFERENCE);
+                return;
+            }
+        }
+        strings.put(value, Integer.valueOf(strings.size()));
+        final byte[] utf8 = value.getBytes(UTF8);
+        writeVarInt(utf8.length << 2 | STRING_INLINE);
+        writeBytes(utf8);
+    }
+
+    /**
+     * @param name The name of an entity or a collection role, written as its hash if it is in the metamodel. (NonNull)
+     */
+    public void writeName(final String name) {
+        if (codec.isName(name)) {
+            writeVarInt(STRING_NAME);
+            writeInt(name.hashCode());
+        } else {
+            writeString(name);
+        }
+    }
+
+    /**
+     * @param value The value written with its tag. (Nullable)
+     */
+    public void writeObject(final Object value) {
+        codec.write(this, value);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, position);
+    }
+
+    private void ensure(final int length) {
+        if (position + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + length));
+        }
+    }
+
+}
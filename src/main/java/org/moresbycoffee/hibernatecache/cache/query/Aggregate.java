@@ -0,0 +1,189 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The aggregate function selected by a query, e.g. <code>select count(*) from Entity e where e.name=?</code>.
+ * <p>
+ * The value of the aggregate is updated by the rows leaving and entering the result of the query.
+ * Only the exact updates are made: <code>count</code> is always maintained, <code>sum</code> of
+ * integral and decimal columns unless it reaches zero (it might be <tt>null</tt> then),
+ * <code>min</code> and <code>max</code> of numeric columns unless the extreme row leaves the result.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class Aggregate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The value returned by {@link #apply(Object, TableWrite, boolean, boolean)} if it can't be computed. */
+    static final Object UNKNOWN = new Object();
+
+    /** The aggregate function. */
+    enum Function {
+        COUNT, SUM, MIN, MAX
+    }
+
+    private final Function function;
+
+    /** The lower case name of the aggregated column, <tt>null</tt> for <code>count(*)</code>. */
+    private final String column;
+
+    private Aggregate(final Function function, final String column) {
+        this.function = function;
+        this.column = column;
+    }
+
+    /**
+     * @param selectClause The lower case select clause of the query. (NonNull)
+     * @param alias The alias of the queried table. (NonNull)
+     * @return The aggregate selected by the clause, <tt>null</tt> if it selects anything else.
+     */
+    static Aggregate parse(final String selectClause, final String alias) {
+        final Matcher matcher = Pattern.compile("select (count|sum|min|max)\\((\\*|" + Pattern.quote(alias) + "\\.(\\w+))\\)(?: as \\w+)?").matcher(selectClause.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        final Function function = Function.valueOf(matcher.group(1).toUpperCase(Locale.ENGLISH));
+        if (function != Function.COUNT && matcher.group(3) == null) {
+            return null;
+        }
+        return new Aggregate(function, matcher.group(3));
+    }
+
+    Function getFunction() {
+        return function;
+    }
+
+    /**
+     * @param value The value of the aggregate before the write.
+     * @param write The write. (NonNull)
+     * @param before <tt>true</tt> if the written row has been part of the result before the write.
+     * @param after <tt>true</tt> if the written row is part of the result after the write.
+     * @return The value of the aggregate after the write, {@link #UNKNOWN} if it can't be computed.
+     */
+    Object apply(final Object value, final TableWrite write, final boolean before, final boolean after) {
+        if (!before && !after) {
+            return value;
+        }
+        final Object removed = before ? columnValue(write.getBefore()) : null;
+        final Object added = after ? columnValue(write.getAfter()) : null;
+        if (removed == UNKNOWN || added == UNKNOWN) {
+            return UNKNOWN;
+        }
+        switch (function) {
+            case COUNT:
+                if (!(value instanceof Long)) {
+                    return UNKNOWN;
+                }
+                final long delta = (after && (column == null || added != null) ? 1 : 0) - (before && (column == null || removed != null) ? 1 : 0);
+                return Long.valueOf(((Long) value).longValue() + delta);
+            case SUM:
+                return sum(value, removed, added);
+            default:
+                return extreme(value, removed, added);
+        }
+    }
+
+    private Object columnValue(final Map<String, Object> row) {
+        if (column == null) {
+            return null;
+        }
+        return row != null && row.containsKey(column) ? row.get(column) : UNKNOWN;
+    }
+
+    private static Object sum(final Object value, final Object removed, final Object added) {
+        if (!isExact(value) || !isExact(removed) || !isExact(added)) {
+            return UNKNOWN;
+        }
+        if (removed == null && added == null) {
+            return value;
+        }
+        final BigDecimal sum = decimal(value).subtract(decimal(removed)).add(decimal(added));
+        if (sum.signum() == 0 && removed != null) {
+            /* The sum of the remaining rows or null if every remaining value is null. */
+            return UNKNOWN;
+        }
+        final Object type = value != null ? value : added;
+        if (type instanceof BigDecimal) {
+            return sum;
+        }
+        try {
+            return type instanceof BigInteger ? sum.toBigIntegerExact() : Long.valueOf(sum.longValueExact());
+        } catch (final ArithmeticException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private Object extreme(final Object value, final Object removed, final Object added) {
+        if (!isExact(value) || !isExact(removed) || !isExact(added)) {
+            return UNKNOWN;
+        }
+        if (removed != null && (value == null || decimal(removed).compareTo(decimal(value)) == 0)) {
+            /* The extreme row may leave the result. */
+            return UNKNOWN;
+        }
+        if (added == null) {
+            return value;
+        }
+        if (value == null) {
+            return added;
+        }
+        final int comparison = decimal(added).compareTo(decimal(value));
+        return function == Function.MIN ? (comparison < 0 ? added : value) : (comparison > 0 ? added : value);
+    }
+
+    /**
+     * @return <tt>true</tt> if the value is computed and compared the same way in the database and by {@link #decimal(Object)}.
+     */
+    private static boolean isExact(final Object value) {
+        return value == null || QueryDependency.isExactNumber(value);
+    }
+
+    private static BigDecimal decimal(final Object value) {
+        return value == null ? BigDecimal.ZERO : new BigDecimal(value.toString());
+    }
+
+    @Override
+    public String toString() {
+        return function + "(" + (column == null ? "*" : column) + ")";
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.persistence.EntityNotFoundException;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.UnresolvableObjectException;
+import org.hibernate.cache.internal.StandardQueryCache;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.cache.spi.UpdateTimestampsCache;
+import org.hibernate.cfg.Settings;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.type.Type;
+import org.hibernate.type.TypeHelper;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+
+/**
+ * Standard query cache loading the missing entities of the cached results in batches.
+ * The cached result is read and checked only once, the entities are assembled like in the {@link StandardQueryCache}.
+ *
+ * @see EntityBatchLoader
+ * @see BatchLoadingQueryCacheFactory
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class BatchLoadingQueryCache extends StandardQueryCache {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(BatchLoadingQueryCache.class);
+
+    private final EntityBatchLoader batchLoader;
+
+    /**
+     * @param settings The settings of the session factory. (NonNull)
+     * @param props The properties of the session factory. (NonNull)
+     * @param updateTimestampsCache The update timestamps cache. (NonNull)
+     * @param regionName The name of the region, <tt>null</tt> for the default region.
+     */
+    public BatchLoadingQueryCache(final Settings settings, final Properties props, final UpdateTimestampsCache updateTimestampsCache, final String regionName) {
+        super(settings, props, updateTimestampsCache, regionName);
+        this.batchLoader = new EntityBatchLoader(new CacheSettings(props).getQueryBatchSize(getRegion().getName()));
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List get(final QueryKey key, final Type[] returnTypes, final boolean isNaturalKeyLookup, final Set spaces, final SessionImplementor session) throws HibernateException {
+        final List cacheable = (List) getRegion().get(key);
+        if (cacheable == null) {
+            LOG.debug("Query results were not found in cache");
+            return null;
+        }
+        if (!isNaturalKeyLookup && !isUpToDate(spaces, (Long) cacheable.get(0))) {
+            LOG.debug("Cached query results were not up-to-date");
+            return null;
+        }
+        final List<?> rows = cacheable.subList(1, cacheable.size());
+        batchLoader.loadMissing(returnTypes, rows, session);
+        final boolean singleResult = returnTypes.length == 1;
+        for (final Object row : rows) {
+            if (singleResult) {
+                returnTypes[0].beforeAssemble((Serializable) row, session);
+            } else {
+                TypeHelper.beforeAssemble((Serializable[]) row, returnTypes, session);
+            }
+        }
+        final List<Object> result = new ArrayList<Object>(rows.size());
+        for (final Object row : rows) {
+            try {
+                result.add(singleResult ? returnTypes[0].assemble((Serializable) row, session, null)
+                                        : TypeHelper.assemble((Serializable[]) row, returnTypes, session, null));
+            } catch (final RuntimeException e) {
+                if (isNaturalKeyLookup && (e instanceof UnresolvableObjectException || e instanceof EntityNotFoundException)) {
+                    LOG.debug("Unable to reassemble cached result set");
+                    getRegion().evict(key);
+                    return null;
+                }
+                throw e;
+            }
+        }
+        return result;
+    }
+
+}
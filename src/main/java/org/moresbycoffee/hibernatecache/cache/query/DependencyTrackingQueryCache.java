@@ -0,0 +1,361 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.persistence.EntityNotFoundException;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.UnresolvableObjectException;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.QueryCache;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.hibernate.cfg.Settings;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.hibernate.type.TypeHelper;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+
+/**
+ * Query cache invalidating only the results which can be affected by the writes of their tables.
+ * <p>
+ * The standard query cache drops every result of a table when the table is written. This cache
+ * records the {@link QueryDependency dependency} of each result and checks it against the row level
+ * writes of the {@link WriteLog}, e.g. an update of the <code>name</code> of an entity doesn't invalidate
+ * the <code>select ... from Entity e where e.id=?</code> results of other identifiers, and no update
+ * invalidates the unfiltered <code>select e from Entity e</code> results returning only identifiers.
+ * The writes not recorded row by row (bulk and native statements) invalidate the tables the standard way.
+ * <p>
+ * The results of the unordered entity queries without row limits whose where clause consists of equality
+ * and null checks (e.g. <code>select e from Entity e</code> or <code>select e from Entity e where e.name=:name</code>)
+ * are maintained instead of being dropped: the identifiers of the committed inserts are appended to them,
+ * the deleted identifiers are removed, and the updated rows are added or removed depending on their new values.
+ * The queries selecting a single aggregate (e.g. <code>select count(e) from Entity e</code>) are maintained the same
+ * way, their values are updated by the rows entering and leaving the aggregated set.
+ * <p>
+ * The missing entities of the results are loaded in batches by the {@link EntityBatchLoader}.
+ *
+ * @see DependencyTrackingQueryCacheFactory
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class DependencyTrackingQueryCache implements QueryCache {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(DependencyTrackingQueryCache.class);
+
+    /** The private fields of the {@link QueryKey} describing the query, <tt>null</tt> if not accessible. */
+    private static final Field[] QUERY_KEY_FIELDS = queryKeyFields("sqlQueryString", "positionalParameterValues", "namedParameters", "filterKeys", "firstRow", "maxRows");
+
+    private final QueryResultsRegion cacheRegion;
+
+    private final WriteLog writeLog;
+
+    private final EntityBatchLoader batchLoader;
+
+    /**
+     * @param settings The settings of the session factory. (NonNull)
+     * @param props The properties of the session factory. (NonNull)
+     * @param regionName The name of the region, <tt>null</tt> for the default region.
+     * @param writeLog The write log of the region factory. (NonNull)
+     */
+    public DependencyTrackingQueryCache(final Settings settings, final Properties props, final String regionName, final WriteLog writeLog) {
+        String name = regionName == null ? DependencyTrackingQueryCache.class.getName() : regionName;
+        if (settings.getCacheRegionPrefix() != null) {
+            name = settings.getCacheRegionPrefix() + '.' + name;
+        }
+        this.cacheRegion = settings.getRegionFactory().buildQueryResultsRegion(name, props);
+        this.writeLog = writeLog;
+        this.batchLoader = new EntityBatchLoader(new CacheSettings(props).getQueryBatchSize(name));
+    }
+
+    @Override
+    public void clear() throws CacheException {
+        cacheRegion.evictAll();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean put(final QueryKey key, final Type[] returnTypes, final List result, final boolean isNaturalKeyLookup, final SessionImplementor session) throws HibernateException {
+        if (isNaturalKeyLookup && result.isEmpty()) {
+            return false;
+        }
+        final long timestamp = cacheRegion.nextTimestamp();
+        final QueryDependency dependency = dependencyOf(key, returnTypes);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Caching query results in region: " + cacheRegion.getName() + " timestamp: " + timestamp + " " + dependency);
+        }
+        final boolean singleResult = returnTypes.length == 1;
+        final ArrayList<Serializable> rows = new ArrayList<Serializable>(result.size());
+        for (final Object row : result) {
+            rows.add(singleResult ? returnTypes[0].disassemble(row, session, null)
+                                  : TypeHelper.disassemble((Object[]) row, returnTypes, null, session, null));
+        }
+        cacheRegion.put(key, new CachedResult(timestamp, dependency, rows));
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List get(final QueryKey key, final Type[] returnTypes, final boolean isNaturalKeyLookup, final Set spaces, final SessionImplementor session) throws HibernateException {
+        final CachedResult cached = (CachedResult) cacheRegion.get(key);
+        if (cached == null) {
+            return null;
+        }
+        List<Serializable> rows = cached.rows;
+        if (!isNaturalKeyLookup && !writeLog.isUpToDate(spaces, cached.timestamp, cached.dependency)) {
+            rows = maintain(key, cached, returnTypes, spaces, session);
+            if (rows == null) {
+                LOG.debug("Cached query results were not up-to-date");
+                return null;
+            }
+        }
+        batchLoader.loadMissing(returnTypes, rows, session);
+        final boolean singleResult = returnTypes.length == 1;
+        for (final Serializable row : rows) {
+            if (singleResult) {
+                returnTypes[0].beforeAssemble(row, session);
+            } else {
+                TypeHelper.beforeAssemble((Serializable[]) row, returnTypes, session);
+            }
+        }
+        final List<Object> result = new ArrayList<Object>(rows.size());
+        for (final Serializable row : rows) {
+            try {
+                result.add(singleResult ? returnTypes[0].assemble(row, session, null)
+                                        : TypeHelper.assemble((Serializable[]) row, returnTypes, session, null));
+            } catch (final RuntimeException e) {
+                if (isNaturalKeyLookup && (e instanceof UnresolvableObjectException || e instanceof EntityNotFoundException)) {
+                    LOG.debug("Unable to reassemble cached result set");
+                    cacheRegion.evict(key);
+                    return null;
+                }
+                throw e;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            cacheRegion.destroy();
+        } catch (final Exception e) {
+            LOG.warn("Unable to destroy query cache: " + cacheRegion.getName() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public QueryResultsRegion getRegion() {
+        return cacheRegion;
+    }
+
+    @Override
+    public String toString() {
+        return "DependencyTrackingQueryCache(" + cacheRegion.getName() + ')';
+    }
+
+    /**
+     * Applies the writes committed since the result has been cached to the result and caches the updated result.
+     * @return The up-to-date rows, <tt>null</tt> if the result can't be maintained.
+     */
+    @SuppressWarnings("rawtypes")
+    private List<Serializable> maintain(final QueryKey key, final CachedResult cached, final Type[] returnTypes, final Set spaces, final SessionImplementor session) {
+        if (!cached.dependency.isMaintainable() || returnTypes.length != 1 || hasRowSelection(key, cached.dependency.getAggregate() != null)) {
+            return null;
+        }
+        /* Every write committed before this timestamp is either collected or still pending. */
+        final long timestamp = cacheRegion.nextTimestamp();
+        final List<TableWrite> writes = writeLog.committedWrites(spaces, cached.timestamp, cached.dependency);
+        if (writes == null) {
+            return null;
+        }
+        final List<Serializable> rows = cached.dependency.getAggregate() == null ? maintainEntities(cached, returnTypes[0], writes, session)
+                                                                                 : maintainAggregate(cached, writes);
+        if (rows == null) {
+            return null;
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Maintained query results in region: " + cacheRegion.getName() + " writes: " + writes);
+        }
+        cacheRegion.put(key, new CachedResult(timestamp, cached.dependency, rows));
+        return rows;
+    }
+
+    /**
+     * @return The identifiers of the entities of the result after the writes, <tt>null</tt> if they can't be computed.
+     */
+    private static List<Serializable> maintainEntities(final CachedResult cached, final Type returnType, final List<TableWrite> writes, final SessionImplementor session) {
+        if (!returnType.isEntityType() || !((EntityType) returnType).isReferenceToPrimaryKey()) {
+            return null;
+        }
+        final EntityType type = (EntityType) returnType;
+        final Type idType = type.getIdentifierOrUniqueKeyType(session.getFactory());
+        final List<Serializable> rows = new ArrayList<Serializable>(cached.rows);
+        for (final TableWrite write : writes) {
+            final Boolean contains = cached.dependency.contains(write);
+            if (contains == null || !type.getAssociatedEntityName().equals(write.getEntityName())) {
+                return null;
+            }
+            final Serializable id = idType.disassemble(write.getId(), session, null);
+            if (!contains.booleanValue()) {
+                rows.remove(id);
+            } else if (!rows.contains(id)) {
+                rows.add(id);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return The single row of the aggregate after the writes, <tt>null</tt> if it can't be computed.
+     */
+    private static List<Serializable> maintainAggregate(final CachedResult cached, final List<TableWrite> writes) {
+        if (cached.rows.size() != 1) {
+            return null;
+        }
+        Object value = cached.rows.get(0);
+        for (final TableWrite write : writes) {
+            final Boolean contained = cached.dependency.contained(write);
+            final Boolean contains = cached.dependency.contains(write);
+            if (contained == null || contains == null) {
+                return null;
+            }
+            value = cached.dependency.getAggregate().apply(value, write, contained.booleanValue(), contains.booleanValue());
+            if (value == Aggregate.UNKNOWN) {
+                return null;
+            }
+        }
+        return Collections.singletonList((Serializable) value);
+    }
+
+    /**
+     * @param singleRow <tt>true</tt> if the query returns a single row, the maximum number of rows doesn't limit it.
+     * @return <tt>true</tt> if the query of the key returns only a part of its rows (or it can't be checked).
+     */
+    private static boolean hasRowSelection(final QueryKey key, final boolean singleRow) {
+        if (QUERY_KEY_FIELDS == null) {
+            return true;
+        }
+        try {
+            final Integer firstRow = (Integer) QUERY_KEY_FIELDS[4].get(key);
+            final Integer maxRows = (Integer) QUERY_KEY_FIELDS[5].get(key);
+            return firstRow != null && firstRow.intValue() > 0 || !singleRow && maxRows != null && maxRows.intValue() > 0;
+        } catch (final IllegalAccessException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return The dependency of the query described by the key, {@link QueryDependency#ANY} if it can't be analyzed.
+     */
+    static QueryDependency dependencyOf(final QueryKey key, final Type[] returnTypes) {
+        if (QUERY_KEY_FIELDS == null) {
+            return QueryDependency.ANY;
+        }
+        try {
+            if (QUERY_KEY_FIELDS[3].get(key) != null) {
+                /* The parameters of the filters are not known. */
+                return QueryDependency.ANY;
+            }
+            final List<Object> parameters = new ArrayList<Object>();
+            final Object[] positionalParameters = (Object[]) QUERY_KEY_FIELDS[1].get(key);
+            if (positionalParameters != null) {
+                parameters.addAll(Arrays.asList(positionalParameters));
+            }
+            final Map<?, ?> namedParameters = (Map<?, ?>) QUERY_KEY_FIELDS[2].get(key);
+            if (namedParameters != null) {
+                for (final Object value : namedParameters.values()) {
+                    parameters.add(((TypedValue) value).getValue());
+                }
+            }
+            boolean entityResult = returnTypes.length > 0;
+            for (final Type type : returnTypes) {
+                entityResult &= type.isEntityType();
+            }
+            return QueryDependency.parse((String) QUERY_KEY_FIELDS[0].get(key), parameters, entityResult);
+        } catch (final IllegalAccessException e) {
+            return QueryDependency.ANY;
+        }
+    }
+
+    private static Field[] queryKeyFields(final String... names) {
+        try {
+            final Field[] fields = new Field[names.length];
+            for (int i = 0; i < names.length; i++) {
+                fields[i] = QueryKey.class.getDeclaredField(names[i]);
+                fields[i].setAccessible(true);
+            }
+            return fields;
+        } catch (final Exception e) {
+            LOG.warn("The query keys can't be analyzed, every query depends on every write of its tables: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * A cached query result.
+     */
+    static final class CachedResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long timestamp;
+        private final QueryDependency dependency;
+        private final List<Serializable> rows;
+
+        /**
+         * @param timestamp The time when the result has been cached.
+         * @param dependency The dependency of the query. (NonNull)
+         * @param rows The disassembled rows of the result. (NonNull)
+         */
+        CachedResult(final long timestamp, final QueryDependency dependency, final List<Serializable> rows) {
+            this.timestamp = timestamp;
+            this.dependency = dependency;
+            this.rows = rows;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.util.Properties;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.QueryCache;
+import org.hibernate.cache.spi.QueryCacheFactory;
+import org.hibernate.cache.spi.UpdateTimestampsCache;
+import org.hibernate.cfg.Settings;
+import org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory;
+
+/**
+ * Builds {@link DependencyTrackingQueryCache}s. It requires the {@link TinyLfuRegionFactory}.
+ * <p>
+ * Usage in the <code>persistence.xml</code>:
+ * <pre>
+ * &lt;property name="hibernate.cache.query_cache_factory" value="org.moresbycoffee.hibernatecache.cache.query.DependencyTrackingQueryCacheFactory" /&gt;
+ * </pre>
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class DependencyTrackingQueryCacheFactory implements QueryCacheFactory {
+
+    @Override
+    public QueryCache getQueryCache(final String regionName, final UpdateTimestampsCache updateTimestampsCache, final Settings settings, final Properties props) throws HibernateException {
+        return new DependencyTrackingQueryCache(settings, props, regionName, getWriteLog(settings));
+    }
+
+    /**
+     * @param settings The settings of the session factory. (NonNull)
+     * @return The write log of the region factory. (NonNull)
+     * @throws CacheException If the region factory is not a {@link TinyLfuRegionFactory}.
+     */
+    static WriteLog getWriteLog(final Settings settings) {
+        if (!(settings.getRegionFactory() instanceof TinyLfuRegionFactory)) {
+            throw new CacheException(DependencyTrackingQueryCacheFactory.class.getName() + " requires the " + TinyLfuRegionFactory.class.getName()
+                                     + " region factory instead of " + settings.getRegionFactory().getClass().getName());
+        }
+        return ((TinyLfuRegionFactory) settings.getRegionFactory()).getWriteLog();
+    }
+
+}
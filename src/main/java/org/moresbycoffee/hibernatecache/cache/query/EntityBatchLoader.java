@@ -0,0 +1,151 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.moresbycoffee.hibernatecache.cache.strategy.PeekableAccessStrategy;
+
+/**
+ * Loads the entities of a cached query result which are neither in the persistence context nor in their entity region.
+ * <p>
+ * A cached query result contains only the identifiers of its entities, the entities are resolved one by one
+ * when the result is assembled. The entities which would be loaded from the database this way are loaded
+ * before the assembly by <code>id in (...)</code> queries instead. The number of the queries is the number of
+ * the missing entities divided by the maximum batch size (rounded up), and the missing entities are distributed
+ * evenly among them, e.g. 90 entities are loaded by 3 queries of 30 entities with the maximum batch size of 32.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class EntityBatchLoader {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(EntityBatchLoader.class);
+
+    private final int maxBatchSize;
+
+    /**
+     * @param maxBatchSize The maximum number of entities loaded by a query.
+     */
+    EntityBatchLoader(final int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Loads the missing entities of the cached rows into the persistence context.
+     * @param returnTypes The types of the columns of the rows. (NonNull)
+     * @param rows The disassembled rows of the cached result. (NonNull)
+     * @param session The session assembling the result. (NonNull)
+     */
+    void loadMissing(final Type[] returnTypes, final List<?> rows, final SessionImplementor session) {
+        if (maxBatchSize < 2 || rows.size() < 2 || !(session instanceof Session)) {
+            return;
+        }
+        final Map<EntityPersister, Set<Serializable>> missing = new LinkedHashMap<EntityPersister, Set<Serializable>>();
+        for (int column = 0; column < returnTypes.length; column++) {
+            if (!returnTypes[column].isEntityType() || !((EntityType) returnTypes[column]).isReferenceToPrimaryKey()) {
+                continue;
+            }
+            final EntityPersister persister = session.getFactory().getEntityPersister(((EntityType) returnTypes[column]).getAssociatedEntityName());
+            if (persister.getIdentifierPropertyName() == null) {
+                continue;
+            }
+            for (final Object row : rows) {
+                final Serializable cached = returnTypes.length == 1 ? (Serializable) row : ((Serializable[]) row)[column];
+                if (cached == null) {
+                    continue;
+                }
+                final Serializable id = (Serializable) persister.getIdentifierType().assemble(cached, session, null);
+                if (!isAvailable(persister, id, session)) {
+                    Set<Serializable> ids = missing.get(persister);
+                    if (ids == null) {
+                        ids = new LinkedHashSet<Serializable>();
+                        missing.put(persister, ids);
+                    }
+                    ids.add(id);
+                }
+            }
+        }
+        for (final Map.Entry<EntityPersister, Set<Serializable>> entry : missing.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                load(entry.getKey(), new ArrayList<Serializable>(entry.getValue()), (Session) session);
+            }
+        }
+    }
+
+    private void load(final EntityPersister persister, final List<Serializable> ids, final Session session) {
+        final int batches = (ids.size() + maxBatchSize - 1) / maxBatchSize;
+        final int batchSize = (ids.size() + batches - 1) / batches;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Loading " + ids.size() + " " + persister.getEntityName() + " entities in " + batches + " batches");
+        }
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            session.createCriteria(persister.getEntityName())
+                   .add(Restrictions.in(persister.getIdentifierPropertyName(), ids.subList(from, Math.min(ids.size(), from + batchSize))))
+                   .setFlushMode(FlushMode.MANUAL)
+                   .list();
+        }
+    }
+
+    /**
+     * The entity region is only peeked if its strategy supports it, the entity is read from the region by the assembly anyway.
+     * @return <tt>true</tt> if the entity is in the persistence context or it can be read from its entity region.
+     */
+    private static boolean isAvailable(final EntityPersister persister, final Serializable id, final SessionImplementor session) {
+        if (session.getPersistenceContext().containsEntity(session.generateEntityKey(id, persister))) {
+            return true;
+        }
+        if (!persister.hasCache() || !session.getCacheMode().isGetEnabled()) {
+            return false;
+        }
+        final EntityRegionAccessStrategy strategy = persister.getCacheAccessStrategy();
+        final Object key = session.generateCacheKey(id, persister.getIdentifierType(), persister.getRootEntityName());
+        return strategy instanceof PeekableAccessStrategy ? ((PeekableAccessStrategy) strategy).contains(key, session.getTimestamp())
+                                                          : strategy.get(key, session.getTimestamp()) != null;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.QueryException;
+import org.hibernate.engine.spi.QueryParameters;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.hql.internal.ast.QueryTranslatorImpl;
+
+/**
+ * Query translator loading the entities of the identifier lookups by their identifiers.
+ *
+ * @see EntityRegionQueryTranslatorFactory
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class EntityRegionQueryTranslator extends QueryTranslatorImpl {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(EntityRegionQueryTranslator.class);
+
+    private final SessionFactoryImplementor factory;
+
+    /** The lookup of the query, <tt>null</tt> if the query is not an identifier lookup. */
+    private IdentifierLookup lookup;
+
+    /**
+     * @param queryIdentifier The identifier of the query. (NonNull)
+     * @param query The HQL query. (NonNull)
+     * @param enabledFilters The enabled filters. (NonNull)
+     * @param factory The session factory. (NonNull)
+     */
+    @SuppressWarnings("rawtypes")
+    EntityRegionQueryTranslator(final String queryIdentifier, final String query, final Map enabledFilters, final SessionFactoryImplementor factory) {
+        super(queryIdentifier, query, enabledFilters, factory);
+        this.factory = factory;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void compile(final Map replacements, final boolean shallow) throws QueryException, MappingException {
+        super.compile(replacements, shallow);
+        if (!shallow && !isManipulationStatement() && !containsCollectionFetches()) {
+            lookup = IdentifierLookup.parse(getSQLString(), getReturnTypes(), getCollectedParameterSpecifications(), factory);
+            if (lookup != null && LOG.isDebugEnabled()) {
+                LOG.debug("Query is answered by identifier: " + getQueryString() + " " + lookup);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List list(final SessionImplementor session, final QueryParameters queryParameters) throws HibernateException {
+        if (lookup != null) {
+            final List<Object> result = lookup.list(session, queryParameters);
+            if (result != null) {
+                return result;
+            }
+        }
+        return super.list(session, queryParameters);
+    }
+
+}
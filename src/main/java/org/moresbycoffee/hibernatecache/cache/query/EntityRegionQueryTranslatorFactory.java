@@ -0,0 +1,72 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.util.Map;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.hql.internal.ast.QueryTranslatorImpl;
+import org.hibernate.hql.spi.FilterTranslator;
+import org.hibernate.hql.spi.QueryTranslator;
+import org.hibernate.hql.spi.QueryTranslatorFactory;
+
+/**
+ * Query translator factory answering the identifier lookups of cached entities from the entity regions.
+ * <p>
+ * Hibernate doesn't use the second level cache for the HQL and JPQL queries (and the JPA criteria queries
+ * rendered to JPQL), even if they select an entity by its identifier: <code>select e from Entity e where e.id = :id</code>
+ * always hits the database while <code>find</code> doesn't. The translators of this factory recognize these queries
+ * (see {@link IdentifierLookup}) and load their entities by identifier: the cached entities are taken from the
+ * persistence context or the entity region, the query is executed only if more entities are missing.
+ * <p>
+ * Usage:
+ * <pre>
+ * &lt;property name="hibernate.query.factory_class" value="org.moresbycoffee.hibernatecache.cache.query.EntityRegionQueryTranslatorFactory" /&gt;
+ * </pre>
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class EntityRegionQueryTranslatorFactory implements QueryTranslatorFactory {
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public QueryTranslator createQueryTranslator(final String queryIdentifier, final String queryString, final Map filters, final SessionFactoryImplementor factory) {
+        return new EntityRegionQueryTranslator(queryIdentifier, queryString, filters, factory);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public FilterTranslator createFilterTranslator(final String queryIdentifier, final String queryString, final Map filters, final SessionFactoryImplementor factory) {
+        return new QueryTranslatorImpl(queryIdentifier, queryString, filters, factory);
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hibernate.LockMode;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.QueryParameters;
+import org.hibernate.engine.spi.RowSelection;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AutoFlushEvent;
+import org.hibernate.event.spi.AutoFlushEventListener;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.param.NamedParameterSpecification;
+import org.hibernate.param.PositionalParameterSpecification;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.IdentifierType;
+import org.hibernate.type.Type;
+import org.moresbycoffee.hibernatecache.cache.strategy.PeekableAccessStrategy;
+
+/**
+ * A query selecting cached entities by their identifiers, e.g.
+ * <code>select e from Entity e where e.id = :id</code> or <code>select e from Entity e where e.id in (1, 2)</code>.
+ * <p>
+ * The generated SQL is recognized if it selects the entity from its single table and its where clause
+ * is a single equality or <code>in</code> predicate of the identifier column with parameters or literals.
+ * The entities are loaded the same way as {@link javax.persistence.EntityManager#find(Class, Object)}
+ * loads them: from the persistence context, from the entity region, or from the database.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class IdentifierLookup {
+
+    private static final String VALUE = "\\?|'(?:[^']|'')*'|-?\\d+";
+
+    private static final Pattern LOOKUP = Pattern.compile("(?i)select (.+) from (\\S+) (\\S+) where \\3\\.(\\S+?)\\s*(?:=\\s*(" + VALUE + ")|in\\s*\\(\\s*((?:" + VALUE + ")(?:\\s*,\\s*(?:" + VALUE + "))*)\\s*\\))");
+
+    private static final Pattern VALUES = Pattern.compile(VALUE);
+
+    private final EntityPersister persister;
+
+    /** The tables of the entity. */
+    private final Set<Serializable> querySpaces;
+
+    /** The identifiers of the literals and the parameter specifications of the parameters. */
+    private final List<Object> values;
+
+    private IdentifierLookup(final EntityPersister persister, final List<Object> values) {
+        this.persister = persister;
+        this.querySpaces = new HashSet<Serializable>(Arrays.asList(persister.getQuerySpaces()));
+        this.values = values;
+    }
+
+    /**
+     * @param sql The SQL of the query. (NonNull)
+     * @param returnTypes The types returned by the query. (NonNull)
+     * @param parameters The specifications of the parameters of the query in the order of the SQL. (NonNull)
+     * @param factory The session factory. (NonNull)
+     * @return The lookup, <tt>null</tt> if the query is not an identifier lookup of a cached entity.
+     */
+    static IdentifierLookup parse(final String sql, final Type[] returnTypes, final List<?> parameters, final SessionFactoryImplementor factory) {
+        if (returnTypes.length != 1 || !returnTypes[0].isEntityType()) {
+            return null;
+        }
+        final Matcher matcher = LOOKUP.matcher(sql);
+        if (!matcher.matches() || matcher.group(1).indexOf('?') >= 0 || matcher.group(1).indexOf('(') >= 0) {
+            return null;
+        }
+        final EntityPersister persister = factory.getEntityPersister(((EntityType) returnTypes[0]).getAssociatedEntityName());
+        if (!persister.hasCache() || !(persister.getCacheAccessStrategy() instanceof PeekableAccessStrategy)
+                || !(persister instanceof AbstractEntityPersister) || !(persister.getIdentifierType() instanceof IdentifierType)) {
+            return null;
+        }
+        final AbstractEntityPersister entityPersister = (AbstractEntityPersister) persister;
+        final String[] idColumns = entityPersister.getIdentifierColumnNames();
+        if (entityPersister.isMultiTable() || idColumns.length != 1
+                || !QueryDependency.tableName(entityPersister.getTableName()).equals(QueryDependency.tableName(matcher.group(2)))
+                || !QueryDependency.identifier(idColumns[0]).equals(QueryDependency.identifier(matcher.group(4)))) {
+            return null;
+        }
+
+        final List<Object> values = new ArrayList<Object>();
+        final Matcher value = VALUES.matcher(matcher.group(5) != null ? matcher.group(5) : matcher.group(6));
+        int parameter = 0;
+        while (value.find()) {
+            if ("?".equals(value.group())) {
+                if (parameter == parameters.size() || !isSupported(parameters.get(parameter))) {
+                    return null;
+                }
+                values.add(parameters.get(parameter++));
+            } else {
+                final String literal = value.group().startsWith("'") ? value.group().substring(1, value.group().length() - 1).replace("''", "'")
+                                                                      : value.group();
+                try {
+                    values.add(((IdentifierType<?>) persister.getIdentifierType()).stringToObject(literal));
+                } catch (final Exception e) {
+                    return null;
+                }
+            }
+        }
+        return parameter == parameters.size() ? new IdentifierLookup(persister, values) : null;
+    }
+
+    /**
+     * Loads the entities of the query. The tables of the entity are auto-flushed first as the query would flush them.
+     * The query has to be executed if the session still has pending changes of the entity (e.g. its flush mode is
+     * <code>COMMIT</code>) or a looked up entity has been deleted in the session, the query result would differ from
+     * the state loaded by the identifier.
+     *
+     * @param session The session executing the query. (NonNull)
+     * @param queryParameters The parameters of the query. (NonNull)
+     * @return The result of the query, <tt>null</tt> if the query has to be executed, e.g. more entities are not cached.
+     */
+    List<Object> list(final SessionImplementor session, final QueryParameters queryParameters) {
+        final LockMode lockMode = queryParameters.getLockOptions().getLockMode();
+        if (lockMode != LockMode.NONE && lockMode != LockMode.READ || queryParameters.getLockOptions().getAliasLockCount() > 0
+                || queryParameters.getResultTransformer() != null || !session.getCacheMode().isGetEnabled()
+                || queryParameters.isReadOnlyInitialized() && queryParameters.isReadOnly() != session.getPersistenceContext().isDefaultReadOnly()) {
+            return null;
+        }
+        final RowSelection selection = queryParameters.getRowSelection();
+        if (selection != null && selection.getFirstRow() != null && selection.getFirstRow().intValue() > 0
+                || !(session instanceof EventSource)) {
+            return null;
+        }
+        autoFlush((EventSource) session);
+        if (((EventSource) session).getActionQueue().areTablesToBeUpdated(querySpaces)) {
+            return null;
+        }
+
+        final Set<Serializable> ids = new LinkedHashSet<Serializable>();
+        for (final Object value : values) {
+            final Object id = valueOf(value, queryParameters);
+            if (id != null && !persister.getIdentifierType().getReturnedClass().isInstance(id)) {
+                return null;
+            }
+            if (id != null) {
+                ids.add((Serializable) id);
+            }
+        }
+        /* A single missing entity is loaded by its identifier, more are loaded by the query. */
+        int misses = 0;
+        for (final Serializable id : ids) {
+            final EntityKey entityKey = session.generateEntityKey(id, persister);
+            final Object entity = session.getPersistenceContext().getEntity(entityKey);
+            if (entity != null && isRemoved(session.getPersistenceContext().getEntry(entity))) {
+                return null;
+            }
+            if (entity == null && !isCached(session, id) && ++misses > 1) {
+                return null;
+            }
+        }
+
+        final int maxRows = selection != null && selection.getMaxRows() != null && selection.getMaxRows().intValue() > 0
+                            ? selection.getMaxRows().intValue() : Integer.MAX_VALUE;
+        final List<Object> result = new ArrayList<Object>(ids.size());
+        for (final Serializable id : ids) {
+            final Object entity = session.internalLoad(persister.getEntityName(), id, true, true);
+            if (entity != null && result.size() < maxRows) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    private static Object valueOf(final Object value, final QueryParameters queryParameters) {
+        if (value instanceof PositionalParameterSpecification) {
+            return queryParameters.getPositionalParameterValues()[((PositionalParameterSpecification) value).getHqlPosition()];
+        }
+        if (value instanceof NamedParameterSpecification) {
+            final TypedValue typedValue = queryParameters.getNamedParameters().get(((NamedParameterSpecification) value).getName());
+            return typedValue == null ? null : typedValue.getValue();
+        }
+        return value;
+    }
+
+    /**
+     * Fires the auto-flush of the tables of the entity, like {@link org.hibernate.internal.SessionImpl} before a query.
+     */
+    private void autoFlush(final EventSource session) {
+        if (!session.isTransactionInProgress()) {
+            return;
+        }
+        final AutoFlushEvent event = new AutoFlushEvent(querySpaces, session);
+        final EventListenerRegistry registry = session.getFactory().getServiceRegistry().getService(EventListenerRegistry.class);
+        for (final AutoFlushEventListener listener : registry.getEventListenerGroup(EventType.AUTO_FLUSH).listeners()) {
+            listener.onAutoFlush(event);
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the entity of the persistence context has been deleted in the session.
+     */
+    private static boolean isRemoved(final EntityEntry entry) {
+        return entry != null && (entry.getStatus() == Status.DELETED || entry.getStatus() == Status.GONE);
+    }
+
+    /**
+     * @return <tt>true</tt> if the entity is readable from the entity region. The lookup is not an access of the region.
+     */
+    private boolean isCached(final SessionImplementor session, final Serializable id) {
+        final EntityRegionAccessStrategy strategy = persister.getCacheAccessStrategy();
+        return ((PeekableAccessStrategy) strategy).contains(session.generateCacheKey(id, persister.getIdentifierType(), persister.getRootEntityName()),
+                                                          session.getTimestamp());
+    }
+
+    /**
+     * @return <tt>true</tt> if the value of the parameter can be resolved by a lookup.
+     */
+    private static boolean isSupported(final Object parameter) {
+        return parameter instanceof PositionalParameterSpecification || parameter instanceof NamedParameterSpecification;
+    }
+
+    @Override
+    public String toString() {
+        return "IdentifierLookup{" + persister.getEntityName() + "#" + values + "}";
+    }
+
+}
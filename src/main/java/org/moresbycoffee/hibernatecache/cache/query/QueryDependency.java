@@ -0,0 +1,469 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The columns and the simple predicates a cached query result depends on.
+ * <p>
+ * The SQL generated by Hibernate is analyzed if it selects from a single table
+ * (no joins, sub-queries or unions):
+ * <ul>
+ * <li>every <code>alias.column</code> reference of the query is a referenced column
+ *     (except the selected columns of the queries returning entities, their results
+ *     contain only the identifiers),</li>
+ * <li>if the where clause is a conjunction without parentheses, its
+ *     <code>alias.column=?</code>, <code>alias.column='literal'</code>,
+ *     <code>alias.column is null</code> and <code>alias.column is not null</code>
+ *     terms are predicates a row must satisfy to be part of the result.</li>
+ * </ul>
+ * A write can affect the result if it inserts or deletes a row which may satisfy the predicates,
+ * or it updates a referenced column of a row which may satisfy them before or after the update.
+ * Every decision is conservative: unknown values, parameters which can't be bound to a predicate
+ * and values which could be equal in the database (e.g. strings differing in case) may satisfy
+ * the predicates. The queries which can't be analyzed depend on every write of their tables.
+ * <p>
+ * The result of an unordered entity query or a query selecting a single {@link Aggregate aggregate}
+ * is {@link #isMaintainable() maintainable} if its whole where clause consists of predicates with known values:
+ * the writes decide whether the written row is part of the result or not, so the result can be updated
+ * instead of being dropped.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class QueryDependency implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The dependency of the queries which can't be analyzed. */
+    static final QueryDependency ANY = new QueryDependency(null, Collections.<String>emptySet(), Collections.<Predicate>emptyList(), false, null);
+
+    /** The keywords ending the from and the where clause. */
+    private static final String[] CLAUSE_ENDS = { " where ", " group by ", " order by ", " having ", " limit ", " for update" };
+
+    private static final String NUMBER = "-?\\d+(?:\\.\\d+)?";
+
+    private static final String STRING = "'(?:[^']|'')*'";
+
+    /** The row limit added to the queries by the dialect, it doesn't change the single row of an aggregate. */
+    private static final Pattern LIMIT = Pattern.compile(" limit \\?(?: offset \\?)?$");
+
+    /** The lower case name of the table, <tt>null</tt> if the query can't be analyzed. */
+    private final String table;
+
+    /** The lower case names of the referenced columns. */
+    private final Set<String> columns;
+
+    private final List<Predicate> predicates;
+
+    /** <tt>true</tt> if the predicates decide which rows are part of the result. */
+    private final boolean maintainable;
+
+    /** The selected aggregate, <tt>null</tt> if the query doesn't select a single aggregate. */
+    private final Aggregate aggregate;
+
+    private QueryDependency(final String table, final Set<String> columns, final List<Predicate> predicates, final boolean maintainable, final Aggregate aggregate) {
+        this.table = table;
+        this.columns = columns;
+        this.predicates = predicates;
+        this.maintainable = maintainable;
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * @param sql The SQL of the query. (NonNull)
+     * @param parameters The values of the parameters of the query. (NonNull)
+     * @param entityResult <tt>true</tt> if the query returns only entities.
+     * @return The dependency of the query. (NonNull)
+     */
+    static QueryDependency parse(final String sql, final Collection<?> parameters, final boolean entityResult) {
+        final String lower = sql.toLowerCase(Locale.ENGLISH);
+        if (lower.length() != sql.length() || !lower.startsWith("select ")
+                || lower.contains(" join ") || lower.contains("(select") || lower.contains(" union ")) {
+            return ANY;
+        }
+        final int from = lower.indexOf(" from ");
+        if (from < 0 || !isBalanced(lower.substring(0, from))) {
+            return ANY;
+        }
+        final int fromEnd = indexOfAny(lower, from + " from ".length(), CLAUSE_ENDS);
+        final String[] fromClause = lower.substring(from + " from ".length(), fromEnd).trim().split(" ");
+        if (fromClause.length != 2 || fromClause[0].indexOf(',') >= 0 || fromClause[1].indexOf(',') >= 0) {
+            return ANY;
+        }
+        final String alias = fromClause[1];
+
+        final Set<String> columns = new HashSet<String>();
+        final Matcher column = Pattern.compile("\\b" + Pattern.quote(alias) + "\\.(\\w+)").matcher(lower);
+        column.region(entityResult ? fromEnd : 0, lower.length());
+        while (column.find()) {
+            columns.add(column.group(1));
+        }
+
+        final Aggregate aggregate = entityResult ? null : Aggregate.parse(lower.substring(0, from), alias);
+        final boolean maintainableResult = entityResult || aggregate != null;
+        final Matcher limit = LIMIT.matcher(lower);
+        final int queryEnd = aggregate != null && limit.find() ? limit.start() : lower.length();
+        final List<Predicate> predicates = new ArrayList<Predicate>();
+        boolean maintainable = maintainableResult && fromEnd == queryEnd;
+        if (lower.startsWith(" where ", fromEnd)) {
+            final int whereStart = fromEnd + " where ".length();
+            final int whereEnd = indexOfAny(lower, whereStart, CLAUSE_ENDS);
+            final String where = sql.substring(whereStart, whereEnd);
+            final String lowerWhere = where.toLowerCase(Locale.ENGLISH);
+            if (!lowerWhere.contains(" or ") && where.indexOf('(') < 0) {
+                final Pattern equals = Pattern.compile("(?i)" + Pattern.quote(alias) + "\\.(\\w+)\\s*=\\s*(\\?|" + STRING + "|" + NUMBER + ")");
+                final Pattern isNull = Pattern.compile("(?i)" + Pattern.quote(alias) + "\\.(\\w+)\\s+is\\s+(not\\s+)?null");
+                maintainable = maintainableResult && whereEnd == queryEnd;
+                for (final String term : where.split("(?i) and ")) {
+                    final Predicate predicate = parsePredicate(term.trim(), equals, isNull, parameters);
+                    if (predicate != null) {
+                        predicates.add(predicate);
+                    }
+                    maintainable &= predicate != null && predicate.isDecisive();
+                }
+            }
+        }
+        return new QueryDependency(tableName(fromClause[0]), columns, predicates, maintainable, aggregate);
+    }
+
+    /**
+     * @param write A write of a table of the query. (NonNull)
+     * @return <tt>true</tt> if the write may change the result of the query.
+     */
+    boolean isAffectedBy(final TableWrite write) {
+        if (table == null || write.getTable() == null || !table.equals(write.getTable())) {
+            return true;
+        }
+        switch (write.getKind()) {
+            case INSERT:
+                return mayMatch(write.getAfter());
+            case DELETE:
+                return mayMatch(write.getBefore());
+            default:
+                if (write.getChangedColumns() != null && Collections.disjoint(write.getChangedColumns(), columns)) {
+                    return false;
+                }
+                return mayMatch(write.getBefore()) || mayMatch(write.getAfter());
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the query could be analyzed.
+     */
+    boolean isAnalyzed() {
+        return table != null;
+    }
+
+    /**
+     * @return <tt>true</tt> if the result of the query can be updated by {@link #contains(TableWrite)},
+     *         and by the {@link #getAggregate() aggregate} if the query selects an aggregate.
+     */
+    boolean isMaintainable() {
+        return maintainable;
+    }
+
+    /**
+     * @return The aggregate selected by the query, <tt>null</tt> if it selects anything else.
+     */
+    Aggregate getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * @param write A write of a table of the query. (NonNull)
+     * @return {@link Boolean#TRUE} if the written row is part of the result after the write,
+     *         {@link Boolean#FALSE} if it isn't, <tt>null</tt> if it can't be decided.
+     */
+    Boolean contains(final TableWrite write) {
+        if (!isMaintainedBy(write)) {
+            return null;
+        }
+        return write.getKind() == TableWrite.Kind.DELETE ? Boolean.FALSE : matches(write.getAfter());
+    }
+
+    /**
+     * @param write A write of a table of the query. (NonNull)
+     * @return {@link Boolean#TRUE} if the written row has been part of the result before the write,
+     *         {@link Boolean#FALSE} if it hasn't, <tt>null</tt> if it can't be decided.
+     */
+    Boolean contained(final TableWrite write) {
+        if (!isMaintainedBy(write)) {
+            return null;
+        }
+        return write.getKind() == TableWrite.Kind.INSERT ? Boolean.FALSE : matches(write.getBefore());
+    }
+
+    private boolean isMaintainedBy(final TableWrite write) {
+        return maintainable && write.getTable() != null && table.equals(write.getTable());
+    }
+
+    /**
+     * @return {@link Boolean#TRUE} if the row surely satisfies the predicates,
+     *         {@link Boolean#FALSE} if it surely doesn't, <tt>null</tt> if it can't be decided.
+     */
+    private Boolean matches(final Map<String, Object> row) {
+        if (row == null) {
+            return null;
+        }
+        Boolean matches = Boolean.TRUE;
+        for (final Predicate predicate : predicates) {
+            if (predicate.excludes(row)) {
+                return Boolean.FALSE;
+            }
+            if (!predicate.satisfies(row)) {
+                matches = null;
+            }
+        }
+        return matches;
+    }
+
+    private boolean mayMatch(final Map<String, Object> row) {
+        if (row == null) {
+            return true;
+        }
+        for (final Predicate predicate : predicates) {
+            if (predicate.excludes(row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name A table name, possibly qualified or quoted. (NonNull)
+     * @return The lower case, unqualified and unquoted table name. (NonNull)
+     */
+    static String tableName(final String name) {
+        final String identifier = identifier(name);
+        return identifier.substring(identifier.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @param name A table or column name, possibly quoted. (NonNull)
+     * @return The lower case and unquoted name. (NonNull)
+     */
+    static String identifier(final String name) {
+        return name.replaceAll("[\"`\\[\\]]", "").toLowerCase(Locale.ENGLISH);
+    }
+
+    private static Predicate parsePredicate(final String term, final Pattern equals, final Pattern isNull, final Collection<?> parameters) {
+        final Matcher nullMatcher = isNull.matcher(term);
+        if (nullMatcher.matches()) {
+            return new Predicate(nullMatcher.group(1).toLowerCase(Locale.ENGLISH), nullMatcher.group(2) == null ? Operator.IS_NULL : Operator.IS_NOT_NULL, null);
+        }
+        final Matcher equalsMatcher = equals.matcher(term);
+        if (!equalsMatcher.matches()) {
+            return null;
+        }
+        final String value = equalsMatcher.group(2);
+        final Object[] candidates;
+        if ("?".equals(value)) {
+            if (parameters.isEmpty()) {
+                return null;
+            }
+            /* It isn't known which parameter is bound here, any of them can be. */
+            candidates = parameters.toArray();
+        } else if (value.startsWith("'")) {
+            candidates = new Object[] { value.substring(1, value.length() - 1).replace("''", "'") };
+        } else {
+            candidates = new Object[] { new BigDecimal(value) };
+        }
+        return new Predicate(equalsMatcher.group(1).toLowerCase(Locale.ENGLISH), Operator.EQUALS, candidates);
+    }
+
+    private static int indexOfAny(final String string, final int fromIndex, final String[] keywords) {
+        int index = string.length();
+        for (final String keyword : keywords) {
+            final int keywordIndex = string.indexOf(keyword, fromIndex);
+            if (keywordIndex >= 0 && keywordIndex < index) {
+                index = keywordIndex;
+            }
+        }
+        return index;
+    }
+
+    private static boolean isBalanced(final String string) {
+        int depth = 0;
+        for (int i = 0; i < string.length(); i++) {
+            if (string.charAt(i) == '(') {
+                depth++;
+            } else if (string.charAt(i) == ')' && --depth < 0) {
+                return false;
+            }
+        }
+        return depth == 0;
+    }
+
+    /**
+     * @return <tt>false</tt> only if the values surely differ in the database.
+     */
+    static boolean mayEqual(final Object value, final Object other) {
+        if (value instanceof String && other instanceof String) {
+            return trimTrailing((String) value).equalsIgnoreCase(trimTrailing((String) other));
+        }
+        if (isExactNumber(value) && isExactNumber(other)) {
+            return new BigDecimal(value.toString()).compareTo(new BigDecimal(other.toString())) == 0;
+        }
+        if (value instanceof Boolean && other instanceof Boolean || value instanceof Enum<?> && value.getClass() == other.getClass()) {
+            return value.equals(other);
+        }
+        return true;
+    }
+
+    /**
+     * @return <tt>true</tt> only if the values are surely equal in the database.
+     */
+    static boolean surelyEqual(final Object value, final Object other) {
+        if (isExactNumber(value) && isExactNumber(other)) {
+            return new BigDecimal(value.toString()).compareTo(new BigDecimal(other.toString())) == 0;
+        }
+        return value != null && other != null && value.getClass() == other.getClass() && value.equals(other);
+    }
+
+    static boolean isExactNumber(final Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+            || value instanceof BigInteger || value instanceof BigDecimal;
+    }
+
+    private static String trimTrailing(final String value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return value.substring(0, end);
+    }
+
+    @Override
+    public String toString() {
+        return table == null ? "QueryDependency{any}" : "QueryDependency{table=" + table + ",columns=" + columns + ",predicates=" + predicates
+                                                        + (aggregate != null ? ",aggregate=" + aggregate : "") + "}";
+    }
+
+    /** The operator of a predicate. */
+    private enum Operator {
+        EQUALS, IS_NULL, IS_NOT_NULL
+    }
+
+    /**
+     * A term of the where clause.
+     */
+    private static final class Predicate implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String column;
+        private final Operator operator;
+        private final Object[] candidates;
+
+        /**
+         * @param column The lower case column name. (NonNull)
+         * @param operator The operator. (NonNull)
+         * @param candidates The possible values compared to the column if the operator is {@link Operator#EQUALS}.
+         */
+        Predicate(final String column, final Operator operator, final Object[] candidates) {
+            this.column = column;
+            this.operator = operator;
+            this.candidates = candidates;
+        }
+
+        /**
+         * @return <tt>true</tt> if the value compared to the column is known.
+         */
+        boolean isDecisive() {
+            return operator != Operator.EQUALS || candidates.length == 1 && candidates[0] != null;
+        }
+
+        /**
+         * @return <tt>true</tt> if the row surely satisfies the predicate.
+         */
+        boolean satisfies(final Map<String, Object> row) {
+            if (!row.containsKey(column) || !isDecisive()) {
+                return false;
+            }
+            final Object value = row.get(column);
+            switch (operator) {
+                case IS_NULL:
+                    return value == null;
+                case IS_NOT_NULL:
+                    return value != null;
+                default:
+                    return surelyEqual(value, candidates[0]);
+            }
+        }
+
+        /**
+         * @return <tt>true</tt> if the row surely doesn't satisfy the predicate.
+         */
+        boolean excludes(final Map<String, Object> row) {
+            if (!row.containsKey(column)) {
+                return false;
+            }
+            final Object value = row.get(column);
+            switch (operator) {
+                case IS_NULL:
+                    return value != null;
+                case IS_NOT_NULL:
+                    return value == null;
+                default:
+                    if (value == null) {
+                        return true;
+                    }
+                    for (final Object candidate : candidates) {
+                        if (candidate != null && mayEqual(value, candidate)) {
+                            return false;
+                        }
+                    }
+                    return true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return column + " " + operator + (candidates == null ? "" : " " + Arrays.toString(candidates));
+        }
+    }
+
+}
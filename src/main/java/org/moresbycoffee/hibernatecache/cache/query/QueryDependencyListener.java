@@ -0,0 +1,169 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+
+/**
+ * Records the entity inserts, updates and deletes in the {@link WriteLog}.
+ * The writes are registered when they are flushed and completed with the transaction.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class QueryDependencyListener implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient WriteLog writeLog;
+
+    /**
+     * @param writeLog The log of the writes. (NonNull)
+     */
+    QueryDependencyListener(final WriteLog writeLog) {
+        this.writeLog = writeLog;
+    }
+
+    @Override
+    public void onPostInsert(final PostInsertEvent event) {
+        final EntityPersister persister = event.getPersister();
+        record(event.getSession(), new TableWrite(TableWrite.Kind.INSERT, persister.getEntityName(), event.getId(), tableOf(persister), spacesOf(persister),
+                                                  null, row(persister, event.getId(), event.getState()), null));
+    }
+
+    @Override
+    public void onPostUpdate(final PostUpdateEvent event) {
+        final EntityPersister persister = event.getPersister();
+        record(event.getSession(), new TableWrite(TableWrite.Kind.UPDATE, persister.getEntityName(), event.getId(), tableOf(persister), spacesOf(persister),
+                                                  row(persister, event.getId(), event.getOldState()), row(persister, event.getId(), event.getState()),
+                                                  changedColumns(persister, event.getDirtyProperties())));
+    }
+
+    @Override
+    public void onPostDelete(final PostDeleteEvent event) {
+        final EntityPersister persister = event.getPersister();
+        record(event.getSession(), new TableWrite(TableWrite.Kind.DELETE, persister.getEntityName(), event.getId(), tableOf(persister), spacesOf(persister),
+                                                  row(persister, event.getId(), event.getDeletedState()), null, null));
+    }
+
+    private void record(final EventSource session, final TableWrite write) {
+        writeLog.begin(write);
+        session.getActionQueue().registerProcess(new AfterTransactionCompletionProcess() {
+            @Override
+            public void doAfterTransactionCompletion(final boolean success, final SessionImplementor completedSession) {
+                writeLog.complete(write, success, completedSession.getFactory().getSettings().getRegionFactory().nextTimestamp());
+            }
+        });
+    }
+
+    /**
+     * @return The name of the table of the entity, <tt>null</tt> if it is stored in more tables.
+     */
+    private static String tableOf(final EntityPersister persister) {
+        if (persister instanceof AbstractEntityPersister && !((AbstractEntityPersister) persister).isMultiTable()) {
+            return QueryDependency.tableName(((AbstractEntityPersister) persister).getTableName());
+        }
+        return null;
+    }
+
+    private static Set<String> spacesOf(final EntityPersister persister) {
+        final Set<String> spaces = new HashSet<String>();
+        for (final Serializable space : persister.getPropertySpaces()) {
+            spaces.add((String) space);
+        }
+        return spaces;
+    }
+
+    /**
+     * @return The values of the single column basic properties and the identifier, <tt>null</tt> if the state is unknown.
+     */
+    private static Map<String, Object> row(final EntityPersister persister, final Serializable id, final Object[] state) {
+        if (state == null || !(persister instanceof AbstractEntityPersister)) {
+            return null;
+        }
+        final AbstractEntityPersister entityPersister = (AbstractEntityPersister) persister;
+        final Map<String, Object> row = new HashMap<String, Object>();
+        final String[] idColumns = entityPersister.getIdentifierColumnNames();
+        if (idColumns.length == 1 && !entityPersister.getIdentifierType().isComponentType()) {
+            row.put(QueryDependency.identifier(idColumns[0]), id);
+        }
+        final Type[] types = entityPersister.getPropertyTypes();
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].isAssociationType() || types[i].isComponentType()) {
+                continue;
+            }
+            final String[] columns = entityPersister.getPropertyColumnNames(i);
+            if (columns.length == 1 && columns[0] != null) {
+                row.put(QueryDependency.identifier(columns[0]), state[i]);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @return The columns of the dirty properties, <tt>null</tt> if they are unknown.
+     */
+    private static Set<String> changedColumns(final EntityPersister persister, final int[] dirtyProperties) {
+        if (dirtyProperties == null || !(persister instanceof AbstractEntityPersister)) {
+            return null;
+        }
+        final Set<String> columns = new HashSet<String>();
+        for (final int property : dirtyProperties) {
+            final String[] propertyColumns = ((AbstractEntityPersister) persister).getPropertyColumnNames(property);
+            if (Arrays.asList(propertyColumns).contains(null)) {
+                return null;
+            }
+            for (final String column : propertyColumns) {
+                columns.add(QueryDependency.identifier(column));
+            }
+        }
+        return columns;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A row written by an entity insert, update or delete.
+ * <p>
+ * The rows are described by the values of their simple columns (lower case column names),
+ * the columns missing from the rows have unknown values.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class TableWrite {
+
+    /** The kind of the write. */
+    enum Kind {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final Kind kind;
+    private final String entityName;
+    private final Serializable id;
+    private final String table;
+    private final Set<String> spaces;
+    private final Map<String, Object> before;
+    private final Map<String, Object> after;
+    private final Set<String> changedColumns;
+
+    /** The time of the commit, {@link Long#MAX_VALUE} until the transaction completes. */
+    private volatile long timestamp = Long.MAX_VALUE;
+
+    /**
+     * @param kind The kind of the write. (NonNull)
+     * @param entityName The name of the written entity. (NonNull)
+     * @param id The identifier of the written entity. (NonNull)
+     * @param table The lower case name of the written table, <tt>null</tt> if the entity is stored in more tables.
+     * @param spaces The table spaces of the entity. (NonNull)
+     * @param before The row before the write, <tt>null</tt> if inserted or unknown.
+     * @param after The row after the write, <tt>null</tt> if deleted.
+     * @param changedColumns The lower case names of the updated columns, <tt>null</tt> if unknown or not an update.
+     */
+    TableWrite(final Kind kind, final String entityName, final Serializable id, final String table, final Set<String> spaces, final Map<String, Object> before, final Map<String, Object> after, final Set<String> changedColumns) {
+        this.kind = kind;
+        this.entityName = entityName;
+        this.id = id;
+        this.table = table;
+        this.spaces = spaces;
+        this.before = before;
+        this.after = after;
+        this.changedColumns = changedColumns;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    String getEntityName() {
+        return entityName;
+    }
+
+    Serializable getId() {
+        return id;
+    }
+
+    String getTable() {
+        return table;
+    }
+
+    Set<String> getSpaces() {
+        return spaces;
+    }
+
+    Map<String, Object> getBefore() {
+        return before;
+    }
+
+    Map<String, Object> getAfter() {
+        return after;
+    }
+
+    Set<String> getChangedColumns() {
+        return changedColumns;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    void committed(final long commitTimestamp) {
+        this.timestamp = commitTimestamp;
+    }
+
+    /**
+     * @param querySpaces The table spaces of a query. (NonNull)
+     * @return <tt>true</tt> if the write touches any of the spaces.
+     */
+    boolean touches(final Set<?> querySpaces) {
+        for (final String space : spaces) {
+            if (querySpaces.contains(space)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "TableWrite{" + kind + " " + entityName + "#" + id + " " + (table != null ? table : spaces) + ",before=" + before + ",after=" + after + ",changed=" + changedColumns + "}";
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The writes of the tables seen by the {@link DependencyTrackingQueryCache}s of a session factory.
+ * <p>
+ * The entity inserts, updates and deletes are recorded row by row by the {@link QueryDependencyListener}:
+ * a write is pending from the flush until the transaction completes, and it is kept in the log of the
+ * tables after the commit. A cached query result is up-to-date if none of the writes pending or committed
+ * since the result had been cached can affect it.
+ * <p>
+ * Every other modification of a table (bulk HQL or native SQL statements, collection tables) is only seen
+ * through the update timestamps region, which reports the invalidations of the tables.
+ * These coarse invalidations invalidate every query of the table as the standard query cache does.
+ * An invalidation is recognized as the consequence of a recorded entity write if it happens on the
+ * thread of the write, right after the write (the pre-invalidation of the flush), or at the completion
+ * of the transaction of the write.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class WriteLog {
+
+    /** The maximum number of committed writes kept per table space. */
+    private static final int MAX_WRITES_PER_SPACE = 1024;
+
+    /** Orders the committed writes by their commit. */
+    private static final Comparator<TableWrite> COMMIT_ORDER = new Comparator<TableWrite>() {
+        @Override
+        public int compare(final TableWrite write, final TableWrite other) {
+            return write.getTimestamp() < other.getTimestamp() ? -1 : write.getTimestamp() == other.getTimestamp() ? 0 : 1;
+        }
+    };
+
+    /** The timestamps of the invalidations not explained by recorded writes. */
+    private final ConcurrentMap<String, Long> coarseTimestamps = new ConcurrentHashMap<String, Long>();
+
+    /** The flushed but not completed writes. */
+    private final Set<TableWrite> pendingWrites = Collections.newSetFromMap(new ConcurrentHashMap<TableWrite, Boolean>());
+
+    /** The committed writes by table space. */
+    private final ConcurrentMap<String, SpaceLog> spaceLogs = new ConcurrentHashMap<String, SpaceLog>();
+
+    /** The spaces written by the recorded writes of the current transaction of the thread. */
+    private final ThreadLocal<Explanations> explanations = new ThreadLocal<Explanations>() {
+        @Override
+        protected Explanations initialValue() {
+            return new Explanations();
+        }
+    };
+
+    /**
+     * Registers a flushed write, the queries it can affect are not served until the transaction completes.
+     * @param write The write. (NonNull)
+     */
+    void begin(final TableWrite write) {
+        pendingWrites.add(write);
+        explanations.get().explain(write.getSpaces());
+    }
+
+    /**
+     * Registers the completion of the transaction of the write.
+     * @param write The write registered by {@link #begin(TableWrite)}. (NonNull)
+     * @param success <tt>true</tt> if the transaction has been committed.
+     * @param timestamp The time of the completion.
+     */
+    void complete(final TableWrite write, final boolean success, final long timestamp) {
+        if (success) {
+            write.committed(timestamp);
+            for (final String space : write.getSpaces()) {
+                SpaceLog log = spaceLogs.get(space);
+                if (log == null) {
+                    final SpaceLog newLog = new SpaceLog();
+                    log = spaceLogs.putIfAbsent(space, newLog);
+                    if (log == null) {
+                        log = newLog;
+                    }
+                }
+                log.add(write);
+            }
+        }
+        pendingWrites.remove(write);
+        explanations.get().completed = true;
+    }
+
+    /**
+     * Called by the update timestamps region when a table is invalidated.
+     * @param space The table space. (NonNull)
+     * @param timestamp The new timestamp of the space.
+     * @param preinvalidation <tt>true</tt> if the table is invalidated by a flush,
+     *                        <tt>false</tt> if it is invalidated at the completion of a transaction.
+     */
+    public void invalidated(final String space, final long timestamp, final boolean preinvalidation) {
+        if (!explanations.get().isExplained(space, preinvalidation)) {
+            coarseTimestamps.put(space, Long.valueOf(timestamp));
+        }
+    }
+
+    /**
+     * Clears the coarse invalidations, e.g. when the update timestamps region is cleared.
+     */
+    public void clearInvalidations() {
+        coarseTimestamps.clear();
+    }
+
+    /**
+     * @param spaces The table spaces of the query. (NonNull)
+     * @param timestamp The time when the result has been cached.
+     * @param dependency The dependency of the query. (NonNull)
+     * @return <tt>true</tt> if the result cached at the given time is still valid.
+     */
+    boolean isUpToDate(final Set<?> spaces, final long timestamp, final QueryDependency dependency) {
+        for (final Object space : spaces) {
+            final Long coarseTimestamp = coarseTimestamps.get(space);
+            if (coarseTimestamp != null && coarseTimestamp.longValue() >= timestamp) {
+                return false;
+            }
+        }
+        if (isAffectedByPendingWrites(spaces, dependency)) {
+            return false;
+        }
+        for (final Object space : spaces) {
+            final SpaceLog log = spaceLogs.get(space);
+            if (log != null && !log.isUpToDate(timestamp, dependency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the committed writes which can change a cached result, to bring the result up-to-date.
+     * The pending writes are checked before the committed ones: a write is in the log before it stops
+     * being pending, so every write committed before the call is either returned or reported as pending.
+     * @param spaces The table spaces of the query. (NonNull)
+     * @param timestamp The time when the result has been cached.
+     * @param dependency The dependency of the query. (NonNull)
+     * @return The writes affecting the result in the order of their commits, <tt>null</tt> if the result
+     *         is invalidated by a pending or not recorded write or the writes are not known any more.
+     */
+    List<TableWrite> committedWrites(final Set<?> spaces, final long timestamp, final QueryDependency dependency) {
+        for (final Object space : spaces) {
+            final Long coarseTimestamp = coarseTimestamps.get(space);
+            if (coarseTimestamp != null && coarseTimestamp.longValue() >= timestamp) {
+                return null;
+            }
+        }
+        if (isAffectedByPendingWrites(spaces, dependency)) {
+            return null;
+        }
+        final List<TableWrite> writes = new ArrayList<TableWrite>();
+        for (final Object space : spaces) {
+            final SpaceLog log = spaceLogs.get(space);
+            if (log != null && !log.collect(timestamp, dependency, writes)) {
+                return null;
+            }
+        }
+        Collections.sort(writes, COMMIT_ORDER);
+        return writes;
+    }
+
+    /**
+     * @param spaces The table spaces of the query. (NonNull)
+     * @param dependency The dependency of the query. (NonNull)
+     * @return <tt>true</tt> if a not completed write can affect the result of the query.
+     */
+    boolean isAffectedByPendingWrites(final Set<?> spaces, final QueryDependency dependency) {
+        for (final TableWrite write : pendingWrites) {
+            if (write.touches(spaces) && dependency.isAffectedBy(write)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The committed writes of a table space, the newest first.
+     */
+    private static final class SpaceLog {
+
+        private final LinkedList<TableWrite> writes = new LinkedList<TableWrite>();
+
+        /** The timestamp of the last write. */
+        private long lastWrite = Long.MIN_VALUE;
+
+        /** The timestamp of the newest write dropped from the log. */
+        private long horizon = Long.MIN_VALUE;
+
+        synchronized void add(final TableWrite write) {
+            writes.addFirst(write);
+            lastWrite = Math.max(lastWrite, write.getTimestamp());
+            if (writes.size() > MAX_WRITES_PER_SPACE) {
+                horizon = Math.max(horizon, writes.removeLast().getTimestamp());
+            }
+        }
+
+        synchronized boolean isUpToDate(final long timestamp, final QueryDependency dependency) {
+            if (lastWrite < timestamp) {
+                return true;
+            }
+            if (timestamp <= horizon) {
+                /* The writes since the timestamp are not known any more. */
+                return false;
+            }
+            for (final Iterator<TableWrite> iterator = writes.iterator(); iterator.hasNext();) {
+                final TableWrite write = iterator.next();
+                if (write.getTimestamp() < timestamp) {
+                    break;
+                }
+                if (dependency.isAffectedBy(write)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds the writes since the timestamp which can affect the query to the list, unless they are already in it.
+         * @return <tt>false</tt> if the writes since the timestamp are not known any more.
+         */
+        synchronized boolean collect(final long timestamp, final QueryDependency dependency, final List<TableWrite> result) {
+            if (lastWrite < timestamp) {
+                return true;
+            }
+            if (timestamp <= horizon) {
+                return false;
+            }
+            for (final Iterator<TableWrite> iterator = writes.iterator(); iterator.hasNext();) {
+                final TableWrite write = iterator.next();
+                if (write.getTimestamp() < timestamp) {
+                    break;
+                }
+                if (dependency.isAffectedBy(write) && !result.contains(write)) {
+                    result.add(write);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The spaces of the recorded writes of the current transaction of a thread.
+     * The state is reset by the first write or pre-invalidation after the completion.
+     */
+    private static final class Explanations {
+
+        /** The spaces of the writes whose pre-invalidation hasn't happened yet. */
+        private final Set<String> next = new HashSet<String>();
+
+        /** The spaces of the recorded writes of the transaction. */
+        private final Set<String> explained = new HashSet<String>();
+
+        /** The spaces invalidated without recorded writes in the transaction. */
+        private final Set<String> coarse = new HashSet<String>();
+
+        private boolean completed;
+
+        void explain(final Set<String> spaces) {
+            resetIfCompleted();
+            next.addAll(spaces);
+            explained.addAll(spaces);
+        }
+
+        boolean isExplained(final String space, final boolean preinvalidation) {
+            if (preinvalidation) {
+                resetIfCompleted();
+                if (next.remove(space)) {
+                    return true;
+                }
+                coarse.add(space);
+                return false;
+            }
+            return explained.contains(space) && !coarse.contains(space);
+        }
+
+        private void resetIfCompleted() {
+            if (completed) {
+                next.clear();
+                explained.clear();
+                coarse.clear();
+                completed = false;
+            }
+        }
+    }
+
+}
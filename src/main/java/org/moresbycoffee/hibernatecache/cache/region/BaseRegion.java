@@ -0,0 +1,194 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.internal.Timestamper;
+import org.hibernate.cache.spi.Region;
+import org.moresbycoffee.hibernatecache.cache.stat.CacheMisses;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies;
+import org.moresbycoffee.hibernatecache.cache.store.CacheStore;
+import org.moresbycoffee.hibernatecache.cache.store.TinyLfuCache;
+
+/**
+ * Base class of the regions built by the
+ * {@link org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory TinyLfuRegionFactory}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public abstract class BaseRegion implements Region {
+
+    /** The timeout of the soft locks. (60 seconds) */
+    private static final int TIMEOUT = Timestamper.ONE_MS * 60000;
+
+    private final String name;
+
+    private final CacheStore<Object, Object> store;
+
+    private volatile Runnable destroyListener;
+
+    /** The latencies of the operations of the region, <tt>null</tt> if they are not measured. */
+    private volatile Latencies latencies;
+
+    /** The attribution of the misses of the region, <tt>null</tt> if they are not attributed. */
+    private volatile CacheMisses misses;
+
+    /**
+     * @param name The name of the region. (NonNull)
+     * @param store The store of the entries. (NonNull)
+     */
+    protected BaseRegion(final String name, final CacheStore<Object, Object> store) {
+        this.name = name;
+        this.store = store;
+    }
+
+    /**
+     * @return The store of the entries. (NonNull)
+     */
+    public final CacheStore<Object, Object> getStore() {
+        return store;
+    }
+
+    /**
+     * @param destroyListener Called before the store is cleared (or closed) by the {@link #destroy()}, e.g. to write a snapshot
+     *                        of the regions when the session factory is closed. (Nullable)
+     */
+    public final void setDestroyListener(final Runnable destroyListener) {
+        this.destroyListener = destroyListener;
+    }
+
+    /**
+     * @return The latencies of the operations of the region or <tt>null</tt> if they are not measured.
+     */
+    public final Latencies getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @param latencies The latencies of the operations of the region, they are recorded while the
+     *                  {@link org.moresbycoffee.hibernatecache.cache.stat.LatencyStatistics LatencyStatistics} are enabled. (Nullable)
+     */
+    public final void setLatencies(final Latencies latencies) {
+        this.latencies = latencies;
+    }
+
+    /**
+     * @return The attribution of the misses of the region or <tt>null</tt> if they are not attributed.
+     */
+    public final CacheMisses getMisses() {
+        return misses;
+    }
+
+    /**
+     * @param misses The attribution of the misses of the region, they are recorded while the
+     *               {@link org.moresbycoffee.hibernatecache.cache.stat.LatencyStatistics LatencyStatistics} are enabled. (Nullable)
+     */
+    public final void setMisses(final CacheMisses misses) {
+        this.misses = misses;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void destroy() throws CacheException {
+        final Runnable listener = destroyListener;
+        if (listener != null) {
+            listener.run();
+        }
+        if (store instanceof Closeable) {
+            /* The entries of the shared stores belong to the other processes as well. */
+            try {
+                ((Closeable) store).close();
+            } catch (final IOException e) {
+                throw new CacheException("The store of the " + name + " region can't be closed.", e);
+            }
+        } else {
+            store.clear();
+        }
+    }
+
+    @Override
+    public boolean contains(final Object key) {
+        return store.containsKey(key);
+    }
+
+    /**
+     * @return The estimated bytes used by the entries if the store is weighted by the
+     *         {@link org.moresbycoffee.hibernatecache.cache.store.MemoryBudget MemoryBudget}, otherwise <code>-1</code>.
+     */
+    @Override
+    public long getSizeInMemory() {
+        if (store instanceof TinyLfuCache && ((TinyLfuCache<?, ?>) store).isWeighted()) {
+            return ((TinyLfuCache<?, ?>) store).getWeight();
+        }
+        return -1;
+    }
+
+    @Override
+    public long getElementCountInMemory() {
+        return store.size();
+    }
+
+    @Override
+    public long getElementCountOnDisk() {
+        return 0;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map toMap() {
+        return store.toMap();
+    }
+
+    @Override
+    public long nextTimestamp() {
+        return Timestamper.next();
+    }
+
+    @Override
+    public int getTimeout() {
+        return TIMEOUT;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + name + "]";
+    }
+
+}
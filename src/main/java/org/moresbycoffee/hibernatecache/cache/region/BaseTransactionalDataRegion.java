@@ -0,0 +1,126 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.TransactionalDataRegion;
+import org.hibernate.cfg.Settings;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.store.CacheStore;
+import org.moresbycoffee.hibernatecache.cache.warmup.RefreshAhead;
+
+/**
+ * Base class of the entity and collection regions.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public abstract class BaseTransactionalDataRegion extends BaseRegion implements TransactionalDataRegion {
+
+    private final Settings settings;
+
+    private final CacheSettings cacheSettings;
+
+    private final CacheDataDescription metadata;
+
+    /** Reloads the entries of the region before they expire, <tt>null</tt> if it isn't supported. */
+    private volatile RefreshAhead refreshAhead;
+
+    /** The identifiers missing from the database, <tt>null</tt> if the negative caching is disabled. */
+    private volatile NegativeCache negativeCache;
+
+    /**
+     * @param name The name of the region. (NonNull)
+     * @param store The store of the entries. (NonNull)
+     * @param settings The settings of the session factory. (NonNull)
+     * @param cacheSettings The configuration of the regions. (NonNull)
+     * @param metadata The description of the cached data. (NonNull)
+     */
+    protected BaseTransactionalDataRegion(final String name, final CacheStore<Object, Object> store, final Settings settings, final CacheSettings cacheSettings, final CacheDataDescription metadata) {
+        super(name, store);
+        this.settings = settings;
+        this.cacheSettings = cacheSettings;
+        this.metadata = metadata;
+    }
+
+    /**
+     * @return The settings of the session factory. (NonNull)
+     */
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return The configuration of the regions. (NonNull)
+     */
+    public CacheSettings getCacheSettings() {
+        return cacheSettings;
+    }
+
+    /**
+     * @return The refresh-ahead of the region or <tt>null</tt> if it isn't supported.
+     */
+    public RefreshAhead getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * @param refreshAhead The refresh-ahead of the region, it is set by the region factory for the entity regions. (Nullable)
+     */
+    public void setRefreshAhead(final RefreshAhead refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * @return The identifiers missing from the database or <tt>null</tt> if the negative caching is disabled.
+     */
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * @param negativeCache The identifiers missing from the database, it is set by the region factory for the entity regions. (Nullable)
+     */
+    public void setNegativeCache(final NegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    @Override
+    public boolean isTransactionAware() {
+        return false;
+    }
+
+    @Override
+    public CacheDataDescription getCacheDataDescription() {
+        return metadata;
+    }
+
+}
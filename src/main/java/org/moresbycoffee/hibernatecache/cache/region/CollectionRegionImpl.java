@@ -0,0 +1,78 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.CollectionRegion;
+import org.hibernate.cache.spi.access.AccessType;
+import org.hibernate.cache.spi.access.CollectionRegionAccessStrategy;
+import org.hibernate.cfg.Settings;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.store.CacheStore;
+import org.moresbycoffee.hibernatecache.cache.strategy.NonStrictReadWriteCollectionRegionAccessStrategy;
+import org.moresbycoffee.hibernatecache.cache.strategy.ReadOnlyCollectionRegionAccessStrategy;
+import org.moresbycoffee.hibernatecache.cache.strategy.ReadWriteCollectionRegionAccessStrategy;
+
+/**
+ * Region of the cached collections.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class CollectionRegionImpl extends BaseTransactionalDataRegion implements CollectionRegion {
+
+    /**
+     * @param name The name of the region. (NonNull)
+     * @param store The store of the entries. (NonNull)
+     * @param settings The settings of the session factory. (NonNull)
+     * @param cacheSettings The configuration of the regions. (NonNull)
+     * @param metadata The description of the cached data. (NonNull)
+     */
+    public CollectionRegionImpl(final String name, final CacheStore<Object, Object> store, final Settings settings, final CacheSettings cacheSettings, final CacheDataDescription metadata) {
+        super(name, store, settings, cacheSettings, metadata);
+    }
+
+    @Override
+    public CollectionRegionAccessStrategy buildAccessStrategy(final AccessType accessType) throws CacheException {
+        switch (accessType) {
+            case READ_ONLY:
+                return new ReadOnlyCollectionRegionAccessStrategy(this);
+            case NONSTRICT_READ_WRITE:
+                return new NonStrictReadWriteCollectionRegionAccessStrategy(this);
+            case READ_WRITE:
+                return new ReadWriteCollectionRegionAccessStrategy(this);
+            default:
+                throw new CacheException("Unsupported access type [" + accessType.getExternalName() + "] in region " + getName());
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.moresbycoffee.hibernatecache.cache.store.TinyLfuCache;
+
+/**
+ * The cache keys of an entity region whose rows are known to be missing from the database.
+ * <p>
+ * A key is recorded when a find of the identifier has returned <tt>null</tt> and removed when an
+ * insert or a delete of the identifier completes, or when the key or the region is evicted. The keys
+ * are striped by their hash codes: a key isn't recorded while an insert or a delete of its stripe is
+ * in flight or if one has completed after the transaction of the find started, so a missing row
+ * is never recorded after a concurrent insert has committed it.
+ * <p>
+ * The keys are kept in a {@link TinyLfuCache}, so the frequently requested missing identifiers
+ * survive the scans of one-off identifiers.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class NegativeCache {
+
+    /** The number of the stripes of the writes. (Power of two) */
+    static final int STRIPES = 1024;
+
+    private final TinyLfuCache<Object, Boolean> missing;
+
+    /** The number of the inserts and deletes in flight by stripe. */
+    private final AtomicIntegerArray pending = new AtomicIntegerArray(STRIPES);
+
+    /** The timestamp of the last completed insert or delete by stripe. */
+    private final AtomicLongArray completed = new AtomicLongArray(STRIPES);
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong recordCount = new AtomicLong();
+
+    private final AtomicLong refusedCount = new AtomicLong();
+
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    /**
+     * @param maxEntries The maximum number of the missing keys. (Positive)
+     */
+    public NegativeCache(final int maxEntries) {
+        this.missing = new TinyLfuCache<Object, Boolean>(maxEntries);
+    }
+
+    /**
+     * @param key The cache key of the entity. (NonNull)
+     * @return <tt>true</tt> if the row of the key is known to be missing.
+     */
+    public boolean isMissing(final Object key) {
+        if (missing.get(key) != null) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a key whose row hasn't been found by a transaction.
+     *
+     * @param key The cache key of the entity. (NonNull)
+     * @param txTimestamp The start of the transaction which hasn't found the row.
+     * @return <tt>true</tt> if the key has been recorded.
+     */
+    public boolean recordMissing(final Object key, final long txTimestamp) {
+        final int stripe = stripeOf(key);
+        if (!isStable(stripe, txTimestamp)) {
+            refusedCount.incrementAndGet();
+            return false;
+        }
+        missing.put(key, Boolean.TRUE);
+        /* A write may have completed since the check, its removal may have preceded the put. */
+        if (!isStable(stripe, txTimestamp)) {
+            missing.remove(key);
+            refusedCount.incrementAndGet();
+            return false;
+        }
+        recordCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Registers an insert or a delete of the key flushed but not completed yet.
+     *
+     * @param key The cache key of the entity. (NonNull)
+     */
+    public void writeStarted(final Object key) {
+        pending.incrementAndGet(stripeOf(key));
+    }
+
+    /**
+     * Completes an insert or a delete registered by {@link #writeStarted(Object)} and removes the key.
+     *
+     * @param key The cache key of the entity. (NonNull)
+     * @param timestamp The timestamp of the completion.
+     */
+    public void writeCompleted(final Object key, final long timestamp) {
+        final int stripe = stripeOf(key);
+        long last;
+        do {
+            last = completed.get(stripe);
+        } while (last < timestamp && !completed.compareAndSet(stripe, last, timestamp));
+        pending.decrementAndGet(stripe);
+        remove(key);
+    }
+
+    /**
+     * @param key The cache key of the entity. (NonNull)
+     */
+    public void remove(final Object key) {
+        if (missing.containsKey(key)) {
+            missing.remove(key);
+            invalidationCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes every key.
+     */
+    public void clear() {
+        missing.clear();
+    }
+
+    /**
+     * @return The number of the missing keys.
+     */
+    public long size() {
+        return missing.size();
+    }
+
+    /**
+     * @return The number of the finds answered by the negative cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of the recorded keys.
+     */
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * @return The number of the keys not recorded because of a concurrent insert or delete.
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    /**
+     * @return The number of the keys removed by inserts, deletes and evictions.
+     */
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeCache{size=" + size() + ",hits=" + hitCount + ",records=" + recordCount + ",refused=" + refusedCount
+               + ",invalidations=" + invalidationCount + "}";
+    }
+
+    private boolean isStable(final int stripe, final long txTimestamp) {
+        return pending.get(stripe) == 0 && completed.get(stripe) < txTimestamp;
+    }
+
+    private static int stripeOf(final Object key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+}
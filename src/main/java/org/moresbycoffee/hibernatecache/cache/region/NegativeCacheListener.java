@@ -0,0 +1,156 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.LoadEvent;
+import org.hibernate.event.spi.LoadEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Answers the finds of the identifiers recorded in the {@link NegativeCache} of the entity region
+ * without a statement, records the identifiers not found by the load listeners it wraps and removes
+ * the identifiers inserted or deleted when the transaction completes.
+ * <p>
+ * Only the loads returning <tt>null</tt> for a missing row (e.g. <code>EntityManager.find</code>,
+ * <code>Session.get</code>) without a pessimistic lock and without an entity of the identifier
+ * in the persistence context use the negative cache. The entries are keyed by the root entity name like
+ * the entries of the region, so only the loads of the root entity are answered and recorded: a subclass
+ * load misses the rows of the sibling subclasses, which are not missing for the root entity.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class NegativeCacheListener implements LoadEventListener, PostInsertEventListener, PostDeleteEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The load listeners registered before the negative cache. */
+    private final List<LoadEventListener> delegates;
+
+    /**
+     * @param delegates The load listeners loading the entities. (NonNull)
+     */
+    NegativeCacheListener(final List<LoadEventListener> delegates) {
+        this.delegates = new ArrayList<LoadEventListener>(delegates);
+    }
+
+    @Override
+    public void onLoad(final LoadEvent event, final LoadType loadType) throws HibernateException {
+        final EventSource session = event.getSession();
+        final EntityPersister persister = session.getFactory().getEntityPersister(event.getEntityClassName());
+        final NegativeCache negativeCache = negativeCacheOf(persister);
+        if (negativeCache == null || !persister.getEntityName().equals(persister.getRootEntityName())
+            || !loadType.isAllowNulls() || event.getInstanceToLoad() != null
+            || event.getLockMode() != null && event.getLockMode().greaterThan(LockMode.READ)
+            || !persister.getIdentifierType().getReturnedClass().isInstance(event.getEntityId())) {
+            load(event, loadType);
+            return;
+        }
+        final EntityKey entityKey = session.generateEntityKey(event.getEntityId(), persister);
+        if (session.getPersistenceContext().getEntity(entityKey) != null) {
+            load(event, loadType);
+            return;
+        }
+        final CacheKey cacheKey = cacheKeyOf(session, persister, event.getEntityId());
+        if (negativeCache.isMissing(cacheKey)) {
+            event.setResult(null);
+            return;
+        }
+        load(event, loadType);
+        if (event.getResult() == null && session.getPersistenceContext().getEntity(entityKey) == null) {
+            negativeCache.recordMissing(cacheKey, session.getTimestamp());
+        }
+    }
+
+    @Override
+    public void onPostInsert(final PostInsertEvent event) {
+        writeStarted(event.getSession(), event.getPersister(), event.getId());
+    }
+
+    @Override
+    public void onPostDelete(final PostDeleteEvent event) {
+        writeStarted(event.getSession(), event.getPersister(), event.getId());
+    }
+
+    private void load(final LoadEvent event, final LoadType loadType) {
+        for (final LoadEventListener delegate : delegates) {
+            delegate.onLoad(event, loadType);
+        }
+    }
+
+    /**
+     * Keeps the key out of the negative cache until the transaction completes.
+     */
+    private static void writeStarted(final EventSource session, final EntityPersister persister, final Serializable id) {
+        final NegativeCache negativeCache = negativeCacheOf(persister);
+        if (negativeCache == null) {
+            return;
+        }
+        final CacheKey cacheKey = cacheKeyOf(session, persister, id);
+        negativeCache.writeStarted(cacheKey);
+        session.getActionQueue().registerProcess(new AfterTransactionCompletionProcess() {
+            @Override
+            public void doAfterTransactionCompletion(final boolean success, final SessionImplementor completedSession) {
+                negativeCache.writeCompleted(cacheKey, completedSession.getFactory().getSettings().getRegionFactory().nextTimestamp());
+            }
+        });
+    }
+
+    /**
+     * @return The negative cache of the region of the entity, <tt>null</tt> if the entity has no negative cache.
+     */
+    private static NegativeCache negativeCacheOf(final EntityPersister persister) {
+        if (!persister.hasCache() || !(persister.getCacheAccessStrategy().getRegion() instanceof BaseTransactionalDataRegion)) {
+            return null;
+        }
+        return ((BaseTransactionalDataRegion) persister.getCacheAccessStrategy().getRegion()).getNegativeCache();
+    }
+
+    private static CacheKey cacheKeyOf(final SessionImplementor session, final EntityPersister persister, final Serializable id) {
+        return session.generateCacheKey(id, persister.getIdentifierType(), persister.getRootEntityName());
+    }
+
+}
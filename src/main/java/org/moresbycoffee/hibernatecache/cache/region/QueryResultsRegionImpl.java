@@ -0,0 +1,90 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.moresbycoffee.hibernatecache.cache.stat.CacheMisses;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies.Operation;
+import org.moresbycoffee.hibernatecache.cache.store.CacheStore;
+
+/**
+ * Region of the cached query results.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class QueryResultsRegionImpl extends BaseGeneralDataRegion implements QueryResultsRegion {
+
+    /**
+     * @param name The name of the region. (NonNull)
+     * @param store The store of the entries. (NonNull)
+     */
+    public QueryResultsRegionImpl(final String name, final CacheStore<Object, Object> store) {
+        super(name, store);
+    }
+
+    /**
+     * Starts the measurement of the query cache lookup, it is finished by the statistics counting the hit or the miss.
+     * The result of the lookup is recorded for the attribution of the miss.
+     */
+    @Override
+    public Object get(final Object key) throws CacheException {
+        final Latencies latencies = getLatencies();
+        if (latencies != null) {
+            latencies.queryLookupStarted();
+        }
+        final Object value = super.get(key);
+        final CacheMisses misses = getMisses();
+        if (misses != null) {
+            misses.queryLookedUp(key, value != null);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(final Object key, final Object value) throws CacheException {
+        final CacheMisses misses = getMisses();
+        if (misses != null) {
+            misses.recordCached(key);
+        }
+        final Latencies latencies = getLatencies();
+        if (latencies == null) {
+            super.put(key, value);
+            return;
+        }
+        final long start = latencies.start();
+        super.put(key, value);
+        latencies.finish(Operation.PUT, start);
+    }
+
+}
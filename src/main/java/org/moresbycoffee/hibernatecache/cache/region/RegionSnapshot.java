@@ -0,0 +1,350 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CollectionRegion;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.hibernate.cache.spi.TimestampsRegion;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.moresbycoffee.hibernatecache.cache.codec.EntryCodec;
+
+/**
+ * Writes the entries of the regions into a binary file and restores them,
+ * so the regions are warm within seconds after a restart without reading the database.
+ * <p>
+ * The format of the file (version {@value #FORMAT_VERSION}):
+ * <pre>
+ * int    magic number ("HCSS")
+ * int    format version
+ * long   time of the snapshot (ms)
+ * int    number of the regions
+ * for every region:
+ *   byte   kind of the region (update timestamps, entity, collection or query results)
+ *   UTF    name of the region
+ *   int    number of the entries
+ *   int    length of the entries in bytes
+ *   for every entry:
+ *     int    length of the key
+ *     bytes  the key encoded by the codec
+ *     int    length of the value
+ *     bytes  the value encoded by the codec
+ * </pre>
+ * The update timestamps region is written first. The file is read sequentially through
+ * a memory mapped buffer. The regions missing from the region factory, or containing entries
+ * which can't be decoded anymore, are skipped.
+ * <p>
+ * The entries which could be stale are dropped at restore:
+ * <ul>
+ * <li>the soft locked entries of the entity and collection regions, the transactions holding the locks are gone;</li>
+ * <li>the query results older than the update timestamp of a table referred by their SQL;</li>
+ * <li>the query results in other format than the one of the {@link org.hibernate.cache.internal.StandardQueryCache},
+ *     e.g. the results of the {@link org.moresbycoffee.hibernatecache.cache.query.DependencyTrackingQueryCache},
+ *     since they are maintained by the writes of a write log which doesn't survive the restart.</li>
+ * </ul>
+ * The pre-invalidations of the tables in the update timestamps region, belonging to the transactions
+ * running at the time of the snapshot, are restored as invalidations at the time of the restore.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class RegionSnapshot {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(RegionSnapshot.class);
+
+    /** The version of the format of the snapshot files. */
+    public static final int FORMAT_VERSION = 2;
+
+    /** "HCSS" */
+    private static final int MAGIC = 0x48435353;
+
+    private static final byte TIMESTAMPS = 0;
+    private static final byte ENTITY = 1;
+    private static final byte COLLECTION = 2;
+    private static final byte QUERY_RESULTS = 3;
+
+    private RegionSnapshot() {
+        /* Utility class. */
+    }
+
+    /**
+     * Writes the entries of the regions into the file. The file is replaced only when the snapshot is complete.
+     *
+     * @param regions The regions. (NonNull)
+     * @param file The snapshot file. (NonNull)
+     * @param codec The codec of the entries. (NonNull)
+     * @return The number of the written entries.
+     * @throws IOException If the file can't be written.
+     */
+    public static long write(final Collection<? extends BaseRegion> regions, final File file, final EntryCodec codec) throws IOException {
+        final List<BaseRegion> ordered = new ArrayList<BaseRegion>(regions.size());
+        for (final BaseRegion region : regions) {
+            if (region instanceof TimestampsRegion) {
+                ordered.add(0, region);
+            } else if (kindOf(region) >= 0) {
+                ordered.add(region);
+            }
+        }
+
+        final File temporary = new File(file.getPath() + ".tmp");
+        long count = 0;
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(ordered.size());
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (final BaseRegion region : ordered) {
+                bytes.reset();
+                final Map<Object, Object> entries = region.getStore().toMap();
+                final DataOutputStream encoded = new DataOutputStream(bytes);
+                for (final Map.Entry<Object, Object> entry : entries.entrySet()) {
+                    final byte[] key = codec.encode(entry.getKey());
+                    encoded.writeInt(key.length);
+                    encoded.write(key);
+                    final byte[] value = codec.encode(entry.getValue());
+                    encoded.writeInt(value.length);
+                    encoded.write(value);
+                }
+                encoded.flush();
+
+                out.writeByte(kindOf(region));
+                out.writeUTF(region.getName());
+                out.writeInt(entries.size());
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+                count += entries.size();
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete() || !temporary.renameTo(file)) {
+            throw new IOException("The snapshot can't be moved to " + file);
+        }
+        LOG.info("Snapshot of " + ordered.size() + " regions with " + count + " entries has been written to " + file + " (" + file.length() + " bytes).");
+        return count;
+    }
+
+    /**
+     * Puts the entries of the snapshot into the regions, dropping the stale ones.
+     *
+     * @param regions The regions by their names. (NonNull)
+     * @param file The snapshot file. (NonNull)
+     * @param codec The codec of the entries. (NonNull)
+     * @return The number of the restored entries.
+     * @throws IOException If the file can't be read or its format is not supported.
+     */
+    public static long restore(final Map<String, ? extends BaseRegion> regions, final File file, final EntryCodec codec) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a region snapshot.");
+            }
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("The version of the " + file + " snapshot is not supported: " + version);
+            }
+            final long snapshotTime = in.readLong();
+            final int regionCount = in.readInt();
+
+            final Map<String, Long> updateTimestamps = new HashMap<String, Long>();
+            long count = 0;
+            for (int i = 0; i < regionCount; i++) {
+                final byte kind = in.readByte();
+                final String name = in.readUTF();
+                final int entryCount = in.readInt();
+                final int length = in.readInt();
+                final ByteBuffer entries = buffer.duplicate();
+                entries.limit(buffer.position() + length);
+                buffer.position(buffer.position() + length);
+
+                final BaseRegion region = regions.get(name);
+                if (region == null || kindOf(region) != kind) {
+                    LOG.warn("The " + name + " region of the snapshot doesn't exist, its " + entryCount + " entries are dropped.");
+                    continue;
+                }
+                try {
+                    count += restore(region, kind, entryCount, new DataInputStream(new ByteBufferInputStream(entries)), codec, updateTimestamps);
+                } catch (final CacheException e) {
+                    LOG.warn("The " + name + " region of the snapshot can't be restored.", e);
+                } catch (final IOException e) {
+                    LOG.warn("The " + name + " region of the snapshot can't be restored.", e);
+                }
+            }
+            LOG.info("Snapshot of " + new Date(snapshotTime) + " has been restored from " + file + ", " + count + " entries.");
+            return count;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static long restore(final BaseRegion region, final byte kind, final int entryCount, final DataInputStream in,
+                                final EntryCodec codec, final Map<String, Long> updateTimestamps) throws IOException {
+        final List<Pattern> spacePatterns = new ArrayList<Pattern>();
+        final List<Long> spaceTimestamps = new ArrayList<Long>();
+        if (kind == QUERY_RESULTS) {
+            for (final Map.Entry<String, Long> space : updateTimestamps.entrySet()) {
+                spacePatterns.add(Pattern.compile("\\b" + Pattern.quote(space.getKey()) + "\\b", Pattern.CASE_INSENSITIVE));
+                spaceTimestamps.add(space.getValue());
+            }
+        }
+
+        long count = 0;
+        for (int i = 0; i < entryCount; i++) {
+            final Object key = codec.decode(read(in));
+            final Object value = codec.decode(read(in));
+            switch (kind) {
+                case TIMESTAMPS:
+                    /* The pre-invalidations of the transactions of the snapshot have been completed or rolled back since. */
+                    final long timestamp = Math.min(((Long) value).longValue(), region.nextTimestamp());
+                    updateTimestamps.put((String) key, Long.valueOf(timestamp));
+                    ((TimestampsRegionImpl) region).put(key, Long.valueOf(timestamp));
+                    count++;
+                    break;
+                case QUERY_RESULTS:
+                    if (!isStale(key, value, spacePatterns, spaceTimestamps)) {
+                        region.getStore().put(key, value);
+                        count++;
+                    }
+                    break;
+                default:
+                    if (!(value instanceof SoftLock)) {
+                        region.getStore().put(key, value);
+                        count++;
+                    }
+                    break;
+            }
+        }
+        LOG.debug("Restored " + count + " of the " + entryCount + " entries of the " + region.getName() + " region.");
+        return count;
+    }
+
+    /**
+     * @return <code>true</code> if the result is not in the format of the {@link org.hibernate.cache.internal.StandardQueryCache},
+     *         or a table which is referred by the query key has been updated since the result was cached.
+     */
+    private static boolean isStale(final Object key, final Object value, final List<Pattern> spacePatterns, final List<Long> spaceTimestamps) {
+        if (!(value instanceof List) || ((List<?>) value).isEmpty() || !(((List<?>) value).get(0) instanceof Long)) {
+            return true;
+        }
+        final long timestamp = ((Long) ((List<?>) value).get(0)).longValue();
+        final String query = key.toString();
+        for (int i = 0; i < spacePatterns.size(); i++) {
+            if (spaceTimestamps.get(i).longValue() >= timestamp && spacePatterns.get(i).matcher(query).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] read(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return The kind of the region, <code>-1</code> if it is not stored in the snapshots.
+     */
+    private static byte kindOf(final BaseRegion region) {
+        if (region instanceof TimestampsRegion) {
+            return TIMESTAMPS;
+        } else if (region instanceof EntityRegion) {
+            return ENTITY;
+        } else if (region instanceof CollectionRegion) {
+            return COLLECTION;
+        } else if (region instanceof QueryResultsRegion) {
+            return QUERY_RESULTS;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.internal.SessionFactoryImpl;
+import org.hibernate.metamodel.source.MetadataImplementor;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+import org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory;
+
+/**
+ * Restores the {@link RegionSnapshot} configured by the
+ * {@link org.moresbycoffee.hibernatecache.cache.CacheSettings#SNAPSHOT_FILE} property
+ * when the session factory has been created and every region has been built.
+ * It is loaded by Hibernate as a service (<code>META-INF/services/org.hibernate.integrator.spi.Integrator</code>).
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class RegionSnapshotIntegrator implements Integrator {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(RegionSnapshotIntegrator.class);
+
+    @Override
+    public void integrate(final Configuration configuration, final SessionFactoryImplementor sessionFactory, final SessionFactoryServiceRegistry serviceRegistry) {
+        integrate(sessionFactory);
+    }
+
+    @Override
+    public void integrate(final MetadataImplementor metadata, final SessionFactoryImplementor sessionFactory, final SessionFactoryServiceRegistry serviceRegistry) {
+        integrate(sessionFactory);
+    }
+
+    @Override
+    public void disintegrate(final SessionFactoryImplementor sessionFactory, final SessionFactoryServiceRegistry serviceRegistry) {
+        /* NOP */
+    }
+
+    private void integrate(final SessionFactoryImplementor sessionFactory) {
+        final RegionFactory regionFactory = sessionFactory.getSettings().getRegionFactory();
+        if (!(regionFactory instanceof TinyLfuRegionFactory) || !(sessionFactory instanceof SessionFactoryImpl)) {
+            return;
+        }
+        final TinyLfuRegionFactory tinyLfuRegionFactory = (TinyLfuRegionFactory) regionFactory;
+        final File file = tinyLfuRegionFactory.getSnapshotFile();
+        if (file == null) {
+            return;
+        }
+        ((SessionFactoryImpl) sessionFactory).addObserver(new SessionFactoryObserver() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void sessionFactoryCreated(final SessionFactory factory) {
+                if (!file.exists()) {
+                    LOG.info("There is no snapshot of the regions in " + file);
+                    return;
+                }
+                try {
+                    tinyLfuRegionFactory.restoreSnapshot(file);
+                } catch (final IOException e) {
+                    LOG.warn("The snapshot of the regions can't be restored from " + file, e);
+                }
+            }
+
+            @Override
+            public void sessionFactoryClosed(final SessionFactory factory) {
+                /* The snapshot is written by the regions before they are destroyed. */
+            }
+        });
+    }
+
+}
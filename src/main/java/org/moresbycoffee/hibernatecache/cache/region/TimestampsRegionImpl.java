@@ -0,0 +1,78 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.region;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.TimestampsRegion;
+import org.moresbycoffee.hibernatecache.cache.query.WriteLog;
+import org.moresbycoffee.hibernatecache.cache.store.CacheStore;
+
+/**
+ * Region of the last update timestamps of the tables.
+ * The store of this region must never evict entries.
+ * <p>
+ * The invalidations of the tables are reported to the {@link WriteLog}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class TimestampsRegionImpl extends BaseGeneralDataRegion implements TimestampsRegion {
+
+    private final WriteLog writeLog;
+
+    /**
+     * @param name The name of the region. (NonNull)
+     * @param store The store of the entries. (NonNull)
+     * @param writeLog The log notified about the invalidations. (NonNull)
+     */
+    public TimestampsRegionImpl(final String name, final CacheStore<Object, Object> store, final WriteLog writeLog) {
+        super(name, store);
+        this.writeLog = writeLog;
+    }
+
+    /**
+     * The pre-invalidations of the flushes set the timestamp of the table to the future,
+     * the invalidations at the completion of the transactions set it to the current time.
+     */
+    @Override
+    public void put(final Object key, final Object value) throws CacheException {
+        super.put(key, value);
+        final long timestamp = ((Long) value).longValue();
+        writeLog.invalidated((String) key, timestamp, timestamp > nextTimestamp());
+    }
+
+    @Override
+    public void evictAll() throws CacheException {
+        super.evictAll();
+        writeLog.clearInvalidations();
+    }
+
+}
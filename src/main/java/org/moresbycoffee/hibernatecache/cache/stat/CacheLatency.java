@@ -0,0 +1,243 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The latencies of the regions, the queries and the entities of a session factory, see {@link Latencies}.
+ * It is created by the {@link org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory TinyLfuRegionFactory},
+ * the latencies are recorded only while it is enabled by the {@link LatencyStatistics}.
+ * <p>
+ * At most {@link #MAX_QUERIES} queries are tracked one by one, the latencies of the further
+ * queries are recorded together under the {@link #OTHER_QUERIES} name.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class CacheLatency {
+
+    /** The maximum number of the queries tracked one by one. */
+    public static final int MAX_QUERIES = 1000;
+
+    /** The name of the latencies of the queries not tracked one by one. */
+    public static final String OTHER_QUERIES = "<other queries>";
+
+    /** About every SAMPLE_RATE-th operation of a thread is timed. (Power of two) */
+    public static final int SAMPLE_RATE = 16;
+
+    private final ConcurrentMap<String, Latencies> regions = new ConcurrentHashMap<String, Latencies>();
+
+    private final ConcurrentMap<String, Latencies> queries = new ConcurrentHashMap<String, Latencies>();
+
+    private final ConcurrentMap<String, Latencies> entities = new ConcurrentHashMap<String, Latencies>();
+
+    /** The number of the stripes of the sampling. (Power of two) */
+    private static final int STRIPES = 64;
+
+    /** The distance of the random states of the stripes, they are on different cache lines. */
+    private static final int STRIPE_SIZE = 8;
+
+    /**
+     * The random states of the sampling by the stripes of the threads (never <code>0</code>). The states aren't
+     * synchronized: the threads of a stripe may lose the updates of each other, which doesn't bias the sampling.
+     */
+    private final long[] randoms = new long[STRIPES * STRIPE_SIZE];
+
+    /** The start of the query cache lookup of the current thread, <code>0</code> if there is no lookup. */
+    private final ThreadLocal<long[]> lookupStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Creates the latencies of a session factory, the latencies aren't recorded until they are enabled.
+     */
+    public CacheLatency() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            randoms[stripe * STRIPE_SIZE] = (stripe + 1) * 0x9e3779b97f4a7c15L;
+        }
+    }
+
+    private volatile boolean enabled;
+
+    /**
+     * @return <tt>true</tt> if the latencies are recorded.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled <tt>true</tt> if the latencies are recorded.
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Decides whether the operation of the current thread is timed. The operations are sampled randomly
+     * (by a xorshift generator of the stripe of the thread), so the periodic sequences of operations don't bias the samples.
+     *
+     * @return The current time in nanoseconds if the operation is sampled, otherwise <code>0</code>.
+     */
+    long start() {
+        if (!enabled) {
+            return 0;
+        }
+        final int index = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_SIZE;
+        long random = randoms[index];
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        randoms[index] = random;
+        return (random & (SAMPLE_RATE - 1)) == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The latencies of the region. (NonNull)
+     */
+    public Latencies forRegion(final String regionName) {
+        return latenciesOf(regions, regionName);
+    }
+
+    /**
+     * @param query The query string. (NonNull)
+     * @return The latencies of the query. (NonNull)
+     */
+    public Latencies forQuery(final String query) {
+        if (queries.size() >= MAX_QUERIES && !queries.containsKey(query)) {
+            return latenciesOf(queries, OTHER_QUERIES);
+        }
+        return latenciesOf(queries, query);
+    }
+
+    /**
+     * @param entityName The name of the entity. (NonNull)
+     * @return The latencies of the entity. (NonNull)
+     */
+    public Latencies forEntity(final String entityName) {
+        return latenciesOf(entities, entityName);
+    }
+
+    /**
+     * @return The latencies of the regions. (NonNull)
+     */
+    public Collection<Latencies> getRegions() {
+        return sorted(regions);
+    }
+
+    /**
+     * @return The latencies of the queries. (NonNull)
+     */
+    public Collection<Latencies> getQueries() {
+        return sorted(queries);
+    }
+
+    /**
+     * @return The latencies of the entities. (NonNull)
+     */
+    public Collection<Latencies> getEntities() {
+        return sorted(entities);
+    }
+
+    /**
+     * Records the start of a query cache lookup of the current thread if it hasn't been started yet
+     * (a query cache may read the region more times). The lookup is finished by {@link #queryLookupFinished()}.
+     */
+    public void queryLookupStarted() {
+        if (enabled) {
+            final long[] start = lookupStart.get();
+            if (start[0] == 0) {
+                start[0] = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * @return The time elapsed since the start of the query cache lookup of the current thread in nanoseconds,
+     *         <code>-1</code> if no lookup has been started.
+     */
+    public long queryLookupFinished() {
+        final long[] start = lookupStart.get();
+        if (start[0] == 0) {
+            return -1;
+        }
+        final long nanos = System.nanoTime() - start[0];
+        start[0] = 0;
+        return nanos;
+    }
+
+    /**
+     * Removes the recorded latencies.
+     */
+    public void clear() {
+        for (final Latencies latencies : regions.values()) {
+            latencies.clear();
+        }
+        for (final Latencies latencies : entities.values()) {
+            latencies.clear();
+        }
+        queries.clear();
+    }
+
+    private Latencies latenciesOf(final ConcurrentMap<String, Latencies> map, final String name) {
+        final Latencies latencies = map.get(name);
+        if (latencies != null) {
+            return latencies;
+        }
+        final Latencies created = new Latencies(name, this);
+        final Latencies existing = map.putIfAbsent(name, created);
+        return existing == null ? created : existing;
+    }
+
+    private static Collection<Latencies> sorted(final ConcurrentMap<String, Latencies> map) {
+        final List<String> names = new ArrayList<String>(map.keySet());
+        Collections.sort(names);
+        final List<Latencies> sorted = new ArrayList<Latencies>(names.size());
+        for (final String name : names) {
+            final Latencies latencies = map.get(name);
+            if (latencies != null) {
+                sorted.add(latencies);
+            }
+        }
+        return sorted;
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.cache.spi.CacheKey;
+import org.moresbycoffee.hibernatecache.cache.store.FrequencySketch;
+
+/**
+ * Attributes the database loads of the entities, the collections and the queries of a session factory
+ * to {@link MissReason}s and counts them by entity name, collection role and query string.
+ * <p>
+ * The misses of the second level cache are attributed by the region access strategies: only the misses
+ * pay for the attribution, the hits don't. A missing entry is {@link MissReason#EVICTED} if its key has been
+ * cached recently: the cached keys are counted by striped {@link FrequencySketch}es, which forget the old keys
+ * as they fill up (and may mistake a never cached key for a cached one rarely). The loads of the data which
+ * isn't read from the cache are attributed by the {@link MissListener}, the query executions by the
+ * {@link LatencyStatistics}.
+ * <p>
+ * The attribution is recorded while the {@link LatencyStatistics} are enabled, see {@link #report()}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class CacheMisses {
+
+    /** The number of the stripes of the cached keys. (Power of two) */
+    private static final int STRIPES = 16;
+
+    /** The number of the recently cached keys remembered by a stripe. */
+    private static final int KEYS_PER_STRIPE = 4096;
+
+    /** The misses of the entities and the collection roles. */
+    private final ConcurrentMap<String, Misses> types = new ConcurrentHashMap<String, Misses>();
+
+    private final ConcurrentMap<String, Misses> queries = new ConcurrentHashMap<String, Misses>();
+
+    /** The recently cached keys by their stripes, created by the first key of the stripe. Guarded by {@link #locks}. */
+    private final FrequencySketch[] cachedKeys = new FrequencySketch[STRIPES];
+
+    private final Object[] locks = new Object[STRIPES];
+
+    /** The reason of the query cache miss of the current thread, <tt>null</tt> if there is no miss. */
+    private final ThreadLocal<MissReason[]> queryMiss = new ThreadLocal<MissReason[]>() {
+        @Override
+        protected MissReason[] initialValue() {
+            return new MissReason[1];
+        }
+    };
+
+    private volatile boolean enabled;
+
+    /**
+     * Creates the misses of a session factory, they aren't recorded until they are enabled.
+     */
+    public CacheMisses() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the misses are recorded.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled <tt>true</tt> if the misses are recorded.
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Remembers a key put into a region if the misses are recorded.
+     *
+     * @param key The key of the entry. (NonNull)
+     */
+    public void recordCached(final Object key) {
+        if (!enabled) {
+            return;
+        }
+        final int hash = hashOf(key);
+        final int stripe = stripeOf(hash);
+        synchronized (locks[stripe]) {
+            if (cachedKeys[stripe] == null) {
+                cachedKeys[stripe] = new FrequencySketch(KEYS_PER_STRIPE);
+            }
+            cachedKeys[stripe].increment(hash);
+        }
+    }
+
+    /**
+     * @param key The key of a missing entry. (NonNull)
+     * @return {@link MissReason#EVICTED} if the key has been cached recently, otherwise {@link MissReason#MISSING}.
+     */
+    public MissReason missingReason(final Object key) {
+        final int hash = hashOf(key);
+        final int stripe = stripeOf(hash);
+        synchronized (locks[stripe]) {
+            return cachedKeys[stripe] != null && cachedKeys[stripe].frequency(hash) > 0 ? MissReason.EVICTED : MissReason.MISSING;
+        }
+    }
+
+    /**
+     * Records a miss of the second level cache. The miss is counted for the entity or the collection
+     * role of the key, or for the region if the key isn't a {@link CacheKey}.
+     *
+     * @param key The key of the entry. (NonNull)
+     * @param regionName The name of the region. (NonNull)
+     * @param reason The reason of the miss. (NonNull)
+     */
+    public void recordMiss(final Object key, final String regionName, final MissReason reason) {
+        record(key instanceof CacheKey ? ((CacheKey) key).getEntityOrRoleName() : regionName, reason);
+    }
+
+    /**
+     * Records a database load of an entity or a collection if the misses are recorded.
+     *
+     * @param name The name of the entity or the collection role. (NonNull)
+     * @param reason The reason of the load. (NonNull)
+     */
+    public void record(final String name, final MissReason reason) {
+        if (enabled) {
+            missesOf(types, name).record(reason);
+        }
+    }
+
+    /**
+     * Records the result of a query cache lookup of the current thread, the reason of the miss is
+     * attributed to the query executed next, see {@link #queryExecuted(String, MissReason)}.
+     *
+     * @param key The key of the query result. (NonNull)
+     * @param found <tt>true</tt> if the region has a result for the key, it is a miss if it isn't up-to-date.
+     */
+    public void queryLookedUp(final Object key, final boolean found) {
+        if (enabled) {
+            queryMiss.get()[0] = found ? MissReason.QUERY_INVALIDATED : missingReason(key);
+        }
+    }
+
+    /**
+     * Forgets the query cache lookup of the current thread, the result has been up-to-date.
+     */
+    public void queryCacheHit() {
+        queryMiss.get()[0] = null;
+    }
+
+    /**
+     * Records a query execution. It is attributed to the last query cache lookup of the current thread
+     * if there is one, otherwise to the given reason.
+     *
+     * @param query The query string. (NonNull)
+     * @param uncachedReason The reason if the query cache hasn't been looked up. (NonNull)
+     */
+    public void queryExecuted(final String query, final MissReason uncachedReason) {
+        final MissReason[] miss = queryMiss.get();
+        final MissReason reason = miss[0] == null ? uncachedReason : miss[0];
+        miss[0] = null;
+        if (!enabled) {
+            return;
+        }
+        if (queries.size() >= CacheLatency.MAX_QUERIES && !queries.containsKey(query)) {
+            missesOf(queries, CacheLatency.OTHER_QUERIES).record(reason);
+        } else {
+            missesOf(queries, query).record(reason);
+        }
+    }
+
+    /**
+     * @param name The name of the entity or the collection role. (NonNull)
+     * @return The misses of the entity or the collection role. (NonNull)
+     */
+    public Misses forType(final String name) {
+        return missesOf(types, name);
+    }
+
+    /**
+     * @param query The query string. (NonNull)
+     * @return The misses of the query. (NonNull)
+     */
+    public Misses forQuery(final String query) {
+        return missesOf(queries, query);
+    }
+
+    /**
+     * @return The misses of the entities and the collection roles, the most loaded first. (NonNull)
+     */
+    public Collection<Misses> getTypes() {
+        return sorted(types);
+    }
+
+    /**
+     * @return The misses of the queries, the most executed first. (NonNull)
+     */
+    public Collection<Misses> getQueries() {
+        return sorted(queries);
+    }
+
+    /**
+     * @return The report of the database loads by entity, collection role and query, the most loaded first. (NonNull)
+     */
+    public String report() {
+        final StringBuilder report = new StringBuilder("Database loads by reason:");
+        for (final Misses misses : getTypes()) {
+            report.append("\n  ").append(misses);
+        }
+        for (final Misses misses : getQueries()) {
+            report.append("\n  query ").append(misses);
+        }
+        return report.toString();
+    }
+
+    /**
+     * Removes the counts and the remembered keys.
+     */
+    public void clear() {
+        for (final Misses misses : types.values()) {
+            misses.clear();
+        }
+        queries.clear();
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            synchronized (locks[stripe]) {
+                cachedKeys[stripe] = null;
+            }
+        }
+    }
+
+    /**
+     * @return The hash of the key. The hash of a {@link CacheKey} is the hash of the identifier only,
+     *         so the name of the entity or the collection role is mixed into it.
+     */
+    private static int hashOf(final Object key) {
+        return key instanceof CacheKey ? 31 * ((CacheKey) key).getEntityOrRoleName().hashCode() + key.hashCode() : key.hashCode();
+    }
+
+    private static int stripeOf(final int hash) {
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static Misses missesOf(final ConcurrentMap<String, Misses> map, final String name) {
+        final Misses misses = map.get(name);
+        if (misses != null) {
+            return misses;
+        }
+        final Misses created = new Misses(name);
+        final Misses existing = map.putIfAbsent(name, created);
+        return existing == null ? created : existing;
+    }
+
+    /**
+     * @return The misses ordered by their totals descending, the totals are read once as they change concurrently.
+     */
+    private static Collection<Misses> sorted(final ConcurrentMap<String, Misses> map) {
+        final Map<Misses, Long> totals = new HashMap<Misses, Long>();
+        for (final Misses misses : map.values()) {
+            totals.put(misses, misses.getTotal());
+        }
+        final List<Misses> sorted = new ArrayList<Misses>(totals.keySet());
+        Collections.sort(sorted, new Comparator<Misses>() {
+            @Override
+            public int compare(final Misses first, final Misses second) {
+                final int byTotal = totals.get(second).compareTo(totals.get(first));
+                return byTotal != 0 ? byTotal : first.getName().compareTo(second.getName());
+            }
+        });
+        return sorted;
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The counters and the latency histograms of the operations of a region, a query or an entity.
+ * <p>
+ * The operations are counted exactly by striped counters, their latencies are sampled: an operation
+ * is timed if {@link #start()} returns a timestamp, about every {@link CacheLatency#SAMPLE_RATE}th
+ * operation of a thread, so the counts of the histograms are the numbers of the samples.
+ * The histograms are created by the first sample of the operation.
+ * <pre>
+ * final long start = latencies.start();
+ * ...
+ * latencies.finish(Operation.GET_HIT, start);
+ * </pre>
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class Latencies {
+
+    /**
+     * The measured operations.
+     */
+    public enum Operation {
+        /** A second level cache lookup of an entity or a collection which has found the entry. */
+        GET_HIT,
+        /** A second level cache lookup of an entity or a collection which hasn't found the entry. */
+        GET_MISS,
+        /** A put of a loaded entity or collection into the second level cache, or a query result into the query cache region. */
+        PUT,
+        /** A query cache lookup which has found an up-to-date result, including the load of its missing entities. */
+        QUERY_CACHE_HIT,
+        /** A query cache lookup which hasn't found an up-to-date result. */
+        QUERY_CACHE_MISS,
+        /** An execution of a query by the database, measured by Hibernate in milliseconds. */
+        QUERY_EXECUTION,
+        /** A load of an entity by its identifier from the persistence context, the second level cache or the database. */
+        LOAD,
+        /** The initialization of a loaded or assembled entity from its pre-load to its post-load event. */
+        HYDRATE
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** The number of the counters of a stripe, the counters of a stripe fill a cache line. */
+    private static final int STRIPE_SIZE = 8;
+
+    /** The number of the stripes of the counters. (Power of two) */
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+    private final String name;
+
+    private final CacheLatency owner;
+
+    private final AtomicReferenceArray<LatencyHistogram> histograms = new AtomicReferenceArray<LatencyHistogram>(OPERATIONS.length);
+
+    /** The counts of the operations by the stripes of the threads. */
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIPE_SIZE);
+
+    /**
+     * @param name The name of the region, the query or the entity. (NonNull)
+     * @param owner The latencies of the session factory. (NonNull)
+     */
+    Latencies(final String name, final CacheLatency owner) {
+        this.name = name;
+        this.owner = owner;
+    }
+
+    /**
+     * @return The name of the region, the query or the entity. (NonNull)
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return <tt>true</tt> if the latencies are recorded.
+     */
+    public boolean isEnabled() {
+        return owner.isEnabled();
+    }
+
+    /**
+     * @return The start of an operation to be timed in nanoseconds, <code>0</code> if the
+     *         operation is not sampled or the latencies are not recorded.
+     */
+    public long start() {
+        return owner.start();
+    }
+
+    /**
+     * Counts the operation and records its latency if it has been sampled.
+     *
+     * @param operation The operation. (NonNull)
+     * @param start The value returned by the {@link #start()} before the operation.
+     */
+    public void finish(final Operation operation, final long start) {
+        if (!owner.isEnabled()) {
+            return;
+        }
+        count(operation);
+        if (start != 0) {
+            histogram(operation).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts the operation and records its latency measured by the caller.
+     *
+     * @param operation The operation. (NonNull)
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(final Operation operation, final long nanos) {
+        if (!owner.isEnabled()) {
+            return;
+        }
+        count(operation);
+        histogram(operation).record(nanos);
+    }
+
+    /**
+     * @param operation The operation. (NonNull)
+     * @return The number of the operations counted.
+     */
+    public long getCount(final Operation operation) {
+        long count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            count += counts.get(stripe * STRIPE_SIZE + operation.ordinal());
+        }
+        return count;
+    }
+
+    private void count(final Operation operation) {
+        counts.incrementAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_SIZE + operation.ordinal());
+    }
+
+    private LatencyHistogram histogram(final Operation operation) {
+        LatencyHistogram histogram = histograms.get(operation.ordinal());
+        if (histogram == null) {
+            histograms.compareAndSet(operation.ordinal(), null, new LatencyHistogram());
+            histogram = histograms.get(operation.ordinal());
+        }
+        return histogram;
+    }
+
+    /**
+     * Records the start of a query cache lookup of the current thread, see {@link CacheLatency#queryLookupStarted()}.
+     */
+    public void queryLookupStarted() {
+        owner.queryLookupStarted();
+    }
+
+    /**
+     * @param operation The operation. (NonNull)
+     * @return The histogram of the operation, <tt>null</tt> if the operation hasn't been recorded. (Nullable)
+     */
+    public LatencyHistogram get(final Operation operation) {
+        return histograms.get(operation.ordinal());
+    }
+
+    /**
+     * Removes the counts and the recorded latencies.
+     */
+    public void clear() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        for (int i = 0; i < histograms.length(); i++) {
+            final LatencyHistogram histogram = histograms.get(i);
+            if (histogram != null) {
+                histogram.clear();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(name).append(" {");
+        boolean first = true;
+        for (final Operation operation : OPERATIONS) {
+            final LatencyHistogram histogram = get(operation);
+            if (histogram != null) {
+                builder.append(first ? "" : "; ").append(operation).append(": ops=").append(getCount(operation)).append(",samples=").append(histogram);
+                first = false;
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of latencies in nanoseconds.
+ * <p>
+ * The values are counted in log-linear buckets: every power of two is split into {@link #SUB_BUCKETS}
+ * buckets, so the percentiles are accurate within 1/16 of the value. The values above
+ * 2<sup>{@link #MAX_EXPONENT}</sup> nanoseconds (about 68 seconds) are counted in the last bucket.
+ * <p>
+ * Recording a value doesn't allocate and doesn't lock. The threads record into different stripes
+ * (chosen by the thread id) to avoid the contention on the counters, the stripes are summed up
+ * when the histogram is read, so a read concurrent with the recordings is not an atomic snapshot.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class LatencyHistogram {
+
+    /** The number of the bits of the sub-bucket index. */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** The number of the buckets of a power of two. */
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The values from 2<sup>MAX_EXPONENT</sup> are counted in the last bucket. */
+    static final int MAX_EXPONENT = 36;
+
+    /** The number of the buckets. */
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS;
+
+    /** The number of the stripes. (Power of two) */
+    private static final int STRIPES = Math.min(8, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+    /** The index of the sum of the values in a stripe. */
+    private static final int SUM = BUCKETS;
+
+    /** The index of the maximum value in a stripe. */
+    private static final int MAX = BUCKETS + 1;
+
+    /** The bucket counts, the sum and the maximum of the values recorded by the threads of the stripes. */
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS + 2);
+        }
+    }
+
+    /**
+     * @param nanos The latency in nanoseconds, the negative values are counted as <code>0</code>.
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        final AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        stripe.incrementAndGet(indexOf(value));
+        stripe.addAndGet(SUM, value);
+        long max;
+        do {
+            max = stripe.get(MAX);
+        } while (value > max && !stripe.compareAndSet(MAX, max, value));
+    }
+
+    /**
+     * @return The number of the recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (final AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                count += stripe.get(i);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The mean of the recorded values in nanoseconds, <code>0</code> if there is no value.
+     */
+    public double getMean() {
+        long sum = 0;
+        for (final AtomicLongArray stripe : stripes) {
+            sum += stripe.get(SUM);
+        }
+        final long count = getCount();
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return The maximum of the recorded values in nanoseconds.
+     */
+    public long getMax() {
+        long max = 0;
+        for (final AtomicLongArray stripe : stripes) {
+            max = Math.max(max, stripe.get(MAX));
+        }
+        return max;
+    }
+
+    /**
+     * @param percentile The percentile between <code>0</code> and <code>100</code>, e.g. <code>99.9</code>.
+     * @return The highest value of the bucket of the percentile in nanoseconds (at most the maximum),
+     *         <code>0</code> if there is no value.
+     */
+    public long getPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile has to be in [0, 100]: " + percentile);
+        }
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (final AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+                count += stripe.get(i);
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return The median in nanoseconds.
+     */
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    /**
+     * @return The 99th percentile in nanoseconds.
+     */
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    /**
+     * @return The 99.9th percentile in nanoseconds.
+     */
+    public long getP999() {
+        return getPercentile(99.9);
+    }
+
+    /**
+     * Removes the recorded values.
+     */
+    public void clear() {
+        for (final AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < stripe.length(); i++) {
+                stripe.set(i, 0);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ",mean=" + micros((long) getMean()) + "us,p50=" + micros(getP50()) + "us,p99=" + micros(getP99())
+               + "us,p999=" + micros(getP999()) + "us,max=" + micros(getMax()) + "us";
+    }
+
+    private static String micros(final long nanos) {
+        return String.valueOf((double) TimeUnit.NANOSECONDS.toMicros(nanos * 10) / 10);
+    }
+
+    /**
+     * @param value The value. (Not negative)
+     * @return The index of the bucket of the value.
+     */
+    static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @param index The index of the bucket.
+     * @return The highest value counted in the bucket.
+     */
+    static long highestValueOf(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        if (index == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        final long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
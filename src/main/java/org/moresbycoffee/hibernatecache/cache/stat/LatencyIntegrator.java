@@ -0,0 +1,103 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.InitializeCollectionEventListener;
+import org.hibernate.event.spi.LoadEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.metamodel.source.MetadataImplementor;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+import org.hibernate.stat.spi.StatisticsImplementor;
+
+/**
+ * Registers the {@link LatencyListener} and the {@link MissListener} if the statistics of the session factory
+ * are the {@link LatencyStatistics}.
+ * It is loaded by Hibernate as a service (<code>META-INF/services/org.hibernate.integrator.spi.Integrator</code>).
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class LatencyIntegrator implements Integrator {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(LatencyIntegrator.class);
+
+    @Override
+    public void integrate(final Configuration configuration, final SessionFactoryImplementor sessionFactory, final SessionFactoryServiceRegistry serviceRegistry) {
+        integrate(serviceRegistry);
+    }
+
+    @Override
+    public void integrate(final MetadataImplementor metadata, final SessionFactoryImplementor sessionFactory, final SessionFactoryServiceRegistry serviceRegistry) {
+        integrate(serviceRegistry);
+    }
+
+    @Override
+    public void disintegrate(final SessionFactoryImplementor sessionFactory, final SessionFactoryServiceRegistry serviceRegistry) {
+        /* NOP */
+    }
+
+    private void integrate(final SessionFactoryServiceRegistry serviceRegistry) {
+        final StatisticsImplementor statistics = serviceRegistry.getService(StatisticsImplementor.class);
+        if (!(statistics instanceof LatencyStatistics)) {
+            return;
+        }
+        final EventListenerRegistry registry = serviceRegistry.getService(EventListenerRegistry.class);
+        final List<LoadEventListener> loadListeners = new ArrayList<LoadEventListener>();
+        for (final LoadEventListener listener : registry.getEventListenerGroup(EventType.LOAD).listeners()) {
+            loadListeners.add(listener);
+        }
+        final LatencyListener listener = new LatencyListener(((LatencyStatistics) statistics).getLatency(), loadListeners);
+        registry.setListeners(EventType.LOAD, listener);
+        registry.prependListeners(EventType.PRE_LOAD, listener);
+        registry.appendListeners(EventType.POST_LOAD, listener);
+
+        final List<InitializeCollectionEventListener> initializeListeners = new ArrayList<InitializeCollectionEventListener>();
+        for (final InitializeCollectionEventListener each : registry.getEventListenerGroup(EventType.INIT_COLLECTION).listeners()) {
+            initializeListeners.add(each);
+        }
+        final MissListener missListener = new MissListener(((LatencyStatistics) statistics).getMisses(), Collections.<LoadEventListener>singletonList(listener),
+                                                           initializeListeners);
+        registry.setListeners(EventType.LOAD, missListener);
+        registry.setListeners(EventType.INIT_COLLECTION, missListener);
+        LOG.debug("Entity load latencies and miss attribution enabled.");
+    }
+
+}
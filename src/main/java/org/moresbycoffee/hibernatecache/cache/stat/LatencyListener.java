@@ -0,0 +1,137 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.event.spi.LoadEvent;
+import org.hibernate.event.spi.LoadEventListener;
+import org.hibernate.event.spi.PostLoadEvent;
+import org.hibernate.event.spi.PostLoadEventListener;
+import org.hibernate.event.spi.PreLoadEvent;
+import org.hibernate.event.spi.PreLoadEventListener;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies.Operation;
+
+/**
+ * Measures the {@link Operation#LOAD} latency of the entities by wrapping the load listeners
+ * registered before, and the {@link Operation#HYDRATE} latency from the pre-load to the post-load
+ * event of the entities loaded or assembled from the second level cache.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class LatencyListener implements LoadEventListener, PreLoadEventListener, PostLoadEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient CacheLatency latency;
+
+    /** The load listeners registered before. */
+    private final List<LoadEventListener> delegates;
+
+    /** The entity being initialized by the current thread. */
+    private final transient ThreadLocal<Hydration> hydration = new ThreadLocal<Hydration>() {
+        @Override
+        protected Hydration initialValue() {
+            return new Hydration();
+        }
+    };
+
+    /**
+     * @param latency The latencies of the session factory. (NonNull)
+     * @param delegates The load listeners loading the entities. (NonNull)
+     */
+    LatencyListener(final CacheLatency latency, final List<LoadEventListener> delegates) {
+        this.latency = latency;
+        this.delegates = new ArrayList<LoadEventListener>(delegates);
+    }
+
+    @Override
+    public void onLoad(final LoadEvent event, final LoadType loadType) throws HibernateException {
+        if (!latency.isEnabled()) {
+            load(event, loadType);
+            return;
+        }
+        final Latencies latencies = latency.forEntity(event.getEntityClassName());
+        final Hydration current = hydration.get();
+        final String outerName = current.loadName;
+        final Latencies outer = current.load;
+        current.loadName = event.getEntityClassName();
+        current.load = latencies;
+        final long start = latencies.start();
+        try {
+            load(event, loadType);
+        } finally {
+            latencies.finish(Operation.LOAD, start);
+            current.loadName = outerName;
+            current.load = outer;
+        }
+    }
+
+    @Override
+    public void onPreLoad(final PreLoadEvent event) {
+        if (latency.isEnabled()) {
+            final Hydration current = hydration.get();
+            final String entityName = event.getPersister().getEntityName();
+            current.latencies = entityName.equals(current.loadName) ? current.load : latency.forEntity(entityName);
+            current.start = current.latencies.start();
+        }
+    }
+
+    @Override
+    public void onPostLoad(final PostLoadEvent event) {
+        final Hydration current = hydration.get();
+        if (current.latencies != null) {
+            current.latencies.finish(Operation.HYDRATE, current.start);
+            current.latencies = null;
+        }
+    }
+
+    private void load(final LoadEvent event, final LoadType loadType) {
+        for (final LoadEventListener delegate : delegates) {
+            delegate.onLoad(event, loadType);
+        }
+    }
+
+    /**
+     * The latencies of the entity being loaded, reused by its initialization, and the latencies of the entity
+     * being initialized with the start of the initialization if it is sampled.
+     */
+    private static final class Hydration {
+        private String loadName;
+        private Latencies load;
+        private Latencies latencies;
+        private long start;
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.internal.ConcurrentStatisticsImpl;
+import org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies.Operation;
+import org.moresbycoffee.hibernatecache.cache.stat.StatisticsScope.Counter;
+
+/**
+ * Statistics of a session factory recording the latencies of the regions, the queries and the entities
+ * besides the counters of Hibernate, see {@link CacheLatency}, and attributing the database loads of the entities,
+ * the collections and the queries to the reasons of the misses, see {@link CacheMisses}. They are recorded while the
+ * statistics are enabled (<code>hibernate.generate_statistics</code>), they can be read at runtime
+ * from the statistics of the session factory:
+ * <pre>
+ * ((LatencyStatistics) sessionFactory.getStatistics()).getRegionLatencies(regionName).get(Operation.GET_HIT).getP99();
+ * </pre>
+ * Usage in the <code>persistence.xml</code>, see {@link LatencyStatisticsFactory}:
+ * <pre>
+ * &lt;property name="hibernate.stats.factory" value="org.moresbycoffee.hibernatecache.cache.stat.LatencyStatisticsFactory" /&gt;
+ * </pre>
+ * The second level cache lookups and puts are measured by the regions of the {@link TinyLfuRegionFactory},
+ * the entity loads by the {@link LatencyListener}, the query cache lookups from the lookup of the query
+ * result region until Hibernate counts the hit or the miss. A query execution is attributed to the query cache
+ * lookup before it or, if the query cache hasn't been looked up, it is {@link MissReason#NOT_CACHEABLE}
+ * ({@link MissReason#REGION_ABSENT} if the query cache is disabled).
+ * <p>
+ * The statements, the second level cache and the query cache accesses and the query execution time are counted
+ * by the {@link StatisticsScope} active on the current thread as well, see {@link #getScopes()}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class LatencyStatistics extends ConcurrentStatisticsImpl {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(LatencyStatistics.class);
+
+    private final transient CacheLatency latency;
+
+    private final transient CacheMisses misses;
+
+    private final transient StatisticsScopes scopes = new StatisticsScopes();
+
+    /** The reason of the query executions without query cache lookup. */
+    private final MissReason uncachedQueryReason;
+
+    /**
+     * @param sessionFactory The session factory. (NonNull)
+     */
+    public LatencyStatistics(final SessionFactoryImplementor sessionFactory) {
+        super(sessionFactory);
+        final RegionFactory regionFactory = sessionFactory.getSettings().getRegionFactory();
+        final boolean tinyLfu = regionFactory instanceof TinyLfuRegionFactory;
+        this.latency = tinyLfu ? ((TinyLfuRegionFactory) regionFactory).getLatency() : new CacheLatency();
+        this.misses = tinyLfu ? ((TinyLfuRegionFactory) regionFactory).getMisses() : new CacheMisses();
+        this.uncachedQueryReason = sessionFactory.getSettings().isQueryCacheEnabled() ? MissReason.NOT_CACHEABLE : MissReason.REGION_ABSENT;
+    }
+
+    /**
+     * @return The latencies of the session factory. (NonNull)
+     */
+    public CacheLatency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return The attribution of the database loads of the session factory. (NonNull)
+     */
+    public CacheMisses getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The statistics scopes of the session factory. (NonNull)
+     */
+    public StatisticsScopes getScopes() {
+        return scopes;
+    }
+
+    /**
+     * @param name The name of the entity or the collection role. (NonNull)
+     * @return The database loads of the entity or the collection role by reason. (NonNull)
+     */
+    public Misses getEntityMisses(final String name) {
+        return misses.forType(name);
+    }
+
+    /**
+     * @param query The query string as it is reported by {@link #getQueries()}. (NonNull)
+     * @return The executions of the query by reason. (NonNull)
+     */
+    public Misses getQueryMisses(final String query) {
+        return misses.forQuery(query);
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The latencies of the region. (NonNull)
+     */
+    public Latencies getRegionLatencies(final String regionName) {
+        return latency.forRegion(regionName);
+    }
+
+    /**
+     * @param query The query string as it is reported by {@link #getQueries()}. (NonNull)
+     * @return The latencies of the query. (NonNull)
+     */
+    public Latencies getQueryLatencies(final String query) {
+        return latency.forQuery(query);
+    }
+
+    /**
+     * @param entityName The name of the entity. (NonNull)
+     * @return The latencies of the entity. (NonNull)
+     */
+    public Latencies getEntityLatencies(final String entityName) {
+        return latency.forEntity(entityName);
+    }
+
+    @Override
+    public void setStatisticsEnabled(final boolean enabled) {
+        super.setStatisticsEnabled(enabled);
+        latency.setEnabled(enabled);
+        misses.setEnabled(enabled);
+    }
+
+    @Override
+    public void prepareStatement() {
+        super.prepareStatement();
+        scopes.count(Counter.STATEMENTS, 1);
+    }
+
+    @Override
+    public void secondLevelCacheHit(final String regionName) {
+        super.secondLevelCacheHit(regionName);
+        scopes.count(Counter.L2_HITS, 1);
+    }
+
+    @Override
+    public void secondLevelCacheMiss(final String regionName) {
+        super.secondLevelCacheMiss(regionName);
+        scopes.count(Counter.L2_MISSES, 1);
+    }
+
+    @Override
+    public void secondLevelCachePut(final String regionName) {
+        super.secondLevelCachePut(regionName);
+        scopes.count(Counter.L2_PUTS, 1);
+    }
+
+    @Override
+    public void queryCacheHit(final String hql, final String regionName) {
+        super.queryCacheHit(hql, regionName);
+        scopes.count(Counter.QUERY_CACHE_HITS, 1);
+        recordLookup(hql, regionName, Operation.QUERY_CACHE_HIT);
+        misses.queryCacheHit();
+    }
+
+    @Override
+    public void queryCacheMiss(final String hql, final String regionName) {
+        super.queryCacheMiss(hql, regionName);
+        scopes.count(Counter.QUERY_CACHE_MISSES, 1);
+        recordLookup(hql, regionName, Operation.QUERY_CACHE_MISS);
+    }
+
+    @Override
+    public void queryExecuted(final String hql, final int rows, final long time) {
+        super.queryExecuted(hql, rows, time);
+        scopes.count(Counter.QUERY_NANOS, TimeUnit.MILLISECONDS.toNanos(time));
+        if (hql != null && latency.isEnabled()) {
+            latency.forQuery(hql).record(Operation.QUERY_EXECUTION, TimeUnit.MILLISECONDS.toNanos(time));
+        }
+        misses.queryExecuted(hql == null ? CacheLatency.OTHER_QUERIES : hql, uncachedQueryReason);
+    }
+
+    /**
+     * Clears the counters, the latencies, the misses and the totals of the scopes. (It is called by the constructor of the super class as well.)
+     */
+    @Override
+    public void clear() {
+        super.clear();
+        if (scopes != null) {
+            scopes.clear();
+        }
+        if (latency != null) {
+            latency.clear();
+        }
+        if (misses != null) {
+            misses.clear();
+        }
+    }
+
+    @Override
+    public void logSummary() {
+        super.logSummary();
+        log("Region", latency.getRegions());
+        log("Query", latency.getQueries());
+        log("Entity", latency.getEntities());
+        LOG.info(misses.report());
+    }
+
+    private void recordLookup(final String hql, final String regionName, final Operation operation) {
+        final long nanos = latency.queryLookupFinished();
+        if (nanos >= 0 && latency.isEnabled()) {
+            latency.forRegion(regionName).record(operation, nanos);
+            if (hql != null) {
+                latency.forQuery(hql).record(operation, nanos);
+            }
+        }
+    }
+
+    private static void log(final String kind, final Collection<Latencies> latencies) {
+        for (final Latencies each : latencies) {
+            LOG.info(kind + " latencies: " + each);
+        }
+    }
+
+}
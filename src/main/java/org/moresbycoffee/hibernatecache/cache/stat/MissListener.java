@@ -0,0 +1,126 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.CollectionEntry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.InitializeCollectionEvent;
+import org.hibernate.event.spi.InitializeCollectionEventListener;
+import org.hibernate.event.spi.LoadEvent;
+import org.hibernate.event.spi.LoadEventListener;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Attributes the database loads of the entities and the collections which don't read the second level cache
+ * to {@link MissReason#REGION_ABSENT} or {@link MissReason#NOT_CACHEABLE} by wrapping the load and the collection
+ * initialization listeners registered before. (The misses of the cache are attributed by the regions.)
+ * An entity is counted if it wasn't in the persistence context before the load and it is afterwards,
+ * so the loads served by the session and the proxies created without a load aren't counted.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class MissListener implements LoadEventListener, InitializeCollectionEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient CacheMisses misses;
+
+    /** The load listeners registered before. */
+    private final List<LoadEventListener> loadDelegates;
+
+    /** The collection initialization listeners registered before. */
+    private final List<InitializeCollectionEventListener> initializeDelegates;
+
+    /**
+     * @param misses The misses of the session factory. (NonNull)
+     * @param loadDelegates The load listeners loading the entities. (NonNull)
+     * @param initializeDelegates The listeners initializing the collections. (NonNull)
+     */
+    MissListener(final CacheMisses misses, final List<LoadEventListener> loadDelegates, final List<InitializeCollectionEventListener> initializeDelegates) {
+        this.misses = misses;
+        this.loadDelegates = new ArrayList<LoadEventListener>(loadDelegates);
+        this.initializeDelegates = new ArrayList<InitializeCollectionEventListener>(initializeDelegates);
+    }
+
+    @Override
+    public void onLoad(final LoadEvent event, final LoadType loadType) throws HibernateException {
+        final EventSource session = event.getSession();
+        final EntityPersister persister = misses.isEnabled() ? session.getFactory().getEntityPersister(event.getEntityClassName()) : null;
+        if (persister == null || persister.hasCache() && session.getCacheMode().isGetEnabled()) {
+            load(event, loadType);
+            return;
+        }
+        final boolean managed = isManaged(session, event, persister);
+        load(event, loadType);
+        if (!managed && isManaged(session, event, persister)) {
+            misses.record(persister.getEntityName(), uncachedReason(session, persister.hasCache()));
+        }
+    }
+
+    @Override
+    public void onInitializeCollection(final InitializeCollectionEvent event) throws HibernateException {
+        final PersistentCollection collection = event.getCollection();
+        final EventSource session = event.getSession();
+        final CollectionEntry entry = misses.isEnabled() && !collection.wasInitialized() ? session.getPersistenceContext().getCollectionEntry(collection) : null;
+        final CollectionPersister persister = entry == null ? null : entry.getLoadedPersister();
+        for (final InitializeCollectionEventListener delegate : initializeDelegates) {
+            delegate.onInitializeCollection(event);
+        }
+        if (persister != null && !(persister.hasCache() && session.getCacheMode().isGetEnabled()) && collection.wasInitialized()) {
+            misses.record(persister.getRole(), uncachedReason(session, persister.hasCache()));
+        }
+    }
+
+    private void load(final LoadEvent event, final LoadType loadType) {
+        for (final LoadEventListener delegate : loadDelegates) {
+            delegate.onLoad(event, loadType);
+        }
+    }
+
+    private static boolean isManaged(final EventSource session, final LoadEvent event, final EntityPersister persister) {
+        return session.getPersistenceContext().getEntity(session.generateEntityKey(event.getEntityId(), persister)) != null;
+    }
+
+    /**
+     * @return {@link MissReason#REGION_ABSENT} if the data is cacheable, otherwise {@link MissReason#NOT_CACHEABLE}.
+     */
+    private static MissReason uncachedReason(final EventSource session, final boolean hasCache) {
+        return hasCache || !session.getFactory().getSettings().isSecondLevelCacheEnabled() ? MissReason.REGION_ABSENT : MissReason.NOT_CACHEABLE;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+/**
+ * The reasons why an entity, a collection or a query result has been loaded from the database
+ * instead of the second level cache, see {@link CacheMisses}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public enum MissReason {
+
+    /**
+     * The data is cacheable but no cache has been read: the second level cache (or the query cache)
+     * is disabled or the cache mode of the session doesn't read the cache.
+     */
+    REGION_ABSENT,
+
+    /** The region has no entry for the key and it hasn't been cached recently. */
+    MISSING,
+
+    /** The entry has been cached recently but it has been evicted, expired or invalidated since. */
+    EVICTED,
+
+    /** The entry has been put into the cache (or committed) after the transaction started. */
+    NEWER_THAN_TRANSACTION,
+
+    /** The entry is soft-locked by a modifying transaction. */
+    SOFT_LOCKED,
+
+    /** The query result has been found, but one of the queried tables has been updated since it was cached. */
+    QUERY_INVALIDATED,
+
+    /** The entity or the collection isn't mapped to a cache region, or the query isn't cacheable. */
+    NOT_CACHEABLE
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The database loads of an entity, a collection role or a query counted by their {@link MissReason}s.
+ * The loads are counted by striped counters, so the concurrent loads rarely contend.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class Misses {
+
+    private static final MissReason[] REASONS = MissReason.values();
+
+    /** The number of the counters of a stripe, the counters of a stripe fill a cache line. */
+    private static final int STRIPE_SIZE = 8;
+
+    /** The number of the stripes of the counters. (Power of two) */
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+    private final String name;
+
+    /** The counts of the reasons by the stripes of the threads. */
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIPE_SIZE);
+
+    /**
+     * @param name The name of the entity, the collection role or the query. (NonNull)
+     */
+    Misses(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the entity, the collection role or the query. (NonNull)
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param reason The reason of a database load. (NonNull)
+     */
+    void record(final MissReason reason) {
+        counts.incrementAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_SIZE + reason.ordinal());
+    }
+
+    /**
+     * @param reason The reason of the database loads. (NonNull)
+     * @return The number of the database loads because of the reason.
+     */
+    public long getCount(final MissReason reason) {
+        long count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            count += counts.get(stripe * STRIPE_SIZE + reason.ordinal());
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of the database loads.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Removes the counts.
+     */
+    public void clear() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(name).append(" {total=").append(getTotal());
+        for (final MissReason reason : REASONS) {
+            final long count = getCount(reason);
+            if (count > 0) {
+                builder.append(", ").append(reason).append('=').append(count);
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+}
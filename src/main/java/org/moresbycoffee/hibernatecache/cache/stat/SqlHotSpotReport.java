@@ -0,0 +1,447 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.cache.spi.QueryCache;
+import org.hibernate.cache.spi.access.CollectionRegionAccessStrategy;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.Joinable;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.moresbycoffee.hibernatecache.cache.strategy.ReadOnlyCollectionRegionAccessStrategy;
+import org.moresbycoffee.hibernatecache.cache.strategy.ReadOnlyEntityRegionAccessStrategy;
+import org.moresbycoffee.hibernatecache.jdbc.FingerprintStatementSink;
+import org.moresbycoffee.hibernatecache.jdbc.StatementShape;
+
+/**
+ * Correlates the statements executed by a session factory, aggregated by their fingerprints
+ * (see {@link FingerprintStatementSink}), with its cache configuration.
+ * <p>
+ * Every {@link HotSpot} shows the region which serves (or would serve if it were cached) the statement
+ * and the current hit rate of the region:
+ * <ul>
+ * <li>the entity region if the statement selects from the table of an entity by its identifier,</li>
+ * <li>the collection region if the statement selects from the table of a collection,</li>
+ * <li>the query cache region if the statement selects from the table of an entity otherwise.</li>
+ * </ul>
+ * The {@link Recommendation}s are ordered by the database time of the selects of the entities and the collections:
+ * the types which aren't cached should be cached and the cached types which haven't been modified (apart from
+ * the inserts of the entities) should be {@link org.hibernate.cache.spi.access.AccessType#READ_ONLY read-only}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class SqlHotSpotReport {
+
+    /** The kinds of the regions serving the statements. */
+    public enum ServedBy {
+        /** The statement loads an entity by its identifier. */
+        ENTITY,
+        /** The statement loads a collection. */
+        COLLECTION,
+        /** The statement queries the entities. */
+        QUERY,
+        /** The statement can't be served by the cache, e.g. it modifies the database. */
+        NONE
+    }
+
+    /** The advice of a {@link Recommendation}. */
+    public enum Advice {
+        /** The entity or the collection should be cached. */
+        CACHE,
+        /** The entity or the collection should be cached read-only. */
+        READ_ONLY
+    }
+
+    private final List<HotSpot> hotSpots = new ArrayList<HotSpot>();
+
+    private final List<Recommendation> recommendations = new ArrayList<Recommendation>();
+
+    /**
+     * @param sessionFactory The session factory which has executed the statements. (NonNull)
+     * @param shapes The executed statements by fingerprint, the slowest first. (NonNull)
+     */
+    public SqlHotSpotReport(final SessionFactoryImplementor sessionFactory, final Collection<StatementShape> shapes) {
+        final Map<String, Target> tables = targetsByTable(sessionFactory);
+        final QueryCache queryCache = sessionFactory.getSettings().isQueryCacheEnabled() ? sessionFactory.getQueryCache() : null;
+        final String queryRegion = queryCache != null ? queryCache.getRegion().getName() : null;
+        for (final StatementShape shape : shapes) {
+            hotSpots.add(hotSpot(sessionFactory, shape, tables, queryRegion));
+        }
+        for (final Target target : tables.values()) {
+            if (target.reads == 0) {
+                continue;
+            }
+            if (!target.cached) {
+                recommendations.add(new Recommendation(target.name, Advice.CACHE, target.readNanos, target.reads));
+            } else if (!target.readOnly && target.modifications == 0) {
+                recommendations.add(new Recommendation(target.name, Advice.READ_ONLY, target.readNanos, target.reads));
+            }
+        }
+        Collections.sort(recommendations, new Comparator<Recommendation>() {
+            @Override
+            public int compare(final Recommendation first, final Recommendation second) {
+                final int byImpact = Long.valueOf(second.impactNanos).compareTo(first.impactNanos);
+                return byImpact != 0 ? byImpact : first.name.compareTo(second.name);
+            }
+        });
+    }
+
+    /**
+     * @return The statements with the regions serving them, in the order of the shapes. (NonNull)
+     */
+    public List<HotSpot> getHotSpots() {
+        return Collections.unmodifiableList(hotSpots);
+    }
+
+    /**
+     * @return The changes of the cache configuration, the most impacting first. (NonNull)
+     */
+    public List<Recommendation> getRecommendations() {
+        return Collections.unmodifiableList(recommendations);
+    }
+
+    /**
+     * @return The report of the statements and the recommendations. (NonNull)
+     */
+    public String report() {
+        final StringBuilder report = new StringBuilder("SQL hot spots:");
+        for (final HotSpot hotSpot : hotSpots) {
+            report.append("\n  ").append(hotSpot);
+        }
+        report.append("\nRecommendations:");
+        for (final Recommendation recommendation : recommendations) {
+            report.append("\n  ").append(recommendation);
+        }
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+
+    private static HotSpot hotSpot(final SessionFactoryImplementor sessionFactory, final StatementShape shape, final Map<String, Target> tables, final String queryRegion) {
+        final String sql = shape.getFingerprint().toLowerCase(Locale.ENGLISH);
+        if (sql.startsWith("select ")) {
+            final String[] table = tableAfter(sql, " from ");
+            final Target target = table != null ? tables.get(table[0]) : null;
+            if (target == null) {
+                return new HotSpot(shape, null, ServedBy.NONE, null, Double.NaN);
+            }
+            target.reads += shape.getCount();
+            target.readNanos += shape.getTotalNanos();
+            if (target.collection) {
+                return new HotSpot(shape, target.name, ServedBy.COLLECTION, target.regionName, hitRate(sessionFactory, target.regionName));
+            }
+            if (isSelectedById(sql, table[1], target.keyColumn)) {
+                return new HotSpot(shape, target.name, ServedBy.ENTITY, target.regionName, hitRate(sessionFactory, target.regionName));
+            }
+            return new HotSpot(shape, target.name, ServedBy.QUERY, queryRegion, hitRate(sessionFactory, queryRegion));
+        }
+        final String[] table;
+        if (sql.startsWith("insert into ")) {
+            table = tableAfter(sql, "insert into ");
+        } else if (sql.startsWith("update ")) {
+            table = tableAfter(sql, "update ");
+        } else if (sql.startsWith("delete from ")) {
+            table = tableAfter(sql, "delete from ");
+        } else {
+            table = null;
+        }
+        final Target target = table != null ? tables.get(table[0]) : null;
+        if (target == null) {
+            return new HotSpot(shape, null, ServedBy.NONE, null, Double.NaN);
+        }
+        /* The inserted entities don't change the cached ones, but the inserted rows of a collection do. */
+        if (target.collection || !sql.startsWith("insert into ")) {
+            target.modifications += shape.getCount();
+        }
+        return new HotSpot(shape, target.name, ServedBy.NONE, null, Double.NaN);
+    }
+
+    /**
+     * @return The table and the alias following the keyword or <tt>null</tt> if the keyword isn't followed by a table.
+     */
+    private static String[] tableAfter(final String sql, final String keyword) {
+        final int index = sql.indexOf(keyword);
+        if (index < 0) {
+            return null;
+        }
+        final int start = index + keyword.length();
+        final int end = tokenEnd(sql, start);
+        if (end == start) {
+            return null;
+        }
+        final int aliasStart = end < sql.length() && sql.charAt(end) == ' ' ? end + 1 : end;
+        final int aliasEnd = tokenEnd(sql, aliasStart);
+        return new String[] { sql.substring(start, end), sql.substring(aliasStart, aliasEnd) };
+    }
+
+    private static int tokenEnd(final String sql, final int start) {
+        int end = start;
+        while (end < sql.length() && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_' || sql.charAt(end) == '.')) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @return <tt>true</tt> if the statement restricts the identifier column of the table to a parameter or a list of parameters.
+     */
+    private static boolean isSelectedById(final String sql, final String alias, final String idColumn) {
+        final int where = sql.indexOf(" where ");
+        if (where < 0 || idColumn == null) {
+            return false;
+        }
+        final String restrictions = sql.substring(where);
+        final String column = alias.length() == 0 || "where".equals(alias) ? idColumn : alias + "." + idColumn;
+        return restrictions.contains(column + "=?") || restrictions.contains(column + " = ?") || restrictions.contains(column + " in (?)");
+    }
+
+    /**
+     * @return The hit rate of the region or {@link Double#NaN} if the region hasn't been accessed.
+     */
+    private static double hitRate(final SessionFactoryImplementor sessionFactory, final String regionName) {
+        if (regionName == null) {
+            return Double.NaN;
+        }
+        final SecondLevelCacheStatistics statistics = sessionFactory.getStatistics().getSecondLevelCacheStatistics(regionName);
+        if (statistics == null) {
+            return Double.NaN;
+        }
+        final long accesses = statistics.getHitCount() + statistics.getMissCount();
+        return accesses > 0 ? (double) statistics.getHitCount() / accesses : Double.NaN;
+    }
+
+    /**
+     * @return The root entities and the collections by their lower case table names. The table of a one-to-many
+     *         collection is the table of its element entity, so it is mapped to the entity.
+     */
+    private static Map<String, Target> targetsByTable(final SessionFactoryImplementor sessionFactory) {
+        final Map<String, Target> tables = new HashMap<String, Target>();
+        final String prefix = sessionFactory.getSettings().getCacheRegionPrefix();
+        for (final Object name : sessionFactory.getAllClassMetadata().keySet()) {
+            final EntityPersister persister = sessionFactory.getEntityPersister((String) name);
+            if (!persister.getEntityName().equals(persister.getRootEntityName()) || !(persister instanceof Joinable)) {
+                continue;
+            }
+            final Target target = new Target(persister.getEntityName(), false);
+            if (persister.hasCache()) {
+                final EntityRegionAccessStrategy strategy = persister.getCacheAccessStrategy();
+                target.cached = true;
+                target.readOnly = strategy instanceof ReadOnlyEntityRegionAccessStrategy;
+                target.regionName = strategy.getRegion().getName();
+            } else {
+                target.regionName = prefix == null ? target.name : prefix + "." + target.name;
+            }
+            final String[] idColumns = ((Joinable) persister).getKeyColumnNames();
+            target.keyColumn = idColumns.length == 1 ? idColumns[0].toLowerCase(Locale.ENGLISH) : null;
+            tables.put(((Joinable) persister).getTableName().toLowerCase(Locale.ENGLISH), target);
+        }
+        for (final Object role : sessionFactory.getAllCollectionMetadata().keySet()) {
+            final CollectionPersister persister = sessionFactory.getCollectionPersister((String) role);
+            if (persister.isOneToMany() || !(persister instanceof Joinable)) {
+                continue;
+            }
+            final Target target = new Target(persister.getRole(), true);
+            if (persister.hasCache()) {
+                final CollectionRegionAccessStrategy strategy = persister.getCacheAccessStrategy();
+                target.cached = true;
+                target.readOnly = strategy instanceof ReadOnlyCollectionRegionAccessStrategy;
+                target.regionName = strategy.getRegion().getName();
+            } else {
+                target.regionName = prefix == null ? target.name : prefix + "." + target.name;
+            }
+            final String table = ((Joinable) persister).getTableName().toLowerCase(Locale.ENGLISH);
+            if (!tables.containsKey(table)) {
+                tables.put(table, target);
+            }
+        }
+        return tables;
+    }
+
+    private static String formatHitRate(final double hitRate) {
+        return Double.isNaN(hitRate) ? "-" : String.format(Locale.ENGLISH, "%.1f%%", hitRate * 100);
+    }
+
+    /**
+     * An entity or a collection with the statements of its table.
+     */
+    private static final class Target {
+        private final String name;
+        private final boolean collection;
+        private boolean cached;
+        private boolean readOnly;
+        private String regionName;
+        private String keyColumn;
+        private long reads;
+        private long readNanos;
+        private long modifications;
+
+        Target(final String name, final boolean collection) {
+            this.name = name;
+            this.collection = collection;
+        }
+    }
+
+    /**
+     * The statements of a fingerprint with the region serving them.
+     */
+    public static final class HotSpot {
+
+        private final StatementShape shape;
+        private final String type;
+        private final ServedBy servedBy;
+        private final String regionName;
+        private final double hitRate;
+
+        HotSpot(final StatementShape shape, final String type, final ServedBy servedBy, final String regionName, final double hitRate) {
+            this.shape = shape;
+            this.type = type;
+            this.servedBy = servedBy;
+            this.regionName = regionName;
+            this.hitRate = hitRate;
+        }
+
+        /**
+         * @return The executed statements. (NonNull)
+         */
+        public StatementShape getShape() {
+            return shape;
+        }
+
+        /**
+         * @return The entity name or the collection role of the table of the statements, <tt>null</tt> if the table isn't mapped.
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return The kind of the region serving the statements. (NonNull)
+         */
+        public ServedBy getServedBy() {
+            return servedBy;
+        }
+
+        /**
+         * @return The name of the region serving (or which would serve) the statements, <tt>null</tt> if there isn't such a region.
+         */
+        public String getRegionName() {
+            return regionName;
+        }
+
+        /**
+         * @return The current hit rate of the region, {@link Double#NaN} if it hasn't been accessed or it isn't cached.
+         */
+        public double getHitRate() {
+            return hitRate;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder(shape.toString());
+            if (type != null) {
+                builder.append("\n      ").append(servedBy).append(' ').append(type);
+            }
+            if (regionName != null) {
+                builder.append(", region ").append(regionName).append(", hit rate ").append(formatHitRate(hitRate));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A change of the cache configuration of an entity or a collection.
+     */
+    public static final class Recommendation {
+
+        private final String name;
+        private final Advice advice;
+        private final long impactNanos;
+        private final long statements;
+
+        Recommendation(final String name, final Advice advice, final long impactNanos, final long statements) {
+            this.name = name;
+            this.advice = advice;
+            this.impactNanos = impactNanos;
+            this.statements = statements;
+        }
+
+        /**
+         * @return The entity name or the collection role. (NonNull)
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The advice. (NonNull)
+         */
+        public Advice getAdvice() {
+            return advice;
+        }
+
+        /**
+         * @return The database time of the selects of the entity or the collection in nanoseconds.
+         */
+        public long getImpactNanos() {
+            return impactNanos;
+        }
+
+        /**
+         * @return The number of the selects of the entity or the collection.
+         */
+        public long getStatements() {
+            return statements;
+        }
+
+        @Override
+        public String toString() {
+            return (advice == Advice.CACHE ? "cache " + name : "make " + name + " READ_ONLY")
+                    + " (" + statements + " selects, " + TimeUnit.NANOSECONDS.toMicros(impactNanos) + " us)";
+        }
+    }
+
+}
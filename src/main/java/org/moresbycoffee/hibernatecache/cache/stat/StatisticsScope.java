@@ -0,0 +1,201 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+/**
+ * The statistics of a unit of work, e.g. a request or an entity manager, counted by the {@link LatencyStatistics}
+ * while the scope is active on the current thread. A scope is confined to a thread: it is opened on the current
+ * thread by {@link StatisticsScopes#open(String)}, it can be {@link #suspend() suspended} and
+ * {@link #resume() resumed} on another thread (e.g. with its entity manager), and it has to be
+ * {@link #close() closed} on the thread it is active on. The counters are plain fields, they can be read by the
+ * thread of the scope or by any thread after the scope has been handed over (e.g. after the thread has been joined).
+ * <pre>
+ * final StatisticsScope scope = statistics.getScopes().open("request");
+ * try {
+ *     ...
+ * } finally {
+ *     scope.close();
+ * }
+ * scope.get(Counter.STATEMENTS);
+ * </pre>
+ * The scopes opened while a scope is active are nested, their counters are added to the enclosing scope when they are closed.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class StatisticsScope {
+
+    /**
+     * The counters of a scope.
+     */
+    public enum Counter {
+        /** The prepared JDBC statements. */
+        STATEMENTS,
+        /** The second level cache hits of the entities and the collections. */
+        L2_HITS,
+        /** The second level cache misses of the entities and the collections. */
+        L2_MISSES,
+        /** The entities and the collections put into the second level cache. */
+        L2_PUTS,
+        /** The query cache hits. */
+        QUERY_CACHE_HITS,
+        /** The query cache misses. */
+        QUERY_CACHE_MISSES,
+        /** The time of the query executions measured by Hibernate in nanoseconds (with millisecond precision). */
+        QUERY_NANOS,
+        /** The time while the scope has been active in nanoseconds. */
+        ACTIVE_NANOS
+    }
+
+    static final Counter[] COUNTERS = Counter.values();
+
+    private final String name;
+
+    private final StatisticsScopes scopes;
+
+    /** The scope active on the thread when this scope has been opened or resumed, <tt>null</tt> if there wasn't any. */
+    private StatisticsScope parent;
+
+    /** The counters by the ordinals of the {@link Counter}s. */
+    final long[] counts = new long[COUNTERS.length];
+
+    /** The thread the scope is active on, <tt>null</tt> if it is suspended. */
+    private Thread thread;
+
+    /** The time when the scope has been opened or resumed. */
+    private long activeSince;
+
+    private boolean closed;
+
+    StatisticsScope(final String name, final StatisticsScopes scopes) {
+        this.name = name;
+        this.scopes = scopes;
+    }
+
+    /**
+     * @return The name of the scope. (NonNull)
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param counter The counter. (NonNull)
+     * @return The value of the counter.
+     */
+    public long get(final Counter counter) {
+        return counts[counter.ordinal()];
+    }
+
+    /**
+     * @return <tt>true</tt> if the scope is active on a thread.
+     */
+    public boolean isActive() {
+        return thread != null;
+    }
+
+    /**
+     * @return <tt>true</tt> if the scope has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Activates the scope on the current thread, the statistics of the thread are counted by the scope until it is suspended or closed.
+     *
+     * @throws IllegalStateException If the scope is active or closed.
+     */
+    public void resume() {
+        if (closed || thread != null) {
+            throw new IllegalStateException("The scope " + name + " is " + (closed ? "closed." : "active on " + thread.getName() + "."));
+        }
+        thread = Thread.currentThread();
+        parent = scopes.activate(this);
+        activeSince = System.nanoTime();
+    }
+
+    /**
+     * Deactivates the scope on the current thread, the scope active before it is activated again.
+     *
+     * @throws IllegalStateException If the scope isn't the active scope of the current thread.
+     */
+    public void suspend() {
+        deactivate();
+    }
+
+    /**
+     * Closes the scope: it is deactivated, its counters are added to the enclosing scope or, if it isn't nested,
+     * rolled up into the totals of the {@link StatisticsScopes}. A closed scope can't be resumed. The close of a
+     * suspended scope only rolls up its counters.
+     *
+     * @throws IllegalStateException If the scope is active on another thread.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        final StatisticsScope enclosing = thread != null ? deactivate() : null;
+        closed = true;
+        if (enclosing != null) {
+            for (int i = 0; i < counts.length; i++) {
+                enclosing.counts[i] += counts[i];
+            }
+        } else {
+            scopes.rollUp(this);
+        }
+    }
+
+    /**
+     * @return The enclosing scope. (Nullable)
+     */
+    private StatisticsScope deactivate() {
+        if (thread != Thread.currentThread() || scopes.current() != this) {
+            throw new IllegalStateException("The scope " + name + " isn't the active scope of " + Thread.currentThread().getName() + ".");
+        }
+        counts[Counter.ACTIVE_NANOS.ordinal()] += System.nanoTime() - activeSince;
+        final StatisticsScope enclosing = parent;
+        scopes.deactivate(enclosing);
+        parent = null;
+        thread = null;
+        return enclosing;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(name).append(" {");
+        for (final Counter counter : COUNTERS) {
+            builder.append(counter == COUNTERS[0] ? "" : ", ").append(counter).append('=').append(counts[counter.ordinal()]);
+        }
+        return builder.append('}').toString();
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.moresbycoffee.hibernatecache.cache.stat.StatisticsScope.Counter;
+
+/**
+ * The {@link StatisticsScope}s of a session factory: the statistics of the session factory are counted by
+ * the scope active on the current thread besides the global counters of Hibernate, so the cost of the
+ * concurrent units of work isn't mixed. Counting is an increment of a field of the scope found by a thread local
+ * lookup, the scopes which aren't nested are rolled up into the {@link #getTotal(Counter) totals} when they are closed
+ * if the roll-up is enabled.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class StatisticsScopes {
+
+    /** The scope active on the thread. */
+    private final ThreadLocal<StatisticsScope> current = new ThreadLocal<StatisticsScope>();
+
+    /** The counters of the closed scopes by the ordinals of the {@link Counter}s. */
+    private final AtomicLongArray totals = new AtomicLongArray(StatisticsScope.COUNTERS.length);
+
+    private volatile boolean rollUp = true;
+
+    /**
+     * Opens a scope and activates it on the current thread.
+     *
+     * @param name The name of the scope, e.g. the name of the request. (NonNull)
+     * @return The scope active on the current thread. (NonNull)
+     */
+    public StatisticsScope open(final String name) {
+        final StatisticsScope scope = new StatisticsScope(name, this);
+        scope.resume();
+        return scope;
+    }
+
+    /**
+     * @return The scope active on the current thread or <tt>null</tt> if there isn't any.
+     */
+    public StatisticsScope current() {
+        return current.get();
+    }
+
+    /**
+     * @param counter The counter. (NonNull)
+     * @return The sum of the counter of the closed scopes rolled up.
+     */
+    public long getTotal(final Counter counter) {
+        return totals.get(counter.ordinal());
+    }
+
+    /**
+     * @return <tt>true</tt> if the closed scopes are rolled up into the totals.
+     */
+    public boolean isRollUp() {
+        return rollUp;
+    }
+
+    /**
+     * @param rollUp <tt>true</tt> if the closed scopes should be rolled up into the totals.
+     */
+    public void setRollUp(final boolean rollUp) {
+        this.rollUp = rollUp;
+    }
+
+    /**
+     * Resets the totals.
+     */
+    public void clear() {
+        for (int i = 0; i < totals.length(); i++) {
+            totals.set(i, 0);
+        }
+    }
+
+    /**
+     * Counts an event in the scope active on the current thread.
+     *
+     * @param counter The counter. (NonNull)
+     * @param value The value added to the counter.
+     */
+    void count(final Counter counter, final long value) {
+        final StatisticsScope scope = current.get();
+        if (scope != null) {
+            scope.counts[counter.ordinal()] += value;
+        }
+    }
+
+    /**
+     * @return The scope active on the thread before. (Nullable)
+     */
+    StatisticsScope activate(final StatisticsScope scope) {
+        final StatisticsScope previous = current.get();
+        current.set(scope);
+        return previous;
+    }
+
+    void deactivate(final StatisticsScope previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    void rollUp(final StatisticsScope scope) {
+        if (rollUp) {
+            for (int i = 0; i < scope.counts.length; i++) {
+                if (scope.counts[i] != 0) {
+                    totals.addAndGet(i, scope.counts[i]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("Scope totals {");
+        for (final Counter counter : StatisticsScope.COUNTERS) {
+            builder.append(counter == StatisticsScope.COUNTERS[0] ? "" : ", ").append(counter).append('=').append(getTotal(counter));
+        }
+        return builder.append('}').toString();
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import java.util.Map;
+
+/**
+ * The storage behind a cache region.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public interface CacheStore<K, V> {
+
+    /**
+     * @param key The key. (NonNull)
+     * @return The value mapped to the key or <tt>null</tt>.
+     */
+    V get(Object key);
+
+    /**
+     * @param key The key. (NonNull)
+     * @return The value mapped to the key or <tt>null</tt>. Unlike {@link #get(Object)} it doesn't count as an access:
+     *         it isn't counted as a hit or a miss and it doesn't affect the eviction.
+     */
+    V peek(Object key);
+
+    /**
+     * @param key The key. (NonNull)
+     * @return <tt>true</tt> if the key is in the store. It doesn't count as an access.
+     */
+    boolean containsKey(Object key);
+
+    /**
+     * @param key The key. (NonNull)
+     * @param value The value. (NonNull)
+     */
+    void put(K key, V value);
+
+    /**
+     * @param key The key. (NonNull)
+     */
+    void remove(Object key);
+
+    /** Removes all the entries. */
+    void clear();
+
+    /**
+     * @return The number of entries.
+     */
+    long size();
+
+    /**
+     * @return A snapshot of the content of the store. (NonNull)
+     */
+    Map<K, V> toMap();
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+/**
+ * A 4-bit Count-Min sketch estimating the access frequency of the keys
+ * seen by a {@link TinyLfuCache} or the other users of the frequencies.
+ * <p>
+ * Every key is mapped to four counters, one in each quarter of a 64 bit word.
+ * The estimated frequency is the minimum of the four counters. Counters saturate at 15
+ * and all of them are halved when the number of increments reaches the sample size,
+ * so the sketch forgets the history which is no longer relevant.
+ * <p>
+ * The sketch is not thread safe, the owner has to guard it.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class FrequencySketch {
+
+    /** Seeds of the four hash functions. */
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /** Mask of the lowest bit in every counter, used by the halving. */
+    private static final long ONE_MASK   = 0x1111111111111111L;
+
+    /** Mask of the upper three bits in every counter, used by the halving. */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /** The counters, 16 counters in each word. */
+    private final long[] table;
+
+    /** <code>table.length - 1</code>, the table size is power of two. */
+    private final int tableMask;
+
+    /** The number of increments after the counters are halved. */
+    private final int sampleSize;
+
+    /** The number of increments since the last reset. */
+    private int size;
+
+    /**
+     * @param maximumSize The maximum number of entries of the cache. (Positive)
+     */
+    public FrequencySketch(final long maximumSize) {
+        final int capacity = (int) Math.min(Math.max(maximumSize, 16), 1 << 30);
+        this.table = new long[ceilingPowerOfTwo(capacity)];
+        this.tableMask = table.length - 1;
+        this.sampleSize = 10 * capacity;
+    }
+
+    /**
+     * @param hashCode The hash code of the key.
+     * @return The estimated number of accesses of the key. (0..15)
+     */
+    public int frequency(final int hashCode) {
+        final int hash = spread(hashCode);
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int offset = counterOffset(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of the key.
+     * @param hashCode The hash code of the key.
+     */
+    public void increment(final int hashCode) {
+        final int hash = spread(hashCode);
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int offset = counterOffset(hash, i);
+            if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    /**
+     * @param hash The spread hash of the key.
+     * @param i The number of the hash function. (0..3)
+     * @return The index of the word in the table.
+     */
+    private int indexOf(final int hash, final int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    /**
+     * @param hash The spread hash of the key.
+     * @param i The number of the hash function. (0..3)
+     * @return The bit offset of the counter in the word, each hash function uses a different quarter.
+     */
+    private static int counterOffset(final int hash, final int i) {
+        return ((i << 2) + ((hash >>> (i << 3)) & 3)) << 2;
+    }
+
+    private static int spread(final int hashCode) {
+        final int h = hashCode * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int ceilingPowerOfTwo(final int value) {
+        return 1 << (32 - Integer.numberOfLeadingZeros(value - 1));
+    }
+
+}
@@ -0,0 +1,406 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hibernate.cache.spi.CacheKey;
+
+/**
+ * {@link CacheStore} of entity regions specialized for <code>Long</code> identifiers.
+ * <p>
+ * The entries are stored in an open addressing (linear probing) hash table indexed
+ * by the primitive value of the identifier, so a lookup doesn't allocate, doesn't
+ * call the <code>equals</code> of the {@link CacheKey} and doesn't follow entry objects.
+ * The table has a fixed size (twice the maximum number of entries), it is never resized.
+ * The entries are evicted by the CLOCK (second chance) algorithm.
+ * <p>
+ * The keys which are not {@link CacheKey}s of <code>Long</code> identifiers, or which
+ * belong to another entity than the first key stored (regions shared by several entities),
+ * are stored in a generic fallback store.
+ * <p>
+ * The writes are serialized by a lock. The reads are lock free, they are validated
+ * by a sequence number incremented before and after every modification and retried
+ * if the table has been modified meanwhile.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class LongKeyedCacheStore implements CacheStore<Object, Object> {
+
+    private final int maximumSize;
+
+    private final int mask;
+
+    /** The identifiers. */
+    private final AtomicLongArray ids;
+
+    /** The values, <tt>null</tt> marks the free slots. */
+    private final AtomicReferenceArray<Object> values;
+
+    /** The original keys, used only by the {@link #toMap()}. Guarded by the <code>writeLock</code>. */
+    private final Object[] keys;
+
+    /** The reference bits of the CLOCK algorithm. Racy, it is only a hint. */
+    private final byte[] referenced;
+
+    /** The store of the keys not handled by the table. */
+    private final CacheStore<Object, Object> fallback;
+
+    /** Guards the modifications of the table. */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /** Odd while the table is being modified. */
+    private volatile int sequence;
+
+    /** The name of the entity the table belongs to. Set by the first put. */
+    private volatile String entityName;
+
+    /** The number of entries in the table. Guarded by the <code>writeLock</code>. */
+    private int size;
+
+    /** The hand of the CLOCK. Guarded by the <code>writeLock</code>. */
+    private int hand;
+
+    private final AtomicLong hitCount      = new AtomicLong();
+    private final AtomicLong missCount     = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maximumSize The maximum number of entries in the table. (Positive)
+     * @param fallback The store of the keys not handled by the table. (NonNull)
+     */
+    public LongKeyedCacheStore(final int maximumSize, final CacheStore<Object, Object> fallback) {
+        if (maximumSize <= 0 || maximumSize > (1 << 29)) {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        final int capacity = Integer.highestOneBit(maximumSize * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.ids = new AtomicLongArray(capacity);
+        this.values = new AtomicReferenceArray<Object>(capacity);
+        this.keys = new Object[capacity];
+        this.referenced = new byte[capacity];
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Object get(final Object key) {
+        if (!isHandled(key)) {
+            return fallback.get(key);
+        }
+        final long id = idOf(key);
+        while (true) {
+            final int seq = sequence;
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            final int slot = find(id);
+            final Object value = slot < 0 ? null : values.get(slot);
+            if (sequence == seq) {
+                if (value == null) {
+                    missCount.incrementAndGet();
+                } else {
+                    referenced[slot] = 1;
+                    hitCount.incrementAndGet();
+                }
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public Object peek(final Object key) {
+        if (!isHandled(key)) {
+            return fallback.peek(key);
+        }
+        final long id = idOf(key);
+        while (true) {
+            final int seq = sequence;
+            if ((seq & 1) == 0) {
+                final int slot = find(id);
+                final Object value = slot < 0 ? null : values.get(slot);
+                if (sequence == seq) {
+                    return value;
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (!isHandled(key)) {
+            return fallback.containsKey(key);
+        }
+        final long id = idOf(key);
+        while (true) {
+            final int seq = sequence;
+            if ((seq & 1) == 0) {
+                final boolean found = find(id) >= 0;
+                if (sequence == seq) {
+                    return found;
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public void put(final Object key, final Object value) {
+        if (value == null) {
+            throw new NullPointerException("The value can't be null.");
+        }
+        if (entityName == null && isLongKey(key)) {
+            claim(((CacheKey) key).getEntityOrRoleName());
+        }
+        if (!isHandled(key)) {
+            fallback.put(key, value);
+            return;
+        }
+        final long id = idOf(key);
+        writeLock.lock();
+        try {
+            sequence++;
+            try {
+                int slot = find(id);
+                if (slot < 0) {
+                    if (size >= maximumSize) {
+                        evictOne();
+                    }
+                    slot = freeSlot(id);
+                    ids.set(slot, id);
+                    size++;
+                }
+                keys[slot] = key;
+                values.set(slot, value);
+            } finally {
+                sequence++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(final Object key) {
+        if (!isHandled(key)) {
+            fallback.remove(key);
+            return;
+        }
+        final long id = idOf(key);
+        writeLock.lock();
+        try {
+            final int slot = find(id);
+            if (slot >= 0) {
+                sequence++;
+                try {
+                    delete(slot);
+                } finally {
+                    sequence++;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        writeLock.lock();
+        try {
+            sequence++;
+            try {
+                for (int i = 0; i <= mask; i++) {
+                    values.set(i, null);
+                    keys[i] = null;
+                    referenced[i] = 0;
+                }
+                size = 0;
+                hand = 0;
+            } finally {
+                sequence++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        fallback.clear();
+    }
+
+    @Override
+    public long size() {
+        writeLock.lock();
+        try {
+            return size + fallback.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Map<Object, Object> toMap() {
+        final Map<Object, Object> map = new HashMap<Object, Object>(fallback.toMap());
+        writeLock.lock();
+        try {
+            for (int i = 0; i <= mask; i++) {
+                final Object value = values.get(i);
+                if (value != null) {
+                    map.put(keys[i], value);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return map;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private synchronized void claim(final String name) {
+        if (entityName == null) {
+            entityName = name;
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the key is stored in the table.
+     */
+    private boolean isHandled(final Object key) {
+        final String name = entityName;
+        return name != null && isLongKey(key) && name.equals(((CacheKey) key).getEntityOrRoleName());
+    }
+
+    private static boolean isLongKey(final Object key) {
+        return key instanceof CacheKey && ((CacheKey) key).getKey() instanceof Long;
+    }
+
+    private static long idOf(final Object key) {
+        final Serializable id = ((CacheKey) key).getKey();
+        return ((Long) id).longValue();
+    }
+
+    private static int hash(final long id) {
+        final long h = id * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return The slot of the identifier or <tt>-1</tt>.
+     */
+    private int find(final long id) {
+        int slot = hash(id) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            if (values.get(slot) == null) {
+                return -1;
+            }
+            if (ids.get(slot) == id) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The first free slot in the probe sequence of the identifier. Requires the write lock.
+     */
+    private int freeSlot(final long id) {
+        int slot = hash(id) & mask;
+        while (values.get(slot) != null) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Evicts an entry chosen by the CLOCK algorithm. Requires the write lock.
+     */
+    private void evictOne() {
+        while (true) {
+            final int slot = hand;
+            hand = (hand + 1) & mask;
+            if (values.get(slot) != null) {
+                if (referenced[slot] != 0) {
+                    referenced[slot] = 0;
+                } else {
+                    delete(slot);
+                    evictionCount.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the entry and shifts back the following entries of the cluster,
+     * so no tombstone is needed. Requires the write lock.
+     */
+    private void delete(final int slot) {
+        int free = slot;
+        int next = (slot + 1) & mask;
+        while (values.get(next) != null) {
+            final int home = hash(ids.get(next)) & mask;
+            /* The entry can be moved to the free slot if its home is not between the free slot and its position. */
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                ids.set(free, ids.get(next));
+                values.set(free, values.get(next));
+                keys[free] = keys[next];
+                referenced[free] = referenced[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values.set(free, null);
+        keys[free] = null;
+        referenced[free] = 0;
+        size--;
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A heap budget in bytes shared by the on-heap regions.
+ * <p>
+ * Every region gets a {@link TinyLfuCache} weighted by the {@link SizeEstimator}, the
+ * capacity of the caches is their allocation from the budget. The budget is split evenly
+ * between the regions when they are created, then it is periodically moved from the regions
+ * whose bytes earn few hits to the regions which are full and still miss:
+ * <ul>
+ * <li>The score of a region is the number of its hits since the last rebalance per byte of its entries,
+ *     smoothed over the previous rebalances.</li>
+ * <li>The receiver is the region with the highest score among the full regions with misses.</li>
+ * <li>The donor is the region with the most unused allocation or, if every region is full,
+ *     the region with the lowest score, which must be lower than the score of the receiver.</li>
+ * <li>A step of 5% of the budget is moved at most, and no region goes below its minimum
+ *     share (5% of the even share).</li>
+ * </ul>
+ * The rebalance runs on the writing thread after every {@value #REBALANCE_INTERVAL} writes,
+ * it is skipped if another thread is already rebalancing.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class MemoryBudget {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(MemoryBudget.class);
+
+    /** The number of writes between two rebalances. */
+    static final int REBALANCE_INTERVAL = 256;
+
+    /** The maximum part of the budget moved by a rebalance: 1/20 = 5%. */
+    private static final int STEP_DIVISOR = 20;
+
+    /** The minimum allocation of a region is this part of the even share: 1/20 = 5%. */
+    private static final int MINIMUM_DIVISOR = 20;
+
+    /** A region is full if this part of its allocation is used. */
+    private static final double FULL_RATIO = 0.9;
+
+    /** The weight of the last period in the smoothed score. */
+    private static final double SCORE_SMOOTHING = 0.5;
+
+    /** The budget in bytes. */
+    private final long maxBytes;
+
+    /** The regions by their names in creation order. Guarded by the <code>lock</code>. */
+    private final Map<String, Participant> participants = new LinkedHashMap<String, Participant>();
+
+    /** Guards the allocations. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final AtomicLong rebalanceCount = new AtomicLong();
+
+    /** Weighs the entries by the {@link SizeEstimator} and triggers the periodical rebalance. */
+    private final Weigher<Object, Object> weigher = new Weigher<Object, Object>() {
+        @Override
+        public int weigh(final Object key, final Object value) {
+            if (writeCount.incrementAndGet() % REBALANCE_INTERVAL == 0 && lock.tryLock()) {
+                try {
+                    rebalance();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return SizeEstimator.weightOf(key, value);
+        }
+    };
+
+    /**
+     * @param maxBytes The budget in bytes. (Positive)
+     */
+    public MemoryBudget(final long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The memory budget has to be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates the cache of a region and splits the budget evenly between the regions.
+     *
+     * @param regionName The name of the region. (NonNull)
+     * @param expectedEntries The expected number of entries of the region. (Positive)
+     * @return The cache of the region sharing the budget. (NonNull)
+     */
+    public TinyLfuCache<Object, Object> createCache(final String regionName, final long expectedEntries) {
+        lock.lock();
+        try {
+            final long share = Math.max(1, maxBytes / (participants.size() + 1));
+            final TinyLfuCache<Object, Object> cache = new TinyLfuCache<Object, Object>(share, weigher, expectedEntries);
+            participants.put(regionName, new Participant(regionName, cache));
+            for (final Participant participant : participants.values()) {
+                participant.setAllocation(share);
+            }
+            LOG.debug("Region " + regionName + " joined the memory budget, " + share + " bytes per region.");
+            return cache;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The budget in bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param regionName The name of the region. (NonNull)
+     * @return The bytes allocated to the region or <code>-1</code> if the region doesn't share the budget.
+     */
+    public long getAllocation(final String regionName) {
+        lock.lock();
+        try {
+            final Participant participant = participants.get(regionName);
+            return participant == null ? -1 : participant.allocation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The allocations of the regions by their names. (NonNull)
+     */
+    public Map<String, Long> getAllocations() {
+        lock.lock();
+        try {
+            final Map<String, Long> allocations = new LinkedHashMap<String, Long>();
+            for (final Participant participant : participants.values()) {
+                allocations.put(participant.regionName, Long.valueOf(participant.allocation));
+            }
+            return Collections.unmodifiableMap(allocations);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The estimated bytes used by the entries of the regions.
+     */
+    public long getUsedBytes() {
+        lock.lock();
+        try {
+            long used = 0;
+            for (final Participant participant : participants.values()) {
+                used += participant.cache.getWeight();
+            }
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of the rebalances which moved allocation between the regions.
+     */
+    public long getRebalanceCount() {
+        return rebalanceCount.get();
+    }
+
+    /**
+     * Moves allocation from the donor to the receiver region, if there are such regions. Requires the <code>lock</code>.
+     */
+    void rebalance() {
+        if (participants.size() < 2) {
+            return;
+        }
+        Participant receiver = null;
+        for (final Participant participant : participants.values()) {
+            participant.sample();
+            if (participant.wantsMore && (receiver == null || participant.score > receiver.score)) {
+                receiver = participant;
+            }
+        }
+        if (receiver == null) {
+            return;
+        }
+
+        final long minimum = Math.max(1, maxBytes / participants.size() / MINIMUM_DIVISOR);
+        Participant slackDonor = null;
+        Participant scoreDonor = null;
+        for (final Participant participant : participants.values()) {
+            if (participant == receiver || participant.allocation <= minimum) {
+                continue;
+            }
+            if (slackDonor == null || participant.unused() > slackDonor.unused()) {
+                slackDonor = participant;
+            }
+            if (participant.score < receiver.score && (scoreDonor == null || participant.score < scoreDonor.score)) {
+                scoreDonor = participant;
+            }
+        }
+
+        final long step = Math.max(1, maxBytes / STEP_DIVISOR);
+        final Participant donor;
+        long amount;
+        if (slackDonor != null && slackDonor.unused() > 0) {
+            donor = slackDonor;
+            amount = Math.min(step, slackDonor.unused());
+        } else if (scoreDonor != null) {
+            donor = scoreDonor;
+            amount = step;
+        } else {
+            return;
+        }
+        amount = Math.min(amount, donor.allocation - minimum);
+        if (amount <= 0) {
+            return;
+        }
+        donor.setAllocation(donor.allocation - amount);
+        receiver.setAllocation(receiver.allocation + amount);
+        rebalanceCount.incrementAndGet();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Moved " + amount + " bytes from region " + donor.regionName + " to region " + receiver.regionName + ".");
+        }
+    }
+
+    /**
+     * A region sharing the budget. Guarded by the <code>lock</code> of the budget.
+     */
+    private static final class Participant {
+
+        final String regionName;
+
+        final TinyLfuCache<Object, Object> cache;
+
+        long allocation;
+
+        /** The smoothed hits per byte. */
+        double score;
+
+        /** <code>true</code> if the region was full and missed in the last period. */
+        boolean wantsMore;
+
+        private long lastHits;
+
+        private long lastMisses;
+
+        Participant(final String regionName, final TinyLfuCache<Object, Object> cache) {
+            this.regionName = regionName;
+            this.cache = cache;
+        }
+
+        void setAllocation(final long allocation) {
+            this.allocation = allocation;
+            cache.setMaximumWeight(allocation);
+        }
+
+        long unused() {
+            return allocation - cache.getWeight();
+        }
+
+        /** Updates the score and the demand of the region by its statistics since the last sample. */
+        void sample() {
+            final long hits = cache.getHitCount();
+            final long misses = cache.getMissCount();
+            final long used = cache.getWeight();
+            final double density = (double) (hits - lastHits) / Math.max(1, used);
+            score = SCORE_SMOOTHING * density + (1 - SCORE_SMOOTHING) * score;
+            wantsMore = misses > lastMisses && used >= allocation * FULL_RATIO;
+            lastHits = hits;
+            lastMisses = misses;
+        }
+    }
+
+}
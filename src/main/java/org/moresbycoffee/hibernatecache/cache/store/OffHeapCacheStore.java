@@ -0,0 +1,374 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.moresbycoffee.hibernatecache.cache.codec.CompactCodec;
+import org.moresbycoffee.hibernatecache.cache.codec.EntryCodec;
+
+/**
+ * {@link CacheStore} keeping the encoded values in direct (off-heap) memory.
+ * <p>
+ * The memory is split into equal sized segments used as a circular log.
+ * The values are appended to the current segment. When it is full the next
+ * segment is recycled: the entries in it are evicted and the segment is reused.
+ * Updated and removed values are reclaimed when their segment is recycled.
+ * The entries read from the segments close to the recycling are appended again
+ * to the current segment, so the frequently read entries are not evicted.
+ * <p>
+ * Only the index (key to address map) and the keys of the segments are kept on the heap.
+ * The values are encoded by an {@link EntryCodec} and decoded on every hit.
+ * <p>
+ * The writes are serialized by a lock, the reads are lock free. A reader validates
+ * the generation of the segment before and after copying the bytes, so it never
+ * returns the content of a recycled segment.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class OffHeapCacheStore implements CacheStore<Object, Object> {
+
+    /** The size of the length prefix of the entries. */
+    private static final int HEADER_SIZE = 4;
+
+    /** The maximum number of segments, the segment index is stored on 16 bits. */
+    private static final int MAX_SEGMENTS = 0xffff;
+
+    private final int segmentSize;
+
+    private final EntryCodec codec;
+
+    private final Segment[] segments;
+
+    /** The address of the entries. */
+    private final ConcurrentHashMap<Object, Long> index = new ConcurrentHashMap<Object, Long>();
+
+    /** Guards the writing of the segments. */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /** The segment currently written. Guarded by the <code>writeLock</code>. */
+    private int current;
+
+    /** The next write position in the current segment. Guarded by the <code>writeLock</code>. */
+    private int position;
+
+    private final AtomicLong hitCount      = new AtomicLong();
+    private final AtomicLong missCount     = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Creates a store encoding the values by a {@link CompactCodec} not bound to a metamodel.
+     *
+     * @param capacity The maximum number of bytes allocated. (Positive)
+     * @param segmentSize The size of the segments in bytes. (Positive)
+     */
+    public OffHeapCacheStore(final long capacity, final int segmentSize) {
+        this(capacity, segmentSize, new CompactCodec());
+    }
+
+    /**
+     * @param capacity The maximum number of bytes allocated. (Positive)
+     * @param segmentSize The size of the segments in bytes. (Positive)
+     * @param codec The codec of the values. (NonNull)
+     */
+    public OffHeapCacheStore(final long capacity, final int segmentSize, final EntryCodec codec) {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Too small segment size: " + segmentSize);
+        }
+        final long segmentCount = capacity / segmentSize;
+        if (segmentCount < 2 || segmentCount > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("The capacity (" + capacity + ") has to be between 2 and " + MAX_SEGMENTS + " segments of " + segmentSize + " bytes.");
+        }
+        this.segmentSize = segmentSize;
+        this.codec = codec;
+        this.segments = new Segment[(int) segmentCount];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+        segments[0].allocate(segmentSize);
+    }
+
+    @Override
+    public Object get(final Object key) {
+        final Long address = index.get(key);
+        if (address != null) {
+            final byte[] bytes = read(address.longValue());
+            if (bytes != null) {
+                hitCount.incrementAndGet();
+                if (isCloseToRecycling(segmentOf(address.longValue()))) {
+                    rescue(key, address, bytes);
+                }
+                return codec.decode(bytes);
+            }
+            index.remove(key, address);
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Reads the value without rescuing it from a segment close to recycling.
+     */
+    @Override
+    public Object peek(final Object key) {
+        final Long address = index.get(key);
+        final byte[] bytes = address == null ? null : read(address.longValue());
+        return bytes == null ? null : codec.decode(bytes);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Encodes the value and appends it to the log.
+     * The values bigger than a segment are not stored.
+     */
+    @Override
+    public void put(final Object key, final Object value) {
+        final byte[] bytes = codec.encode(value);
+        if (bytes.length + HEADER_SIZE > segmentSize) {
+            index.remove(key);
+            return;
+        }
+        writeLock.lock();
+        try {
+            index.put(key, Long.valueOf(append(key, bytes)));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the key from the index, the space is reclaimed when the segment is recycled.
+     */
+    @Override
+    public void remove(final Object key) {
+        index.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        writeLock.lock();
+        try {
+            index.clear();
+            for (final Segment segment : segments) {
+                segment.generation++;
+                segment.keys.clear();
+            }
+            current = 0;
+            position = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        return index.size();
+    }
+
+    @Override
+    public Map<Object, Object> toMap() {
+        final Map<Object, Object> map = new HashMap<Object, Object>();
+        for (final Object key : index.keySet()) {
+            final Object value = peek(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return The number of bytes allocated in direct memory.
+     */
+    public long getAllocatedBytes() {
+        long allocated = 0;
+        for (final Segment segment : segments) {
+            if (segment.buffer != null) {
+                allocated += segmentSize;
+            }
+        }
+        return allocated;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Appends the entry to the log. Requires the write lock.
+     * @return The address of the entry.
+     */
+    private long append(final Object key, final byte[] bytes) {
+        if (position + HEADER_SIZE + bytes.length > segmentSize) {
+            current = (current + 1) % segments.length;
+            recycle(current);
+            position = 0;
+        }
+        final Segment segment = segments[current];
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.putInt(position, bytes.length);
+        buffer.position(position + HEADER_SIZE);
+        buffer.put(bytes);
+        segment.keys.add(key);
+
+        final long address = address(current, segment.generation, position);
+        position += HEADER_SIZE + bytes.length;
+        return address;
+    }
+
+    /**
+     * Evicts the entries of the segment and prepares it for writing. Requires the write lock.
+     */
+    private void recycle(final int segmentIndex) {
+        final Segment segment = segments[segmentIndex];
+        if (segment.buffer == null) {
+            segment.allocate(segmentSize);
+            return;
+        }
+        final int generation = segment.generation;
+        /* The readers of the old entries will find the generation changed. */
+        segment.generation = generation + 1;
+        for (final Object key : segment.keys) {
+            final Long address = index.get(key);
+            if (address != null && segmentOf(address.longValue()) == segmentIndex && generationOf(address.longValue()) == (generation & 0xffff)) {
+                if (index.remove(key, address)) {
+                    evictionCount.incrementAndGet();
+                }
+            }
+        }
+        segment.keys.clear();
+    }
+
+    /**
+     * @return The content of the entry or <tt>null</tt> if its segment has been recycled.
+     */
+    private byte[] read(final long address) {
+        final Segment segment = segments[segmentOf(address)];
+        final int generation = generationOf(address);
+        final ByteBuffer buffer = segment.buffer;
+        if (buffer == null || (segment.generation & 0xffff) != generation) {
+            return null;
+        }
+        final ByteBuffer view = buffer.duplicate();
+        final int offset = offsetOf(address);
+        final int length = view.getInt(offset);
+        if (length < 0 || offset + HEADER_SIZE + length > segmentSize) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        view.position(offset + HEADER_SIZE);
+        view.get(bytes);
+        if ((segment.generation & 0xffff) != generation) {
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return <tt>true</tt> if the segment is in the quarter of the log which will be recycled next.
+     */
+    private boolean isCloseToRecycling(final int segmentIndex) {
+        final int age = (current - segmentIndex + segments.length) % segments.length;
+        return age >= segments.length - Math.max(1, segments.length / 4);
+    }
+
+    /**
+     * Appends the entry again, so it won't be evicted with its segment.
+     * It is skipped if the write lock is held by another thread. The new address is published only if the
+     * key still maps to the old one: the entry may have been removed concurrently (without the write lock),
+     * then the appended bytes are left as garbage.
+     */
+    private void rescue(final Object key, final Long address, final byte[] bytes) {
+        if (writeLock.tryLock()) {
+            try {
+                index.replace(key, address, Long.valueOf(append(key, bytes)));
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private static long address(final int segmentIndex, final int generation, final int offset) {
+        return ((long) segmentIndex << 48) | ((long) (generation & 0xffff) << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int segmentOf(final long address) {
+        return (int) (address >>> 48);
+    }
+
+    private static int generationOf(final long address) {
+        return (int) (address >>> 32) & 0xffff;
+    }
+
+    private static int offsetOf(final long address) {
+        return (int) address;
+    }
+
+    /**
+     * A segment of the log.
+     */
+    private static final class Segment {
+
+        /** The direct memory of the segment, <tt>null</tt> until first used. */
+        volatile ByteBuffer buffer;
+
+        /** Incremented every time the segment is recycled. */
+        volatile int generation;
+
+        /** The keys written into the segment. Guarded by the write lock. */
+        final List<Object> keys = new ArrayList<Object>();
+
+        void allocate(final int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lossy, lock-free buffer of the reads of a cache. The threads are spread over striped ring buffers by their
+ * identifiers; a read takes a slot of the ring of its stripe by a compare-and-set of the tail of the ring, it is
+ * dropped if the ring is full or another thread has taken the slot concurrently. The buffer is drained by a
+ * single thread at a time (the holder of the eviction lock of the cache).
+ *
+ * @param <E> The type of the elements.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class ReadBuffer<E> {
+
+    /**
+     * Receives the drained elements.
+     *
+     * @param <E> The type of the elements.
+     */
+    interface Consumer<E> {
+        /**
+         * @param element The drained element. (NonNull)
+         */
+        void accept(E element);
+    }
+
+    /** The number of the elements of a ring. (Power of two) */
+    static final int RING_SIZE = 32;
+
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    /** The number of the rings. (Power of two) */
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+    /** The distance of the counters of the rings, so the counters of the rings are in different cache lines. */
+    private static final int PADDING = 8;
+
+    private final AtomicReferenceArray<E> elements = new AtomicReferenceArray<E>(STRIPES * RING_SIZE);
+
+    /** The number of the elements written into the rings. */
+    private final AtomicLongArray tails = new AtomicLongArray(STRIPES * PADDING);
+
+    /** The number of the elements drained from the rings. Written by the draining thread only. */
+    private final AtomicLongArray heads = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Adds the element to the ring of the current thread unless the ring is full or contended.
+     *
+     * @param element The element. (NonNull)
+     * @return The number of the elements pending in the ring of the thread, {@link #RING_SIZE} if the element has been dropped.
+     */
+    int offer(final E element) {
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        final long head = heads.get(stripe * PADDING);
+        final long tail = tails.get(stripe * PADDING);
+        final long pending = tail - head;
+        if (pending >= RING_SIZE || !tails.compareAndSet(stripe * PADDING, tail, tail + 1)) {
+            return RING_SIZE;
+        }
+        elements.lazySet(stripe * RING_SIZE + (int) (tail & RING_MASK), element);
+        return (int) pending + 1;
+    }
+
+    /**
+     * Drains the elements of every ring. A slot taken but not yet written is left for the next drain.
+     * It is called by a single thread at a time.
+     *
+     * @param consumer The receiver of the elements, <tt>null</tt> if they are discarded.
+     */
+    void drain(final Consumer<? super E> consumer) {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            long head = heads.get(stripe * PADDING);
+            final long tail = tails.get(stripe * PADDING);
+            while (head < tail) {
+                final int index = stripe * RING_SIZE + (int) (head & RING_MASK);
+                final E element = elements.get(index);
+                if (element == null) {
+                    break;
+                }
+                elements.lazySet(index, null);
+                head++;
+                if (consumer != null) {
+                    consumer.accept(element);
+                }
+            }
+            heads.lazySet(stripe * PADDING, head);
+        }
+    }
+
+}
@@ -0,0 +1,579 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.hibernate.cache.CacheException;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactCodec;
+import org.moresbycoffee.hibernatecache.cache.codec.EntryCodec;
+
+/**
+ * {@link CacheStore} keeping the serialized entries in a memory mapped file,
+ * shared by every process of the host opening the same file.
+ * <p>
+ * The file contains a header, an open addressing hash index and a data area:
+ * <pre>
+ * header (64 bytes): magic number, version, number of slots, size of the data area,
+ *                    write position, number of used slots, number of entries
+ * slot   (32 bytes): sequence, hash, offset, key length, value length, checksum
+ * data             : the encoded keys and values appended one after the other
+ * </pre>
+ * The keys and values are encoded by an {@link EntryCodec}. The keys are compared and hashed by their encoded form, so every process finds an entry in the same slot.
+ * The data area is used as a log: the updated and removed entries are reclaimed only when
+ * it is full (or the index is loaded over 75%), then the whole store is cleared.
+ * <p>
+ * The reads are lock free. Every slot has a sequence number which is odd while the slot is written.
+ * A reader validates the sequence number before and after copying the entry and the checksum of the copied bytes,
+ * so it never returns a torn entry, even if the entry has been overwritten by another process meanwhile.
+ * The writes are serialized by a lock of the file (and a lock in the process, the file locks are held by the JVM).
+ * <p>
+ * The entries are shared by the processes, so only the
+ * {@link org.hibernate.cache.spi.access.AccessType#READ_ONLY read-only} and
+ * {@link org.hibernate.cache.spi.access.AccessType#NONSTRICT_READ_WRITE nonstrict read-write} regions can use it:
+ * a nonstrict region removes the updated entries, so the update is visible to every process.
+ * The soft locks of the read-write regions belong to the process holding them.
+ * <p>
+ * The store is {@link #close() closed} when the region is destroyed, the entries are kept for the other processes.
+ * A closed store throws an {@link IllegalStateException} instead of reading or writing the file.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class SharedMemoryCacheStore implements CacheStore<Object, Object>, Closeable {
+
+    /** "HCSM" */
+    private static final int MAGIC = 0x4843534d;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 32;
+
+    /* The offsets of the fields of the header. */
+    private static final int MAGIC_OFFSET          = 0;
+    private static final int VERSION_OFFSET        = 4;
+    private static final int SLOT_COUNT_OFFSET     = 8;
+    private static final int DATA_SIZE_OFFSET      = 16;
+    private static final int WRITE_POSITION_OFFSET = 24;
+    private static final int USED_SLOTS_OFFSET     = 32;
+    private static final int ENTRY_COUNT_OFFSET    = 40;
+
+    /* The offsets of the fields of the slots. */
+    private static final int SEQUENCE_OFFSET     = 0;
+    private static final int HASH_OFFSET         = 4;
+    private static final int OFFSET_OFFSET       = 8;
+    private static final int KEY_LENGTH_OFFSET   = 16;
+    private static final int VALUE_LENGTH_OFFSET = 20;
+    private static final int CHECKSUM_OFFSET     = 24;
+
+    /** The offset of the removed entries, the slot is kept to continue the probing. */
+    private static final long REMOVED = -1;
+
+    /** The number of attempts of a reader to copy an entry which is being written. */
+    private static final int READ_ATTEMPTS = 16;
+
+    /** The locks of the files opened by this JVM. */
+    private static final ConcurrentHashMap<String, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<String, ReentrantLock>();
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final ReentrantLock processLock;
+
+    private final EntryCodec codec;
+
+    private final int slotCount;
+
+    private final long dataSize;
+
+    private final int dataOffset;
+
+    /** The lock of the file held by the writer. Guarded by the <code>processLock</code>. */
+    private FileLock currentFileLock;
+
+    /** Set under the <code>processLock</code> when the file is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Opens the store encoding the entries by a {@link CompactCodec} not bound to a metamodel.
+     *
+     * @param path The shared file. (NonNull)
+     * @param maxEntries The expected maximum number of entries, the index has twice as many slots. (Positive)
+     * @param dataSize The size of the data area in bytes. (Positive)
+     * @throws CacheException If the file can't be opened or it is not a store.
+     */
+    public SharedMemoryCacheStore(final File path, final long maxEntries, final long dataSize) {
+        this(path, maxEntries, dataSize, new CompactCodec());
+    }
+
+    /**
+     * Opens the file or creates it if it doesn't exist. The size of an existing file is
+     * defined by the process which has created it, the parameters are ignored.
+     *
+     * @param path The shared file. (NonNull)
+     * @param maxEntries The expected maximum number of entries, the index has twice as many slots. (Positive)
+     * @param dataSize The size of the data area in bytes. (Positive)
+     * @param codec The codec of the keys and values, the processes have to use the same codec. (NonNull)
+     * @throws CacheException If the file can't be opened or it is not a store.
+     */
+    public SharedMemoryCacheStore(final File path, final long maxEntries, final long dataSize, final EntryCodec codec) {
+        this.codec = codec;
+        try {
+            final File parent = path.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new CacheException("The directory of the shared store can't be created: " + parent);
+            }
+            this.processLock = processLock(path.getCanonicalPath());
+            this.file = new RandomAccessFile(path, "rw");
+            this.channel = file.getChannel();
+
+            processLock.lock();
+            try {
+                final FileLock lock = channel.lock(0, HEADER_SIZE, false);
+                try {
+                    if (file.length() < HEADER_SIZE || readHeaderInt(MAGIC_OFFSET) != MAGIC) {
+                        initialize(slotCountFor(maxEntries), dataSize);
+                    } else if (readHeaderInt(VERSION_OFFSET) != VERSION) {
+                        throw new CacheException("Unsupported version of the shared store " + path + ": " + readHeaderInt(VERSION_OFFSET));
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                processLock.unlock();
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            this.slotCount = header.getInt(SLOT_COUNT_OFFSET);
+            this.dataSize = header.getLong(DATA_SIZE_OFFSET);
+            this.dataOffset = HEADER_SIZE + slotCount * SLOT_SIZE;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset + this.dataSize);
+        } catch (final IOException e) {
+            throw new CacheException("The shared store can't be opened: " + path, e);
+        }
+    }
+
+    @Override
+    public Object get(final Object key) {
+        checkOpen();
+        final byte[] keyBytes = codec.encode(key);
+        final byte[] valueBytes = read(keyBytes, hash(keyBytes));
+        return valueBytes == null ? null : codec.decode(valueBytes);
+    }
+
+    /**
+     * The shared store doesn't record the accesses, it is the same as {@link #get(Object)}.
+     */
+    @Override
+    public Object peek(final Object key) {
+        return get(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        checkOpen();
+        final byte[] keyBytes = codec.encode(key);
+        return read(keyBytes, hash(keyBytes)) != null;
+    }
+
+    /**
+     * Appends the entry to the data area, the entries bigger than the data area are not stored.
+     */
+    @Override
+    public void put(final Object key, final Object value) {
+        final byte[] keyBytes = codec.encode(key);
+        final byte[] valueBytes = codec.encode(value);
+        final int hash = hash(keyBytes);
+        lock();
+        try {
+            final long size = (long) keyBytes.length + valueBytes.length;
+            if (size > dataSize) {
+                remove(keyBytes, hash);
+                return;
+            }
+            int slot = find(keyBytes, hash);
+            if (buffer.getLong(WRITE_POSITION_OFFSET) + size > dataSize
+                    || slot < 0 && buffer.getLong(USED_SLOTS_OFFSET) + 1 > slotCount * 3L / 4) {
+                clearLocked();
+                slot = -1;
+            }
+            if (slot < 0) {
+                slot = freeSlot(hash);
+                if (isEmpty(slot)) {
+                    buffer.putLong(USED_SLOTS_OFFSET, buffer.getLong(USED_SLOTS_OFFSET) + 1);
+                }
+                buffer.putLong(ENTRY_COUNT_OFFSET, buffer.getLong(ENTRY_COUNT_OFFSET) + 1);
+            }
+
+            final long offset = buffer.getLong(WRITE_POSITION_OFFSET);
+            final ByteBuffer data = buffer.duplicate();
+            data.position((int) (dataOffset + offset));
+            data.put(keyBytes);
+            data.put(valueBytes);
+            buffer.putLong(WRITE_POSITION_OFFSET, offset + size);
+            writeSlot(slot, hash, offset, keyBytes.length, valueBytes.length, checksum(keyBytes, valueBytes));
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Marks the slot of the entry removed, the space is reclaimed when the store is cleared.
+     */
+    @Override
+    public void remove(final Object key) {
+        final byte[] keyBytes = codec.encode(key);
+        final int hash = hash(keyBytes);
+        lock();
+        try {
+            remove(keyBytes, hash);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Removes the entries of every process.
+     */
+    @Override
+    public void clear() {
+        lock();
+        try {
+            clearLocked();
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        checkOpen();
+        return buffer.getLong(ENTRY_COUNT_OFFSET);
+    }
+
+    @Override
+    public Map<Object, Object> toMap() {
+        checkOpen();
+        final Map<Object, Object> map = new HashMap<Object, Object>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            final byte[][] entry = readSlot(slot, null);
+            if (entry != null) {
+                map.put(codec.decode(entry[0]), codec.decode(entry[1]));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Flushes the mapped entries to the file and closes it, the entries are kept for the other processes.
+     * The mapping is released by the garbage collector, so a read racing the close still reads mapped memory.
+     * Closing a closed store has no effect.
+     */
+    @Override
+    public void close() {
+        processLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffer.force();
+            file.close();
+        } catch (final IOException e) {
+            throw new CacheException("The shared store can't be closed.", e);
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException If the store has been closed.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The shared store is closed.");
+        }
+    }
+
+    /**
+     * @return The value of the key or <tt>null</tt>.
+     */
+    private byte[] read(final byte[] keyBytes, final int hash) {
+        final int mask = slotCount - 1;
+        for (int i = 0, slot = hash & mask; i < slotCount; i++, slot = (slot + 1) & mask) {
+            final int slotHash = buffer.getInt(slotOffset(slot) + HASH_OFFSET);
+            if (slotHash == 0) {
+                return null;
+            }
+            if (slotHash == hash) {
+                final byte[][] entry = readSlot(slot, keyBytes);
+                if (entry != null) {
+                    return entry[1];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the entry of the slot validated by the sequence number and the checksum.
+     *
+     * @param keyBytes The expected key or <tt>null</tt> to read any key.
+     * @return The key and the value, or <tt>null</tt> if the slot is empty, removed, has a different key
+     *         or it couldn't be read consistently.
+     */
+    private byte[][] readSlot(final int slot, final byte[] keyBytes) {
+        final int slotOffset = slotOffset(slot);
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            final int sequence = buffer.getInt(slotOffset + SEQUENCE_OFFSET);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            final long offset = buffer.getLong(slotOffset + OFFSET_OFFSET);
+            final int keyLength = buffer.getInt(slotOffset + KEY_LENGTH_OFFSET);
+            final int valueLength = buffer.getInt(slotOffset + VALUE_LENGTH_OFFSET);
+            final long checksum = buffer.getLong(slotOffset + CHECKSUM_OFFSET);
+            if (buffer.getInt(slotOffset + HASH_OFFSET) == 0 || offset == REMOVED) {
+                return null;
+            }
+            if (offset < 0 || keyLength < 0 || valueLength < 0 || offset + keyLength + valueLength > dataSize
+                    || keyBytes != null && keyLength != keyBytes.length) {
+                if (buffer.getInt(slotOffset + SEQUENCE_OFFSET) == sequence) {
+                    return null;
+                }
+                continue;
+            }
+
+            final ByteBuffer data = buffer.duplicate();
+            data.position((int) (dataOffset + offset));
+            final byte[] key = new byte[keyLength];
+            data.get(key);
+            final byte[] value = new byte[valueLength];
+            data.get(value);
+
+            if (buffer.getInt(slotOffset + SEQUENCE_OFFSET) != sequence || checksum(key, value) != checksum) {
+                continue;
+            }
+            if (keyBytes != null && !Arrays.equals(key, keyBytes)) {
+                return null;
+            }
+            return new byte[][] { key, value };
+        }
+        return null;
+    }
+
+    /**
+     * @return The slot of the live entry of the key or <code>-1</code>. Requires the lock.
+     */
+    private int find(final byte[] keyBytes, final int hash) {
+        final int mask = slotCount - 1;
+        for (int i = 0, slot = hash & mask; i < slotCount; i++, slot = (slot + 1) & mask) {
+            final int slotOffset = slotOffset(slot);
+            final int slotHash = buffer.getInt(slotOffset + HASH_OFFSET);
+            if (slotHash == 0) {
+                return -1;
+            }
+            if (slotHash == hash && buffer.getLong(slotOffset + OFFSET_OFFSET) != REMOVED
+                    && buffer.getInt(slotOffset + KEY_LENGTH_OFFSET) == keyBytes.length) {
+                final byte[] key = new byte[keyBytes.length];
+                final ByteBuffer data = buffer.duplicate();
+                data.position((int) (dataOffset + buffer.getLong(slotOffset + OFFSET_OFFSET)));
+                data.get(key);
+                if (Arrays.equals(key, keyBytes)) {
+                    return slot;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The first empty or removed slot of the probe sequence. Requires the lock and a not full index.
+     */
+    private int freeSlot(final int hash) {
+        final int mask = slotCount - 1;
+        int slot = hash & mask;
+        while (!isEmpty(slot) && buffer.getLong(slotOffset(slot) + OFFSET_OFFSET) != REMOVED) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean isEmpty(final int slot) {
+        return buffer.getInt(slotOffset(slot) + HASH_OFFSET) == 0;
+    }
+
+    /** Requires the lock. */
+    private void remove(final byte[] keyBytes, final int hash) {
+        final int slot = find(keyBytes, hash);
+        if (slot >= 0) {
+            writeSlot(slot, hash, REMOVED, 0, 0, 0);
+            buffer.putLong(ENTRY_COUNT_OFFSET, buffer.getLong(ENTRY_COUNT_OFFSET) - 1);
+        }
+    }
+
+    /** Requires the lock. */
+    private void clearLocked() {
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (!isEmpty(slot)) {
+                writeSlot(slot, 0, 0, 0, 0, 0);
+            }
+        }
+        buffer.putLong(WRITE_POSITION_OFFSET, 0);
+        buffer.putLong(USED_SLOTS_OFFSET, 0);
+        buffer.putLong(ENTRY_COUNT_OFFSET, 0);
+    }
+
+    /**
+     * Writes the fields of the slot between two increments of its sequence number. Requires the lock.
+     */
+    private void writeSlot(final int slot, final int hash, final long offset, final int keyLength, final int valueLength, final long checksum) {
+        final int slotOffset = slotOffset(slot);
+        final int sequence = buffer.getInt(slotOffset + SEQUENCE_OFFSET);
+        buffer.putInt(slotOffset + SEQUENCE_OFFSET, sequence + 1);
+        buffer.putLong(slotOffset + OFFSET_OFFSET, offset);
+        buffer.putInt(slotOffset + KEY_LENGTH_OFFSET, keyLength);
+        buffer.putInt(slotOffset + VALUE_LENGTH_OFFSET, valueLength);
+        buffer.putLong(slotOffset + CHECKSUM_OFFSET, checksum);
+        buffer.putInt(slotOffset + HASH_OFFSET, hash);
+        buffer.putInt(slotOffset + SEQUENCE_OFFSET, sequence + 2);
+    }
+
+    /**
+     * Creates the header and the empty index. Requires the lock.
+     */
+    private void initialize(final int slots, final long size) throws IOException {
+        final long length = HEADER_SIZE + (long) slots * SLOT_SIZE + size;
+        if (length > Integer.MAX_VALUE) {
+            throw new CacheException("The shared store can't be bigger than 2GB: " + length);
+        }
+        file.setLength(0);
+        file.setLength(length);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC_OFFSET, MAGIC);
+        header.putInt(VERSION_OFFSET, VERSION);
+        header.putInt(SLOT_COUNT_OFFSET, slots);
+        header.putLong(DATA_SIZE_OFFSET, size);
+        channel.write(header, 0);
+        channel.force(true);
+    }
+
+    private int readHeaderInt(final int offset) throws IOException {
+        final ByteBuffer value = ByteBuffer.allocate(4);
+        channel.read(value, offset);
+        return value.getInt(0);
+    }
+
+    private void lock() {
+        processLock.lock();
+        final FileLock fileLock;
+        try {
+            checkOpen();
+            fileLock = channel.lock(0, HEADER_SIZE, false);
+        } catch (final IOException e) {
+            processLock.unlock();
+            throw new CacheException("The shared store can't be locked.", e);
+        } catch (final IllegalStateException e) {
+            processLock.unlock();
+            throw e;
+        }
+        currentFileLock = fileLock;
+    }
+
+    private void unlock() {
+        try {
+            currentFileLock.release();
+        } catch (final IOException e) {
+            throw new CacheException("The shared store can't be unlocked.", e);
+        } finally {
+            currentFileLock = null;
+            processLock.unlock();
+        }
+    }
+
+    private int slotOffset(final int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static ReentrantLock processLock(final String path) {
+        final ReentrantLock lock = new ReentrantLock();
+        final ReentrantLock existing = PROCESS_LOCKS.putIfAbsent(path, lock);
+        return existing != null ? existing : lock;
+    }
+
+    /**
+     * @return The power of two number of slots, twice the maximum number of entries.
+     */
+    private static int slotCountFor(final long maxEntries) {
+        int slots = 16;
+        while (slots < maxEntries * 2 && slots < (1 << 26)) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    /**
+     * @return The hash of the serialized key, never <code>0</code> which marks the empty slots.
+     */
+    private static int hash(final byte[] keyBytes) {
+        final int hash = Arrays.hashCode(keyBytes);
+        final int spread = hash ^ (hash >>> 16);
+        return spread == 0 ? 1 : spread;
+    }
+
+    private static long checksum(final byte[] key, final byte[] value) {
+        final CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+        return crc.getValue();
+    }
+
+}
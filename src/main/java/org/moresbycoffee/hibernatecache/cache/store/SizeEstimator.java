@@ -0,0 +1,257 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the heap used by the keys and values of the regions.
+ * <p>
+ * The common JDK classes are estimated by their content, the other classes of Hibernate's cache
+ * and of this project by their fields. The referred Hibernate types, persisters and other
+ * shared objects are counted only as references. The estimate is calculated for the 64 bit
+ * JVM with compressed references, it is accurate within a few tens of percents, which is enough
+ * to compare the regions.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class SizeEstimator {
+
+    /** The estimated size of the node and the hash table entry of a cached entry. */
+    public static final int ENTRY_OVERHEAD = 80;
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    /** The maximum depth of the object graph walked. */
+    private static final int MAX_DEPTH = 8;
+
+    /** The packages of the classes estimated by their fields. */
+    private static final String[] WALKED_PACKAGES = { "org.hibernate.cache.", "org.hibernate.engine.spi.", "org.moresbycoffee." };
+
+    /** The instance fields of the walked classes, <tt>null</tt> for the classes counted as references. */
+    private static final ConcurrentHashMap<Class<?>, ClassLayout> LAYOUTS = new ConcurrentHashMap<Class<?>, ClassLayout>();
+
+    /** Estimates the entries by their keys and values. */
+    public static final Weigher<Object, Object> WEIGHER = new Weigher<Object, Object>() {
+        @Override
+        public int weigh(final Object key, final Object value) {
+            return weightOf(key, value);
+        }
+    };
+
+    private SizeEstimator() {
+        /* Utility class. */
+    }
+
+    /**
+     * @param key The key of the entry. (NonNull)
+     * @param value The value of the entry. (NonNull)
+     * @return The estimated size of the entry including the overhead of the cache.
+     */
+    public static int weightOf(final Object key, final Object value) {
+        return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + estimate(key) + estimate(value));
+    }
+
+    /**
+     * @param object The object. (Nullable)
+     * @return The estimated size of the object and the objects referred by it in bytes.
+     */
+    public static long estimate(final Object object) {
+        return estimate(object, 0);
+    }
+
+    private static long estimate(final Object object, final int depth) {
+        if (object == null || depth > MAX_DEPTH) {
+            return 0;
+        }
+        if (object instanceof String) {
+            return align(OBJECT_HEADER + 12) + align(ARRAY_HEADER + 2L * ((String) object).length());
+        }
+        if (object instanceof Long || object instanceof Double || object instanceof Date) {
+            return 24;
+        }
+        if (object instanceof Number || object instanceof Boolean || object instanceof Character) {
+            return object instanceof BigDecimal || object instanceof BigInteger ? 64 : 16;
+        }
+        if (object instanceof UUID) {
+            return 32;
+        }
+        final Class<?> type = object.getClass();
+        if (type.isArray()) {
+            return estimateArray(object, type.getComponentType(), depth);
+        }
+        if (object instanceof Collection) {
+            long size = align(OBJECT_HEADER + 16) + align(ARRAY_HEADER + REFERENCE * ((Collection<?>) object).size());
+            if (!(object instanceof List)) {
+                /* The entries of the hash based collections. */
+                size += 32L * ((Collection<?>) object).size();
+            }
+            for (final Object element : (Collection<?>) object) {
+                size += estimate(element, depth + 1);
+            }
+            return size;
+        }
+        if (object instanceof Map) {
+            long size = align(OBJECT_HEADER + 32) + align(ARRAY_HEADER + REFERENCE * ((Map<?, ?>) object).size()) + 32L * ((Map<?, ?>) object).size();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                size += estimate(entry.getKey(), depth + 1) + estimate(entry.getValue(), depth + 1);
+            }
+            return size;
+        }
+        final ClassLayout layout = layoutOf(type);
+        if (layout == null) {
+            /* Shared or unknown object. */
+            return 0;
+        }
+        long size = layout.shallowSize;
+        for (final Field field : layout.references) {
+            try {
+                size += estimate(field.get(object), depth + 1);
+            } catch (final IllegalAccessException e) {
+                /* Counted as a reference. */
+            }
+        }
+        return size;
+    }
+
+    private static long estimateArray(final Object array, final Class<?> componentType, final int depth) {
+        final int length = Array.getLength(array);
+        if (componentType.isPrimitive()) {
+            return align(ARRAY_HEADER + (long) length * primitiveSize(componentType));
+        }
+        long size = align(ARRAY_HEADER + (long) length * REFERENCE);
+        for (final Object element : (Object[]) array) {
+            size += estimate(element, depth + 1);
+        }
+        return size;
+    }
+
+    /**
+     * @return The layout of the class or <tt>null</tt> if it is counted only as a reference.
+     */
+    private static ClassLayout layoutOf(final Class<?> type) {
+        ClassLayout layout = LAYOUTS.get(type);
+        if (layout == null) {
+            layout = isWalked(type) ? new ClassLayout(type) : ClassLayout.REFERENCE_ONLY;
+            LAYOUTS.putIfAbsent(type, layout);
+        }
+        return layout == ClassLayout.REFERENCE_ONLY ? null : layout;
+    }
+
+    private static boolean isWalked(final Class<?> type) {
+        for (final String prefix : WALKED_PACKAGES) {
+            if (type.getName().startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int primitiveSize(final Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(final long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * The fields of a class walked by the estimator.
+     */
+    private static final class ClassLayout {
+
+        static final ClassLayout REFERENCE_ONLY = new ClassLayout();
+
+        final long shallowSize;
+
+        /** The reference fields of the class and its superclasses. */
+        final Field[] references;
+
+        private ClassLayout() {
+            this.shallowSize = 0;
+            this.references = new Field[0];
+        }
+
+        ClassLayout(final Class<?> type) {
+            long size = OBJECT_HEADER;
+            final List<Field> fields = new ArrayList<Field>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (final Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    if (field.getType().isPrimitive()) {
+                        size += primitiveSize(field.getType());
+                    } else {
+                        size += REFERENCE;
+                        if (!isShared(field.getType())) {
+                            field.setAccessible(true);
+                            fields.add(field);
+                        }
+                    }
+                }
+            }
+            this.shallowSize = align(size);
+            this.references = fields.toArray(new Field[fields.size()]);
+        }
+
+        /**
+         * @return <tt>true</tt> for the types of Hibernate's mapping and the session factory, shared by the entries.
+         */
+        private static boolean isShared(final Class<?> type) {
+            final String name = type.getName();
+            return name.startsWith("org.hibernate.type.") || name.startsWith("org.hibernate.persister.")
+                   || name.startsWith("org.hibernate.transform.") || name.equals("org.hibernate.engine.spi.SessionFactoryImplementor");
+        }
+    }
+
+}
@@ -0,0 +1,563 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded concurrent cache with W-TinyLFU eviction policy.
+ * <p>
+ * The entries are stored in a {@link ConcurrentHashMap}, the reads are lock free: they are recorded in
+ * a lossy striped {@link ReadBuffer} by a compare-and-set and drained only if the eviction lock is free.
+ * The eviction policy splits the capacity to a small <i>window</i> LRU (1%)
+ * and a large <i>main</i> segmented LRU (the rest of the capacity, 80% of it <i>protected</i>,
+ * 20% <i>probation</i>). New entries are added to the window. The entries dropped
+ * out from the window have to compete with the least recently used entry of the
+ * probation segment and only the more frequently used one is kept.
+ * The frequencies are estimated by a {@link FrequencySketch}.
+ * <p>
+ * This way a one-off scan can't flush the frequently used entries out of the cache,
+ * while a recency biased access pattern still fits into the window.
+ * <p>
+ * The reads are recorded in a lossy buffer and replayed on the policy when the
+ * eviction lock is free, the writes are applied on the policy immediately.
+ * <p>
+ * By default every entry weighs one, so the capacity is the maximum number of entries.
+ * With a {@link Weigher} the capacity is the maximum total weight of the entries (e.g. bytes),
+ * it can be changed on the fly by {@link #setMaximumWeight(long)}.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class TinyLfuCache<K, V> implements CacheStore<K, V> {
+
+    /** The read buffer is drained when the ring of a thread has this many reads. */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = ReadBuffer.RING_SIZE / 2;
+
+    /** The percentage of the capacity used by the window. */
+    private static final double WINDOW_PERCENTAGE = 0.01;
+
+    /** The percentage of the main segment used by the protected segment. */
+    private static final double PROTECTED_PERCENTAGE = 0.80;
+
+    /** The cached entries. (NonNull) */
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+
+    /** The weigher of the entries, <tt>null</tt> if every entry weighs one. */
+    private final Weigher<? super K, ? super V> weigher;
+
+    /** The maximum total weight of the entries. */
+    private volatile long maximumSize;
+
+    /** The maximum total weight of the entries in the window. */
+    private volatile long maximumWindowSize;
+
+    /** The maximum total weight of the entries in the protected segment. */
+    private volatile long maximumProtectedSize;
+
+    /** The total weight of the entries. Written under the <code>evictionLock</code>. */
+    private volatile long weight;
+
+    /** The frequency sketch. Guarded by the <code>evictionLock</code>. */
+    private final FrequencySketch sketch;
+
+    /** The entries recently added to the cache. Guarded by the <code>evictionLock</code>. */
+    private final AccessQueue<K, V> window = new AccessQueue<K, V>(Node.WINDOW);
+
+    /** The entries of the main segment accessed only once since they are in it. Guarded by the <code>evictionLock</code>. */
+    private final AccessQueue<K, V> probation = new AccessQueue<K, V>(Node.PROBATION);
+
+    /** The entries of the main segment accessed more than once. Guarded by the <code>evictionLock</code>. */
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>(Node.PROTECTED);
+
+    /** Guards the eviction policy. */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /** The reads not yet replayed on the eviction policy. */
+    private final ReadBuffer<Node<K, V>> readBuffer = new ReadBuffer<Node<K, V>>();
+
+    /** Replays the drained reads on the policy. */
+    private final ReadBuffer.Consumer<Node<K, V>> replay = new ReadBuffer.Consumer<Node<K, V>>() {
+        @Override
+        public void accept(final Node<K, V> node) {
+            if (node.queue != Node.DEAD) {
+                onAccess(node);
+            }
+        }
+    };
+
+    private final AtomicLong hitCount      = new AtomicLong();
+    private final AtomicLong missCount     = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maximumSize The maximum number of entries. (Positive)
+     */
+    public TinyLfuCache(final long maximumSize) {
+        this(maximumSize, null, maximumSize);
+    }
+
+    /**
+     * @param maximumWeight The maximum total weight of the entries. (Positive)
+     * @param weigher The weigher of the entries, <tt>null</tt> if every entry weighs one. (Nullable)
+     * @param expectedEntries The expected number of entries, the frequency sketch is sized by it. (Positive)
+     */
+    public TinyLfuCache(final long maximumWeight, final Weigher<? super K, ? super V> weigher, final long expectedEntries) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("The maximum size has to be positive: " + maximumWeight);
+        }
+        this.weigher = weigher;
+        setMaximum(maximumWeight);
+        this.sketch = new FrequencySketch(expectedEntries);
+        this.data = new ConcurrentHashMap<K, Node<K, V>>((int) Math.min(expectedEntries, 1 << 16));
+    }
+
+    /**
+     * @param key The key. (NonNull)
+     * @return The value mapped to the key or <tt>null</tt>.
+     */
+    @Override
+    public V get(final Object key) {
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        afterRead(node);
+        return node.value;
+    }
+
+    /**
+     * @param key The key. (NonNull)
+     * @return The value mapped to the key or <tt>null</tt>. It doesn't count as an access.
+     */
+    @Override
+    public V peek(final Object key) {
+        final Node<K, V> node = data.get(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * @param key The key. (NonNull)
+     * @return <tt>true</tt> if the key is in the cache. It doesn't count as an access.
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        return data.containsKey(key);
+    }
+
+    /**
+     * Adds or replaces an entry. The new entry might be evicted immediately
+     * if its frequency is lower than the frequency of the entries in the main segment.
+     *
+     * @param key The key. (NonNull)
+     * @param value The value. (NonNull)
+     */
+    @Override
+    public void put(final K key, final V value) {
+        if (value == null) {
+            throw new NullPointerException("The value can't be null.");
+        }
+        /* Weighed out of the lock, the weigher might be slow. */
+        final int nodeWeight = weigher == null ? 1 : weigher.weigh(key, value);
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            final Node<K, V> existing = data.get(key);
+            if (existing != null) {
+                existing.value = value;
+                if (existing.weight != nodeWeight) {
+                    queueOf(existing).adjust(nodeWeight - existing.weight);
+                    weight += nodeWeight - existing.weight;
+                    existing.weight = nodeWeight;
+                }
+                onAccess(existing);
+                evictEntries();
+                return;
+            }
+
+            final Node<K, V> node = new Node<K, V>(key, value, nodeWeight);
+            weight += nodeWeight;
+            data.put(key, node);
+            sketch.increment(node.hash);
+            window.addLast(node);
+            evictEntries();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(final Object key) {
+        evictionLock.lock();
+        try {
+            final Node<K, V> node = data.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Removes all the entries. The frequency history is kept. */
+    @Override
+    public void clear() {
+        evictionLock.lock();
+        try {
+            readBuffer.drain(null);
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+            weight = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of entries.
+     */
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * @return The maximum number of entries or the maximum total weight of the entries if the cache is weighted.
+     */
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return <tt>true</tt> if the entries are weighed by a {@link Weigher}.
+     */
+    public boolean isWeighted() {
+        return weigher != null;
+    }
+
+    /**
+     * @return The total weight of the entries, the number of entries if the cache isn't weighted.
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Changes the capacity of the cache. If the cache shrinks the entries over the new capacity are
+     * evicted now if the eviction lock is free, otherwise by the thread holding it or by the next write.
+     *
+     * @param maximumWeight The new maximum total weight of the entries. (Positive)
+     */
+    public void setMaximumWeight(final long maximumWeight) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("The maximum size has to be positive: " + maximumWeight);
+        }
+        setMaximum(maximumWeight);
+        if (evictionLock.tryLock()) {
+            try {
+                evictEntries();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void setMaximum(final long maximumWeight) {
+        final long windowSize = Math.max(1, (long) (maximumWeight * WINDOW_PERCENTAGE));
+        this.maximumWindowSize = windowSize;
+        this.maximumProtectedSize = (long) ((maximumWeight - windowSize) * PROTECTED_PERCENTAGE);
+        this.maximumSize = maximumWeight;
+    }
+
+    /**
+     * @return A snapshot of the content of the cache. (NonNull)
+     */
+    @Override
+    public Map<K, V> toMap() {
+        final Map<K, V> map = new HashMap<K, V>();
+        for (final Map.Entry<K, Node<K, V>> entry : data.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().value);
+        }
+        return map;
+    }
+
+    /**
+     * @return The number of successful {@link #get(Object)} calls.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of unsuccessful {@link #get(Object)} calls.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return The number of the entries evicted by the policy.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Records the read in the read buffer and drains the buffer
+     * if it is full enough and the eviction lock is free.
+     * If the buffer is full the read is dropped.
+     */
+    private void afterRead(final Node<K, V> node) {
+        if (readBuffer.offer(node) >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /** Replays the buffered reads on the policy. Requires the eviction lock. */
+    private void drainReadBuffer() {
+        readBuffer.drain(replay);
+    }
+
+    /** Updates the policy after an access of an entry. Requires the eviction lock. */
+    private void onAccess(final Node<K, V> node) {
+        sketch.increment(node.hash);
+        switch (node.queue) {
+            case Node.WINDOW:
+                window.moveToBack(node);
+                break;
+            case Node.PROBATION:
+                probation.remove(node);
+                protectedQueue.addLast(node);
+                while (protectedQueue.size() > maximumProtectedSize) {
+                    probation.addLast(protectedQueue.pollFirst());
+                }
+                break;
+            case Node.PROTECTED:
+                protectedQueue.moveToBack(node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Applies the eviction policy. Requires the eviction lock. */
+    private void evictEntries() {
+        while (window.size() > maximumWindowSize) {
+            probation.addLast(window.pollFirst());
+        }
+
+        while (window.size() + probation.size() + protectedQueue.size() > maximumSize) {
+            Node<K, V> victim = probation.peekFirst();
+            final Node<K, V> candidate = probation.peekLast();
+            if (victim == null) {
+                victim = protectedQueue.isEmpty() ? window.peekFirst() : protectedQueue.peekFirst();
+            } else if (victim != candidate && sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                /* The candidate isn't used more frequently than the victim so it isn't admitted. */
+                victim = candidate;
+            }
+            evict(victim);
+        }
+    }
+
+    private AccessQueue<K, V> queueOf(final Node<K, V> node) {
+        switch (node.queue) {
+            case Node.WINDOW:
+                return window;
+            case Node.PROBATION:
+                return probation;
+            default:
+                return protectedQueue;
+        }
+    }
+
+    private void evict(final Node<K, V> node) {
+        data.remove(node.key, node);
+        unlink(node);
+        evictionCount.incrementAndGet();
+    }
+
+    private void unlink(final Node<K, V> node) {
+        weight -= node.weight;
+        switch (node.queue) {
+            case Node.WINDOW:
+                window.remove(node);
+                break;
+            case Node.PROBATION:
+                probation.remove(node);
+                break;
+            case Node.PROTECTED:
+                protectedQueue.remove(node);
+                break;
+            default:
+                break;
+        }
+        node.queue = Node.DEAD;
+    }
+
+    /**
+     * An entry of the cache.
+     */
+    private static final class Node<K, V> {
+        static final int DEAD      = 0;
+        static final int WINDOW    = 1;
+        static final int PROBATION = 2;
+        static final int PROTECTED = 3;
+
+        final K key;
+        final int hash;
+        volatile V value;
+
+        /** The weight of the entry. Guarded by the eviction lock. */
+        int weight;
+
+        /** The queue the node is in. Guarded by the eviction lock. */
+        volatile int queue = DEAD;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(final K key, final V value, final int weight) {
+            this.key = key;
+            this.hash = key.hashCode();
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked list of {@link Node}s in access order, the least recently used is the first.
+     * The size of the queue is the total weight of its nodes.
+     */
+    private static final class AccessQueue<K, V> {
+        private final int type;
+        private Node<K, V> first;
+        private Node<K, V> last;
+        private long size;
+
+        AccessQueue(final int type) {
+            this.type = type;
+        }
+
+        long size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return first == null;
+        }
+
+        Node<K, V> peekFirst() {
+            return first;
+        }
+
+        Node<K, V> peekLast() {
+            return last;
+        }
+
+        void addLast(final Node<K, V> node) {
+            node.queue = type;
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            size += node.weight;
+        }
+
+        Node<K, V> pollFirst() {
+            final Node<K, V> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void remove(final Node<K, V> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = Node.DEAD;
+            size -= node.weight;
+        }
+
+        void adjust(final long delta) {
+            size += delta;
+        }
+
+        void moveToBack(final Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            Node<K, V> node = first;
+            while (node != null) {
+                final Node<K, V> next = node.next;
+                node.prev = null;
+                node.next = null;
+                node.queue = Node.DEAD;
+                node = next;
+            }
+            first = null;
+            last = null;
+            size = 0;
+        }
+    }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import java.io.Serializable;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactCodec;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactInput;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactOutput;
+import org.moresbycoffee.hibernatecache.cache.codec.TypeCodec;
+import org.moresbycoffee.hibernatecache.cache.region.BaseTransactionalDataRegion;
+import org.moresbycoffee.hibernatecache.cache.stat.CacheMisses;
+import org.moresbycoffee.hibernatecache.cache.stat.MissReason;
+import org.moresbycoffee.hibernatecache.cache.store.FrequencySketch;
+import org.moresbycoffee.hibernatecache.cache.warmup.RefreshAhead;
+
+/**
+ * Base class of the {@link org.hibernate.cache.spi.access.AccessType#NONSTRICT_READ_WRITE nonstrict read-write} strategies.
+ * The entries are served to every transaction and they are simply
+ * removed from the cache when the data is modified, so stale data can be read.
+ * <p>
+ * If the {@link org.moresbycoffee.hibernatecache.cache.CacheSettings#MAX_STALENESS} of the region is set,
+ * the entries are stored as {@link Expiring} values with a time-to-live adapted by an {@link AdaptiveTtl}
+ * to the write rate of their keys. If the {@link org.moresbycoffee.hibernatecache.cache.CacheSettings#REFRESH_AHEAD}
+ * is set as well, the entries read more than once after that part of their time-to-live are scheduled for
+ * the {@link RefreshAhead} of the region (only the entity regions have one).
+ *
+ * @param <T> The type of the region.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+abstract class AbstractNonStrictReadWriteAccessStrategy<T extends BaseTransactionalDataRegion> extends BaseRegionAccessStrategy<T> {
+
+    /** The tag of the {@link Expiring} values written by the {@link CompactCodec}. */
+    static final int EXPIRING_TAG = CompactCodec.MIN_EXTENSION_TAG + 2;
+
+    /** The minimum number of reads in the refresh window which makes an entry hot. */
+    private static final int HOT_READS = 2;
+
+    /** The number of the locks serializing the refreshes with the writes of the keys. (Power of two) */
+    private static final int KEY_LOCKS = 64;
+
+    /** The time-to-live of the entries, <tt>null</tt> if the entries don't expire. */
+    private final AdaptiveTtl ttl;
+
+    /** The refresh-ahead of the region, <tt>null</tt> if it is disabled. */
+    private final RefreshAhead refreshAhead;
+
+    /** The part of the time-to-live after the hot entries are refreshed. */
+    private final double refreshFactor;
+
+    /** The reads of the keys in their refresh windows. Guarded by itself. */
+    private final FrequencySketch refreshReads;
+
+    /** The locks of the keys held by the refreshes and the writes, <tt>null</tt> if the entries don't expire. */
+    private final Object[] keyLocks;
+
+    /**
+     * @param region The region accessed by the strategy. (NonNull)
+     */
+    protected AbstractNonStrictReadWriteAccessStrategy(final T region) {
+        super(region);
+        final long maxStaleness = region.getCacheSettings().getMaxStaleness(region.getName());
+        this.ttl = maxStaleness > 0 ? new AdaptiveTtl(maxStaleness, region.getCacheSettings().getStaleReadRatio(region.getName())) : null;
+        this.refreshFactor = region.getCacheSettings().getRefreshAhead(region.getName());
+        this.refreshAhead = ttl != null && refreshFactor > 0 ? region.getRefreshAhead() : null;
+        this.refreshReads = refreshAhead == null ? null : new FrequencySketch(region.getCacheSettings().getMaxEntries(region.getName()));
+        if (ttl == null) {
+            this.keyLocks = null;
+        } else {
+            this.keyLocks = new Object[KEY_LOCKS];
+            for (int i = 0; i < KEY_LOCKS; i++) {
+                keyLocks[i] = new Object();
+            }
+        }
+    }
+
+    /**
+     * @return The time-to-live of the entries or <tt>null</tt> if the entries don't expire.
+     */
+    public AdaptiveTtl getAdaptiveTtl() {
+        return ttl;
+    }
+
+    @Override
+    protected Object read(final Object key, final long txTimestamp) throws CacheException {
+        final Object value = region().getStore().get(key);
+        if (!(value instanceof Expiring)) {
+            return value;
+        }
+        final Expiring expiring = (Expiring) value;
+        final long now = System.currentTimeMillis();
+        if (expiring.isExpired(now)) {
+            if (ttl != null) {
+                ttl.recordExpired();
+            }
+            if (refreshAhead != null && expiring.isRefreshed()) {
+                refreshAhead.forget(key);
+            }
+            return null;
+        }
+        if (refreshAhead != null) {
+            afterHit(key, expiring, now);
+        }
+        return expiring.value;
+    }
+
+    /**
+     * The expired entries are not readable, but they are neither recorded by the time-to-live nor forgotten by the refresh-ahead.
+     */
+    @Override
+    protected Object peek(final Object key, final long txTimestamp) throws CacheException {
+        final Object value = region().getStore().peek(key);
+        if (!(value instanceof Expiring)) {
+            return value;
+        }
+        final Expiring expiring = (Expiring) value;
+        return expiring.isExpired(System.currentTimeMillis()) ? null : expiring.value;
+    }
+
+    /**
+     * An expired entry still in the store is {@link MissReason#EVICTED}.
+     */
+    @Override
+    protected MissReason missReason(final Object key, final long txTimestamp, final CacheMisses misses) {
+        return region().getStore().containsKey(key) ? MissReason.EVICTED : super.missReason(key, txTimestamp, misses);
+    }
+
+    /**
+     * Records the read of a refreshed entry and schedules the refresh of the hot entry in its refresh window.
+     */
+    private void afterHit(final Object key, final Expiring expiring, final long now) {
+        if (expiring.isRefreshed()) {
+            refreshAhead.read(key, now >= expiring.previousExpiry);
+        }
+        if (key instanceof CacheKey && isInRefreshWindow(expiring, now)) {
+            final int reads;
+            synchronized (refreshReads) {
+                refreshReads.increment(key.hashCode());
+                reads = refreshReads.frequency(key.hashCode());
+            }
+            if (reads >= HOT_READS) {
+                refreshAhead.schedule((CacheKey) key);
+            }
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if the entry is in the part of its time-to-live after it is refreshed.
+     */
+    private boolean isInRefreshWindow(final Expiring expiring, final long now) {
+        return now >= expiring.loadedAt + (long) ((expiring.expiresAt - expiring.loadedAt) * refreshFactor);
+    }
+
+    /**
+     * Replaces the entry with the reloaded value. The entry is read and replaced holding the lock of the key,
+     * which serializes the refresh with the puts and the removes of the key in this process. The entry isn't replaced
+     * if it has been removed meanwhile, nor if it has been put again (it isn't in its refresh window any more)
+     * as the reloaded value may be older than the entry put again.
+     *
+     * @param key The key of the entry. (NonNull)
+     * @param value The reloaded value. (NonNull)
+     * @return <code>true</code> if the value has been put.
+     */
+    public boolean refresh(final Object key, final Object value) {
+        if (ttl == null) {
+            return false;
+        }
+        synchronized (lockOf(key)) {
+            final Object current = region().getStore().peek(key);
+            final long now = System.currentTimeMillis();
+            if (!(current instanceof Expiring) || !isInRefreshWindow((Expiring) current, now)) {
+                return false;
+            }
+            region().getStore().put(key, new Expiring(value, now, now + ttl.getTtl(key, now), ((Expiring) current).expiresAt));
+            return true;
+        }
+    }
+
+    @Override
+    protected boolean putLoaded(final Object key, final Object value, final long txTimestamp, final Object version, final boolean minimalPutOverride) throws CacheException {
+        final long now = System.currentTimeMillis();
+        if (ttl == null) {
+            if (minimalPutOverride && isCached(key, now)) {
+                return false;
+            }
+            region().getStore().put(key, value);
+            return true;
+        }
+        synchronized (lockOf(key)) {
+            if (minimalPutOverride && isCached(key, now)) {
+                return false;
+            }
+            region().getStore().put(key, new Expiring(value, now, now + ttl.getTtl(key, now), 0));
+            return true;
+        }
+    }
+
+    /**
+     * No lock is needed, returns <tt>null</tt>.
+     */
+    public SoftLock lockItem(final Object key, final Object version) throws CacheException {
+        return null;
+    }
+
+    /**
+     * Removes the entry. The write is recorded for the time-to-live of the key.
+     */
+    public void unlockItem(final Object key, final SoftLock lock) throws CacheException {
+        if (ttl != null) {
+            ttl.recordWrite(key, System.currentTimeMillis());
+        }
+        remove(key);
+    }
+
+    /**
+     * Removes the entry.
+     */
+    @Override
+    public void remove(final Object key) throws CacheException {
+        if (keyLocks == null) {
+            region().getStore().remove(key);
+        } else {
+            synchronized (lockOf(key)) {
+                region().getStore().remove(key);
+            }
+        }
+        if (refreshAhead != null) {
+            refreshAhead.forget(key);
+        }
+    }
+
+    /**
+     * @return The lock of the key serializing the refreshes with the writes. Only the expiring entries have locks.
+     */
+    private Object lockOf(final Object key) {
+        final int hash = key.hashCode();
+        return keyLocks[(hash ^ (hash >>> 16)) & (KEY_LOCKS - 1)];
+    }
+
+    /**
+     * @return <tt>true</tt> if the key has an entry which hasn't expired.
+     */
+    private boolean isCached(final Object key, final long now) {
+        if (ttl == null) {
+            return region().getStore().containsKey(key);
+        }
+        final Object value = region().getStore().get(key);
+        return value != null && !(value instanceof Expiring && ((Expiring) value).isExpired(now));
+    }
+
+    /**
+     * A cached value with its expiry.
+     */
+    static final class Expiring implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Writes the values without class descriptors. */
+        static final TypeCodec<Expiring> CODEC = new TypeCodec<Expiring>() {
+
+            @Override
+            public void write(final Expiring expiring, final CompactOutput out) {
+                out.writeObject(expiring.value);
+                out.writeSignedVarLong(expiring.loadedAt);
+                /* The times are written relative to the load. */
+                out.writeSignedVarLong(expiring.expiresAt - expiring.loadedAt);
+                out.writeSignedVarLong(expiring.previousExpiry == 0 ? 0 : expiring.previousExpiry - expiring.loadedAt);
+            }
+
+            @Override
+            public Expiring read(final CompactInput in) {
+                final Object value = in.readObject();
+                final long loadedAt = in.readSignedVarLong();
+                final long expiresAt = loadedAt + in.readSignedVarLong();
+                final long previousExpiry = in.readSignedVarLong();
+                return new Expiring(value, loadedAt, expiresAt, previousExpiry == 0 ? 0 : loadedAt + previousExpiry);
+            }
+        };
+
+        private final Object value;
+
+        /** The time in milliseconds when the value has been loaded. */
+        private final long loadedAt;
+
+        /** The time in milliseconds when the value expires. */
+        private final long expiresAt;
+
+        /** The expiry of the entry replaced by the refresh, <code>0</code> if the value hasn't been refreshed. */
+        private final long previousExpiry;
+
+        /**
+         * @param value The cached value.
+         * @param loadedAt The time in milliseconds when the value has been loaded.
+         * @param expiresAt The time in milliseconds when the value expires.
+         * @param previousExpiry The expiry of the entry replaced by the refresh, <code>0</code> if it hasn't been refreshed.
+         */
+        Expiring(final Object value, final long loadedAt, final long expiresAt, final long previousExpiry) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+            this.expiresAt = expiresAt;
+            this.previousExpiry = previousExpiry;
+        }
+
+        boolean isExpired(final long now) {
+            return now >= expiresAt;
+        }
+
+        boolean isRefreshed() {
+            return previousExpiry != 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Expiring{loadedAt=" + loadedAt + ",expiresAt=" + expiresAt + (previousExpiry == 0 ? "" : ",previousExpiry=" + previousExpiry) + "}";
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.moresbycoffee.hibernatecache.cache.region.BaseTransactionalDataRegion;
+
+/**
+ * Base class of the {@link org.hibernate.cache.spi.access.AccessType#READ_ONLY read-only} strategies.
+ * The cached data never changes so the entries can be served to every transaction.
+ *
+ * @param <T> The type of the region.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+abstract class AbstractReadOnlyAccessStrategy<T extends BaseTransactionalDataRegion> extends BaseRegionAccessStrategy<T> {
+
+    /**
+     * @param region The region accessed by the strategy. (NonNull)
+     */
+    protected AbstractReadOnlyAccessStrategy(final T region) {
+        super(region);
+    }
+
+    @Override
+    protected Object read(final Object key, final long txTimestamp) throws CacheException {
+        return region().getStore().get(key);
+    }
+
+    @Override
+    protected Object peek(final Object key, final long txTimestamp) throws CacheException {
+        return region().getStore().peek(key);
+    }
+
+    @Override
+    protected boolean putLoaded(final Object key, final Object value, final long txTimestamp, final Object version, final boolean minimalPutOverride) throws CacheException {
+        if (minimalPutOverride && region().getStore().containsKey(key)) {
+            return false;
+        }
+        region().getStore().put(key, value);
+        return true;
+    }
+
+    public SoftLock lockItem(final Object key, final Object version) throws CacheException {
+        return null;
+    }
+
+    /**
+     * Evicts the entry of the deleted entity when the deletion is executed, so it isn't served
+     * to the transaction which has deleted it (e.g. by a query answered from the region).
+     */
+    @Override
+    public void remove(final Object key) throws CacheException {
+        evict(key);
+    }
+
+    /**
+     * The entry is evicted, it can happen only if it has been deleted.
+     */
+    public void unlockItem(final Object key, final SoftLock lock) throws CacheException {
+        evict(key);
+    }
+
+}
@@ -0,0 +1,658 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactCodec;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactInput;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactOutput;
+import org.moresbycoffee.hibernatecache.cache.codec.TypeCodec;
+import org.moresbycoffee.hibernatecache.cache.region.BaseTransactionalDataRegion;
+import org.moresbycoffee.hibernatecache.cache.stat.CacheMisses;
+import org.moresbycoffee.hibernatecache.cache.stat.MissReason;
+
+/**
+ * Base class of the {@link org.hibernate.cache.spi.access.AccessType#READ_WRITE read-write} strategies.
+ * <p>
+ * The cached values are wrapped into {@link Item}s holding the timestamp of the
+ * time when they have been put into the cache. An item is served only to the transactions
+ * started after this timestamp. The modified entries are replaced by {@link Lock}s
+ * (soft locks) until the modifying transaction completes, meanwhile no transaction
+ * can read or write the entry.
+ * <p>
+ * The reads never block: the items are immutable and the store replaces the entries
+ * atomically, so a reader only has to check if the entry it has found is a readable item
+ * (and not a soft lock). The writes of the same key are serialized by a lock chosen
+ * from a fixed set of stripes by the hash of the key, so writes of different keys
+ * rarely contend.
+ * <p>
+ * If the {@link org.moresbycoffee.hibernatecache.cache.CacheSettings#MAX_VERSIONS read_write.max_versions}
+ * property of the region is positive, the items are tagged with the interval while they
+ * have been the committed state of the key instead of the time of the put:
+ * <ul>
+ * <li>an item put after an insert or an update is valid from the time of the commit,</li>
+ * <li>a loaded item is valid from the last write of the region (every insert, update, remove
+ *     and eviction is a write), the loaded state can't have been committed later,</li>
+ * <li>an item is valid until the key has been locked by a modifying transaction.</li>
+ * </ul>
+ * The superseded items are kept in a bounded chain behind the soft lock and the new item,
+ * so a transaction started before a modification is still served with the state it would
+ * have read from the database, and an item loaded by a younger transaction is served to
+ * the older ones as long as the region hasn't been written meanwhile.
+ *
+ * @param <T> The type of the region.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+abstract class AbstractReadWriteAccessStrategy<T extends BaseTransactionalDataRegion> extends BaseRegionAccessStrategy<T> {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(AbstractReadWriteAccessStrategy.class);
+
+    /** The number of the lock stripes. (Power of two) */
+    private static final int STRIPES = 64;
+
+    /** The tag of the {@link Item}s written by the {@link CompactCodec}. */
+    static final int ITEM_TAG = CompactCodec.MIN_EXTENSION_TAG;
+
+    /** The tag of the {@link Lock}s written by the {@link CompactCodec}. */
+    static final int LOCK_TAG = CompactCodec.MIN_EXTENSION_TAG + 1;
+
+    /** Identifies the locks of this strategy instance. */
+    private final UUID uuid = UUID.randomUUID();
+
+    private final AtomicLong nextLockId = new AtomicLong();
+
+    /** Guard the writes of the entries, the lock of a key is chosen by its hash. */
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    /** The comparator of the entity versions, <tt>null</tt> if the data is not versioned. */
+    @SuppressWarnings("rawtypes")
+    private final Comparator versionComparator;
+
+    /** The maximum number of committed versions kept per key, <tt>0</tt> if multi-versioning is disabled. */
+    private final int maxVersions;
+
+    /** The timestamp of the last write of the region. */
+    private final AtomicLong lastWriteTimestamp;
+
+    /**
+     * @param region The region accessed by the strategy. (NonNull)
+     */
+    protected AbstractReadWriteAccessStrategy(final T region) {
+        super(region);
+        this.versionComparator = region.getCacheDataDescription().getVersionComparator();
+        this.maxVersions = region.getCacheSettings().getMaxVersions(region.getName());
+        this.lastWriteTimestamp = new AtomicLong(region.nextTimestamp());
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns the cached value if it had been put into the cache (or committed if
+     * multi-versioning is enabled) before the transaction started.
+     * It doesn't lock, a soft lock or a newer item found in the store is simply not readable.
+     */
+    @Override
+    protected Object read(final Object key, final long txTimestamp) throws CacheException {
+        return readable((Lockable) region().getStore().get(key), txTimestamp);
+    }
+
+    @Override
+    protected Object peek(final Object key, final long txTimestamp) throws CacheException {
+        return readable((Lockable) region().getStore().peek(key), txTimestamp);
+    }
+
+    /**
+     * @return The value of the entry found in the store if it is readable by the transaction. (Nullable)
+     */
+    private static Object readable(final Lockable item, final long txTimestamp) {
+        if (item == null) {
+            return null;
+        }
+        final Item readable = item.read(txTimestamp);
+        return readable == null ? null : readable.getValue();
+    }
+
+    /**
+     * The entry is {@link MissReason#SOFT_LOCKED} if it is a soft lock held by a modifying transaction
+     * (and the transaction can't read the version kept for it), a released lock is {@link MissReason#EVICTED}
+     * (it has been invalidated by the write). The entry is {@link MissReason#NEWER_THAN_TRANSACTION} if it is an item.
+     */
+    @Override
+    protected MissReason missReason(final Object key, final long txTimestamp, final CacheMisses misses) {
+        final Lockable item = (Lockable) region().getStore().get(key);
+        if (item instanceof Lock) {
+            return ((Lock) item).isHeld(txTimestamp) ? MissReason.SOFT_LOCKED : MissReason.EVICTED;
+        }
+        return item == null ? super.missReason(key, txTimestamp, misses) : MissReason.NEWER_THAN_TRANSACTION;
+    }
+
+    /**
+     * A value loaded by a concurrent miss is handed to the transaction only if no write of the region
+     * has started or finished since the transaction started, so the transaction would have read the
+     * same committed state from the database and the soft locks of the region are respected.
+     */
+    @Override
+    protected boolean isLoadVisible(final long txTimestamp) {
+        return lastWriteTimestamp.get() < txTimestamp;
+    }
+
+    /**
+     * Puts the value into the cache if there is no entry for the key or the
+     * existing entry is older than the loaded value.
+     */
+    @Override
+    protected boolean putLoaded(final Object key, final Object value, final long txTimestamp, final Object version, final boolean minimalPutOverride) throws CacheException {
+        final ReentrantLock stripe = stripeOf(key);
+        stripe.lock();
+        try {
+            final Lockable item = (Lockable) region().getStore().get(key);
+            if (item == null || item.isWriteable(txTimestamp, version, versionComparator)) {
+                final long timestamp = maxVersions > 0 ? lastWriteTimestamp.get() : region().nextTimestamp();
+                region().getStore().put(key, new Item(value, version, timestamp, history(item)));
+                return true;
+            }
+            return false;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Replaces the entry with a soft lock.
+     */
+    public SoftLock lockItem(final Object key, final Object version) throws CacheException {
+        final ReentrantLock stripe = stripeOf(key);
+        stripe.lock();
+        try {
+            final Lockable item = (Lockable) region().getStore().get(key);
+            final long timestamp = markWrite();
+            final long timeout = timestamp + region().getTimeout();
+            final Lock lock = item == null ? new Lock(timeout, uuid, nextLockId.getAndIncrement(), version, null)
+                                           : item.lock(timeout, uuid, nextLockId.getAndIncrement(), maxVersions > 0 ? timestamp : -1);
+            region().getStore().put(key, lock);
+            return lock;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Releases the soft lock, the entry can be loaded again after all the
+     * concurrent locks have been released.
+     */
+    public void unlockItem(final Object key, final SoftLock lock) throws CacheException {
+        final ReentrantLock stripe = stripeOf(key);
+        stripe.lock();
+        try {
+            final Lockable item = (Lockable) region().getStore().get(key);
+            if (item != null && item.isUnlockable(lock)) {
+                decrementLock(key, (Lock) item);
+            } else {
+                handleLockExpiry(key, item);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * The bulk operations write the region.
+     */
+    @Override
+    public SoftLock lockRegion() throws CacheException {
+        markWrite();
+        return super.lockRegion();
+    }
+
+    /**
+     * The evicted entry may be modified without soft locks, e.g. by a bulk operation.
+     */
+    @Override
+    public void evict(final Object key) throws CacheException {
+        markWrite();
+        super.evict(key);
+    }
+
+    /**
+     * The region may be cleared because of a bulk operation.
+     */
+    @Override
+    public void evictAll() throws CacheException {
+        markWrite();
+        super.evictAll();
+    }
+
+    /**
+     * Puts the value into the cache if the key is not locked and there is no entry for it.
+     * @return <tt>true</tt> if the value has been put into the cache.
+     */
+    protected boolean putAfterInsert(final Object key, final Object value, final Object version) {
+        final ReentrantLock stripe = stripeOf(key);
+        stripe.lock();
+        try {
+            final long timestamp = markWrite();
+            final Lockable item = (Lockable) region().getStore().get(key);
+            if (item == null) {
+                region().getStore().put(key, new Item(value, version, timestamp, null));
+                recordCached(key);
+                return true;
+            }
+            return false;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Replaces the soft lock with the new value if the key hasn't been locked concurrently.
+     * @return <tt>true</tt> if the value has been put into the cache.
+     */
+    protected boolean putAfterUpdate(final Object key, final Object value, final Object currentVersion, final SoftLock lock) {
+        final ReentrantLock stripe = stripeOf(key);
+        stripe.lock();
+        try {
+            final long timestamp = markWrite();
+            final Lockable item = (Lockable) region().getStore().get(key);
+            if (item != null && item.isUnlockable(lock)) {
+                final Lock lockItem = (Lock) item;
+                if (lockItem.wasLockedConcurrently()) {
+                    decrementLock(key, lockItem);
+                    return false;
+                }
+                region().getStore().put(key, new Item(value, currentVersion, timestamp, history(lockItem)));
+                recordCached(key);
+                return true;
+            }
+            handleLockExpiry(key, item);
+            return false;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Registers a write of the region: the values loaded from now on may have been committed
+     * by the writing transaction, so they are not served to the transactions started before.
+     * @return The timestamp of the write.
+     */
+    protected final long markWrite() {
+        final long timestamp = region().nextTimestamp();
+        long last;
+        do {
+            last = lastWriteTimestamp.get();
+        } while (last < timestamp && !lastWriteTimestamp.compareAndSet(last, timestamp));
+        return timestamp;
+    }
+
+    /**
+     * @return The lock guarding the writes of the key.
+     */
+    private ReentrantLock stripeOf(final Object key) {
+        final int hash = key.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * @return The superseded versions kept behind the new item replacing the entry, or <tt>null</tt>.
+     */
+    private Item history(final Lockable item) {
+        if (maxVersions <= 1 || !(item instanceof Lock)) {
+            return null;
+        }
+        return Item.truncate(((Lock) item).getHistory(), maxVersions - 1);
+    }
+
+    private void decrementLock(final Object key, final Lock lock) {
+        lock.unlock(markWrite());
+        region().getStore().put(key, lock);
+    }
+
+    /**
+     * The lock has expired (or has been evicted), the key is locked by a lock which
+     * expires immediately, so no transaction can put stale data into the cache.
+     */
+    private void handleLockExpiry(final Object key, final Lockable item) {
+        LOG.warn("Cache " + region().getName() + " Key " + key + " Lockable : " + item
+                 + "\nA soft-locked cache entry was expired by the underlying cache. If this happens regularly you should consider increasing the cache timeouts and/or capacity limits");
+        final long timestamp = markWrite() + region().getTimeout();
+        final Lock newLock = new Lock(timestamp, uuid, nextLockId.getAndIncrement(), null, null);
+        newLock.unlock(timestamp);
+        region().getStore().put(key, newLock);
+    }
+
+    /**
+     * The entries of the read-write regions.
+     */
+    interface Lockable {
+
+        /**
+         * @param txTimestamp The start timestamp of the transaction.
+         * @return The item which can be read by the transaction or <tt>null</tt>.
+         */
+        Item read(long txTimestamp);
+
+        /**
+         * @param txTimestamp The start timestamp of the transaction.
+         * @param version The version of the new value.
+         * @param versionComparator The comparator of the versions.
+         * @return <tt>true</tt> if the entry can be replaced by the value loaded by the transaction.
+         */
+        @SuppressWarnings("rawtypes")
+        boolean isWriteable(long txTimestamp, Object version, Comparator versionComparator);
+
+        /**
+         * @param lock The soft lock returned by the {@link AbstractReadWriteAccessStrategy#lockItem(Object, Object)}.
+         * @return <tt>true</tt> if the entry is the given lock.
+         */
+        boolean isUnlockable(SoftLock lock);
+
+        /**
+         * @param timestamp The time of the lock if the locked item has to be kept
+         *                  for the older transactions, <tt>-1</tt> otherwise.
+         * @return The lock which replaces the entry.
+         */
+        Lock lock(long timeout, UUID uuid, long lockId, long timestamp);
+    }
+
+    /**
+     * A cached value.
+     */
+    static final class Item implements Serializable, Lockable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Writes the items without class descriptors. */
+        static final TypeCodec<Item> CODEC = new TypeCodec<Item>() {
+
+            @Override
+            public void write(final Item item, final CompactOutput out) {
+                out.writeObject(item.value);
+                out.writeObject(item.version);
+                out.writeSignedVarLong(item.timestamp);
+                out.writeBoolean(item.validTo != Long.MAX_VALUE);
+                if (item.validTo != Long.MAX_VALUE) {
+                    out.writeSignedVarLong(item.validTo);
+                }
+                out.writeObject(item.previous);
+            }
+
+            @Override
+            public Item read(final CompactInput in) {
+                final Object value = in.readObject();
+                final Object version = in.readObject();
+                final long timestamp = in.readSignedVarLong();
+                final long validTo = in.readBoolean() ? in.readSignedVarLong() : Long.MAX_VALUE;
+                return new Item(value, version, timestamp, validTo, (Item) in.readObject());
+            }
+        };
+
+        private final Object value;
+        private final Object version;
+        private final long timestamp;
+        private final long validTo;
+        private final Item previous;
+
+        /**
+         * @param value The cached value.
+         * @param version The version of the value.
+         * @param timestamp The time when the value has been put into the cache or committed.
+         * @param previous The previous version of the value or <tt>null</tt>.
+         */
+        Item(final Object value, final Object version, final long timestamp, final Item previous) {
+            this(value, version, timestamp, Long.MAX_VALUE, previous);
+        }
+
+        private Item(final Object value, final Object version, final long timestamp, final long validTo, final Item previous) {
+            this.value = value;
+            this.version = version;
+            this.timestamp = timestamp;
+            this.validTo = validTo;
+            this.previous = previous;
+        }
+
+        Object getValue() {
+            return value;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public Item read(final long txTimestamp) {
+            for (Item item = this; item != null; item = item.previous) {
+                if (txTimestamp > item.timestamp && txTimestamp < item.validTo) {
+                    return item;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        public boolean isWriteable(final long txTimestamp, final Object newVersion, final Comparator versionComparator) {
+            return version != null && versionComparator.compare(version, newVersion) < 0;
+        }
+
+        @Override
+        public boolean isUnlockable(final SoftLock lock) {
+            return false;
+        }
+
+        @Override
+        public Lock lock(final long timeout, final UUID uuid, final long lockId, final long lockTimestamp) {
+            final Item history = lockTimestamp < 0 ? null : new Item(value, version, timestamp, lockTimestamp, previous);
+            return new Lock(timeout, uuid, lockId, version, history);
+        }
+
+        /**
+         * @param item The newest version of the chain or <tt>null</tt>.
+         * @param size The maximum number of versions.
+         * @return The first <tt>size</tt> versions of the chain, the items are copied only if the chain is longer.
+         */
+        static Item truncate(final Item item, final int size) {
+            if (item == null || size <= 0) {
+                return null;
+            }
+            final Item previous = truncate(item.previous, size - 1);
+            return previous == item.previous ? item : new Item(item.value, item.version, item.timestamp, item.validTo, previous);
+        }
+
+        @Override
+        public String toString() {
+            return "Item{version=" + version + ",timestamp=" + timestamp + (validTo == Long.MAX_VALUE ? "" : ",validTo=" + validTo) + "}";
+        }
+    }
+
+    /**
+     * A soft lock.
+     */
+    static final class Lock implements Serializable, Lockable, SoftLock {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Writes the locks without class descriptors. */
+        static final TypeCodec<Lock> CODEC = new TypeCodec<Lock>() {
+
+            @Override
+            public void write(final Lock lock, final CompactOutput out) {
+                out.writeObject(lock.sourceUuid);
+                out.writeSignedVarLong(lock.lockId);
+                out.writeObject(lock.version);
+                out.writeObject(lock.history);
+                out.writeSignedVarLong(lock.timeout);
+                out.writeBoolean(lock.concurrent);
+                out.writeSignedVarInt(lock.multiplicity);
+                out.writeSignedVarLong(lock.unlockTimestamp);
+            }
+
+            @Override
+            public Lock read(final CompactInput in) {
+                final UUID sourceUuid = (UUID) in.readObject();
+                final long lockId = in.readSignedVarLong();
+                final Object version = in.readObject();
+                final Item history = (Item) in.readObject();
+                final Lock lock = new Lock(in.readSignedVarLong(), sourceUuid, lockId, version, history);
+                lock.concurrent = in.readBoolean();
+                lock.multiplicity = in.readSignedVarInt();
+                lock.unlockTimestamp = in.readSignedVarLong();
+                return lock;
+            }
+        };
+
+        private final UUID sourceUuid;
+        private final long lockId;
+        private final Object version;
+        private final Item history;
+
+        /* Mutated under the stripe lock only, but read by the lock free readers. */
+        private volatile long timeout;
+        private volatile boolean concurrent;
+        private volatile int multiplicity = 1;
+        private volatile long unlockTimestamp;
+
+        /**
+         * @param timeout The timestamp after the lock expires.
+         * @param sourceUuid The identifier of the strategy created the lock.
+         * @param lockId The identifier of the lock.
+         * @param version The version of the locked value.
+         * @param history The locked versions still readable by the older transactions or <tt>null</tt>.
+         */
+        Lock(final long timeout, final UUID sourceUuid, final long lockId, final Object version, final Item history) {
+            this.timeout = timeout;
+            this.lockId = lockId;
+            this.version = version;
+            this.sourceUuid = sourceUuid;
+            this.history = history;
+        }
+
+        /**
+         * @return The locked versions still readable by the older transactions or <tt>null</tt>.
+         */
+        Item getHistory() {
+            return history;
+        }
+
+        /**
+         * The locked versions are served only to the transactions started before the lock.
+         */
+        @Override
+        public Item read(final long txTimestamp) {
+            return history == null ? null : history.read(txTimestamp);
+        }
+
+        @Override
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        public boolean isWriteable(final long txTimestamp, final Object newVersion, final Comparator versionComparator) {
+            if (txTimestamp > timeout) {
+                /* The lock has expired. */
+                return true;
+            }
+            if (multiplicity > 0) {
+                /* Still locked. */
+                return false;
+            }
+            return version == null ? txTimestamp > unlockTimestamp : versionComparator.compare(version, newVersion) < 0;
+        }
+
+        @Override
+        public boolean isUnlockable(final SoftLock lock) {
+            return equals(lock);
+        }
+
+        @Override
+        public Lock lock(final long timeout, final UUID uuid, final long lockId, final long lockTimestamp) {
+            concurrent = true;
+            multiplicity++;
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * @param timestamp The time of the unlock.
+         */
+        void unlock(final long timestamp) {
+            if (--multiplicity == 0) {
+                unlockTimestamp = timestamp;
+            }
+        }
+
+        /**
+         * @param txTimestamp The start timestamp of the transaction.
+         * @return <tt>true</tt> if the lock is held by a modifying transaction and it hasn't expired for the transaction.
+         */
+        boolean isHeld(final long txTimestamp) {
+            return multiplicity > 0 && txTimestamp <= timeout;
+        }
+
+        /**
+         * @return <tt>true</tt> if the key has been locked by another transaction meanwhile.
+         */
+        boolean wasLockedConcurrently() {
+            return concurrent;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Lock)) {
+                return false;
+            }
+            final Lock other = (Lock) o;
+            return lockId == other.lockId && sourceUuid.equals(other.sourceUuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return sourceUuid.hashCode() ^ (int) (lockId ^ (lockId >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return "Lock Source-UUID:" + sourceUuid + " Lock-ID:" + lockId;
+        }
+    }
+
+}
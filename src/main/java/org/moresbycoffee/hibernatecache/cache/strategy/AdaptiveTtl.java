@@ -0,0 +1,193 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adapts the time-to-live of the entries of a nonstrict read-write region to the write rate of their keys.
+ * <p>
+ * A nonstrict region serves stale data when a write isn't seen by the cache (e.g. it has been committed
+ * by another node or the entry has been loaded concurrently with the write). Assuming that the unseen
+ * writes of a key are proportional to its seen writes, with write rate <i>&lambda;</i> and time-to-live
+ * <i>t</i> the ratio of the stale reads of the key is about <i>&lambda;t/2</i>, so the time-to-live
+ * <code>2 * staleReadRatio / &lambda;</code> keeps the stale reads at the targeted ratio. The time-to-live
+ * is never longer than the maximum staleness, which bounds the staleness of every read, and never shorter
+ * than one hundredth of it, so the frequently written keys are still cached.
+ * <p>
+ * The writes are counted by a time-decayed Count-Min sketch: every key is mapped to a counter in each of
+ * the two rows, the counters decay exponentially with a time constant of ten times the maximum staleness.
+ * The write rate of a key range is estimated from the smaller of the counters of the key, the keys never
+ * written recently get the maximum staleness. The write rate of the whole region is tracked as well.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class AdaptiveTtl {
+
+    /** The number of counters in a row of the sketch. (Power of two) */
+    static final int WIDTH = 1024;
+
+    /** Seeds of the hash functions of the two rows. */
+    private static final int[] SEEDS = { 0x9e3779b9, 0x85ebca6b };
+
+    /** The time constant of the decay is this many times the maximum staleness. */
+    private static final int DECAY_WINDOWS = 10;
+
+    /** The minimum time-to-live is this part of the maximum staleness. */
+    private static final int MIN_TTL_DIVISOR = 100;
+
+    private final long maxStaleness;
+
+    private final long minTtl;
+
+    private final double staleReadRatio;
+
+    /** The time constant of the decay in milliseconds. */
+    private final double decayTime;
+
+    /** The decayed write counts of the key ranges. Guarded by <code>this</code>. */
+    private final double[][] counts = new double[SEEDS.length][WIDTH];
+
+    /** The last update of the counters. Guarded by <code>this</code>. */
+    private final long[][] updated = new long[SEEDS.length][WIDTH];
+
+    /** The decayed write count of the region. Guarded by <code>this</code>. */
+    private double regionCount;
+
+    /** The last update of the <code>regionCount</code>. Guarded by <code>this</code>. */
+    private long regionUpdated;
+
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * @param maxStaleness The maximum time-to-live in milliseconds. (Positive)
+     * @param staleReadRatio The targeted ratio of the stale reads. (Positive)
+     */
+    public AdaptiveTtl(final long maxStaleness, final double staleReadRatio) {
+        if (maxStaleness <= 0 || staleReadRatio <= 0) {
+            throw new IllegalArgumentException("The maximum staleness and the stale read ratio have to be positive: " + maxStaleness + ", " + staleReadRatio);
+        }
+        this.maxStaleness = maxStaleness;
+        this.minTtl = Math.max(1, maxStaleness / MIN_TTL_DIVISOR);
+        this.staleReadRatio = staleReadRatio;
+        this.decayTime = (double) maxStaleness * DECAY_WINDOWS;
+    }
+
+    /**
+     * Records an update or a removal of the entry.
+     *
+     * @param key The key of the entry. (NonNull)
+     * @param now The current time in milliseconds.
+     */
+    public synchronized void recordWrite(final Object key, final long now) {
+        final int hash = key.hashCode();
+        for (int row = 0; row < SEEDS.length; row++) {
+            final int index = indexOf(hash, row);
+            counts[row][index] = decay(counts[row][index], updated[row][index], now) + 1;
+            updated[row][index] = now;
+        }
+        regionCount = decay(regionCount, regionUpdated, now) + 1;
+        regionUpdated = now;
+        writeCount.incrementAndGet();
+    }
+
+    /**
+     * @param key The key of the entry. (NonNull)
+     * @param now The current time in milliseconds.
+     * @return The time-to-live of the entry loaded now in milliseconds.
+     */
+    public synchronized long getTtl(final Object key, final long now) {
+        final int hash = key.hashCode();
+        double count = Double.MAX_VALUE;
+        for (int row = 0; row < SEEDS.length; row++) {
+            final int index = indexOf(hash, row);
+            count = Math.min(count, decay(counts[row][index], updated[row][index], now));
+        }
+        if (count <= 0) {
+            return maxStaleness;
+        }
+        /* The decayed count of a steady write rate is rate * decayTime. */
+        final double ttl = 2 * staleReadRatio * decayTime / count;
+        return ttl >= maxStaleness ? maxStaleness : Math.max(minTtl, (long) ttl);
+    }
+
+    /**
+     * @param now The current time in milliseconds.
+     * @return The recent write rate of the region in writes per second.
+     */
+    public synchronized double getWriteRate(final long now) {
+        return decay(regionCount, regionUpdated, now) * 1000 / decayTime;
+    }
+
+    /** Records that an expired entry has been read. */
+    void recordExpired() {
+        expiredCount.incrementAndGet();
+    }
+
+    /**
+     * @return The maximum time-to-live in milliseconds.
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * @return The number of the recorded writes.
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * @return The number of the expired entries read.
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    private double decay(final double count, final long updatedAt, final long now) {
+        return now <= updatedAt ? count : count * Math.exp((updatedAt - now) / decayTime);
+    }
+
+    private static int indexOf(final int hash, final int row) {
+        final int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+        return (h >>> 16) & (WIDTH - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveTtl{maxStaleness=" + maxStaleness + ",staleReadRatio=" + staleReadRatio + ",writes=" + writeCount + ",expired=" + expiredCount + "}";
+    }
+
+}
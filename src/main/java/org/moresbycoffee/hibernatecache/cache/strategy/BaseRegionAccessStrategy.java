@@ -0,0 +1,290 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.moresbycoffee.hibernatecache.cache.region.BaseTransactionalDataRegion;
+import org.moresbycoffee.hibernatecache.cache.region.NegativeCache;
+import org.moresbycoffee.hibernatecache.cache.stat.CacheMisses;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies.Operation;
+import org.moresbycoffee.hibernatecache.cache.stat.MissReason;
+import org.moresbycoffee.hibernatecache.cache.store.CacheStore;
+
+/**
+ * Base class of the region access strategies.
+ * <p>
+ * If the <code>coalesce.timeout</code> of the region is set the concurrent misses of the same key are
+ * coalesced by {@link InFlightLoads}: only the first thread loads the entry from the database, the others
+ * get the value it puts into the region if it is visible to their transactions, see {@link #isLoadVisible(long)}.
+ * <p>
+ * The misses are attributed to their {@link MissReason}s by {@link #missReason(Object, long, CacheMisses)}
+ * while the {@link CacheMisses} of the region are enabled, the hits aren't affected.
+ *
+ * @param <T> The type of the region.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+abstract class BaseRegionAccessStrategy<T extends BaseTransactionalDataRegion> implements PeekableAccessStrategy {
+
+    private final T region;
+
+    /** The loads of the missing keys, <tt>null</tt> if the misses aren't coalesced. */
+    private final InFlightLoads inFlightLoads;
+
+    /**
+     * @param region The region accessed by the strategy. (NonNull)
+     */
+    protected BaseRegionAccessStrategy(final T region) {
+        this.region = region;
+        final long coalesceTimeout = region.getCacheSettings().getCoalesceTimeout(region.getName());
+        this.inFlightLoads = coalesceTimeout > 0 ? new InFlightLoads(coalesceTimeout) : null;
+    }
+
+    /**
+     * @return The region accessed by the strategy. (NonNull)
+     */
+    protected final T region() {
+        return region;
+    }
+
+    /**
+     * @return The loads of the missing keys or <tt>null</tt> if the misses aren't coalesced.
+     */
+    public InFlightLoads getInFlightLoads() {
+        return inFlightLoads;
+    }
+
+    /**
+     * Returns the cached value or the value loaded by a concurrent miss of the key.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#get(Object, long)
+     */
+    public final Object get(final Object key, final long txTimestamp) throws CacheException {
+        final Latencies latencies = region.getLatencies();
+        if (latencies == null) {
+            return attributed(key, txTimestamp, coalescedRead(key, txTimestamp));
+        }
+        final long start = latencies.start();
+        final Object value = coalescedRead(key, txTimestamp);
+        latencies.finish(value != null ? Operation.GET_HIT : Operation.GET_MISS, start);
+        return attributed(key, txTimestamp, value);
+    }
+
+    /**
+     * Records the reason of the miss if the value is <tt>null</tt>.
+     * @return The value.
+     */
+    private Object attributed(final Object key, final long txTimestamp, final Object value) {
+        if (value == null) {
+            final CacheMisses misses = region.getMisses();
+            if (misses != null && misses.isEnabled()) {
+                misses.recordMiss(key, region.getName(), missReason(key, txTimestamp, misses));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns why the entry of the key can't be read by the transaction. It is called after a miss
+     * only, it may read the store again. By default the entry is {@link MissReason#EVICTED} if the key
+     * has been cached recently, otherwise it is {@link MissReason#MISSING}.
+     *
+     * @param key The key of the entry. (NonNull)
+     * @param txTimestamp The start of the transaction.
+     * @param misses The attribution of the misses of the region. (NonNull)
+     * @return The reason of the miss. (NonNull)
+     */
+    protected MissReason missReason(final Object key, final long txTimestamp, final CacheMisses misses) {
+        return misses.missingReason(key);
+    }
+
+    /**
+     * Remembers the key put into the region, so its miss is {@link MissReason#EVICTED} after it is removed.
+     *
+     * @param key The key of the entry. (NonNull)
+     */
+    protected final void recordCached(final Object key) {
+        final CacheMisses misses = region.getMisses();
+        if (misses != null) {
+            misses.recordCached(key);
+        }
+    }
+
+    private Object coalescedRead(final Object key, final long txTimestamp) {
+        final Object value = read(key, txTimestamp);
+        if (value != null || inFlightLoads == null) {
+            return value;
+        }
+        final Object loaded = inFlightLoads.join(key);
+        if (loaded != null && !isLoadVisible(txTimestamp)) {
+            inFlightLoads.recordRefused();
+            return null;
+        }
+        return loaded;
+    }
+
+    /**
+     * @param key The key of the entry. (NonNull)
+     * @param txTimestamp The start of the transaction.
+     * @return The cached value if it is readable by the transaction. (Nullable)
+     * @throws CacheException If the store fails.
+     */
+    protected abstract Object read(Object key, long txTimestamp) throws CacheException;
+
+    @Override
+    public final boolean contains(final Object key, final long txTimestamp) {
+        return peek(key, txTimestamp) != null;
+    }
+
+    /**
+     * @param key The key of the entry. (NonNull)
+     * @param txTimestamp The start of the transaction.
+     * @return The cached value if it is readable by the transaction, it is read by {@link CacheStore#peek(Object)}. (Nullable)
+     * @throws CacheException If the store fails.
+     */
+    protected abstract Object peek(Object key, long txTimestamp) throws CacheException;
+
+    /**
+     * Returns whether a value loaded by a concurrent miss and accepted by the region can be handed to a
+     * transaction. The loaded value is the committed state of the entry when it was loaded, so by
+     * default it can be handed to any transaction which would read the entry from the database.
+     *
+     * @param txTimestamp The start of the transaction.
+     * @return <tt>true</tt> if the transaction can read the value loaded by another thread.
+     */
+    protected boolean isLoadVisible(final long txTimestamp) {
+        return true;
+    }
+
+    /**
+     * Puts the loaded value into the cache using the minimal puts setting of the session factory.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#putFromLoad(Object, Object, long, Object)
+     */
+    public final boolean putFromLoad(final Object key, final Object value, final long txTimestamp, final Object version) throws CacheException {
+        return putFromLoad(key, value, txTimestamp, version, region.getSettings().isMinimalPutsEnabled());
+    }
+
+    /**
+     * Puts the loaded value into the cache and hands it to the misses waiting for it if it has been accepted.
+     * The load of the key is completed even if the value is refused (e.g. minimal put or a soft lock), the misses
+     * waiting for it load the entry themselves.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#putFromLoad(Object, Object, long, Object, boolean)
+     */
+    public final boolean putFromLoad(final Object key, final Object value, final long txTimestamp, final Object version, final boolean minimalPutOverride) throws CacheException {
+        final Latencies latencies = region.getLatencies();
+        final long start = latencies != null ? latencies.start() : 0;
+        boolean put = false;
+        try {
+            put = putLoaded(key, value, txTimestamp, version, minimalPutOverride);
+            if (put) {
+                recordCached(key);
+            }
+            return put;
+        } finally {
+            if (inFlightLoads != null) {
+                inFlightLoads.complete(key, put ? value : null);
+            }
+            if (latencies != null) {
+                latencies.finish(Operation.PUT, start);
+            }
+        }
+    }
+
+    /**
+     * @param key The key of the entry. (NonNull)
+     * @param value The loaded value. (NonNull)
+     * @param txTimestamp The start of the transaction which has loaded the value.
+     * @param version The version of the value. (Nullable)
+     * @param minimalPutOverride <tt>true</tt> if the value shouldn't be put when the key is already cached.
+     * @return <tt>true</tt> if the value has been put into the cache.
+     * @throws CacheException If the store fails.
+     */
+    protected abstract boolean putLoaded(Object key, Object value, long txTimestamp, Object version, boolean minimalPutOverride) throws CacheException;
+
+    /**
+     * Region locks are not supported, returns <tt>null</tt>.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#lockRegion()
+     */
+    public SoftLock lockRegion() throws CacheException {
+        return null;
+    }
+
+    /**
+     * Clears the region.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#unlockRegion(SoftLock)
+     */
+    public void unlockRegion(final SoftLock lock) throws CacheException {
+        evictAll();
+    }
+
+    /**
+     * NOP by default, the entry is handled by the soft locks.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#remove(Object)
+     */
+    public void remove(final Object key) throws CacheException {
+        /* NOP */
+    }
+
+    /**
+     * Clears the region.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#removeAll()
+     */
+    public void removeAll() throws CacheException {
+        evictAll();
+    }
+
+    /**
+     * Evicts the entry and the negative entry of the key.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#evict(Object)
+     */
+    public void evict(final Object key) throws CacheException {
+        region.getStore().remove(key);
+        final NegativeCache negativeCache = region.getNegativeCache();
+        if (negativeCache != null) {
+            negativeCache.remove(key);
+        }
+    }
+
+    /**
+     * Evicts the entries and the negative entries of the region, e.g. after a bulk operation.
+     * @see org.hibernate.cache.spi.access.RegionAccessStrategy#evictAll()
+     */
+    public void evictAll() throws CacheException {
+        region.getStore().clear();
+        final NegativeCache negativeCache = region.getNegativeCache();
+        if (negativeCache != null) {
+            negativeCache.clear();
+        }
+    }
+
+}
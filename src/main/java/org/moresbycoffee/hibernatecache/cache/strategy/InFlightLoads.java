@@ -0,0 +1,236 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the concurrent misses of the same key of an entity or collection region.
+ * <p>
+ * The first thread missing a key becomes the leader of the load: it gets <tt>null</tt> and
+ * loads the entry from the database. The threads missing the same key meanwhile wait for the
+ * leader, at most for the timeout, and get the value the leader puts into the region. If the
+ * region refuses the value of the leader (e.g. a concurrent write has locked the entry), the
+ * timeout expires or the waiting thread is interrupted, the waiting thread gets <tt>null</tt>
+ * and loads the entry itself.
+ * <p>
+ * A load is completed by the <code>putFromLoad</code> of the leader thread, with <tt>null</tt> if the
+ * value has been refused. If the leader doesn't put the value (the row doesn't exist or the cache mode
+ * doesn't put) the load is completed with <tt>null</tt> by the {@link InFlightLoadsListener} after the load.
+ * Only a failed load expires after the timeout (then the next miss of the key starts a new load), so the
+ * timeout should be about the time of a single row load.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class InFlightLoads {
+
+    /** The expired loads are purged when there are more loads in flight. */
+    static final int PURGE_THRESHOLD = 1024;
+
+    private final long timeout;
+
+    private final ConcurrentMap<Object, Load> loads = new ConcurrentHashMap<Object, Load>();
+
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    /**
+     * @param timeout The maximum time in milliseconds a miss waits for the leader. (Positive)
+     */
+    public InFlightLoads(final long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("The timeout has to be positive: " + timeout);
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts a load of the key or waits for the load in flight.
+     *
+     * @param key The missing key. (NonNull)
+     * @return The value loaded by the leader thread or <tt>null</tt> if the current
+     *         thread has to load the entry. (Nullable)
+     */
+    Object join(final Object key) {
+        final Thread current = Thread.currentThread();
+        while (true) {
+            final long now = System.currentTimeMillis();
+            final Load load = loads.get(key);
+            if (load == null) {
+                if (loads.putIfAbsent(key, new Load(current, now)) == null) {
+                    started();
+                    return null;
+                }
+                continue;
+            }
+            if (load.leader == current) {
+                return null;
+            }
+            final long remaining = load.started + timeout - now;
+            if (remaining <= 0) {
+                if (loads.replace(key, load, new Load(current, now))) {
+                    load.complete(null);
+                    started();
+                    return null;
+                }
+                continue;
+            }
+            try {
+                if (!load.latch.await(remaining, TimeUnit.MILLISECONDS)) {
+                    fallbackCount.incrementAndGet();
+                    return null;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fallbackCount.incrementAndGet();
+                return null;
+            }
+            final Object value = load.value;
+            if (value == null) {
+                fallbackCount.incrementAndGet();
+            } else {
+                coalescedCount.incrementAndGet();
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Completes the load of the key if it has been started by the current thread.
+     *
+     * @param key The loaded key. (NonNull)
+     * @param value The value handed to the waiting threads or <tt>null</tt> if they have to load the entry themselves. (Nullable)
+     */
+    void complete(final Object key, final Object value) {
+        final Load load = loads.get(key);
+        if (load != null && load.leader == Thread.currentThread() && loads.remove(key, load)) {
+            load.complete(value);
+        }
+    }
+
+    /** Records a value of a leader refused by a waiting thread. */
+    void recordRefused() {
+        coalescedCount.decrementAndGet();
+        fallbackCount.incrementAndGet();
+    }
+
+    private void started() {
+        loadCount.incrementAndGet();
+        if (loads.size() > PURGE_THRESHOLD) {
+            final long now = System.currentTimeMillis();
+            for (final Iterator<Map.Entry<Object, Load>> it = loads.entrySet().iterator(); it.hasNext();) {
+                final Load load = it.next().getValue();
+                if (load.started + timeout <= now) {
+                    it.remove();
+                    load.complete(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The maximum time in milliseconds a miss waits for the leader.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return The number of the loads started by the misses.
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return The number of the misses served by the load of another thread.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return The number of the misses which have waited for another thread but loaded the entry themselves.
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    /**
+     * @return The number of the loads in flight.
+     */
+    public int getInFlightCount() {
+        return loads.size();
+    }
+
+    @Override
+    public String toString() {
+        return "InFlightLoads{timeout=" + timeout + ",loads=" + loadCount + ",coalesced=" + coalescedCount + ",fallbacks=" + fallbackCount + "}";
+    }
+
+    /**
+     * A load in flight.
+     */
+    private static final class Load {
+
+        private final Thread leader;
+
+        private final long started;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        /** The loaded value, it is published by the <code>latch</code>. */
+        private volatile Object value;
+
+        private Load(final Thread leader, final long started) {
+            this.leader = leader;
+            this.started = started;
+        }
+
+        private synchronized void complete(final Object loaded) {
+            if (latch.getCount() > 0) {
+                value = loaded;
+                latch.countDown();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import java.io.Serializable;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cache.spi.access.RegionAccessStrategy;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.CollectionEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.InitializeCollectionEvent;
+import org.hibernate.event.spi.InitializeCollectionEventListener;
+import org.hibernate.event.spi.LoadEvent;
+import org.hibernate.event.spi.LoadEventListener;
+import org.hibernate.event.spi.PostLoadEvent;
+import org.hibernate.event.spi.PostLoadEventListener;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Completes the {@link InFlightLoads} still led by the current thread after its entity or collection has been loaded
+ * without an accepted <code>putFromLoad</code>, so the waiting misses load the entry themselves immediately:
+ * <ul>
+ * <li>after an entity has been loaded, e.g. the cache mode (<code>GET</code>, <code>IGNORE</code>) hasn't put it,</li>
+ * <li>after a load has found no row,</li>
+ * <li>after a collection has been initialized.</li>
+ * </ul>
+ * The loads put into the region have been completed by the <code>putFromLoad</code> already, the listener finds
+ * no load for them.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class InFlightLoadsListener implements PostLoadEventListener, LoadEventListener, InitializeCollectionEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void onPostLoad(final PostLoadEvent event) {
+        completeEntity(event.getSession(), event.getPersister(), event.getId());
+    }
+
+    /**
+     * It is registered after the load listeners loading the entities, so it completes the loads of the missing rows.
+     */
+    @Override
+    public void onLoad(final LoadEvent event, final LoadType loadType) throws HibernateException {
+        if (event.getResult() == null && event.getEntityClassName() != null) {
+            final EventSource session = event.getSession();
+            completeEntity(session, session.getFactory().getEntityPersister(event.getEntityClassName()), event.getEntityId());
+        }
+    }
+
+    /**
+     * It is registered after the listeners initializing the collections.
+     */
+    @Override
+    public void onInitializeCollection(final InitializeCollectionEvent event) throws HibernateException {
+        final EventSource session = event.getSession();
+        final PersistentCollection collection = event.getCollection();
+        final CollectionEntry entry = session.getPersistenceContext().getCollectionEntry(collection);
+        if (entry == null || entry.getLoadedPersister() == null || entry.getLoadedKey() == null) {
+            return;
+        }
+        final CollectionPersister persister = entry.getLoadedPersister();
+        final InFlightLoads inFlightLoads = persister.hasCache() ? inFlightLoadsOf(persister.getCacheAccessStrategy()) : null;
+        if (inFlightLoads != null) {
+            inFlightLoads.complete(session.generateCacheKey(entry.getLoadedKey(), persister.getKeyType(), persister.getRole()), null);
+        }
+    }
+
+    private static void completeEntity(final SessionImplementor session, final EntityPersister persister, final Serializable id) {
+        final InFlightLoads inFlightLoads = persister != null && persister.hasCache() ? inFlightLoadsOf(persister.getCacheAccessStrategy()) : null;
+        if (inFlightLoads != null && id != null) {
+            inFlightLoads.complete(session.generateCacheKey(id, persister.getIdentifierType(), persister.getRootEntityName()), null);
+        }
+    }
+
+    /**
+     * @return The loads of the strategy or <tt>null</tt> if the misses of its region aren't coalesced.
+     */
+    private static InFlightLoads inFlightLoadsOf(final RegionAccessStrategy strategy) {
+        return strategy instanceof BaseRegionAccessStrategy ? ((BaseRegionAccessStrategy<?>) strategy).getInFlightLoads() : null;
+    }
+
+}
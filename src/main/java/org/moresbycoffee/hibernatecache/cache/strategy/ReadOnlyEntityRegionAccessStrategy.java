@@ -0,0 +1,87 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.moresbycoffee.hibernatecache.cache.region.EntityRegionImpl;
+
+/**
+ * {@link org.hibernate.cache.spi.access.AccessType#READ_ONLY Read-only} entity region access strategy.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class ReadOnlyEntityRegionAccessStrategy extends AbstractReadOnlyAccessStrategy<EntityRegionImpl> implements EntityRegionAccessStrategy {
+
+    /**
+     * @param region The region accessed by the strategy. (NonNull)
+     */
+    public ReadOnlyEntityRegionAccessStrategy(final EntityRegionImpl region) {
+        super(region);
+    }
+
+    @Override
+    public EntityRegion getRegion() {
+        return region();
+    }
+
+    @Override
+    public boolean insert(final Object key, final Object value, final Object version) throws CacheException {
+        return false;
+    }
+
+    @Override
+    public boolean afterInsert(final Object key, final Object value, final Object version) throws CacheException {
+        region().getStore().put(key, value);
+        recordCached(key);
+        return true;
+    }
+
+    /**
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public boolean update(final Object key, final Object value, final Object currentVersion, final Object previousVersion) throws CacheException {
+        throw new UnsupportedOperationException("Can't write to a readonly object");
+    }
+
+    /**
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public boolean afterUpdate(final Object key, final Object value, final Object currentVersion, final Object previousVersion, final SoftLock lock) throws CacheException {
+        throw new UnsupportedOperationException("Can't write to a readonly object");
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactCodec;
+import org.moresbycoffee.hibernatecache.cache.region.EntityRegionImpl;
+
+/**
+ * {@link org.hibernate.cache.spi.access.AccessType#READ_WRITE Read-write} entity region access strategy.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class ReadWriteEntityRegionAccessStrategy extends AbstractReadWriteAccessStrategy<EntityRegionImpl> implements EntityRegionAccessStrategy {
+
+    /**
+     * @param region The region accessed by the strategy. (NonNull)
+     */
+    public ReadWriteEntityRegionAccessStrategy(final EntityRegionImpl region) {
+        super(region);
+    }
+
+    /**
+     * Registers the codecs of the entries of the read-write entity and collection regions.
+     *
+     * @param codec The codec of the region factory. (NonNull)
+     */
+    public static void registerCodecs(final CompactCodec codec) {
+        codec.register(ITEM_TAG, Item.class, Item.CODEC);
+        codec.register(LOCK_TAG, Lock.class, Lock.CODEC);
+    }
+
+    @Override
+    public EntityRegion getRegion() {
+        return region();
+    }
+
+    /**
+     * The entity is put into the cache after the transaction has been committed,
+     * but the region is written from now on.
+     */
+    @Override
+    public boolean insert(final Object key, final Object value, final Object version) throws CacheException {
+        markWrite();
+        return false;
+    }
+
+    @Override
+    public boolean afterInsert(final Object key, final Object value, final Object version) throws CacheException {
+        return putAfterInsert(key, value, version);
+    }
+
+    /**
+     * The entity is put into the cache after the transaction has been committed.
+     */
+    @Override
+    public boolean update(final Object key, final Object value, final Object currentVersion, final Object previousVersion) throws CacheException {
+        return false;
+    }
+
+    @Override
+    public boolean afterUpdate(final Object key, final Object value, final Object currentVersion, final Object previousVersion, final SoftLock lock) throws CacheException {
+        return putAfterUpdate(key, value, currentVersion, lock);
+    }
+
+}
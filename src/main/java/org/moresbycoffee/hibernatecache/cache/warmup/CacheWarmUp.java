@@ -0,0 +1,519 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.warmup;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cache.spi.entry.CacheEntry;
+import org.hibernate.cache.spi.entry.CollectionCacheEntry;
+import org.hibernate.collection.internal.PersistentBag;
+import org.hibernate.collection.internal.PersistentSet;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.BagType;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.SetType;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory;
+
+/**
+ * Loads the entity and collection regions having the {@link CacheSettings#WARMUP} property
+ * when the session factory starts, so the database doesn't take the full load after a
+ * deploy until the traffic has populated the regions.
+ * <p>
+ * The identifiers of a region are split into ranges of {@link CacheSettings#WARMUP_CHUNK_SIZE}
+ * which are read in parallel by {@link CacheSettings#WARMUP_THREADS} threads. Every range is scrolled
+ * by its own {@link StatelessSession} and the rows are put straight into the region by
+ * {@link org.hibernate.cache.spi.access.RegionAccessStrategy#putFromLoad putFromLoad} with minimal puts,
+ * so the entries loaded by the sessions meanwhile are kept and the read-write regions
+ * don't accept rows read before a concurrent update.
+ * The regions of entities without integral identifier are read by a single task.
+ * Only the set and bag collections keyed by the identifier of their owner and without ordering are loaded.
+ * <p>
+ * The warm-up runs in the background, the session factory can be used meanwhile.
+ * {@link #isReady()} and {@link #awaitReady(long, TimeUnit)} report when it has finished.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class CacheWarmUp {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(CacheWarmUp.class);
+
+    /** The number of rows fetched by a round trip of a warm-up task. */
+    private static final int FETCH_SIZE = 1000;
+
+    private final CacheSettings cacheSettings;
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    /** The number of the submitted and not yet finished tasks. */
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+
+    private final AtomicLong entryCount = new AtomicLong();
+
+    private volatile long startTime;
+
+    private volatile long duration = -1;
+
+    private SessionFactoryImplementor sessionFactory;
+
+    private ExecutorService executor;
+
+    /**
+     * @param cacheSettings The configuration of the regions. (NonNull)
+     */
+    public CacheWarmUp(final CacheSettings cacheSettings) {
+        this.cacheSettings = cacheSettings;
+    }
+
+    /**
+     * @param sessionFactory The session factory. (NonNull)
+     * @return The warm-up of the session factory, <tt>null</tt> if it doesn't use the {@link TinyLfuRegionFactory}.
+     */
+    public static CacheWarmUp of(final SessionFactoryImplementor sessionFactory) {
+        final RegionFactory regionFactory = sessionFactory.getSettings().getRegionFactory();
+        return regionFactory instanceof TinyLfuRegionFactory ? ((TinyLfuRegionFactory) regionFactory).getWarmUp() : null;
+    }
+
+    /**
+     * Starts loading the configured regions in the background.
+     * It is called by the {@link CacheWarmUpIntegrator} when the session factory has been created.
+     *
+     * @param sessionFactory The session factory the regions belong to. (NonNull)
+     * @throws IllegalStateException If the warm-up has already been started.
+     */
+    public synchronized void start(final SessionFactoryImplementor sessionFactory) {
+        if (this.sessionFactory != null) {
+            throw new IllegalStateException("The cache warm-up has already been started.");
+        }
+        this.sessionFactory = sessionFactory;
+        this.startTime = System.currentTimeMillis();
+
+        final List<RegionLoader> loaders = new ArrayList<RegionLoader>();
+        for (final String entityName : sessionFactory.getAllClassMetadata().keySet()) {
+            final EntityPersister persister = sessionFactory.getEntityPersister(entityName);
+            /* The subclasses are stored in the region of the root entity. */
+            if (persister.hasCache() && persister.getEntityName().equals(persister.getRootEntityName())
+                    && cacheSettings.isWarmUp(persister.getCacheAccessStrategy().getRegion().getName())) {
+                loaders.add(new EntityLoader(persister));
+            }
+        }
+        @SuppressWarnings("unchecked")
+        final Set<String> roles = sessionFactory.getAllCollectionMetadata().keySet();
+        for (final String role : roles) {
+            final CollectionPersister persister = sessionFactory.getCollectionPersister(role);
+            if (persister.hasCache() && cacheSettings.isWarmUp(persister.getCacheAccessStrategy().getRegion().getName())) {
+                if (isSupported(persister)) {
+                    loaders.add(new CollectionLoader(persister));
+                } else {
+                    LOG.warn("The " + role + " collection can't be warmed up, only the unordered sets and bags are supported.");
+                }
+            }
+        }
+
+        if (loaders.isEmpty()) {
+            duration = 0;
+            ready.countDown();
+            return;
+        }
+        final int threads = cacheSettings.getWarmUpThreads();
+        LOG.info("Warming up " + loaders.size() + " regions with " + threads + " threads.");
+        executor = Executors.newFixedThreadPool(threads, new WarmUpThreadFactory());
+        pendingTasks.set(loaders.size());
+        for (final RegionLoader loader : loaders) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        split(loader);
+                    } catch (final RuntimeException e) {
+                        LOG.warn("The warm-up of the " + loader.getRegionName() + " region has failed.", e);
+                    } finally {
+                        taskFinished();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the running tasks. It is called when the session factory is closed.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if every configured region has been loaded.
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Waits until every configured region has been loaded.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the <code>timeout</code>. (NonNull)
+     * @return <code>true</code> if the warm-up has finished, <code>false</code> if the waiting time elapsed.
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    public boolean awaitReady(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    /**
+     * @return The number of the entries put into the regions so far.
+     */
+    public long getEntryCount() {
+        return entryCount.get();
+    }
+
+    /**
+     * @return The time the warm-up took in milliseconds, <code>-1</code> until it is {@link #isReady() ready}.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Submits the tasks loading the ranges of the identifiers of the region.
+     */
+    private void split(final RegionLoader loader) {
+        final EntityPersister owner = loader.getOwner();
+        final long chunkSize = cacheSettings.getWarmUpChunkSize(loader.getRegionName());
+        final Class<?> idClass = owner.getIdentifierType().getReturnedClass();
+        if (!(Long.class.equals(idClass) || Integer.class.equals(idClass) || Short.class.equals(idClass))) {
+            submit(loader, null, null);
+            return;
+        }
+
+        final Object[] range;
+        final StatelessSession session = sessionFactory.openStatelessSession();
+        try {
+            final String id = "o." + idPath(owner);
+            range = (Object[]) session.createQuery("select min(" + id + "), max(" + id + ") from " + owner.getEntityName() + " o").uniqueResult();
+        } finally {
+            session.close();
+        }
+        if (range[0] == null) {
+            return;
+        }
+        final long min = ((Number) range[0]).longValue();
+        final long max = ((Number) range[1]).longValue();
+        for (long from = min; from <= max; from += chunkSize) {
+            final long to = max - from < chunkSize ? max : from + chunkSize - 1;
+            submit(loader, toIdentifier(from, idClass), toIdentifier(to, idClass));
+            if (to == max) {
+                break;
+            }
+        }
+    }
+
+    private void submit(final RegionLoader loader, final Object from, final Object to) {
+        pendingTasks.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final StatelessSession session = sessionFactory.openStatelessSession();
+                try {
+                    final long loaded = loader.load((SessionImplementor) session, from, to);
+                    entryCount.addAndGet(loaded);
+                    LOG.debug("Warm-up of the " + loader.getRegionName() + " region put " + loaded + " entries"
+                              + (from == null ? "." : " between " + from + " and " + to + "."));
+                } catch (final RuntimeException e) {
+                    LOG.warn("The warm-up of the " + loader.getRegionName() + " region has failed between " + from + " and " + to + ".", e);
+                } finally {
+                    session.close();
+                    taskFinished();
+                }
+            }
+        });
+    }
+
+    private void taskFinished() {
+        if (pendingTasks.decrementAndGet() == 0) {
+            finish();
+            executor.shutdown();
+        }
+    }
+
+    private void finish() {
+        duration = System.currentTimeMillis() - startTime;
+        ready.countDown();
+        LOG.info("Cache warm-up finished in " + duration + " ms, " + entryCount.get() + " entries have been loaded.");
+    }
+
+    private static boolean isSupported(final CollectionPersister persister) {
+        final CollectionType type = persister.getCollectionType();
+        return (type instanceof SetType || type instanceof BagType) && type.getLHSPropertyName() == null && !persister.hasOrdering();
+    }
+
+    /**
+     * @return The path of the identifier in the HQL queries. (NonNull)
+     */
+    static String idPath(final EntityPersister persister) {
+        final String name = persister.getIdentifierPropertyName();
+        return name != null ? name : "id";
+    }
+
+    private static Object toIdentifier(final long value, final Class<?> idClass) {
+        if (Integer.class.equals(idClass)) {
+            return Integer.valueOf((int) value);
+        } else if (Short.class.equals(idClass)) {
+            return Short.valueOf((short) value);
+        }
+        return Long.valueOf(value);
+    }
+
+    /**
+     * @return The query scrolling the rows of the owners with identifier between <code>from</code>
+     *         and <code>to</code>, or all the rows if they are <tt>null</tt>. (NonNull)
+     */
+    private static ScrollableResults scroll(final SessionImplementor session, final EntityPersister owner, final String select,
+                                            final String orderBy, final Object from, final Object to) {
+        final String hql = from == null ? select + orderBy : select + " where o." + idPath(owner) + " between :from and :to" + orderBy;
+        final Query query = ((StatelessSession) session).createQuery(hql);
+        if (from != null) {
+            query.setParameter("from", from).setParameter("to", to);
+        }
+        return query.setReadOnly(true).setFetchSize(FETCH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    /**
+     * @param session The stateless session the entity has been loaded by. (NonNull)
+     * @param persister The persister of the entity. (NonNull)
+     * @param entity The loaded entity. (NonNull)
+     * @return The structured cache entry of the entity. (NonNull)
+     */
+    static Object toCacheEntry(final SessionImplementor session, final EntityPersister persister, final Object entity) {
+        final Serializable id = persister.getIdentifier(entity, session);
+        final Object version = persister.getVersion(entity);
+        final Object[] state = persister.getPropertyValues(entity);
+        final EntityKey entityKey = session.generateEntityKey(id, persister);
+
+        /* The collection properties are disassembled by the key of the owner found in the persistence context. */
+        final PersistenceContext persistenceContext = session.getPersistenceContext();
+        persistenceContext.addEntity(entity, Status.READ_ONLY, state, entityKey, version, LockMode.NONE, true, persister, false, false);
+        try {
+            final CacheEntry entry = new CacheEntry(state, persister, persister.hasUninitializedLazyProperties(entity), version, session, entity);
+            return persister.getCacheEntryStructure().structure(entry);
+        } finally {
+            persistenceContext.removeEntry(entity);
+            persistenceContext.removeEntity(entityKey);
+        }
+    }
+
+    /**
+     * Loads a region.
+     */
+    private interface RegionLoader {
+
+        /**
+         * @return The name of the region. (NonNull)
+         */
+        String getRegionName();
+
+        /**
+         * @return The entity the identifier ranges are taken from. (NonNull)
+         */
+        EntityPersister getOwner();
+
+        /**
+         * @param session The stateless session of the task. (NonNull)
+         * @param from The first identifier or <tt>null</tt> to load the whole region.
+         * @param to The last identifier or <tt>null</tt> to load the whole region.
+         * @return The number of the entries put into the region.
+         */
+        long load(SessionImplementor session, Object from, Object to);
+
+    }
+
+    private static final class EntityLoader implements RegionLoader {
+
+        private final EntityPersister persister;
+
+        EntityLoader(final EntityPersister persister) {
+            this.persister = persister;
+        }
+
+        @Override
+        public String getRegionName() {
+            return persister.getCacheAccessStrategy().getRegion().getName();
+        }
+
+        @Override
+        public EntityPersister getOwner() {
+            return persister;
+        }
+
+        @Override
+        public long load(final SessionImplementor session, final Object from, final Object to) {
+            /* Taken before the rows are read, the read-write regions reject the rows updated meanwhile. */
+            final long timestamp = persister.getCacheAccessStrategy().getRegion().nextTimestamp();
+            final ScrollableResults results = scroll(session, persister, "from " + persister.getEntityName() + " o", "", from, to);
+            long count = 0;
+            try {
+                while (results.next()) {
+                    final Object entity = results.get(0);
+                    if (put(session, persister.getSubclassEntityPersister(entity, session.getFactory()), entity, timestamp)) {
+                        count++;
+                    }
+                }
+            } finally {
+                results.close();
+            }
+            return count;
+        }
+
+        private static boolean put(final SessionImplementor session, final EntityPersister persister, final Object entity, final long timestamp) {
+            final Serializable id = persister.getIdentifier(entity, session);
+            final CacheKey cacheKey = session.generateCacheKey(id, persister.getIdentifierType(), persister.getRootEntityName());
+            return persister.getCacheAccessStrategy().putFromLoad(cacheKey, toCacheEntry(session, persister, entity), timestamp, persister.getVersion(entity), true);
+        }
+
+    }
+
+    private static final class CollectionLoader implements RegionLoader {
+
+        private final CollectionPersister persister;
+
+        CollectionLoader(final CollectionPersister persister) {
+            this.persister = persister;
+        }
+
+        @Override
+        public String getRegionName() {
+            return persister.getCacheAccessStrategy().getRegion().getName();
+        }
+
+        @Override
+        public EntityPersister getOwner() {
+            return persister.getOwnerEntityPersister();
+        }
+
+        /**
+         * Reads the owners joined with their elements ordered by the owner, the owners
+         * without elements are cached with empty collections.
+         */
+        @Override
+        public long load(final SessionImplementor session, final Object from, final Object to) {
+            final EntityPersister owner = getOwner();
+            final String id = "o." + idPath(owner);
+            final String version = persister.isVersioned() ? ", o." + owner.getPropertyNames()[owner.getVersionProperty()] : "";
+            final String property = persister.getRole().substring(owner.getEntityName().length() + 1);
+
+            final long timestamp = persister.getCacheAccessStrategy().getRegion().nextTimestamp();
+            final ScrollableResults results = scroll(session, owner, "select " + id + version + ", e from " + owner.getEntityName() + " o left join o." + property + " e",
+                                                     " order by " + id, from, to);
+            long count = 0;
+            try {
+                Object ownerId = null;
+                Object ownerVersion = null;
+                List<Object> elements = null;
+                while (results.next()) {
+                    final Object[] row = results.get();
+                    if (elements != null && !row[0].equals(ownerId)) {
+                        count += put(session, ownerId, ownerVersion, elements, timestamp) ? 1 : 0;
+                        elements = null;
+                    }
+                    if (elements == null) {
+                        ownerId = row[0];
+                        ownerVersion = persister.isVersioned() ? row[1] : null;
+                        elements = new ArrayList<Object>();
+                    }
+                    if (row[row.length - 1] != null) {
+                        elements.add(row[row.length - 1]);
+                    }
+                }
+                if (elements != null) {
+                    count += put(session, ownerId, ownerVersion, elements, timestamp) ? 1 : 0;
+                }
+            } finally {
+                results.close();
+            }
+            return count;
+        }
+
+        private boolean put(final SessionImplementor session, final Object ownerId, final Object ownerVersion, final List<Object> elements, final long timestamp) {
+            final PersistentCollection collection = persister.getCollectionType() instanceof SetType
+                    ? new PersistentSet(session, new LinkedHashSet<Object>(elements))
+                    : new PersistentBag(session, elements);
+            final CollectionCacheEntry entry = new CollectionCacheEntry(collection, persister);
+            final CacheKey cacheKey = session.generateCacheKey((Serializable) ownerId, persister.getKeyType(), persister.getRole());
+            return persister.getCacheAccessStrategy().putFromLoad(cacheKey, persister.getCacheEntryStructure().structure(entry), timestamp, ownerVersion, true);
+        }
+
+    }
+
+    private static final class WarmUpThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hibernatecache-warmup-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.warmup;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.hibernate.StatelessSession;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory;
+import org.moresbycoffee.hibernatecache.cache.strategy.NonStrictReadWriteEntityRegionAccessStrategy;
+
+/**
+ * Reloads the frequently read entries of the nonstrict read-write entity regions with the
+ * {@link CacheSettings#REFRESH_AHEAD} property before they expire, so the readers of a popular
+ * entry don't miss together when it expires.
+ * <p>
+ * The strategy of the region schedules the keys (see
+ * {@link org.moresbycoffee.hibernatecache.cache.strategy.NonStrictReadWriteEntityRegionAccessStrategy NonStrictReadWriteEntityRegionAccessStrategy}),
+ * the keys of an entity wait in a batch until a thread of the {@link CacheSettings#REFRESH_AHEAD_THREADS} executor
+ * reloads them by <code>in</code> queries of at most {@link CacheSettings#REFRESH_AHEAD_BATCH_SIZE} identifiers.
+ * At most one task per entity is queued and at most {@value #MAX_PENDING} keys per entity wait, the rest is dropped.
+ * The readers get the current entries until the reloaded ones replace them, the entries removed meanwhile aren't reloaded.
+ * <p>
+ * The statistics report the issued refreshes, the refreshed entries read at least once and the database hits
+ * avoided, i.e. the reads served by a refreshed entry after the replaced entry would have expired.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class RefreshAhead {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(RefreshAhead.class);
+
+    /** The maximum number of the keys of an entity waiting for the refresh. */
+    static final int MAX_PENDING = 10000;
+
+    private final CacheSettings cacheSettings;
+
+    /** The keys waiting for the refresh by the root entity names. */
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+    /** The refreshed entries not read yet. Their number is limited by {@link #MAX_PENDING}. */
+    private final ConcurrentHashMap<Object, Boolean> unread = new ConcurrentHashMap<Object, Boolean>();
+
+    private final AtomicLong issuedCount = new AtomicLong();
+
+    private final AtomicLong queryCount = new AtomicLong();
+
+    private final AtomicLong usedCount = new AtomicLong();
+
+    private final AtomicLong avoidedLoadCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private volatile SessionFactoryImplementor sessionFactory;
+
+    private ExecutorService executor;
+
+    /**
+     * @param cacheSettings The configuration of the regions. (NonNull)
+     */
+    public RefreshAhead(final CacheSettings cacheSettings) {
+        this.cacheSettings = cacheSettings;
+    }
+
+    /**
+     * @param sessionFactory The session factory. (NonNull)
+     * @return The refresh-ahead of the session factory, <tt>null</tt> if it doesn't use the {@link TinyLfuRegionFactory}.
+     */
+    public static RefreshAhead of(final SessionFactoryImplementor sessionFactory) {
+        final RegionFactory regionFactory = sessionFactory.getSettings().getRegionFactory();
+        return regionFactory instanceof TinyLfuRegionFactory ? ((TinyLfuRegionFactory) regionFactory).getRefreshAhead() : null;
+    }
+
+    /**
+     * Starts the executor. It is called by the {@link CacheWarmUpIntegrator} when the session factory has been created,
+     * the keys scheduled before are dropped.
+     *
+     * @param sessionFactory The session factory the regions belong to. (NonNull)
+     * @throws IllegalStateException If the refresh-ahead has already been started.
+     */
+    public synchronized void start(final SessionFactoryImplementor sessionFactory) {
+        if (this.sessionFactory != null) {
+            throw new IllegalStateException("The refresh-ahead has already been started.");
+        }
+        this.executor = Executors.newFixedThreadPool(cacheSettings.getRefreshAheadThreads(), new RefreshThreadFactory());
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Stops the executor. It is called when the session factory is closed.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Schedules the refresh of an entry.
+     *
+     * @param key The key of the entity. (NonNull)
+     * @return <code>true</code> if the key is waiting for the refresh.
+     */
+    public boolean schedule(final CacheKey key) {
+        if (sessionFactory == null) {
+            return false;
+        }
+        final String entityName = key.getEntityOrRoleName();
+        Batch batch = batches.get(entityName);
+        if (batch == null) {
+            final Batch newBatch = new Batch(entityName);
+            batch = batches.putIfAbsent(entityName, newBatch);
+            if (batch == null) {
+                batch = newBatch;
+            }
+        }
+        final boolean submit;
+        synchronized (batch) {
+            if (batch.ids.size() >= MAX_PENDING) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            batch.ids.add(key.getKey());
+            submit = !batch.scheduled;
+            batch.scheduled = true;
+        }
+        if (submit) {
+            try {
+                executor.execute(batch);
+            } catch (final RejectedExecutionException e) {
+                synchronized (batch) {
+                    batch.ids.clear();
+                    batch.scheduled = false;
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that a refreshed entry has been put into the region.
+     *
+     * @param key The key of the entry. (NonNull)
+     */
+    public void refreshed(final Object key) {
+        if (unread.size() < MAX_PENDING) {
+            unread.put(key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Records a read of a refreshed entry.
+     *
+     * @param key The key of the entry. (NonNull)
+     * @param avoidedLoad <code>true</code> if the replaced entry would have expired.
+     */
+    public void read(final Object key, final boolean avoidedLoad) {
+        if (unread.remove(key) != null) {
+            usedCount.incrementAndGet();
+        }
+        if (avoidedLoad) {
+            avoidedLoadCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forgets a refreshed entry, it has been removed or it has expired.
+     *
+     * @param key The key of the entry. (NonNull)
+     */
+    public void forget(final Object key) {
+        unread.remove(key);
+    }
+
+    /**
+     * @return The number of the entities reloaded by the refresh queries.
+     */
+    public long getIssuedCount() {
+        return issuedCount.get();
+    }
+
+    /**
+     * @return The number of the refresh queries.
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * @return The number of the refreshed entries read at least once.
+     */
+    public long getUsedCount() {
+        return usedCount.get();
+    }
+
+    /**
+     * @return The number of the database hits avoided: the reads served by refreshed entries after the replaced entries would have expired.
+     */
+    public long getAvoidedLoadCount() {
+        return avoidedLoadCount.get();
+    }
+
+    /**
+     * @return The number of the keys dropped because too many keys were waiting.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return The number of the keys waiting for the refresh.
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (final Batch batch : batches.values()) {
+            synchronized (batch) {
+                pending += batch.ids.size();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Reloads the entities and puts them into the region.
+     */
+    private void refresh(final EntityPersister persister, final List<Serializable> ids) {
+        final EntityRegionAccessStrategy strategy = persister.getCacheAccessStrategy();
+        if (!(strategy instanceof NonStrictReadWriteEntityRegionAccessStrategy)) {
+            return;
+        }
+        final StatelessSession session = sessionFactory.openStatelessSession();
+        try {
+            final List<?> entities = session.createQuery("from " + persister.getEntityName() + " o where o." + CacheWarmUp.idPath(persister) + " in (:ids)")
+                                            .setParameterList("ids", ids).setReadOnly(true).list();
+            queryCount.incrementAndGet();
+            issuedCount.addAndGet(ids.size());
+            for (final Object entity : entities) {
+                final EntityPersister subclassPersister = persister.getSubclassEntityPersister(entity, sessionFactory);
+                final Serializable id = subclassPersister.getIdentifier(entity, (SessionImplementor) session);
+                final CacheKey cacheKey = ((SessionImplementor) session).generateCacheKey(id, persister.getIdentifierType(), persister.getRootEntityName());
+                final Object entry = CacheWarmUp.toCacheEntry((SessionImplementor) session, subclassPersister, entity);
+                if (((NonStrictReadWriteEntityRegionAccessStrategy) strategy).refresh(cacheKey, entry)) {
+                    refreshed(cacheKey);
+                }
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * The keys of an entity waiting for the refresh. The batch is the task of the executor as well,
+     * it reloads the keys until no key waits.
+     */
+    private final class Batch implements Runnable {
+
+        private final String entityName;
+
+        /** Guarded by <code>this</code>. */
+        final Set<Serializable> ids = new LinkedHashSet<Serializable>();
+
+        /** <code>true</code> if the batch is queued or running. Guarded by <code>this</code>. */
+        boolean scheduled;
+
+        Batch(final String entityName) {
+            this.entityName = entityName;
+        }
+
+        @Override
+        public void run() {
+            final EntityPersister persister = sessionFactory.getEntityPersister(entityName);
+            final int batchSize = cacheSettings.getRefreshAheadBatchSize(persister.getCacheAccessStrategy().getRegion().getName());
+            while (!Thread.currentThread().isInterrupted()) {
+                final List<Serializable> next = new ArrayList<Serializable>(batchSize);
+                synchronized (this) {
+                    final Iterator<Serializable> iterator = ids.iterator();
+                    while (iterator.hasNext() && next.size() < batchSize) {
+                        next.add(iterator.next());
+                        iterator.remove();
+                    }
+                    if (next.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    refresh(persister, next);
+                } catch (final RuntimeException e) {
+                    LOG.warn("The refresh of " + next.size() + " " + entityName + " entities has failed.", e);
+                }
+            }
+            /* Interrupted by the stop: the pending identifiers are dropped, so the next schedule submits the batch again. */
+            synchronized (this) {
+                ids.clear();
+                scheduled = false;
+            }
+        }
+    }
+
+    private static final class RefreshThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "hibernatecache-refresh-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+/**
+ * An executed statement handed to the {@link StatementSink}s. The instance is reused by the drain thread
+ * of the {@link StatementPipeline} for every statement, so the sinks have to copy what they keep.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class ExecutedStatement {
+
+    private String sql;
+    private int bindCount;
+    private int rowCount;
+    private long executeNanos;
+    private long fetchNanos;
+    private long timestamp;
+
+    /** The fingerprint of the {@link #sql}, computed on demand. */
+    private String fingerprint;
+
+    void set(final String sql, final int bindCount, final int rowCount, final long executeNanos, final long fetchNanos, final long timestamp) {
+        this.sql = sql;
+        this.bindCount = bindCount;
+        this.rowCount = rowCount;
+        this.executeNanos = executeNanos;
+        this.fetchNanos = fetchNanos;
+        this.timestamp = timestamp;
+        this.fingerprint = null;
+    }
+
+    /**
+     * @return The statement text as it has been prepared or executed. (NonNull)
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return The statement text without its literals and with its whitespace collapsed, see {@link SqlFingerprint}. (NonNull)
+     */
+    public String getFingerprint() {
+        if (fingerprint == null) {
+            fingerprint = SqlFingerprint.of(sql);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return The number of the parameters bound to the statement (of all the batched executions).
+     */
+    public int getBindCount() {
+        return bindCount;
+    }
+
+    /**
+     * @return The number of the rows fetched by a query or the update count of an update, <code>-1</code> if unknown.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return The time of the execution in nanoseconds.
+     */
+    public long getExecuteNanos() {
+        return executeNanos;
+    }
+
+    /**
+     * @return The time spent fetching the rows of the result set in nanoseconds.
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * @return The time when the statement has completed in milliseconds.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return timestamp + "|" + executeNanos / 1000 + "|" + fetchNanos / 1000 + "|" + bindCount + "|" + rowCount + "|" + sql;
+    }
+
+}
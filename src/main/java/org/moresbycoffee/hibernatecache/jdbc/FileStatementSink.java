@@ -0,0 +1,117 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Appends the executed statements to a file, one line per statement:
+ * <pre>
+ * timestamp (ms)|execution (us)|fetch (us)|binds|rows|statement
+ * </pre>
+ * The output is buffered and flushed after each batch drained by the {@link StatementPipeline}, so the
+ * file is written by the drain thread only.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class FileStatementSink implements StatementSink, Closeable {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(FileStatementSink.class);
+
+    private final File file;
+
+    private final Writer writer;
+
+    /** <tt>true</tt> after a write has failed, the further statements are ignored. */
+    private boolean failed;
+
+    /**
+     * @param file The file the statements are appended to. (NonNull)
+     * @throws IOException If the file can't be opened.
+     */
+    public FileStatementSink(final File file) throws IOException {
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    }
+
+    /**
+     * @return The file the statements are appended to. (NonNull)
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void accept(final ExecutedStatement statement) {
+        if (failed) {
+            return;
+        }
+        try {
+            writer.write(statement.toString().replace('\n', ' '));
+            writer.write('\n');
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (failed) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void fail(final IOException e) {
+        failed = true;
+        LOG.warn("The statements can't be written to " + file + ", the further statements are ignored.", e);
+    }
+
+}
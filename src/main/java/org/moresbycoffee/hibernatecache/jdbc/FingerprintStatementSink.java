@@ -0,0 +1,136 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Aggregates the executed statements by their {@link SqlFingerprint fingerprint}. The statements of the
+ * same text share the {@link StatementShape} found by the text, so a statement is fingerprinted only once.
+ * If there are more fingerprints than the maximum, the statements of the new fingerprints are aggregated
+ * into the {@link #OTHER} shape.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class FingerprintStatementSink implements StatementSink {
+
+    /** The default maximum number of the fingerprints. */
+    public static final int DEFAULT_MAX_SHAPES = 10000;
+
+    /** The fingerprint of the statements over the maximum number of the fingerprints. */
+    public static final String OTHER = "(other statements)";
+
+    private final int maxShapes;
+
+    private final ConcurrentMap<String, StatementShape> shapes = new ConcurrentHashMap<String, StatementShape>();
+
+    /** The shapes by the statement text, bounded by the maximum number of the fingerprints as well. */
+    private final ConcurrentMap<String, StatementShape> bySql = new ConcurrentHashMap<String, StatementShape>();
+
+    /**
+     * Creates a sink with {@link #DEFAULT_MAX_SHAPES} fingerprints.
+     */
+    public FingerprintStatementSink() {
+        this(DEFAULT_MAX_SHAPES);
+    }
+
+    /**
+     * @param maxShapes The maximum number of the fingerprints. (Positive)
+     */
+    public FingerprintStatementSink(final int maxShapes) {
+        this.maxShapes = maxShapes;
+    }
+
+    @Override
+    public void accept(final ExecutedStatement statement) {
+        StatementShape shape = bySql.get(statement.getSql());
+        if (shape == null) {
+            shape = shapeOf(statement.getFingerprint());
+            if (bySql.size() < maxShapes) {
+                bySql.put(statement.getSql(), shape);
+            }
+        }
+        shape.record(statement);
+    }
+
+    private StatementShape shapeOf(final String fingerprint) {
+        final StatementShape shape = shapes.get(fingerprint);
+        if (shape != null) {
+            return shape;
+        }
+        final String key = shapes.size() < maxShapes ? fingerprint : OTHER;
+        final StatementShape created = new StatementShape(key);
+        final StatementShape existing = shapes.putIfAbsent(key, created);
+        return existing != null ? existing : created;
+    }
+
+    @Override
+    public void flush() {
+        /* NOP */
+    }
+
+    /**
+     * @return The shapes of the statements ordered by their total time descending, the times are read once
+     *         as they change concurrently. (NonNull)
+     */
+    public List<StatementShape> getShapes() {
+        final Map<StatementShape, Long> totals = new HashMap<StatementShape, Long>();
+        for (final StatementShape shape : shapes.values()) {
+            totals.put(shape, shape.getTotalNanos());
+        }
+        final List<StatementShape> sorted = new ArrayList<StatementShape>(totals.keySet());
+        Collections.sort(sorted, new Comparator<StatementShape>() {
+            @Override
+            public int compare(final StatementShape first, final StatementShape second) {
+                final int byTotal = totals.get(second).compareTo(totals.get(first));
+                return byTotal != 0 ? byTotal : first.getFingerprint().compareTo(second.getFingerprint());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Forgets the statements.
+     */
+    public void clear() {
+        bySql.clear();
+        shapes.clear();
+    }
+
+}
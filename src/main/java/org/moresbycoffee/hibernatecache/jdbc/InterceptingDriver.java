@@ -0,0 +1,148 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver recording the statements executed through the connections of the wrapped driver into the
+ * {@link StatementPipeline#getDefault() default statement pipeline}. The URL of the wrapped driver is prefixed
+ * by <code>intercept:</code>, e.g.:
+ * <pre>
+ * &lt;property name="hibernate.connection.driver_class" value="org.moresbycoffee.hibernatecache.jdbc.InterceptingDriver" /&gt;
+ * &lt;property name="hibernate.connection.url" value="jdbc:intercept:h2:mem:hibernatecache" /&gt;
+ * </pre>
+ * The connection properties starting with <code>intercept.</code> configure the pipeline (see
+ * {@link StatementPipeline#configure(Properties)}) and the wrapped driver, they aren't passed to the wrapped driver:
+ * <ul>
+ * <li>{@value #DRIVER}: the class of the wrapped driver if it isn't loaded by the {@link DriverManager} itself.</li>
+ * </ul>
+ * Hibernate passes the <code>hibernate.connection.intercept.*</code> properties as <code>intercept.*</code> connection properties.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class InterceptingDriver implements Driver {
+
+    /** The prefix of the URLs of the driver. */
+    public static final String URL_PREFIX = "jdbc:intercept:";
+
+    /** The connection property of the class of the wrapped driver. */
+    public static final String DRIVER = "intercept.driver";
+
+    /** The prefix of the connection properties of the driver. */
+    private static final String PROPERTY_PREFIX = "intercept.";
+
+    static {
+        try {
+            DriverManager.registerDriver(new InterceptingDriver());
+        } catch (final SQLException e) {
+            throw new IllegalStateException("The intercepting driver can't be registered.", e);
+        }
+    }
+
+    @Override
+    public Connection connect(final String url, final Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        final Properties properties = info == null ? new Properties() : info;
+        final String driverClass = properties.getProperty(DRIVER);
+        if (driverClass != null) {
+            try {
+                Class.forName(driverClass);
+            } catch (final ClassNotFoundException e) {
+                throw new SQLException("The wrapped driver " + driverClass + " can't be loaded.", e);
+            }
+        }
+        final StatementPipeline pipeline = StatementPipeline.getDefault();
+        pipeline.configure(properties);
+        final Connection connection = DriverManager.getConnection(realUrl(url), withoutOwnProperties(properties));
+        return JdbcProxies.connection(connection, pipeline);
+    }
+
+    @Override
+    public boolean acceptsURL(final String url) throws SQLException {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) throws SQLException {
+        final Driver driver = DriverManager.getDriver(realUrl(url));
+        return driver.getPropertyInfo(realUrl(url), info);
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("The intercepting driver doesn't use java.util.logging.");
+    }
+
+    /**
+     * @return The URL of the wrapped driver.
+     */
+    private static String realUrl(final String url) {
+        return "jdbc:" + url.substring(URL_PREFIX.length());
+    }
+
+    private static Properties withoutOwnProperties(final Properties properties) {
+        final Properties filtered = new Properties();
+        for (final Map.Entry<Object, Object> entry : properties.entrySet()) {
+            if (!String.valueOf(entry.getKey()).startsWith(PROPERTY_PREFIX)) {
+                filtered.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return filtered;
+    }
+
+}
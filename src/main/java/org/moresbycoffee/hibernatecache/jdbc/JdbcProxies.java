@@ -0,0 +1,330 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * The dynamic proxies of the connections, the statements and the result sets of the {@link InterceptingDriver}.
+ * A statement counts the parameters bound and times its executions, a query is recorded when its result set
+ * is closed (or its statement, whichever comes first) with the time spent in the {@link ResultSet#next()} as fetch time,
+ * the other statements are recorded when they have been executed.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class JdbcProxies {
+
+    private JdbcProxies() {
+        /* Static utility. */
+    }
+
+    /**
+     * @param connection The connection of the wrapped driver. (NonNull)
+     * @param pipeline The pipeline recording the statements. (NonNull)
+     * @return The proxy of the connection. (NonNull)
+     */
+    static Connection connection(final Connection connection, final StatementPipeline pipeline) {
+        return proxy(Connection.class, new ConnectionHandler(connection, pipeline));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(JdbcProxies.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * Invokes the method on the target, the exceptions of the target are thrown as they are.
+     */
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Handles the methods of the {@link Object} and the {@link java.sql.Wrapper}, returns <tt>null</tt> for the others.
+     */
+    private static Object invokeCommon(final Object proxy, final Object target, final Method method, final Object[] args) throws Throwable {
+        final String name = method.getName();
+        if ("equals".equals(name) && args != null && args.length == 1) {
+            return proxy == args[0];
+        }
+        if ("hashCode".equals(name) && args == null) {
+            return System.identityHashCode(proxy);
+        }
+        if ("unwrap".equals(name) || "isWrapperFor".equals(name) || "toString".equals(name) && args == null) {
+            return invoke(target, method, args);
+        }
+        return null;
+    }
+
+    /**
+     * Wraps the statements created by the connection.
+     */
+    private static final class ConnectionHandler implements InvocationHandler {
+
+        private final Connection connection;
+
+        private final StatementPipeline pipeline;
+
+        ConnectionHandler(final Connection connection, final StatementPipeline pipeline) {
+            this.connection = connection;
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final Object common = invokeCommon(proxy, connection, method, args);
+            if (common != null) {
+                return common;
+            }
+            final Object result = JdbcProxies.invoke(connection, method, args);
+            if (result instanceof CallableStatement) {
+                return proxy(CallableStatement.class, new StatementHandler((Statement) result, (String) args[0], proxy, pipeline));
+            }
+            if (result instanceof PreparedStatement) {
+                return proxy(PreparedStatement.class, new StatementHandler((Statement) result, (String) args[0], proxy, pipeline));
+            }
+            if (result instanceof Statement) {
+                return proxy(Statement.class, new StatementHandler((Statement) result, null, proxy, pipeline));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Counts the parameters bound and times the executions of a statement.
+     */
+    private static final class StatementHandler implements InvocationHandler {
+
+        private final Statement statement;
+
+        /** The text of the prepared statement, <tt>null</tt> for a plain statement. */
+        private final String sql;
+
+        private final Object connection;
+
+        private final StatementPipeline pipeline;
+
+        private int bindCount;
+
+        /** The text of the statement executed by {@link Statement#execute(String)} whose result set hasn't been read yet. */
+        private String pendingSql;
+
+        private long pendingNanos;
+
+        /** The result set of the last query, <tt>null</tt> if it has been recorded. */
+        private ResultSetHandler resultSet;
+
+        StatementHandler(final Statement statement, final String sql, final Object connection, final StatementPipeline pipeline) {
+            this.statement = statement;
+            this.sql = sql;
+            this.connection = connection;
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final Object common = invokeCommon(proxy, statement, method, args);
+            if (common != null) {
+                return common;
+            }
+            final String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2) {
+                bindCount++;
+                return JdbcProxies.invoke(statement, method, args);
+            }
+            if (name.startsWith("execute")) {
+                return execute(proxy, method, args);
+            }
+            if ("getResultSet".equals(name)) {
+                final ResultSet result = (ResultSet) JdbcProxies.invoke(statement, method, args);
+                if (result == null || pendingSql == null) {
+                    return result;
+                }
+                final String executed = pendingSql;
+                pendingSql = null;
+                return wrap(proxy, result, executed, pendingNanos);
+            }
+            if ("getConnection".equals(name)) {
+                return connection;
+            }
+            if ("close".equals(name)) {
+                finish();
+            }
+            return JdbcProxies.invoke(statement, method, args);
+        }
+
+        private Object execute(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            finish();
+            final String executed = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql;
+            final long start = System.nanoTime();
+            final Object result;
+            try {
+                result = JdbcProxies.invoke(statement, method, args);
+            } catch (final Throwable e) {
+                record(executed, -1, System.nanoTime() - start);
+                throw e;
+            }
+            final long nanos = System.nanoTime() - start;
+            if (result instanceof ResultSet) {
+                return wrap(proxy, (ResultSet) result, executed, nanos);
+            }
+            if (Boolean.TRUE.equals(result)) {
+                /* The result set is read by the getResultSet(). */
+                pendingSql = executed;
+                pendingNanos = nanos;
+                return result;
+            }
+            record(executed, rowsOf(result), nanos);
+            return result;
+        }
+
+        private ResultSet wrap(final Object proxy, final ResultSet result, final String executed, final long executeNanos) {
+            resultSet = new ResultSetHandler(result, this, proxy, executed, executeNanos);
+            return proxy(ResultSet.class, resultSet);
+        }
+
+        /**
+         * Records the query whose result set hasn't been closed, or the execution whose result set hasn't been read.
+         */
+        private void finish() {
+            if (resultSet != null) {
+                resultSet.finish();
+            }
+            if (pendingSql != null) {
+                record(pendingSql, -1, pendingNanos);
+                pendingSql = null;
+            }
+        }
+
+        void recordQuery(final ResultSetHandler query) {
+            if (resultSet == query) {
+                resultSet = null;
+            }
+            pipeline.record(query.sql, bindCount, query.rowCount, query.executeNanos, query.fetchNanos);
+            bindCount = 0;
+        }
+
+        private void record(final String executed, final int rowCount, final long nanos) {
+            pipeline.record(executed == null ? "" : executed, bindCount, rowCount, nanos, 0);
+            bindCount = 0;
+        }
+
+        private static int rowsOf(final Object result) {
+            if (result instanceof Integer) {
+                return (Integer) result;
+            }
+            if (result instanceof int[]) {
+                int rows = 0;
+                for (final int count : (int[]) result) {
+                    rows += Math.max(count, 0);
+                }
+                return rows;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Times the fetch of the rows of a query.
+     */
+    private static final class ResultSetHandler implements InvocationHandler {
+
+        private final ResultSet resultSet;
+
+        private final StatementHandler owner;
+
+        private final Object statement;
+
+        private final String sql;
+
+        private final long executeNanos;
+
+        private long fetchNanos;
+
+        private int rowCount;
+
+        private boolean recorded;
+
+        ResultSetHandler(final ResultSet resultSet, final StatementHandler owner, final Object statement, final String sql, final long executeNanos) {
+            this.resultSet = resultSet;
+            this.owner = owner;
+            this.statement = statement;
+            this.sql = sql;
+            this.executeNanos = executeNanos;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final Object common = invokeCommon(proxy, resultSet, method, args);
+            if (common != null) {
+                return common;
+            }
+            final String name = method.getName();
+            if ("next".equals(name)) {
+                final long start = System.nanoTime();
+                final Object result = JdbcProxies.invoke(resultSet, method, args);
+                fetchNanos += System.nanoTime() - start;
+                if (Boolean.TRUE.equals(result)) {
+                    rowCount++;
+                }
+                return result;
+            }
+            if ("getStatement".equals(name)) {
+                return statement;
+            }
+            if ("close".equals(name)) {
+                finish();
+            }
+            return JdbcProxies.invoke(resultSet, method, args);
+        }
+
+        void finish() {
+            if (!recorded) {
+                recorded = true;
+                owner.recordQuery(this);
+            }
+        }
+    }
+
+}
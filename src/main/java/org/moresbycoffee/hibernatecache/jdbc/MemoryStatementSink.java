@@ -0,0 +1,112 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the executed statements and keeps the text of the last ones, e.g. for the assertions of the tests.
+ * The counts are complete only after the {@link StatementPipeline#flush()}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class MemoryStatementSink implements StatementSink {
+
+    /** The default number of the statements kept. */
+    public static final int DEFAULT_MAX_STATEMENTS = 1000;
+
+    private final int maxStatements;
+
+    private final AtomicLong count = new AtomicLong();
+
+    /** The text of the last statements. Guarded by itself. */
+    private final List<String> statements = new ArrayList<String>();
+
+    /**
+     * Keeps the last {@link #DEFAULT_MAX_STATEMENTS} statements.
+     */
+    public MemoryStatementSink() {
+        this(DEFAULT_MAX_STATEMENTS);
+    }
+
+    /**
+     * @param maxStatements The number of the last statements kept.
+     */
+    public MemoryStatementSink(final int maxStatements) {
+        this.maxStatements = maxStatements;
+    }
+
+    @Override
+    public void accept(final ExecutedStatement statement) {
+        count.incrementAndGet();
+        synchronized (statements) {
+            if (statements.size() >= maxStatements) {
+                statements.remove(0);
+            }
+            statements.add(statement.getSql());
+        }
+    }
+
+    @Override
+    public void flush() {
+        /* NOP */
+    }
+
+    /**
+     * @return The number of the statements received.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The text of the last statements, the oldest first. (NonNull)
+     */
+    public List<String> getStatements() {
+        synchronized (statements) {
+            return new ArrayList<String>(statements);
+        }
+    }
+
+    /**
+     * Forgets the statements and resets the count.
+     */
+    public void clear() {
+        count.set(0);
+        synchronized (statements) {
+            statements.clear();
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+/**
+ * Computes the fingerprints of the statements: the string and numeric literals are replaced with <code>?</code>,
+ * the lists of parameters with a single <code>?</code> (e.g. the batch loads <code>in (?, ?, ?)</code>
+ * become <code>in (?)</code>) and the whitespace is collapsed, so the executions of the same statement
+ * with different values or batch sizes have the same fingerprint.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class SqlFingerprint {
+
+    private SqlFingerprint() {
+        /* Static utility. */
+    }
+
+    /**
+     * @param sql The statement text. (NonNull)
+     * @return The fingerprint of the statement. (NonNull)
+     */
+    public static String of(final String sql) {
+        final StringBuilder fingerprint = new StringBuilder(sql.length());
+        final int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            final char c = sql.charAt(i);
+            if (c == '\'') {
+                /* String literal, the quotes are escaped by doubling them. */
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                appendParameter(fingerprint);
+            } else if (Character.isDigit(c) && !isIdentifierPart(fingerprint)) {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                appendParameter(fingerprint);
+            } else if (c == '?') {
+                i++;
+                appendParameter(fingerprint);
+            } else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (fingerprint.length() > 0 && i < length) {
+                    fingerprint.append(' ');
+                }
+            } else {
+                fingerprint.append(c);
+                i++;
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Appends a parameter unless it continues a list of parameters (<code>?, ?</code>).
+     */
+    private static void appendParameter(final StringBuilder fingerprint) {
+        int end = fingerprint.length();
+        while (end > 0 && fingerprint.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end > 0 && fingerprint.charAt(end - 1) == ',') {
+            int previous = end - 1;
+            while (previous > 0 && fingerprint.charAt(previous - 1) == ' ') {
+                previous--;
+            }
+            if (previous > 0 && fingerprint.charAt(previous - 1) == '?') {
+                fingerprint.setLength(previous);
+                return;
+            }
+        }
+        fingerprint.append('?');
+    }
+
+    /**
+     * @return <tt>true</tt> if the fingerprint ends with a part of an identifier, e.g. <code>col1</code>.
+     */
+    private static boolean isIdentifierPart(final StringBuilder fingerprint) {
+        if (fingerprint.length() == 0) {
+            return false;
+        }
+        final char last = fingerprint.charAt(fingerprint.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '.';
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the statements executed through the {@link InterceptingDriver} into a lock-free {@link StatementRing}
+ * and drains them to the {@link StatementSink}s on a background thread, so no I/O is done on the thread
+ * executing the statement. The statements are recorded only while there are sinks.
+ * <p>
+ * The connections of the driver use the {@link #getDefault() default pipeline}. If the ring is full, the
+ * threads executing the statements wait for the drain thread by default, so no statement is lost; a pipeline
+ * created with <code>dropWhenFull</code> drops them instead and counts them, see {@link #getDroppedCount()}.
+ * The sinks can be added programmatically or by the connection properties of the driver, see {@link #configure(Properties)}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class StatementPipeline implements Closeable {
+
+    /** The connection property of the file the statements are appended to, see {@link FileStatementSink}. */
+    public static final String FILE = "intercept.file";
+
+    /** The default number of the statements buffered. */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(StatementPipeline.class);
+
+    /** The time the drain thread waits for new statements in nanoseconds. */
+    private static final long DRAIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** The maximum time of the {@link #flush()} in milliseconds. */
+    private static final long FLUSH_TIMEOUT = 10000;
+
+    private static StatementPipeline defaultPipeline;
+
+    private final StatementRing ring;
+
+    private final List<StatementSink> sinks = new CopyOnWriteArrayList<StatementSink>();
+
+    /** Passes the statements to every sink. */
+    private final StatementSink dispatcher = new StatementSink() {
+
+        @Override
+        public void accept(final ExecutedStatement statement) {
+            for (final StatementSink sink : sinks) {
+                try {
+                    sink.accept(statement);
+                } catch (final RuntimeException e) {
+                    LOG.warn("The statement sink " + sink + " has failed.", e);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            for (final StatementSink sink : sinks) {
+                try {
+                    sink.flush();
+                } catch (final RuntimeException e) {
+                    LOG.warn("The statement sink " + sink + " has failed.", e);
+                }
+            }
+        }
+    };
+
+    private final Thread drainThread;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity The number of the statements buffered. (Positive)
+     * @param dropWhenFull <tt>true</tt> if the statements are dropped when the buffer is full, otherwise the threads executing them wait.
+     */
+    public StatementPipeline(final int capacity, final boolean dropWhenFull) {
+        this.ring = new StatementRing(capacity, dropWhenFull);
+        this.drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "statement-pipeline");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    /**
+     * @return The pipeline of the connections of the {@link InterceptingDriver}, it never drops statements. (NonNull)
+     */
+    public static synchronized StatementPipeline getDefault() {
+        if (defaultPipeline == null) {
+            defaultPipeline = new StatementPipeline(DEFAULT_CAPACITY, false);
+        }
+        return defaultPipeline;
+    }
+
+    /**
+     * Adds the sinks configured by the connection properties unless they have been added already:
+     * <ul>
+     * <li>{@value #FILE}: the file the statements are appended to, see {@link FileStatementSink}.</li>
+     * </ul>
+     *
+     * @param properties The connection properties. (NonNull)
+     */
+    public synchronized void configure(final Properties properties) {
+        final String fileName = properties.getProperty(FILE);
+        if (fileName == null) {
+            return;
+        }
+        final File file = new File(fileName).getAbsoluteFile();
+        for (final StatementSink sink : sinks) {
+            if (sink instanceof FileStatementSink && ((FileStatementSink) sink).getFile().equals(file)) {
+                return;
+            }
+        }
+        try {
+            addSink(new FileStatementSink(file));
+        } catch (final IOException e) {
+            LOG.warn("The statements can't be written to " + file + ".", e);
+        }
+    }
+
+    /**
+     * @param sink The sink receiving the statements executed from now on. (NonNull)
+     */
+    public void addSink(final StatementSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * @param sink The sink not receiving the statements any more. (NonNull)
+     */
+    public void removeSink(final StatementSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Records an executed statement if there are sinks. It doesn't allocate, the statement is passed to the sinks
+     * by the drain thread.
+     *
+     * @param sql The text of the statement. (NonNull)
+     * @param bindCount The number of the parameters bound.
+     * @param rowCount The number of the rows fetched or updated, <code>-1</code> if unknown.
+     * @param executeNanos The time of the execution in nanoseconds.
+     * @param fetchNanos The time of the fetch of the rows in nanoseconds.
+     */
+    public void record(final String sql, final int bindCount, final int rowCount, final long executeNanos, final long fetchNanos) {
+        if (!sinks.isEmpty()) {
+            ring.offer(sql, bindCount, executeNanos, fetchNanos, rowCount, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Waits until the statements recorded before have been passed to the sinks.
+     *
+     * @return <tt>true</tt> if the statements have been drained, <tt>false</tt> if the wait has timed out.
+     */
+    public boolean flush() {
+        final long target = ring.getHead();
+        final long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+        while (ring.getTail() < target) {
+            if (System.currentTimeMillis() > deadline || !drainThread.isAlive()) {
+                return false;
+            }
+            LockSupport.parkNanos(DRAIN_INTERVAL / 10);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of the statements passed to the sinks.
+     */
+    public long getDrainedCount() {
+        return ring.getTail();
+    }
+
+    /**
+     * @return The number of the statements dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+    /**
+     * Stops the drain thread after draining the recorded statements and closes the closeable sinks.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            drainThread.join(FLUSH_TIMEOUT);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final StatementSink sink : sinks) {
+            if (sink instanceof Closeable) {
+                ((Closeable) sink).close();
+            }
+        }
+    }
+
+    private void drain() {
+        final ExecutedStatement statement = new ExecutedStatement();
+        while (true) {
+            final boolean stopping = !running;
+            final int drained = ring.drain(statement, dispatcher);
+            if (drained > 0) {
+                dispatcher.flush();
+            } else if (stopping) {
+                return;
+            } else {
+                LockSupport.parkNanos(DRAIN_INTERVAL);
+            }
+        }
+    }
+
+}
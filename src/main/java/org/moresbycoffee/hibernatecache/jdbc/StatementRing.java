@@ -0,0 +1,168 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer of the executed statements with many producers (the threads
+ * executing the statements) and a single consumer (the drain thread of the {@link StatementPipeline}).
+ * <p>
+ * The slots are preallocated parallel arrays, so offering a statement doesn't allocate: a producer claims
+ * a sequence by a CAS of the head, writes the fields of the slot and publishes it by an ordered write of
+ * the sequence of the slot. The consumer reads the published slots in order and frees them by advancing
+ * the tail.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+final class StatementRing {
+
+    private final int mask;
+
+    /** The next sequence to be claimed by a producer. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** The next sequence to be read by the consumer. Written by the consumer only. */
+    private volatile long tail;
+
+    /** <code>sequence + 1</code> of the statement published in the slot, <code>0</code> if the slot has never been published. */
+    private final AtomicLongArray published;
+
+    private final String[] sqls;
+    private final int[] bindCounts;
+    private final int[] rows;
+    private final long[] executeNanos;
+    private final long[] fetchNanos;
+    private final long[] timestamps;
+
+    /** <tt>true</tt> if the statements are dropped when the ring is full, otherwise the producers wait. */
+    private final boolean dropWhenFull;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity The number of the slots, rounded up to a power of two. (Positive)
+     * @param dropWhenFull <tt>true</tt> if the statements are dropped when the ring is full, otherwise the producers wait.
+     */
+    StatementRing(final int capacity, final boolean dropWhenFull) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        this.sqls = new String[size];
+        this.bindCounts = new int[size];
+        this.rows = new int[size];
+        this.executeNanos = new long[size];
+        this.fetchNanos = new long[size];
+        this.timestamps = new long[size];
+        this.dropWhenFull = dropWhenFull;
+    }
+
+    /**
+     * Publishes an executed statement. If the ring is full, the statement is dropped or the thread waits
+     * for the consumer.
+     *
+     * @return <tt>true</tt> if the statement has been published, <tt>false</tt> if it has been dropped.
+     */
+    boolean offer(final String sql, final int bindCount, final long execute, final long fetch, final int rowCount, final long timestamp) {
+        long sequence;
+        while (true) {
+            sequence = head.get();
+            if (sequence - tail > mask) {
+                if (dropWhenFull) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(1000);
+            } else if (head.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+        final int index = (int) sequence & mask;
+        sqls[index] = sql;
+        bindCounts[index] = bindCount;
+        rows[index] = rowCount;
+        executeNanos[index] = execute;
+        fetchNanos[index] = fetch;
+        timestamps[index] = timestamp;
+        published.lazySet(index, sequence + 1);
+        return true;
+    }
+
+    /**
+     * Reads the published statements in order. Called by the consumer thread only.
+     *
+     * @param statement The view filled by the statements. (NonNull)
+     * @param consumer Called with each statement. (NonNull)
+     * @return The number of the statements read.
+     */
+    int drain(final ExecutedStatement statement, final StatementSink consumer) {
+        long sequence = tail;
+        int count = 0;
+        while (true) {
+            final int index = (int) sequence & mask;
+            if (published.get(index) != sequence + 1) {
+                break;
+            }
+            statement.set(sqls[index], bindCounts[index], rows[index], executeNanos[index], fetchNanos[index], timestamps[index]);
+            sqls[index] = null;
+            consumer.accept(statement);
+            sequence++;
+            tail = sequence;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of the statements claimed by the producers.
+     */
+    long getHead() {
+        return head.get();
+    }
+
+    /**
+     * @return The number of the statements read by the consumer.
+     */
+    long getTail() {
+        return tail;
+    }
+
+    /**
+     * @return The number of the statements dropped because the ring was full.
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+}
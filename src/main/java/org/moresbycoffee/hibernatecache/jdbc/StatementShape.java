@@ -0,0 +1,107 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The aggregated executions of the statements with the same {@link SqlFingerprint fingerprint},
+ * collected by the {@link FingerprintStatementSink}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public final class StatementShape {
+
+    private final String fingerprint;
+
+    private long count;
+    private long executeNanos;
+    private long fetchNanos;
+    private long rows;
+
+    /**
+     * @param fingerprint The fingerprint of the statements. (NonNull)
+     */
+    StatementShape(final String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    synchronized void record(final ExecutedStatement statement) {
+        count++;
+        executeNanos += statement.getExecuteNanos();
+        fetchNanos += statement.getFetchNanos();
+        if (statement.getRowCount() > 0) {
+            rows += statement.getRowCount();
+        }
+    }
+
+    /**
+     * @return The fingerprint of the statements. (NonNull)
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return The number of the executions.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The time of the executions and the fetches in nanoseconds.
+     */
+    public synchronized long getTotalNanos() {
+        return executeNanos + fetchNanos;
+    }
+
+    /**
+     * @return The time spent fetching the rows in nanoseconds.
+     */
+    public synchronized long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * @return The number of the rows fetched or updated by the executions.
+     */
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return count + " x " + TimeUnit.NANOSECONDS.toMicros(executeNanos + fetchNanos) + " us, " + rows + " rows: " + fingerprint;
+    }
+
+}
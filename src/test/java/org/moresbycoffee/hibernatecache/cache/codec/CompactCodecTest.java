@@ -0,0 +1,153 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.codec;
+
+import static org.junit.Assert.*;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.hibernate.cache.CacheException;
+import org.junit.Test;
+
+/**
+ * Tests the {@link CompactCodec} without metamodel.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class CompactCodecTest {
+
+    private final CompactCodec codec = new CompactCodec();
+
+    @Test
+    public void roundTrip() {
+        final Timestamp timestamp = new Timestamp(1234567890123L);
+        timestamp.setNanos(123456789);
+        final List<Object> list = new ArrayList<Object>();
+        list.add(Long.valueOf(-1));
+        list.add("text");
+        for (final Object value : new Object[] { null, Boolean.TRUE, Byte.valueOf((byte) -3), Short.valueOf((short) 300),
+                                                 Integer.valueOf(Integer.MIN_VALUE), Long.valueOf(Long.MAX_VALUE), Float.valueOf(1.5f),
+                                                 Double.valueOf(-2.25), Character.valueOf('\u00e9'), "\u00e1rv\u00edzt\u0171r\u0151",
+                                                 new Date(42), timestamp, new java.sql.Date(86400000L), new BigDecimal("-12.345"),
+                                                 UUID.randomUUID(), list, Locale.ENGLISH }) {
+            assertEquals(value, codec.decode(codec.encode(value)));
+        }
+        assertArrayEquals(new long[] { 1, -2, Long.MIN_VALUE }, (long[]) codec.decode(codec.encode(new long[] { 1, -2, Long.MIN_VALUE })));
+        final Serializable[] state = (Serializable[]) codec.decode(codec.encode(new Serializable[] { "a", null, Long.valueOf(1) }));
+        assertArrayEquals(new Serializable[] { "a", null, Long.valueOf(1) }, state);
+    }
+
+    @Test
+    public void smallNumbersAreShort() {
+        assertEquals(2, codec.encode(Long.valueOf(5)).length);
+        assertEquals(2, codec.encode(Long.valueOf(-5)).length);
+        assertEquals(1, codec.encode(null).length);
+    }
+
+    @Test
+    public void repeatedStringsAreWrittenOnce() {
+        final String name = "a rather long repeated string value";
+        final byte[] once = codec.encode(new Object[] { name });
+        final byte[] twice = codec.encode(new Object[] { name, name });
+        assertTrue(twice.length - once.length <= 2);
+        assertArrayEquals(new Object[] { name, name }, (Object[]) codec.decode(twice));
+    }
+
+    @Test
+    public void registeredClass() {
+        codec.register(CompactCodec.MIN_EXTENSION_TAG, Point.class, new TypeCodec<Point>() {
+            @Override
+            public void write(final Point value, final CompactOutput out) {
+                out.writeSignedVarInt(value.x);
+                out.writeSignedVarInt(value.y);
+            }
+
+            @Override
+            public Point read(final CompactInput in) {
+                return new Point(in.readSignedVarInt(), in.readSignedVarInt());
+            }
+        });
+        final byte[] bytes = codec.encode(new Point(1, -1));
+        assertEquals(3, bytes.length);
+        assertEquals(new Point(1, -1), codec.decode(bytes));
+    }
+
+    @Test
+    public void unknownClassIsSerialized() {
+        final Point point = new Point(3, 4);
+        assertEquals(point, codec.decode(codec.encode(point)));
+        assertTrue(codec.encode(point).length > SerializationCodec.INSTANCE.encode(point).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reservedTagIsRejected() {
+        codec.register(CompactCodec.MIN_EXTENSION_TAG - 1, Point.class, null);
+    }
+
+    @Test(expected = CacheException.class)
+    public void truncatedEntryIsRejected() {
+        final byte[] bytes = codec.encode(Arrays.asList("x", "y").toArray());
+        codec.decode(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    private static final class Point implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int x;
+        final int y;
+
+        Point(final int x, final int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+}
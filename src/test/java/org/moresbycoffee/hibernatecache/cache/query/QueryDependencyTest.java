@@ -0,0 +1,208 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the analysis of the SQL of the cached queries.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class QueryDependencyTest {
+
+    /** The query of the <code>EntityManagerTest.getEntities</code> criteria. */
+    private static final String SELECT_ALL = "select readwritee0_.id as id0_, readwritee0_.name as name0_ from ReadWriteEntity readwritee0_";
+
+    private static final String SELECT_BY_NAME = SELECT_ALL + " where readwritee0_.name=?";
+
+    @Test
+    public void selectAllDependsOnInsertsAndDeletesOnly() {
+        final QueryDependency dependency = QueryDependency.parse(SELECT_ALL, Collections.emptyList(), true);
+        assertTrue(dependency.isAnalyzed());
+        assertTrue(dependency.isAffectedBy(insert("ReadWriteEntity", 100L, "new")));
+        assertTrue(dependency.isAffectedBy(delete("ReadWriteEntity", 1L, "readWrite0")));
+        assertFalse(dependency.isAffectedBy(update("ReadWriteEntity", 1L, "readWrite0", "NEW NAME")));
+    }
+
+    @Test
+    public void scalarSelectDependsOnSelectedColumns() {
+        final QueryDependency dependency = QueryDependency.parse(SELECT_ALL, Collections.emptyList(), false);
+        assertTrue(dependency.isAffectedBy(update("ReadWriteEntity", 1L, "readWrite0", "NEW NAME")));
+    }
+
+    @Test
+    public void parameterizedWhereClause() {
+        final QueryDependency dependency = QueryDependency.parse(SELECT_BY_NAME, Arrays.<Object>asList("readWrite1"), true);
+        assertTrue(dependency.isAffectedBy(insert("ReadWriteEntity", 100L, "readWrite1")));
+        assertFalse(dependency.isAffectedBy(insert("ReadWriteEntity", 100L, "readWrite2")));
+        assertFalse(dependency.isAffectedBy(delete("ReadWriteEntity", 1L, "readWrite0")));
+        /* Moves a row into the result. */
+        assertTrue(dependency.isAffectedBy(update("ReadWriteEntity", 1L, "readWrite0", "readWrite1")));
+        /* Moves a row out of the result. */
+        assertTrue(dependency.isAffectedBy(update("ReadWriteEntity", 1L, "readWrite1", "NEW NAME")));
+        assertFalse(dependency.isAffectedBy(update("ReadWriteEntity", 1L, "readWrite0", "NEW NAME")));
+        /* The database may compare case insensitively. */
+        assertTrue(dependency.isAffectedBy(insert("ReadWriteEntity", 100L, "READWRITE1")));
+    }
+
+    @Test
+    public void literalsAndNumbers() {
+        final String sql = "select readwritee0_.id as id0_, readwritee0_.name as name0_ from ReadWriteEntity readwritee0_ where readwritee0_.id=5 and readwritee0_.name='it''s'";
+        final QueryDependency dependency = QueryDependency.parse(sql, Collections.emptyList(), true);
+        assertTrue(dependency.isAffectedBy(insert("ReadWriteEntity", 5L, "it's")));
+        assertFalse(dependency.isAffectedBy(insert("ReadWriteEntity", 6L, "it's")));
+        assertFalse(dependency.isAffectedBy(insert("ReadWriteEntity", 5L, "its")));
+    }
+
+    @Test
+    public void unknownPredicatesMayMatch() {
+        final String sql = "select station0_.id as id5_, station0_.name as name5_ from Station station0_ where station0_.name like ? limit ?";
+        final QueryDependency dependency = QueryDependency.parse(sql, Arrays.<Object>asList("West%"), true);
+        assertTrue(dependency.isAffectedBy(insert("Station", 100L, "Bank")));
+        /* The update of a column not referenced by the query. */
+        assertFalse(dependency.isAffectedBy(new TableWrite(TableWrite.Kind.UPDATE, "Station", Long.valueOf(1L), "station", Collections.singleton("Station"),
+                                                           row(1L, "Bank"), row(1L, "Bank"), Collections.singleton("version"))));
+
+        final String disjunction = SELECT_ALL + " where readwritee0_.name=? or readwritee0_.id=?";
+        assertTrue(QueryDependency.parse(disjunction, Arrays.<Object>asList("a", 1L), true).isAffectedBy(insert("ReadWriteEntity", 100L, "b")));
+    }
+
+    @Test
+    public void joinsAreNotAnalyzed() {
+        final String sql = "select lines0_.Station_id as Station1_5_1_, line1_.id as id3_0_ from Station_Line lines0_ inner join Line line1_ on lines0_.lines_id=line1_.id where lines0_.Station_id=?";
+        final QueryDependency dependency = QueryDependency.parse(sql, Arrays.<Object>asList(1L), true);
+        assertFalse(dependency.isAnalyzed());
+        assertTrue(dependency.isAffectedBy(update("Line", 1L, "Circle", "Circle")));
+    }
+
+    @Test
+    public void writesOfOtherTablesAreChecked() {
+        final QueryDependency dependency = QueryDependency.parse(SELECT_ALL, Collections.emptyList(), true);
+        /* The write of an entity stored in more tables is not analyzed. */
+        assertTrue(dependency.isAffectedBy(new TableWrite(TableWrite.Kind.UPDATE, "ReadWriteEntity", Long.valueOf(1L), null, Collections.singleton("ReadWriteEntity"), null, null, null)));
+    }
+
+    @Test
+    public void equalityQueriesAreMaintainable() {
+        final QueryDependency selectAll = QueryDependency.parse(SELECT_ALL, Collections.emptyList(), true);
+        assertTrue(selectAll.isMaintainable());
+        assertEquals(Boolean.TRUE, selectAll.contains(insert("ReadWriteEntity", 100L, "a")));
+        assertEquals(Boolean.FALSE, selectAll.contains(delete("ReadWriteEntity", 1L, "a")));
+
+        final QueryDependency byName = QueryDependency.parse(SELECT_BY_NAME, Arrays.<Object>asList("readWrite1"), true);
+        assertTrue(byName.isMaintainable());
+        assertEquals(Boolean.TRUE, byName.contains(insert("ReadWriteEntity", 100L, "readWrite1")));
+        assertEquals(Boolean.FALSE, byName.contains(insert("ReadWriteEntity", 100L, "readWrite2")));
+        assertEquals(Boolean.FALSE, byName.contains(update("ReadWriteEntity", 1L, "readWrite1", "readWrite2")));
+        /* The database may compare the strings case insensitively. */
+        assertNull(byName.contains(insert("ReadWriteEntity", 100L, "READWRITE1")));
+        /* The written row of another table. */
+        assertNull(byName.contains(insert("Station", 100L, "readWrite1")));
+    }
+
+    @Test
+    public void otherQueriesAreNotMaintainable() {
+        assertFalse(QueryDependency.parse(SELECT_ALL, Collections.emptyList(), false).isMaintainable());
+        assertFalse(QueryDependency.parse(SELECT_ALL + " order by readwritee0_.name", Collections.emptyList(), true).isMaintainable());
+        assertFalse(QueryDependency.parse(SELECT_ALL + " where readwritee0_.name like ?", Arrays.<Object>asList("a%"), true).isMaintainable());
+        /* It isn't known which parameter is compared to which column. */
+        assertFalse(QueryDependency.parse(SELECT_BY_NAME + " and readwritee0_.id=?", Arrays.<Object>asList("a", 1L), true).isMaintainable());
+    }
+
+    @Test
+    public void countsAreMaintained() {
+        final String sql = "select count(readwritee0_.id) as col_0_0_ from ReadWriteEntity readwritee0_ where readwritee0_.name=?";
+        final QueryDependency dependency = QueryDependency.parse(sql, Arrays.<Object>asList("readWrite1"), false);
+        assertTrue(dependency.isMaintainable());
+        assertEquals(Long.valueOf(10L), apply(dependency, Long.valueOf(9L), insert("ReadWriteEntity", 100L, "readWrite1")));
+        assertEquals(Long.valueOf(9L), apply(dependency, Long.valueOf(9L), insert("ReadWriteEntity", 100L, "readWrite2")));
+        assertEquals(Long.valueOf(8L), apply(dependency, Long.valueOf(9L), delete("ReadWriteEntity", 1L, "readWrite1")));
+        assertEquals(Long.valueOf(8L), apply(dependency, Long.valueOf(9L), update("ReadWriteEntity", 1L, "readWrite1", "readWrite2")));
+        assertFalse(dependency.isAffectedBy(update("ReadWriteEntity", 1L, "readWrite2", "readWrite3")));
+    }
+
+    @Test
+    public void sumMinMaxAreMaintainedIfExact() {
+        final String sum = "select sum(readwritee0_.id) as col_0_0_ from ReadWriteEntity readwritee0_";
+        final String max = "select max(readwritee0_.id) as col_0_0_ from ReadWriteEntity readwritee0_";
+        final QueryDependency sumDependency = QueryDependency.parse(sum, Collections.emptyList(), false);
+        final QueryDependency maxDependency = QueryDependency.parse(max, Collections.emptyList(), false);
+        assertEquals(Long.valueOf(110L), apply(sumDependency, Long.valueOf(10L), insert("ReadWriteEntity", 100L, "a")));
+        assertEquals(Long.valueOf(100L), apply(sumDependency, null, insert("ReadWriteEntity", 100L, "a")));
+        /* The sum of the remaining rows may be null. */
+        assertEquals(Aggregate.UNKNOWN, apply(sumDependency, Long.valueOf(10L), delete("ReadWriteEntity", 10L, "a")));
+        assertEquals(Long.valueOf(100L), apply(maxDependency, Long.valueOf(90L), insert("ReadWriteEntity", 100L, "a")));
+        assertEquals(Long.valueOf(90L), apply(maxDependency, Long.valueOf(90L), delete("ReadWriteEntity", 1L, "a")));
+        /* The maximum is deleted. */
+        assertEquals(Aggregate.UNKNOWN, apply(maxDependency, Long.valueOf(90L), delete("ReadWriteEntity", 90L, "a")));
+        /* Strings may be compared differently in the database. */
+        final String maxName = "select max(readwritee0_.name) as col_0_0_ from ReadWriteEntity readwritee0_";
+        assertEquals(Aggregate.UNKNOWN, apply(QueryDependency.parse(maxName, Collections.emptyList(), false), "b", insert("ReadWriteEntity", 100L, "a")));
+    }
+
+    private static Object apply(final QueryDependency dependency, final Object value, final TableWrite write) {
+        return dependency.getAggregate().apply(value, write, dependency.contained(write).booleanValue(), dependency.contains(write).booleanValue());
+    }
+
+    private static TableWrite insert(final String table, final long id, final String name) {
+        return new TableWrite(TableWrite.Kind.INSERT, table, Long.valueOf(id), table.toLowerCase(), Collections.singleton(table), null, row(id, name), null);
+    }
+
+    private static TableWrite delete(final String table, final long id, final String name) {
+        return new TableWrite(TableWrite.Kind.DELETE, table, Long.valueOf(id), table.toLowerCase(), Collections.singleton(table), row(id, name), null, null);
+    }
+
+    private static TableWrite update(final String table, final long id, final String oldName, final String newName) {
+        return new TableWrite(TableWrite.Kind.UPDATE, table, Long.valueOf(id), table.toLowerCase(), Collections.singleton(table), row(id, oldName), row(id, newName),
+                              new HashSet<String>(Arrays.asList("name")));
+    }
+
+    private static Map<String, Object> row(final long id, final String name) {
+        final Map<String, Object> row = new HashMap<String, Object>();
+        row.put("id", Long.valueOf(id));
+        row.put("name", name);
+        return row;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.stat;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the buckets, the percentiles and the concurrent recording of the {@link LatencyHistogram}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverTheValues() {
+        int previous = -1;
+        for (long value = 0; value < 1L << 20; value++) {
+            final int index = LatencyHistogram.indexOf(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(value <= LatencyHistogram.highestValueOf(index));
+            previous = index;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(1L << LatencyHistogram.MAX_EXPONENT));
+    }
+
+    @Test
+    public void percentilesAreAccurate() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getP99());
+        for (long value = 1; value <= 1000000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500000.5, histogram.getMean(), 0.001);
+        assertWithin(500000, histogram.getP50());
+        assertWithin(990000, histogram.getP99());
+        assertWithin(999000, histogram.getP999());
+        assertEquals(1000000, histogram.getPercentile(100));
+
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void concurrentRecordsAreCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final Random random = new Random(i);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        histogram.record(random.nextInt(100000));
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, histogram.getCount());
+        assertTrue(histogram.getMax() < 100000);
+    }
+
+    /**
+     * The reported percentile is the highest value of its bucket, at most 1/16 higher than the exact value.
+     */
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(expected + " <= " + actual, expected <= actual);
+        assertTrue(actual + " <= " + expected + " * 17/16", actual <= expected * (LatencyHistogram.SUB_BUCKETS + 1) / LatencyHistogram.SUB_BUCKETS);
+    }
+
+}
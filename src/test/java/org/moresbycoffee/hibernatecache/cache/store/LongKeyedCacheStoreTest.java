@@ -0,0 +1,186 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.junit.Test;
+
+/**
+ * Tests the {@link LongKeyedCacheStore} and compares the allocation of its
+ * lookups with the generic {@link TinyLfuCache}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class LongKeyedCacheStoreTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(LongKeyedCacheStoreTest.class);
+
+    private static final String ENTITY = "org.moresbycoffee.hibernatecache.domain.ReadOnlyEntity";
+
+    private static final int LOOKUP_ROUNDS = 50;
+
+    @Test
+    public void putGetRemove() {
+        final LongKeyedCacheStore store = new LongKeyedCacheStore(10, new TinyLfuCache<Object, Object>(10));
+        store.put(key(1), "one");
+        store.put(key(1), "ONE");
+        assertEquals("ONE", store.get(key(1)));
+        assertTrue(store.containsKey(key(1)));
+        assertEquals(1, store.size());
+        store.remove(key(1));
+        assertNull(store.get(key(1)));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void bounded() {
+        final LongKeyedCacheStore store = new LongKeyedCacheStore(100, new TinyLfuCache<Object, Object>(10));
+        for (int i = 0; i < 1000; i++) {
+            store.put(key(i), "value" + i);
+        }
+        assertEquals(100, store.size());
+        assertEquals(900, store.getEvictionCount());
+        assertEquals(100, store.toMap().size());
+    }
+
+    /**
+     * The keys of other entities and the non <code>Long</code> identifiers go to the fallback store.
+     */
+    @Test
+    public void fallback() {
+        final TinyLfuCache<Object, Object> fallback = new TinyLfuCache<Object, Object>(10);
+        final LongKeyedCacheStore store = new LongKeyedCacheStore(10, fallback);
+        store.put(key(1), "one");
+        final CacheKey otherEntity = new CacheKey(1L, LongType.INSTANCE, "Other", null, null);
+        final CacheKey stringId = new CacheKey("1", StringType.INSTANCE, ENTITY, null, null);
+        store.put(otherEntity, "other");
+        store.put(stringId, "string");
+        assertEquals("one", store.get(key(1)));
+        assertEquals("other", store.get(otherEntity));
+        assertEquals("string", store.get(stringId));
+        assertEquals(2, fallback.size());
+        assertEquals(3, store.size());
+    }
+
+    /**
+     * Random operations compared to a {@link HashMap}, checks the backward shift deletion.
+     */
+    @Test
+    public void randomOperations() {
+        final LongKeyedCacheStore store = new LongKeyedCacheStore(1000, new TinyLfuCache<Object, Object>(10));
+        final Map<Long, String> expected = new HashMap<Long, String>();
+        final Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            final long id = random.nextInt(800);
+            if (random.nextInt(3) == 0) {
+                store.remove(key(id));
+                expected.remove(id);
+            } else {
+                store.put(key(id), "value" + i);
+                expected.put(id, "value" + i);
+            }
+        }
+        assertEquals(expected.size(), store.size());
+        for (long id = 0; id < 800; id++) {
+            assertEquals(expected.get(id), store.get(key(id)));
+        }
+    }
+
+    /**
+     * Measures the bytes allocated and the time spent by the lookups of both stores.
+     */
+    @Test
+    public void lookupAllocation() {
+        final int entries = 10000;
+        final LongKeyedCacheStore longKeyed = new LongKeyedCacheStore(entries, new TinyLfuCache<Object, Object>(10));
+        final TinyLfuCache<Object, Object> generic = new TinyLfuCache<Object, Object>(entries);
+        final CacheKey[] keys = new CacheKey[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = key(i);
+            longKeyed.put(keys[i], "value" + i);
+            generic.put(keys[i], "value" + i);
+        }
+
+        final long[] longKeyedResult = measureLookups(longKeyed, keys);
+        final long[] genericResult = measureLookups(generic, keys);
+        final int lookups = LOOKUP_ROUNDS * entries;
+        LOG.info(String.format("%d lookups - long keyed store: %,d bytes allocated, %d ns/lookup; TinyLFU store: %,d bytes allocated, %d ns/lookup",
+                               lookups, longKeyedResult[0], longKeyedResult[1] / lookups, genericResult[0], genericResult[1] / lookups));
+        assertTrue("The long keyed lookups should not allocate: " + longKeyedResult[0], longKeyedResult[0] < 10 * 1024);
+    }
+
+    /**
+     * @return The allocated bytes and the elapsed nanoseconds.
+     */
+    private static long[] measureLookups(final CacheStore<Object, Object> store, final CacheKey[] keys) {
+        /* Warm up. */
+        for (int round = 0; round < LOOKUP_ROUNDS; round++) {
+            for (final CacheKey key : keys) {
+                store.get(key);
+            }
+        }
+        final long startBytes = allocatedBytes();
+        final long startTime = System.nanoTime();
+        for (int round = 0; round < LOOKUP_ROUNDS; round++) {
+            for (final CacheKey key : keys) {
+                if (store.get(key) == null) {
+                    fail("Missing key: " + key);
+                }
+            }
+        }
+        final long time = System.nanoTime() - startTime;
+        return new long[] { allocatedBytes() - startBytes, time };
+    }
+
+    /**
+     * @return The bytes allocated by the current thread so far.
+     */
+    public static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static CacheKey key(final long id) {
+        return new CacheKey(id, LongType.INSTANCE, ENTITY, null, null);
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the allocation of the {@link MemoryBudget} between the regions.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class MemoryBudgetTest {
+
+    private static final long BUDGET = 1024 * 1024;
+
+    @Test
+    public void evenSplit() {
+        final MemoryBudget budget = new MemoryBudget(BUDGET);
+        budget.createCache("a", 100);
+        budget.createCache("b", 100);
+        budget.createCache("c", 100);
+        assertEquals(BUDGET / 3, budget.getAllocation("a"));
+        assertEquals(BUDGET / 3, budget.getAllocation("c"));
+        assertEquals(-1, budget.getAllocation("d"));
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void estimatedSize() {
+        final TinyLfuCache<Object, Object> cache = new MemoryBudget(BUDGET).createCache("a", 100);
+        cache.put(Long.valueOf(1), "value");
+        final long weight = cache.getWeight();
+        assertEquals(SizeEstimator.weightOf(Long.valueOf(1), "value"), weight);
+        assertTrue(weight > SizeEstimator.ENTRY_OVERHEAD);
+
+        cache.put(Long.valueOf(1), "a much longer value than the previous one");
+        assertTrue(cache.getWeight() > weight);
+        cache.remove(Long.valueOf(1));
+        assertEquals(0, cache.getWeight());
+    }
+
+    /**
+     * A hot region reading a working set larger than its share takes the allocation
+     * of a region whose entries are never read, the budget is kept.
+     */
+    @Test
+    public void hotRegionGrows() {
+        final MemoryBudget budget = new MemoryBudget(BUDGET);
+        final TinyLfuCache<Object, Object> hot = budget.createCache("hot", 10000);
+        final TinyLfuCache<Object, Object> cold = budget.createCache("cold", 10000);
+        final String value = new String(new char[200]);
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            final Long key = Long.valueOf(random.nextInt(4000));
+            if (hot.get(key) == null) {
+                hot.put(key, value);
+            }
+            cold.put(Long.valueOf(i), value);
+        }
+
+        assertTrue(budget.getRebalanceCount() > 0);
+        assertTrue(budget.getAllocation("hot") > budget.getAllocation("cold"));
+        assertTrue(budget.getAllocation("cold") >= BUDGET / 2 / 20);
+
+        long total = 0;
+        for (final Map.Entry<String, Long> allocation : budget.getAllocations().entrySet()) {
+            total += allocation.getValue().longValue();
+        }
+        assertEquals(BUDGET, total);
+        assertTrue(hot.getWeight() <= budget.getAllocation("hot"));
+        assertTrue(cold.getWeight() <= budget.getAllocation("cold"));
+        assertTrue(budget.getUsedBytes() <= BUDGET);
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import static org.junit.Assert.*;
+
+import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+/**
+ * Tests the {@link OffHeapCacheStore} and compares its heap usage and GC time
+ * with the Ehcache on-heap memory store.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class OffHeapCacheStoreTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(OffHeapCacheStoreTest.class);
+
+    /** The number of entries used by the benchmark. */
+    private static final int BENCHMARK_ENTRIES = 200000;
+
+    @Test
+    public void putGetRemove() {
+        final OffHeapCacheStore store = new OffHeapCacheStore(4096, 1024);
+        store.put(1L, "one");
+        store.put(1L, "ONE");
+        assertEquals("ONE", store.get(1L));
+        assertEquals(1, store.size());
+        store.remove(1L);
+        assertNull(store.get(1L));
+        assertFalse(store.containsKey(1L));
+    }
+
+    /**
+     * The oldest segment is recycled when the log wraps around.
+     */
+    @Test
+    public void evictsOldestSegment() {
+        final OffHeapCacheStore store = new OffHeapCacheStore(4 * 1024, 1024);
+        for (long i = 0; i < 1000; i++) {
+            store.put(i, disassembled(i));
+        }
+        assertTrue(store.getEvictionCount() > 0);
+        assertNull(store.get(0L));
+        assertNotNull(store.get(999L));
+        assertEquals(4 * 1024, store.getAllocatedBytes());
+    }
+
+    /**
+     * The entries read frequently are moved out of the segment before it is recycled.
+     */
+    @Test
+    public void keepsReadEntries() {
+        final OffHeapCacheStore store = new OffHeapCacheStore(8 * 1024, 1024);
+        store.put(-1L, disassembled(-1));
+        for (long i = 0; i < 2000; i++) {
+            store.put(i, disassembled(i));
+            assertNotNull("The hot entry has been evicted at " + i, store.get(-1L));
+        }
+    }
+
+    @Test
+    public void tooLargeValueIsNotStored() {
+        final OffHeapCacheStore store = new OffHeapCacheStore(2048, 1024);
+        store.put(1L, "small");
+        store.put(1L, new byte[2048]);
+        assertNull(store.get(1L));
+    }
+
+    /**
+     * Fills the off-heap store and an Ehcache memory store with the same
+     * disassembled entity states and logs the retained heap and the GC time.
+     */
+    @Test
+    public void heapUsageComparedToEhcache() {
+        final long baseline = usedHeap();
+
+        long gcTime = gcTime();
+        final OffHeapCacheStore offHeap = new OffHeapCacheStore(256L * 1024 * 1024, 1024 * 1024);
+        for (long i = 0; i < BENCHMARK_ENTRIES; i++) {
+            offHeap.put(i, disassembled(i));
+        }
+        final long offHeapGcTime = gcTime() - gcTime;
+        final long offHeapUsed = usedHeap() - baseline;
+        assertEquals(BENCHMARK_ENTRIES, offHeap.size());
+        offHeap.clear();
+
+        final long ehcacheBaseline = usedHeap();
+        final CacheManager cacheManager = new CacheManager(new Configuration().name("offheap")
+                .defaultCache(new CacheConfiguration("default", BENCHMARK_ENTRIES)));
+        final long ehcacheUsed;
+        final long ehcacheGcTime;
+        try {
+            gcTime = gcTime();
+            final Cache ehcache = new Cache(new CacheConfiguration("onheap", BENCHMARK_ENTRIES).eternal(true));
+            cacheManager.addCache(ehcache);
+            for (long i = 0; i < BENCHMARK_ENTRIES; i++) {
+                ehcache.put(new Element(i, disassembled(i)));
+            }
+            ehcacheGcTime = gcTime() - gcTime;
+            ehcacheUsed = usedHeap() - ehcacheBaseline;
+            assertEquals(BENCHMARK_ENTRIES, ehcache.getSize());
+        } finally {
+            cacheManager.shutdown();
+        }
+
+        LOG.info(String.format("%d entries - off-heap store: retained heap %,d bytes, GC time %d ms; Ehcache on-heap: retained heap %,d bytes, GC time %d ms",
+                               BENCHMARK_ENTRIES, offHeapUsed, offHeapGcTime, ehcacheUsed, ehcacheGcTime));
+        assertTrue("The off-heap store should use less heap: " + offHeapUsed + " >= " + ehcacheUsed, offHeapUsed < ehcacheUsed);
+    }
+
+    /**
+     * @return A value similar to the disassembled state of a ReadWriteEntity.
+     */
+    private static Serializable[] disassembled(final long id) {
+        return new Serializable[] { "readWrite" + id, Long.valueOf(id) };
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+}
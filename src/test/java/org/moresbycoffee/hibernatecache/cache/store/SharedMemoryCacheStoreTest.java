@@ -0,0 +1,286 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link SharedMemoryCacheStore}, the cross-process tests share the file with forked JVMs
+ * running the {@link #main(String[])} of this class.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class SharedMemoryCacheStoreTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(SharedMemoryCacheStoreTest.class);
+
+    /** The number of the keys written by the forked writer. */
+    private static final int KEYS = 500;
+
+    /** The time the forked processes run for. */
+    private static final long DURATION = 3000;
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("hibernatecache", ".shm");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void putGetRemove() {
+        final SharedMemoryCacheStore store = new SharedMemoryCacheStore(file, 100, 64 * 1024);
+        try {
+            store.put(1L, "one");
+            store.put(1L, "ONE");
+            assertEquals("ONE", store.get(1L));
+            assertEquals(1, store.size());
+            store.remove(1L);
+            assertNull(store.get(1L));
+            assertFalse(store.containsKey(1L));
+            assertEquals(0, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedStoreIsNotRead() {
+        final SharedMemoryCacheStore store = new SharedMemoryCacheStore(file, 100, 64 * 1024);
+        store.put(1L, "one");
+        store.close();
+        store.get(1L);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedStoreIsNotWritten() {
+        final SharedMemoryCacheStore store = new SharedMemoryCacheStore(file, 100, 64 * 1024);
+        store.close();
+        store.close();
+        store.put(1L, "one");
+    }
+
+    /**
+     * The second store adopts the geometry of the existing file and sees the entries of the first one.
+     */
+    @Test
+    public void storesShareTheFile() {
+        final SharedMemoryCacheStore store1 = new SharedMemoryCacheStore(file, 100, 64 * 1024);
+        final SharedMemoryCacheStore store2 = new SharedMemoryCacheStore(file, 10, 1024);
+        try {
+            store1.put("key", values(1, 100));
+            assertArrayEquals(values(1, 100), (long[]) store2.get("key"));
+            store2.remove("key");
+            assertNull(store1.get("key"));
+            store2.put("other", "value");
+            store1.close();
+        } finally {
+            store2.close();
+        }
+        final SharedMemoryCacheStore reopened = new SharedMemoryCacheStore(file, 100, 64 * 1024);
+        try {
+            assertEquals("value", reopened.get("other"));
+            assertEquals(1, reopened.toMap().size());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * The store is cleared when the data area is full.
+     */
+    @Test
+    public void clearedWhenFull() {
+        final SharedMemoryCacheStore store = new SharedMemoryCacheStore(file, 1000, 4 * 1024);
+        try {
+            for (long i = 0; i < 1000; i++) {
+                store.put(i, values(i, 10));
+                assertArrayEquals(values(i, 10), (long[]) store.get(i));
+            }
+            assertTrue(store.size() < 1000);
+            store.put("big", new byte[8 * 1024]);
+            assertNull(store.get("big"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * A forked JVM overwrites the entries while an other one reads and validates them.
+     * The small data area is cleared frequently, so the reader often meets entries being overwritten.
+     */
+    @Test
+    public void forkedWriterAndReader() throws Exception {
+        final SharedMemoryCacheStore store = new SharedMemoryCacheStore(file, KEYS, 256 * 1024);
+        try {
+            store.put("parent", "visible");
+            final Process writer = fork("writer");
+            final Process reader = fork("reader");
+            assertEquals("The forked reader has failed.", 0, waitFor(reader));
+            assertEquals("The forked writer has failed.", 0, waitFor(writer));
+
+            /* The last values of the writer. */
+            final Object last = store.get("done");
+            assertNotNull(last);
+            for (int key = 0; key < KEYS; key++) {
+                final long[] value = (long[]) store.get(key);
+                if (value != null) {
+                    assertValid(key, value);
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * The entry point of the forked processes. The failures are reported by the exit code of the process.
+     *
+     * @param args The role (<code>writer</code> or <code>reader</code>) and the file.
+     */
+    public static void main(final String[] args) {
+        int status = 0;
+        final SharedMemoryCacheStore store = new SharedMemoryCacheStore(new File(args[1]), KEYS, 256 * 1024);
+        try {
+            if ("writer".equals(args[0])) {
+                write(store);
+            } else {
+                read(store);
+            }
+        } catch (final Throwable e) {
+            LOG.error("The " + args[0] + " has failed.", e);
+            status = 1;
+        } finally {
+            store.close();
+        }
+        System.exit(status);
+    }
+
+    private static void write(final SharedMemoryCacheStore store) {
+        final long end = System.currentTimeMillis() + DURATION;
+        long round = 0;
+        while (System.currentTimeMillis() < end) {
+            round++;
+            for (int key = 0; key < KEYS; key++) {
+                if ((key + round) % 7 == 0) {
+                    store.remove(key);
+                } else {
+                    store.put(key, values(round * KEYS + key, 1 + (int) ((key + round) % 64)));
+                }
+            }
+        }
+        store.put("done", round);
+    }
+
+    private static void read(final SharedMemoryCacheStore store) {
+        if (!"visible".equals(store.get("parent"))) {
+            throw new AssertionError("The entry of the parent process is not visible.");
+        }
+        final long end = System.currentTimeMillis() + DURATION;
+        long found = 0;
+        while (System.currentTimeMillis() < end) {
+            for (int key = 0; key < KEYS; key++) {
+                final long[] value = (long[]) store.get(key);
+                if (value != null) {
+                    assertValid(key, value);
+                    found++;
+                }
+            }
+        }
+        if (found == 0) {
+            throw new AssertionError("No entry of the writer process has been found.");
+        }
+        LOG.info("The reader has validated " + found + " entries.");
+    }
+
+    /**
+     * Asserts that the value is one written by the writer: all its elements are the same and belong to the key.
+     */
+    private static void assertValid(final int key, final long[] value) {
+        final long first = value[0];
+        for (final long element : value) {
+            if (element != first || first % KEYS != key) {
+                throw new AssertionError("Torn value of " + key + ": " + Arrays.toString(value));
+            }
+        }
+    }
+
+    private static long[] values(final long value, final int length) {
+        final long[] values = new long[length];
+        Arrays.fill(values, value);
+        return values;
+    }
+
+    private Process fork(final String role) throws IOException {
+        final List<String> command = Arrays.asList(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                                                   "-cp", System.getProperty("java.class.path"),
+                                                   SharedMemoryCacheStoreTest.class.getName(), role, file.getPath());
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    /**
+     * Logs the output of the forked process.
+     * @return The exit code of the process.
+     */
+    private static int waitFor(final Process process) throws IOException, InterruptedException {
+        final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = output.readLine()) != null) {
+                LOG.info(line);
+            }
+        } finally {
+            output.close();
+        }
+        return process.waitFor();
+    }
+
+}
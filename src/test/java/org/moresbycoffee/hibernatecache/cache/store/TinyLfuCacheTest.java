@@ -0,0 +1,235 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.store;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+/**
+ * Tests the eviction policy of the {@link TinyLfuCache} and compares its
+ * hit ratio with the Ehcache LRU memory store on a Zipf-skewed workload
+ * mixed with one-off scans.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class TinyLfuCacheTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(TinyLfuCacheTest.class);
+
+    private static final int CAPACITY = 1000;
+
+    private static final int KEY_SPACE = 50000;
+
+    private static final int ACCESS_COUNT = 500000;
+
+    /** A scan of never repeated keys is run after this many accesses. */
+    private static final int SCAN_PERIOD = 20000;
+
+    private static final int SCAN_LENGTH = 2 * CAPACITY;
+
+    @Test
+    public void boundedSize() {
+        final TinyLfuCache<Long, String> cache = new TinyLfuCache<Long, String>(100);
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, "value" + i);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(900, cache.getEvictionCount());
+    }
+
+    @Test
+    public void weightedSize() {
+        final Weigher<Long, String> weigher = new Weigher<Long, String>() {
+            @Override
+            public int weigh(final Long key, final String value) {
+                return value.length();
+            }
+        };
+        final TinyLfuCache<Long, String> cache = new TinyLfuCache<Long, String>(1000, weigher, 100);
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, i % 2 == 0 ? "0123456789" : "01234567890123456789");
+        }
+        assertTrue(cache.isWeighted());
+        assertTrue(cache.getWeight() <= 1000);
+        assertTrue(cache.getWeight() > 900);
+
+        cache.put(999L, "0");
+        assertTrue(cache.getWeight() <= 1000);
+
+        cache.setMaximumWeight(100);
+        assertTrue(cache.getWeight() <= 100);
+        assertTrue(cache.size() <= 10);
+
+        cache.clear();
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void putGetRemove() {
+        final TinyLfuCache<Long, String> cache = new TinyLfuCache<Long, String>(10);
+        cache.put(1L, "one");
+        cache.put(1L, "ONE");
+        assertEquals("ONE", cache.get(1L));
+        cache.remove(1L);
+        assertNull(cache.get(1L));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * The frequently used entries survive a scan which is longer than the capacity.
+     */
+    @Test
+    public void scanResistance() {
+        final TinyLfuCache<Long, String> cache = new TinyLfuCache<Long, String>(100);
+        for (int round = 0; round < 10; round++) {
+            for (long i = 0; i < 50; i++) {
+                if (cache.get(i) == null) {
+                    cache.put(i, "hot" + i);
+                }
+            }
+        }
+        for (long i = 1000; i < 1500; i++) {
+            cache.put(i, "scan" + i);
+        }
+        int hot = 0;
+        for (long i = 0; i < 50; i++) {
+            if (cache.containsKey(i)) {
+                hot++;
+            }
+        }
+        assertEquals("The hot entries should have survived the scan.", 50, hot);
+    }
+
+    @Test
+    public void zipfHitRatioComparedToEhcacheLru() {
+        final long[] workload = zipfWorkload(new Random(42), 0.9);
+
+        final TinyLfuCache<Long, Long> tinyLfu = new TinyLfuCache<Long, Long>(CAPACITY);
+        int tinyLfuHits = 0;
+        for (final long key : workload) {
+            if (tinyLfu.get(key) != null) {
+                tinyLfuHits++;
+            } else {
+                tinyLfu.put(key, key);
+            }
+        }
+
+        final CacheManager cacheManager = new CacheManager(new Configuration().name("zipf")
+                .defaultCache(new CacheConfiguration("default", CAPACITY)));
+        int ehcacheHits = 0;
+        try {
+            final Cache ehcache = new Cache(new CacheConfiguration("zipf", CAPACITY)
+                    .memoryStoreEvictionPolicy(MemoryStoreEvictionPolicy.LRU)
+                    .eternal(true));
+            cacheManager.addCache(ehcache);
+            for (final long key : workload) {
+                if (ehcache.get(key) != null) {
+                    ehcacheHits++;
+                } else {
+                    ehcache.put(new Element(key, key));
+                }
+            }
+        } finally {
+            cacheManager.shutdown();
+        }
+
+        final double tinyLfuRatio = (double) tinyLfuHits / workload.length;
+        final double ehcacheRatio = (double) ehcacheHits / workload.length;
+        LOG.info(String.format("Zipf workload (%d accesses, %d keys, capacity %d): W-TinyLFU hit ratio: %.2f%% Ehcache LRU hit ratio: %.2f%%",
+                               workload.length, KEY_SPACE, CAPACITY, tinyLfuRatio * 100, ehcacheRatio * 100));
+
+        assertTrue("W-TinyLFU should have better hit ratio than LRU: " + tinyLfuRatio + " <= " + ehcacheRatio, tinyLfuRatio > ehcacheRatio);
+    }
+
+    @Test
+    public void readBufferDropsTheReadsOfAFullRing() {
+        final ReadBuffer<Integer> buffer = new ReadBuffer<Integer>();
+        for (int i = 0; i < ReadBuffer.RING_SIZE; i++) {
+            assertEquals(i + 1, buffer.offer(i));
+        }
+        assertEquals(ReadBuffer.RING_SIZE, buffer.offer(-1));
+
+        final StringBuilder drained = new StringBuilder();
+        buffer.drain(new ReadBuffer.Consumer<Integer>() {
+            @Override
+            public void accept(final Integer element) {
+                drained.append(element).append(',');
+            }
+        });
+        assertTrue(drained.toString(), drained.toString().startsWith("0,1,2,"));
+        assertFalse(drained.toString(), drained.toString().contains("-1"));
+        assertEquals(1, buffer.offer(0));
+    }
+
+    /**
+     * @param random The random generator. (NonNull)
+     * @param skew The exponent of the Zipf distribution.
+     * @return Zipf distributed keys with one-off scans of unique keys in every {@link #SCAN_PERIOD}.
+     */
+    private static long[] zipfWorkload(final Random random, final double skew) {
+        final double[] cdf = new double[KEY_SPACE];
+        double sum = 0;
+        for (int i = 0; i < KEY_SPACE; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+
+        final long[] workload = new long[ACCESS_COUNT + (ACCESS_COUNT / SCAN_PERIOD) * SCAN_LENGTH];
+        long nextScanKey = KEY_SPACE;
+        int index = 0;
+        for (int i = 1; i <= ACCESS_COUNT; i++) {
+            final int position = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            workload[index++] = position >= 0 ? position : -position - 1;
+            if (i % SCAN_PERIOD == 0) {
+                for (int j = 0; j < SCAN_LENGTH; j++) {
+                    workload[index++] = nextScanKey++;
+                }
+            }
+        }
+        return workload;
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+/**
+ * Tests the {@link AdaptiveTtl} and compares the staleness and the hit ratio of the adaptive
+ * time-to-live with static time-to-lives on a simulated mixed read/write workload.
+ * <p>
+ * The simulation runs on a virtual clock, one operation per millisecond. The reads are Zipf
+ * distributed, the writes hit a small set of hot keys mostly. Half of the writes are seen by the
+ * cache (they remove the entry and are recorded), the other half are committed by another node.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class AdaptiveTtlTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(AdaptiveTtlTest.class);
+
+    private static final long MAX_STALENESS = 60000;
+
+    private static final double STALE_READ_RATIO = 0.01;
+
+    private static final int KEY_SPACE = 10000;
+
+    private static final int OPERATIONS = 2000000;
+
+    /** The ratio of the writes among the operations. */
+    private static final double WRITE_RATIO = 0.02;
+
+    /** The ratio of the writes hitting the hot keys. */
+    private static final double HOT_WRITE_RATIO = 0.8;
+
+    /** Every key with this remainder modulo {@link #HOT_KEY_MODULO} is written frequently. */
+    private static final int HOT_KEY_REMAINDER = 7;
+
+    private static final int HOT_KEY_MODULO = 50;
+
+    /** The ratio of the writes seen by the cache. */
+    private static final double SEEN_WRITE_RATIO = 0.5;
+
+    @Test
+    public void frequentlyWrittenKeysExpireSooner() {
+        final AdaptiveTtl ttl = new AdaptiveTtl(MAX_STALENESS, STALE_READ_RATIO);
+        final Long hot = Long.valueOf(1);
+        final Long cold = Long.valueOf(2);
+        assertEquals(MAX_STALENESS, ttl.getTtl(hot, 0));
+
+        /* One write per second. */
+        for (long now = 0; now < 10 * MAX_STALENESS; now += 1000) {
+            ttl.recordWrite(hot, now);
+        }
+        final long now = 10 * MAX_STALENESS;
+        final long hotTtl = ttl.getTtl(hot, now);
+        /* 2 * 1% / (1 / 1000 ms) = 20 ms, but at least 1% of the maximum. */
+        assertEquals(MAX_STALENESS / 100, hotTtl);
+        assertEquals(MAX_STALENESS, ttl.getTtl(cold, now));
+        assertEquals(1.0, ttl.getWriteRate(now), 0.5);
+
+        /* The write history decays. */
+        assertEquals(MAX_STALENESS, ttl.getTtl(hot, now + 100 * MAX_STALENESS));
+    }
+
+    @Test
+    public void ttlIsInverselyProportionalToTheWriteRate() {
+        final AdaptiveTtl ttl = new AdaptiveTtl(MAX_STALENESS, STALE_READ_RATIO);
+        final Long key = Long.valueOf(1);
+        /* One write per minute. */
+        for (long now = 0; now < 100 * MAX_STALENESS; now += 60000) {
+            ttl.recordWrite(key, now);
+        }
+        /* 2 * 1% / (1 / 60000 ms) = 1200 ms. */
+        assertEquals(1200, ttl.getTtl(key, 100 * MAX_STALENESS), 200);
+    }
+
+    /**
+     * The adaptive time-to-live keeps the stale reads under the targeted ratio, far below the static
+     * time-to-live of the maximum staleness, while its hit ratio is much higher than the hit ratio of
+     * the static time-to-live of the minimum.
+     */
+    @Test
+    public void stalenessAndHitRatioComparedToStaticTtl() {
+        final Result shortTtl = simulate(null, MAX_STALENESS / 100);
+        final Result longTtl = simulate(null, MAX_STALENESS);
+        final Result adaptive = simulate(new AdaptiveTtl(MAX_STALENESS, STALE_READ_RATIO), 0);
+
+        LOG.info(String.format("Mixed workload (%d operations, %.0f%% writes, %d keys, max staleness %d ms):", OPERATIONS, WRITE_RATIO * 100, KEY_SPACE, MAX_STALENESS));
+        LOG.info("Static TTL " + (MAX_STALENESS / 100) + " ms: " + shortTtl);
+        LOG.info("Static TTL " + MAX_STALENESS + " ms: " + longTtl);
+        LOG.info("Adaptive TTL:        " + adaptive);
+
+        assertTrue(adaptive.maxStaleness <= MAX_STALENESS);
+        assertTrue(adaptive.hitRatio() > shortTtl.hitRatio());
+        assertTrue(adaptive.staleRatio() < STALE_READ_RATIO);
+        assertTrue(adaptive.staleRatio() < longTtl.staleRatio() / 2);
+        assertTrue(adaptive.stalenessPercentile(0.99) < longTtl.stalenessPercentile(0.99));
+    }
+
+    /**
+     * @param ttl The adaptive time-to-live or <tt>null</tt>.
+     * @param staticTtl The time-to-live used if there is no adaptive.
+     * @return The result of the simulation. (NonNull)
+     */
+    private static Result simulate(final AdaptiveTtl ttl, final long staticTtl) {
+        final Random random = new Random(42);
+        final double[] cdf = zipfCdf(0.9);
+
+        final long[] version = new long[KEY_SPACE];
+        /* The cached version, -1 if it is not cached. */
+        final long[] cachedVersion = new long[KEY_SPACE];
+        final long[] expiresAt = new long[KEY_SPACE];
+        /* The time of the first write after the cached version, -1 if it is fresh. */
+        final long[] staleSince = new long[KEY_SPACE];
+        Arrays.fill(cachedVersion, -1);
+
+        final Result result = new Result();
+        for (long now = 0; now < OPERATIONS; now++) {
+            if (random.nextDouble() < WRITE_RATIO) {
+                final int key;
+                if (random.nextDouble() < HOT_WRITE_RATIO) {
+                    key = random.nextInt(KEY_SPACE / HOT_KEY_MODULO) * HOT_KEY_MODULO + HOT_KEY_REMAINDER;
+                } else {
+                    key = random.nextInt(KEY_SPACE);
+                }
+                version[key]++;
+                if (random.nextDouble() < SEEN_WRITE_RATIO) {
+                    cachedVersion[key] = -1;
+                    if (ttl != null) {
+                        ttl.recordWrite(Long.valueOf(key), now);
+                    }
+                } else if (cachedVersion[key] >= 0 && staleSince[key] < 0) {
+                    staleSince[key] = now;
+                }
+                continue;
+            }
+
+            final int position = Arrays.binarySearch(cdf, random.nextDouble() * cdf[KEY_SPACE - 1]);
+            final int key = position >= 0 ? position : -position - 1;
+            if (cachedVersion[key] >= 0 && now < expiresAt[key]) {
+                result.hit(staleSince[key] < 0 ? 0 : now - staleSince[key]);
+            } else {
+                result.miss();
+                cachedVersion[key] = version[key];
+                staleSince[key] = -1;
+                expiresAt[key] = now + (ttl == null ? staticTtl : ttl.getTtl(Long.valueOf(key), now));
+            }
+        }
+        return result;
+    }
+
+    private static double[] zipfCdf(final double skew) {
+        final double[] cdf = new double[KEY_SPACE];
+        double sum = 0;
+        for (int i = 0; i < KEY_SPACE; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        return cdf;
+    }
+
+    /**
+     * The statistics of the reads of a simulation.
+     */
+    private static final class Result {
+
+        private long reads;
+
+        private long hits;
+
+        private long maxStaleness;
+
+        /** The staleness of the stale reads. */
+        private long[] staleness = new long[1024];
+
+        private int staleReads;
+
+        void hit(final long readStaleness) {
+            reads++;
+            hits++;
+            if (readStaleness > 0) {
+                if (staleReads == staleness.length) {
+                    staleness = Arrays.copyOf(staleness, staleReads * 2);
+                }
+                staleness[staleReads++] = readStaleness;
+                maxStaleness = Math.max(maxStaleness, readStaleness);
+            }
+        }
+
+        void miss() {
+            reads++;
+        }
+
+        double hitRatio() {
+            return (double) hits / reads;
+        }
+
+        double staleRatio() {
+            return (double) staleReads / reads;
+        }
+
+        /**
+         * @return The staleness of the reads at the percentile, the fresh reads have <code>0</code> staleness.
+         */
+        long stalenessPercentile(final double percentile) {
+            final int fresh = (int) (reads - staleReads);
+            final int rank = (int) Math.ceil(percentile * reads) - 1;
+            if (rank < fresh) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(staleness, staleReads);
+            Arrays.sort(sorted);
+            return sorted[Math.min(staleReads - 1, rank - fresh)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hit ratio: %.2f%% stale reads: %.3f%% staleness p99: %d ms p99.9: %d ms max: %d ms",
+                                 hitRatio() * 100, staleRatio() * 100, stalenessPercentile(0.99), stalenessPercentile(0.999), maxStaleness);
+        }
+    }
+
+}
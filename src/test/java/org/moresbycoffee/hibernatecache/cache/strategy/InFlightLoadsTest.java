@@ -0,0 +1,133 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.cache.strategy;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the hand-off, the refusal and the timeout of the {@link InFlightLoads}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class InFlightLoadsTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void waiterGetsTheLoadedValue() throws Exception {
+        final InFlightLoads loads = new InFlightLoads(10000);
+        assertNull(loads.join("key"));
+        /* The leader itself isn't blocked by its own load. */
+        assertNull(loads.join("key"));
+
+        final Future<Object> waiter = executor.submit(join(loads, "key"));
+        waitForWaiter();
+        loads.complete("key", "value");
+
+        assertEquals("value", waiter.get());
+        assertEquals(1, loads.getLoadCount());
+        assertEquals(1, loads.getCoalescedCount());
+        assertEquals(0, loads.getInFlightCount());
+    }
+
+    @Test
+    public void refusedValueIsNotHandedOff() throws Exception {
+        final InFlightLoads loads = new InFlightLoads(10000);
+        assertNull(loads.join("key"));
+
+        final Future<Object> waiter = executor.submit(join(loads, "key"));
+        waitForWaiter();
+        loads.complete("key", null);
+
+        assertNull(waiter.get());
+        assertEquals(0, loads.getCoalescedCount());
+        assertEquals(1, loads.getFallbackCount());
+    }
+
+    @Test
+    public void onlyTheLeaderCompletesTheLoad() throws Exception {
+        final InFlightLoads loads = new InFlightLoads(10000);
+        assertNull(loads.join("key"));
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                loads.complete("key", "other");
+            }
+        }).get();
+        assertEquals(1, loads.getInFlightCount());
+        loads.complete("key", "value");
+        assertEquals(0, loads.getInFlightCount());
+    }
+
+    @Test
+    public void waiterFallsBackAfterTimeout() throws Exception {
+        final InFlightLoads loads = new InFlightLoads(100);
+        assertNull(loads.join("key"));
+
+        final long start = System.currentTimeMillis();
+        assertNull(executor.submit(join(loads, "key")).get());
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals(1, loads.getFallbackCount());
+
+        /* The expired load is taken over by the next miss. */
+        assertNull(executor.submit(join(loads, "key")).get());
+        assertEquals(2, loads.getLoadCount());
+    }
+
+    private static Callable<Object> join(final InFlightLoads loads, final Object key) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                return loads.join(key);
+            }
+        };
+    }
+
+    /** Gives the waiting thread time to block on the load. */
+    private static void waitForWaiter() throws InterruptedException {
+        Thread.sleep(100);
+    }
+
+}
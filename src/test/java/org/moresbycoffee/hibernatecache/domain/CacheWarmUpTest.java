@@ -0,0 +1,190 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.apache.log4j.Logger;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.junit.After;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.warmup.CacheWarmUp;
+
+/**
+ * Tests the {@link CacheWarmUp}. A second persistence unit is started on the database
+ * generated by the {@link EntityManagerTest}, loading the configured regions at startup.
+ * <p>
+ * The {@link #warmUpVersusLazyPopulation()} compares the time-to-warm with the lazy population
+ * of the region for {@link #ROWS} additional rows, set the <code>warmup.rows</code> system property
+ * to measure it with e.g. 1000000 rows.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class CacheWarmUpTest extends EntityManagerTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(CacheWarmUpTest.class);
+
+    private static final int ROWS = Integer.getInteger("warmup.rows", 5000).intValue();
+
+    private EntityManagerFactory warmEmf;
+
+    @After
+    public void tearDown() {
+        if (warmEmf != null) {
+            warmEmf.close();
+        }
+    }
+
+    @Test
+    public void warmedUpRegionsAreReadWithoutStatements() throws Exception {
+        final List<Long> ids = getIds();
+        warmEmf = createWarmEntityManagerFactory(true, 10);
+        final CacheWarmUp warmUp = CacheWarmUp.of(getSessionFactory(warmEmf));
+        assertTrue(warmUp.awaitReady(30, TimeUnit.SECONDS));
+        /* 90 ReadOnlyEntities, 2 Lines, 2 Stations and their collections. */
+        assertEquals(98, warmUp.getEntryCount());
+
+        final EntityManager em = warmEmf.createEntityManager();
+        initStat(em);
+        for (final Long id : ids) {
+            assertNotNull(em.find(ReadOnlyEntity.class, id));
+        }
+        printStat(em, "EM");
+        /* Every entity has been found in the 2nd level cache. */
+        assertStat(em, 0, 0, 90, 0);
+
+        final List<Long> lineIds = getWarmIds(em, Line.class);
+        initStat(em);
+        for (final Long id : lineIds) {
+            final Line line = em.find(Line.class, id);
+            for (final Station station : line.getStations()) {
+                assertEquals(2, station.getLines().size());
+            }
+        }
+        printStat(em, "EM");
+        /* The lines, the stations and their collections have been found in the 2nd level cache. */
+        assertStat(em, 0, 0, 2 + 2 + 2 + 2, 0);
+        em.close();
+    }
+
+    @Test
+    public void regionsWithoutWarmUpAreNotLoaded() throws Exception {
+        warmEmf = createWarmEntityManagerFactory(false, 10);
+        final CacheWarmUp warmUp = CacheWarmUp.of(getSessionFactory(warmEmf));
+        assertTrue(warmUp.awaitReady(30, TimeUnit.SECONDS));
+        assertEquals(0, warmUp.getEntryCount());
+    }
+
+    @Test
+    public void warmUpVersusLazyPopulation() throws Exception {
+        insertReadOnlyEntities(ROWS);
+        final List<Long> ids = getIds();
+
+        warmEmf = createWarmEntityManagerFactory(true, CacheSettings.DEFAULT_WARMUP_CHUNK_SIZE);
+        final CacheWarmUp warmUp = CacheWarmUp.of(getSessionFactory(warmEmf));
+        assertTrue(warmUp.awaitReady(5, TimeUnit.MINUTES));
+        assertEquals(ids.size() + 8, warmUp.getEntryCount());
+        warmEmf.close();
+
+        /* The lazy population reads every entity once by an own statement. */
+        warmEmf = createWarmEntityManagerFactory(false, CacheSettings.DEFAULT_WARMUP_CHUNK_SIZE);
+        final long start = System.currentTimeMillis();
+        final EntityManager em = warmEmf.createEntityManager();
+        initStat(em);
+        for (final Long id : ids) {
+            em.find(ReadOnlyEntity.class, id);
+        }
+        final long lazy = System.currentTimeMillis() - start;
+        assertStat(em, ids.size(), 0, 0, ids.size());
+        em.close();
+
+        LOG.info(String.format("Time-to-warm of %,d rows: warm-up %,d ms, lazy population %,d ms", ids.size(), warmUp.getDuration(), lazy));
+    }
+
+    /**
+     * @param warmUp <code>true</code> if the {@link ReadOnlyEntity}, {@link Line} and {@link Station} regions are warmed up.
+     * @param chunkSize The number of the identifiers loaded by a warm-up task.
+     * @return An entity manager factory on the existing database. (NonNull)
+     */
+    private EntityManagerFactory createWarmEntityManagerFactory(final boolean warmUp, final long chunkSize) {
+        final Map<String, String> properties = getPersistenceProperties();
+        properties.put("hibernate.hbm2ddl.auto", "validate");
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.WARMUP_CHUNK_SIZE, Long.toString(chunkSize));
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.WARMUP_THREADS, "4");
+        properties.put(CacheSettings.REGION_PREFIX + ReadOnlyEntity.class.getName() + "." + CacheSettings.MAX_ENTRIES, Integer.toString(ROWS + 1000));
+        if (warmUp) {
+            for (final String region : new String[] { ReadOnlyEntity.class.getName(), Line.class.getName(), Line.class.getName() + ".stations",
+                                                      Station.class.getName(), Station.class.getName() + ".lines" }) {
+                properties.put(CacheSettings.REGION_PREFIX + region + "." + CacheSettings.WARMUP, "true");
+            }
+        }
+        return Persistence.createEntityManagerFactory("cached", properties);
+    }
+
+    private List<Long> getIds() {
+        final EntityManager em = emf.createEntityManager();
+        try {
+            return getWarmIds(em, ReadOnlyEntity.class);
+        } finally {
+            em.close();
+        }
+    }
+
+    private List<Long> getWarmIds(final EntityManager em, final Class<?> type) {
+        return em.createQuery("select e.id from " + type.getName() + " e", Long.class).getResultList();
+    }
+
+    private void insertReadOnlyEntities(final int count) {
+        final StatelessSession session = getSessionFactory(emf).openStatelessSession();
+        try {
+            final Transaction transaction = session.beginTransaction();
+            for (int i = 0; i < count; i++) {
+                session.insert(new ReadOnlyEntity("warmUp" + i));
+            }
+            transaction.commit();
+        } finally {
+            session.close();
+        }
+    }
+
+}
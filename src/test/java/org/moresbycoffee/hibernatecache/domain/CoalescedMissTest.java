@@ -0,0 +1,217 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PreLoadEvent;
+import org.hibernate.event.spi.PreLoadEventListener;
+import org.junit.After;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.strategy.InFlightLoads;
+import org.moresbycoffee.hibernatecache.cache.strategy.ReadWriteEntityRegionAccessStrategy;
+
+/**
+ * Tests the coalescing of the concurrent misses with {@link CacheSettings#COALESCE_TIMEOUT}.
+ * <p>
+ * The first load of the entity is held back by a pre-load listener until all the threads have
+ * started their finds, so the other threads are guaranteed to miss while the load is in flight.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class CoalescedMissTest extends EntityManagerTest {
+
+    private static final int THREADS = 16;
+
+    private static final long COALESCE_TIMEOUT = 10000;
+
+    /** The time the leader waits after the other threads have started their finds. */
+    private static final long LEADER_DELAY = 300;
+
+    /** The threads which have started their finds, <tt>null</tt> if the loads aren't held back. */
+    private volatile CountDownLatch finding;
+
+    private final AtomicBoolean leaderHeld = new AtomicBoolean();
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.COALESCE_TIMEOUT, String.valueOf(COALESCE_TIMEOUT));
+        return properties;
+    }
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    public void concurrentReadWriteEntityFindsLoadOnce() throws Exception {
+        final EntityManager em = emf.createEntityManager();
+        final Long id = getEntities(em, ReadWriteEntity.class, "EM1").get(0).getId();
+        em.close();
+        assertConcurrentFindsLoadOnce(ReadWriteEntity.class, id);
+    }
+
+    @Test
+    public void concurrentStationFindsLoadOnce() throws Exception {
+        final EntityManager em = emf.createEntityManager();
+        final Long id = getEntities(em, Station.class, "EM1").get(0).getId();
+        em.close();
+        assertConcurrentFindsLoadOnce(Station.class, id);
+    }
+
+    @Test
+    public void missingRowCompletesItsLoad() {
+        final EntityManager em = emf.createEntityManager();
+        assertNull(em.find(ReadWriteEntity.class, Long.valueOf(Long.MAX_VALUE)));
+        em.close();
+
+        /* The load is completed without waiting for the timeout. */
+        final InFlightLoads loads = getInFlightLoads(getSessionFactory(emf), ReadWriteEntity.class);
+        assertEquals(1, loads.getLoadCount());
+        assertEquals(0, loads.getInFlightCount());
+    }
+
+    @Test
+    public void loadWithoutPutCompletesItsLoad() {
+        final EntityManager em = emf.createEntityManager();
+        final Long id = getEntities(em, ReadWriteEntity.class, "EM1").get(0).getId();
+        em.clear();
+        emf.getCache().evict(ReadWriteEntity.class);
+
+        final Session session = (Session) em.getDelegate();
+        session.setCacheMode(CacheMode.GET);
+        assertNotNull(session.get(ReadWriteEntity.class, id));
+        em.close();
+
+        /* The entity hasn't been put into the region, but its load has been completed. */
+        final InFlightLoads loads = getInFlightLoads(getSessionFactory(emf), ReadWriteEntity.class);
+        assertEquals(1, loads.getLoadCount());
+        assertEquals(0, loads.getInFlightCount());
+    }
+
+    private void assertConcurrentFindsLoadOnce(final Class<?> type, final Long id) throws Exception {
+        emf.getCache().evict(type);
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(emf);
+        sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class).appendListeners(EventType.PRE_LOAD, new PreLoadEventListener() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void onPreLoad(final PreLoadEvent event) {
+                final CountDownLatch started = finding;
+                if (started != null && leaderHeld.compareAndSet(false, true)) {
+                    try {
+                        started.await();
+                        Thread.sleep(LEADER_DELAY);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+
+        final List<EntityManager> ems = new ArrayList<EntityManager>();
+        for (int i = 0; i < THREADS; i++) {
+            ems.add(emf.createEntityManager());
+        }
+        initStat(ems.get(0));
+
+        finding = new CountDownLatch(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Object> found = new ArrayList<Object>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (final EntityManager threadEm : ems) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        finding.countDown();
+                        final Object entity = threadEm.find(type, id);
+                        synchronized (found) {
+                            found.add(entity);
+                        }
+                    } catch (final Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            }, "find-" + threads.size());
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("Failures: " + failures, failures.isEmpty());
+        assertEquals(THREADS, found.size());
+        for (final Object entity : found) {
+            assertNotNull(entity);
+        }
+        /* One statement and one put, the other threads get the entry loaded by the first one. */
+        assertStat(ems.get(0), 1, 0, THREADS - 1, 1);
+        for (final EntityManager threadEm : ems) {
+            threadEm.close();
+        }
+
+        final InFlightLoads loads = getInFlightLoads(sessionFactory, type);
+        assertEquals(COALESCE_TIMEOUT, loads.getTimeout());
+        assertEquals(1, loads.getLoadCount());
+        assertEquals(THREADS - 1, loads.getCoalescedCount());
+        assertEquals(0, loads.getFallbackCount());
+        assertEquals(0, loads.getInFlightCount());
+    }
+
+    private static InFlightLoads getInFlightLoads(final SessionFactoryImplementor sessionFactory, final Class<?> type) {
+        return ((ReadWriteEntityRegionAccessStrategy) sessionFactory.getEntityPersister(type.getName()).getCacheAccessStrategy()).getInFlightLoads();
+    }
+
+}
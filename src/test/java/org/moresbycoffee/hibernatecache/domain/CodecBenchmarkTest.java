@@ -0,0 +1,159 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.spi.Region;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory;
+import org.moresbycoffee.hibernatecache.cache.codec.CompactCodec;
+import org.moresbycoffee.hibernatecache.cache.codec.EntryCodec;
+import org.moresbycoffee.hibernatecache.cache.codec.SerializationCodec;
+import org.moresbycoffee.hibernatecache.cache.region.BaseRegion;
+
+/**
+ * Compares the {@link CompactCodec} bound to the metamodel with the Java serialization on the cached
+ * entries of the domain entities and collections: the encoded size and the encoding and decoding times.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class CodecBenchmarkTest extends EntityManagerTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(CodecBenchmarkTest.class);
+
+    /** The number of the rounds of the entries encoded and decoded before the measurement. */
+    private static final int WARMUP_ROUNDS = 200;
+
+    /** The number of the measured rounds. */
+    private static final int ROUNDS = 500;
+
+    @Test
+    public void compactCodecComparedToSerialization() {
+        final EntityManager em = emf.createEntityManager();
+        getEntities(em, ReadWriteEntity.class, "EM");
+        getROEntities(em, "EM");
+        getEntities(em, NoStrictEntity.class, "EM");
+        for (final Station station : getEntities(em, Station.class, "EM")) {
+            station.getLines().size();
+        }
+        for (final Line line : getEntities(em, Line.class, "EM")) {
+            line.getStations().size();
+        }
+        em.close();
+
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(emf);
+        final CompactCodec codec = ((TinyLfuRegionFactory) sessionFactory.getSettings().getRegionFactory()).getCodec();
+        @SuppressWarnings("unchecked")
+        final Map<String, Region> regions = sessionFactory.getAllSecondLevelCacheRegions();
+        for (final String name : Arrays.asList(ReadWriteEntity.class.getName(), ReadOnlyEntity.class.getName(), NoStrictEntity.class.getName(),
+                                               Station.class.getName(), Line.class.getName(),
+                                               Station.class.getName() + ".lines", Line.class.getName() + ".stations")) {
+            final List<Object> entries = new ArrayList<Object>();
+            for (final Map.Entry<Object, Object> entry : ((BaseRegion) regions.get(name)).getStore().toMap().entrySet()) {
+                entries.add(entry.getKey());
+                entries.add(entry.getValue());
+            }
+            assertFalse("The " + name + " region is empty.", entries.isEmpty());
+
+            final Result compact = measure(codec, entries);
+            final Result serialization = measure(SerializationCodec.INSTANCE, entries);
+            LOG.info(String.format("%-55s compact: %4d bytes/entry, encode %6d ns/op, decode %6d ns/op;"
+                                   + " serialization: %4d bytes/entry, encode %6d ns/op, decode %6d ns/op",
+                                   name, compact.bytes, compact.encodeNanos, compact.decodeNanos,
+                                   serialization.bytes, serialization.encodeNanos, serialization.decodeNanos));
+            assertTrue(name + ": the compact entries should be smaller: " + compact.bytes + " >= " + serialization.bytes,
+                       compact.bytes < serialization.bytes);
+        }
+    }
+
+    /**
+     * Encodes and decodes the keys and values, and checks that the decoded values are encoded to the same bytes.
+     * @param entries The keys and values of the entries one after the other.
+     */
+    private static Result measure(final EntryCodec codec, final List<Object> entries) {
+        final List<byte[]> encoded = new ArrayList<byte[]>(entries.size());
+        long bytes = 0;
+        for (final Object value : entries) {
+            final byte[] encodedValue = codec.encode(value);
+            assertArrayEquals("The " + value + " is not decoded properly.", encodedValue, codec.encode(codec.decode(encodedValue)));
+            encoded.add(encodedValue);
+            bytes += encodedValue.length;
+        }
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (final Object value : entries) {
+                codec.encode(value);
+            }
+            final long middle = System.nanoTime();
+            for (final byte[] value : encoded) {
+                codec.decode(value);
+            }
+            if (round >= WARMUP_ROUNDS) {
+                encodeNanos += middle - start;
+                decodeNanos += System.nanoTime() - middle;
+            }
+        }
+        final int operations = ROUNDS * entries.size() / 2;
+        return new Result(bytes * 2 / entries.size(), encodeNanos / operations, decodeNanos / operations);
+    }
+
+    /**
+     * The measurements of a codec, per key and value pair.
+     */
+    private static final class Result {
+
+        final long bytes;
+        final long encodeNanos;
+        final long decodeNanos;
+
+        Result(final long bytes, final long encodeNanos, final long decodeNanos) {
+            this.bytes = bytes;
+            this.encodeNanos = encodeNanos;
+            this.decodeNanos = decodeNanos;
+        }
+    }
+
+}
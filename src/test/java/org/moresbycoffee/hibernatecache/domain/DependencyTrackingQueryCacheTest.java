@@ -0,0 +1,447 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.query.DependencyTrackingQueryCacheFactory;
+
+/**
+ * Tests the query cache with the {@link DependencyTrackingQueryCacheFactory}:
+ * the writes invalidate only the cached queries they can affect.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class DependencyTrackingQueryCacheTest extends EntityManagerTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(DependencyTrackingQueryCacheTest.class);
+
+    private static final int WRITERS = 4;
+
+    private static final int READERS = 4;
+
+    private static final int ITERATIONS = 30;
+
+    private static final int MAX_ATTEMPTS = 20;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put("hibernate.cache.query_cache_factory", DependencyTrackingQueryCacheFactory.class.getName());
+        return properties;
+    }
+
+    @Test
+    public void criteriaQueryTest() {
+        LOG.info("*** STEP 1");
+        /* Query cache: New query added. */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(90, getEntities(em, ReadWriteEntity.class, "EM1").size());
+                assertStat(em, 1, 0, 0, 90);
+            }
+        });
+
+        LOG.info("*** STEP 2 - UPDATE");
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                em.find(ReadWriteEntity.class, Long.valueOf(1)).setName("NEW NAME");
+            }
+        });
+        initStat(getStatistics(emf.createEntityManager()));
+
+        LOG.info("*** STEP 3");
+        /*
+         * The update doesn't change which entities are selected.
+         * Query cache: In use.
+         */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(90, getEntities(em, ReadWriteEntity.class, "EM3").size());
+                Assert.assertEquals("NEW NAME", em.find(ReadWriteEntity.class, Long.valueOf(1)).getName());
+                assertStat(em, 0, 1, 90, 0);
+            }
+        });
+
+        LOG.info("*** STEP 4 - INSERT");
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                em.persist(new ReadWriteEntity("newEntity"));
+            }
+        });
+        initStat(getStatistics(emf.createEntityManager()));
+
+        LOG.info("*** STEP 5");
+        /*
+         * The identifier of the new entity is appended to the cached result.
+         * Query cache: In use.
+         * 2nd level cache: The new entity is loaded and added.
+         */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                final List<ReadWriteEntity> entities = getEntities(em, ReadWriteEntity.class, "EM5");
+                Assert.assertEquals(91, entities.size());
+                Assert.assertEquals("newEntity", entities.get(90).getName());
+                assertStat(em, 1, 1, 90, 1);
+            }
+        });
+
+        LOG.info("*** STEP 6 - INSERT ANOTHER TABLE");
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                em.persist(new NoStrictEntity("newEntity"));
+                Assert.assertEquals(91, getEntities(em, ReadWriteEntity.class, "EM6").size());
+                assertStat(em, 1, 1, 91, 0);
+            }
+        });
+
+        LOG.info("*** STEP 7 - DELETE");
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                em.remove(em.find(ReadWriteEntity.class, Long.valueOf(2)));
+            }
+        });
+        initStat(getStatistics(emf.createEntityManager()));
+
+        LOG.info("*** STEP 8");
+        /*
+         * The identifier of the deleted entity is removed from the cached result.
+         * Query cache: In use.
+         */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                final List<ReadWriteEntity> entities = getEntities(em, ReadWriteEntity.class, "EM8");
+                Assert.assertEquals(90, entities.size());
+                for (final ReadWriteEntity entity : entities) {
+                    Assert.assertFalse(Long.valueOf(2).equals(entity.getId()));
+                }
+                assertStat(em, 0, 1, 90, 0);
+            }
+        });
+    }
+
+    @Test
+    public void parameterizedQueryTest() {
+        LOG.info("*** STEP 1");
+        /* Query cache: New query added. */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(9, findByName(em, "readWrite1").size());
+                assertStat(em, 1, 0, 0, 9);
+            }
+        });
+
+        LOG.info("*** STEP 2 - INSERT AND UPDATE");
+        /* Neither the new entity nor the updated one has the queried name. */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                em.persist(new ReadWriteEntity("readWrite5"));
+                findByName(em, "readWrite2").get(0).setName("readWrite3");
+            }
+        });
+        initStat(getStatistics(emf.createEntityManager()));
+
+        LOG.info("*** STEP 3");
+        /* Query cache: In use. */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(9, findByName(em, "readWrite1").size());
+                assertStat(em, 0, 1, 9, 0);
+            }
+        });
+
+        LOG.info("*** STEP 4 - UPDATE");
+        /* The updated entity gets the queried name. */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                em.find(ReadWriteEntity.class, Long.valueOf(1)).setName("readWrite1");
+            }
+        });
+        initStat(getStatistics(emf.createEntityManager()));
+
+        LOG.info("*** STEP 5");
+        /* Query cache: In use, the updated entity is added to the cached result. */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(10, findByName(em, "readWrite1").size());
+                assertStat(em, 0, 1, 10, 0);
+            }
+        });
+
+        LOG.info("*** STEP 6 - BULK UPDATE");
+        /* The bulk updates invalidate every query of the table. */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                em.createQuery("update ReadWriteEntity rw set rw.name = 'readWrite1' where rw.name = 'readWrite0'").executeUpdate();
+            }
+        });
+        initStat(getStatistics(emf.createEntityManager()));
+
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(18, findByName(em, "readWrite1").size());
+            }
+        });
+    }
+
+    @Test
+    public void countQueryTest() {
+        LOG.info("*** STEP 1");
+        /* Query cache: New query added. */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(90L, countEntities(em));
+                Assert.assertEquals(9L, countByName(em, "readWrite1"));
+                assertStat(em, 2, 0, 0, 0);
+            }
+        });
+
+        LOG.info("*** STEP 2 - INSERT, UPDATE AND DELETE");
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                em.persist(new ReadWriteEntity("readWrite1"));
+                em.persist(new ReadWriteEntity("readWrite2"));
+                em.find(ReadWriteEntity.class, Long.valueOf(10)).setName("readWrite5");
+                em.remove(em.find(ReadWriteEntity.class, Long.valueOf(11)));
+            }
+        });
+        initStat(getStatistics(emf.createEntityManager()));
+
+        LOG.info("*** STEP 3");
+        /*
+         * The counts are updated by the writes.
+         * Query cache: In use.
+         */
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(91L, countEntities(em));
+                Assert.assertEquals(8L, countByName(em, "readWrite1"));
+                assertStat(em, 0, 2, 0, 0);
+            }
+        });
+    }
+
+    @Test
+    public void concurrentCountTest() throws Exception {
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                countEntities(em);
+            }
+        });
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < WRITERS; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final List<Long> ids = new ArrayList<Long>();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        final Long deleted = i % 3 == 2 ? ids.remove(0) : null;
+                        final Long[] inserted = new Long[1];
+                        inTransactionRetrying(new Work() {
+                            @Override
+                            public void run(final EntityManager em) {
+                                if (deleted != null) {
+                                    em.remove(em.find(ReadWriteEntity.class, deleted));
+                                } else {
+                                    final ReadWriteEntity entity = new ReadWriteEntity("concurrent");
+                                    em.persist(entity);
+                                    inserted[0] = entity.getId();
+                                }
+                            }
+                        });
+                        if (inserted[0] != null) {
+                            ids.add(inserted[0]);
+                        }
+                    }
+                }
+            }));
+        }
+        for (int t = 0; t < READERS; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        inTransactionRetrying(new Work() {
+                            @Override
+                            public void run(final EntityManager em) {
+                                final long count = countEntities(em);
+                                Assert.assertTrue("Count out of range: " + count, count >= 90 && count <= 90 + WRITERS * ITERATIONS);
+                            }
+                        });
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : threads) {
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(final Thread thread, final Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        /*
+         * The cached count is the count of the database.
+         * (The statements rolled back by deadlocks invalidate the count the standard way.)
+         */
+        final Work check = new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                final Number databaseCount = (Number) em.createNativeQuery("select count(*) from ReadWriteEntity").getSingleResult();
+                Assert.assertEquals(databaseCount.longValue(), countEntities(em));
+            }
+        };
+        inTransaction(check);
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(90 + WRITERS * (ITERATIONS - 2 * (ITERATIONS / 3)), countEntities(em));
+                em.persist(new ReadWriteEntity("afterConcurrent"));
+            }
+        });
+
+        /* The count is maintained after the insert: no SQL is needed. */
+        initStat(getStatistics(emf.createEntityManager()));
+        inTransaction(new Work() {
+            @Override
+            public void run(final EntityManager em) {
+                Assert.assertEquals(91 + WRITERS * (ITERATIONS - 2 * (ITERATIONS / 3)), countEntities(em));
+                assertStat(em, 0, 1, 0, 0);
+            }
+        });
+        inTransaction(check);
+    }
+
+    private long countEntities(final EntityManager em) {
+        return em.createQuery("select count(rw) from ReadWriteEntity rw", Long.class)
+                 .setHint("org.hibernate.cacheable", true)
+                 .getSingleResult().longValue();
+    }
+
+    private long countByName(final EntityManager em, final String name) {
+        return em.createQuery("select count(rw) from ReadWriteEntity rw where rw.name = :name", Long.class)
+                 .setParameter("name", name)
+                 .setHint("org.hibernate.cacheable", true)
+                 .getSingleResult().longValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ReadWriteEntity> findByName(final EntityManager em, final String name) {
+        return em.createQuery("select rw from ReadWriteEntity rw where rw.name = :name")
+                 .setParameter("name", name)
+                 .setHint("org.hibernate.cacheable", true)
+                 .getResultList();
+    }
+
+    private void inTransaction(final Work work) {
+        final EntityManager em = emf.createEntityManager();
+        try {
+            final EntityTransaction transaction = em.getTransaction();
+            transaction.begin();
+            try {
+                work.run(em);
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.commit();
+                }
+            }
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Runs the work in a new transaction until it succeeds: the table locks of the database
+     * roll back the concurrent transactions on deadlocks.
+     */
+    private void inTransactionRetrying(final Work work) {
+        for (int attempt = 1;; attempt++) {
+            try {
+                inTransaction(work);
+                return;
+            } catch (final PersistenceException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.info("Retrying rolled back transaction: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A step of the test.
+     */
+    private interface Work {
+        void run(EntityManager em);
+    }
+
+}
@@ -32,6 +32,7 @@ package org.moresbycoffee.hibernatecache.domain;
 
 import java.util.Date;
 import java.util.Formatter;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -49,12 +50,16 @@ import org.hibernate.internal.SessionImpl;
 import org.hibernate.stat.Statistics;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
 import org.moresbycoffee.hibernatecache.domain.Line;
 import org.moresbycoffee.hibernatecache.domain.NoCacheEntity;
 import org.moresbycoffee.hibernatecache.domain.NoStrictEntity;
 import org.moresbycoffee.hibernatecache.domain.ReadOnlyEntity;
 import org.moresbycoffee.hibernatecache.domain.ReadWriteEntity;
 import org.moresbycoffee.hibernatecache.domain.Station;
+import org.moresbycoffee.hibernatecache.jdbc.MemoryStatementSink;
+import org.moresbycoffee.hibernatecache.jdbc.StatementPipeline;
 
 /**
  * Common functionalities for the hibernate cache tests.
@@ -67,8 +72,24 @@ public abstract class EntityManagerTest {
     /** Logger. */
     private static final Logger LOG = Logger.getLogger(EntityManagerTest.class);
 
+    /** The statements executed through the intercepting driver of the <i>cached</i> persistence unit. */
+    private static final MemoryStatementSink STATEMENTS = new MemoryStatementSink();
+
+    static {
+        StatementPipeline.getDefault().addSink(STATEMENTS);
+    }
+
     protected EntityManagerFactory emf;
 
+    /** The performance budget of the test counted from the end of {@link #prepareTest()}, see {@link Budget}. */
+    @Rule
+    public final StatementBudget budget = new StatementBudget(new StatementBudget.StatisticsSource() {
+        @Override
+        public Statistics getStatistics() {
+            return emf != null ? getSessionFactory(emf).getStatistics() : null;
+        }
+    });
+
     /**
      * Prepares the persistence context (named: <i>cached</i>).
      * @throws Exception
@@ -77,16 +98,34 @@ public abstract class EntityManagerTest {
     @SuppressWarnings("deprecation")
     public void prepareTest() throws Exception {
 
-        emf = Persistence.createEntityManagerFactory("cached");
+        emf = Persistence.createEntityManagerFactory("cached", getPersistenceProperties());
         generateDatabase();
 
         //Clears 2nd level and query caches
         emf.getCache().evictAll();
         ((org.hibernate.ejb.EntityManagerFactoryImpl) emf).getSessionFactory().evictQueries();
 
+        budget.reset();
     }
 
 
+    /**
+     * The subclasses can override the properties of the <i>cached</i> persistence unit,
+     * e.g. to test a different cache configuration with the same scenario.
+     * @return The properties overriding the persistence unit. (NonNull)
+     */
+    protected Map<String, String> getPersistenceProperties() {
+        return new HashMap<String, String>();
+    }
+
+    /**
+     * @param factory The entity manager factory of a persistence unit. (NonNull)
+     * @return The session factory behind the entity manager factory. (NonNull)
+     */
+    protected static SessionFactoryImplementor getSessionFactory(final EntityManagerFactory factory) {
+        return (SessionFactoryImplementor) ((org.hibernate.ejb.EntityManagerFactoryImpl) factory).getSessionFactory();
+    }
+
     /**
      * @param em
      */
@@ -198,6 +237,14 @@ public abstract class EntityManagerTest {
         return sessionFactory.getStatistics();
     }
 
+    /**
+     * @return The number of the statements executed so far, after the recorded statements have been drained.
+     */
+    protected static long getStatementCount() {
+        StatementPipeline.getDefault().flush();
+        return STATEMENTS.getCount();
+    }
+
     private long stmtCount = 0;
     private long queryHit;
     private long l2Hit;
@@ -208,7 +255,7 @@ public abstract class EntityManagerTest {
     }
 
     protected final void initStat(final Statistics stats) {
-        this.stmtCount  = stats.getPrepareStatementCount();
+        this.stmtCount  = getStatementCount();
         this.queryHit   = stats.getQueryCacheHitCount();
         this.l2Hit      = stats.getSecondLevelCacheHitCount();
         this.l2Put      = stats.getSecondLevelCachePutCount();
@@ -218,7 +265,7 @@ public abstract class EntityManagerTest {
     protected final void assertStat(final EntityManager em, final int stmtCount, final int queryHit, final int l2Hit, final int l2Put) {
         final Statistics stats = getStatistics(em);
 
-        assertLong("query count",           this.stmtCount + stmtCount, stats.getPrepareStatementCount());
+        assertLong("query count",           this.stmtCount + stmtCount, getStatementCount());
         assertLong("query cache hit count", this.queryHit + queryHit,   stats.getQueryCacheHitCount());
         assertLong("2nd level hit count",   this.l2Hit + l2Hit,         stats.getSecondLevelCacheHitCount());
         assertLong("2d level put count",    this.l2Put + l2Put,         stats.getSecondLevelCachePutCount());
@@ -226,6 +273,15 @@ public abstract class EntityManagerTest {
 
     }
 
+    /**
+     * @param entities The number of the entities of a cached query result missing from the caches.
+     * @return The number of the statements loading the entities in batches.
+     * @see CacheSettings#QUERY_BATCH_SIZE
+     */
+    protected static int batches(final int entities) {
+        return (int) ((entities + CacheSettings.DEFAULT_QUERY_BATCH_SIZE - 1) / CacheSettings.DEFAULT_QUERY_BATCH_SIZE);
+    }
+
     protected final void assertLong(final String fieldName, final long expected, final long result) {
         Assert.assertEquals("The " + fieldName + " should have been " + expected + " but " + result + " found.", expected, result);
     }
@@ -250,7 +306,8 @@ public abstract class EntityManagerTest {
             @SuppressWarnings("unchecked")
             final Map<String, Region> secondLevelRegions = sessionFactory.getAllSecondLevelCacheRegions();
             for (final Map.Entry<String, Region> entry : secondLevelRegions.entrySet()) {
-                LOG.trace("Region: " + entry.getKey() + " Elements: " + (entry.getValue().getElementCountInMemory() + entry.getValue().getElementCountOnDisk()));
+                LOG.trace("Region: " + entry.getKey() + " Elements: " + (entry.getValue().getElementCountInMemory() + entry.getValue().getElementCountOnDisk())
+                          + " Size: " + entry.getValue().getSizeInMemory());
 
             }
         }
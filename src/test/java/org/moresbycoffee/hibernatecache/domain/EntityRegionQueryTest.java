@@ -0,0 +1,162 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.query.EntityRegionQueryTranslatorFactory;
+
+/**
+ * Tests the identifier lookups answered from the entity region by the {@link EntityRegionQueryTranslatorFactory}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class EntityRegionQueryTest extends EntityManagerTest {
+
+    private EntityManager em1;
+
+    @Before
+    public void setUp() {
+        em1 = emf.createEntityManager();
+        /* Puts the entities into the 2nd level cache. */
+        getROEntities(em1, "EM1");
+        assertStat(em1, 1, 0, 0, 90);
+        em1.close();
+        em1 = emf.createEntityManager();
+    }
+
+    @After
+    public void tearDown() {
+        em1.close();
+    }
+
+    @Test
+    public void namedParameterLookup() {
+        final ReadOnlyEntity entity = em1.createQuery("select e from ReadOnlyEntity e where e.id = :id", ReadOnlyEntity.class)
+                                         .setParameter("id", Long.valueOf(5)).getSingleResult();
+        Assert.assertEquals(Long.valueOf(5), entity.getId());
+        assertStat(em1, 0, 0, 1, 0);
+
+        /* The second lookup finds the entity in the persistence context. */
+        Assert.assertSame(entity, em1.createQuery("select e from ReadOnlyEntity e where e.id = :id", ReadOnlyEntity.class)
+                                     .setParameter("id", Long.valueOf(5)).getSingleResult());
+        assertStat(em1, 0, 0, 0, 0);
+    }
+
+    /**
+     * Hibernate itself would forward the query to the database, but the identifier lookup
+     * picks up the entity from the 2nd level cache.
+     */
+    @Test
+    public void literalLookup() {
+        final ReadOnlyEntity entity = em1.createQuery("select e from ReadOnlyEntity e where e.id = 5", ReadOnlyEntity.class).getSingleResult();
+        Assert.assertEquals(Long.valueOf(5), entity.getId());
+        assertStat(em1, 0, 0, 1, 0);
+    }
+
+    @Test
+    public void inListLookup() {
+        final List<ReadOnlyEntity> entities = em1.createQuery("select e from ReadOnlyEntity e where e.id in (:ids)", ReadOnlyEntity.class)
+                                                 .setParameter("ids", Arrays.asList(Long.valueOf(3), Long.valueOf(1), Long.valueOf(2), Long.valueOf(1000)))
+                                                 .getResultList();
+        Assert.assertEquals(3, entities.size());
+        /* The missing identifier is loaded by its identifier. */
+        assertStat(em1, 1, 0, 3, 0);
+    }
+
+    @Test
+    public void criteriaLookup() {
+        final CriteriaBuilder builder = em1.getCriteriaBuilder();
+        final CriteriaQuery<ReadOnlyEntity> criteria = builder.createQuery(ReadOnlyEntity.class);
+        final Root<ReadOnlyEntity> root = criteria.from(ReadOnlyEntity.class);
+        criteria.select(root).where(builder.equal(root.get("id"), Long.valueOf(7)));
+        Assert.assertEquals(Long.valueOf(7), em1.createQuery(criteria).getSingleResult().getId());
+        assertStat(em1, 0, 0, 1, 0);
+    }
+
+    @Test
+    public void missingEntitiesAreQueried() {
+        emf.getCache().evictAll();
+        final List<ReadOnlyEntity> entities = em1.createQuery("select e from ReadOnlyEntity e where e.id in (1, 2, 3)", ReadOnlyEntity.class)
+                                                 .getResultList();
+        Assert.assertEquals(3, entities.size());
+        /* More entities are missing: the query is executed. */
+        assertStat(em1, 1, 0, 0, 3);
+    }
+
+    @Test
+    public void entitiesDeletedInTheSessionAreQueried() {
+        em1.getTransaction().begin();
+        try {
+            em1.setFlushMode(FlushModeType.COMMIT);
+            em1.remove(em1.find(ReadOnlyEntity.class, Long.valueOf(5)));
+            assertStat(em1, 0, 0, 1, 0);
+            em1.createQuery("select e from ReadOnlyEntity e where e.id = :id", ReadOnlyEntity.class)
+               .setParameter("id", Long.valueOf(5)).getResultList();
+            /* The deletion is still pending: the query is executed. */
+            assertStat(em1, 1, 0, 0, 0);
+        } finally {
+            em1.getTransaction().rollback();
+        }
+    }
+
+    @Test
+    public void lookupIsAutoFlushed() {
+        em1.getTransaction().begin();
+        try {
+            em1.remove(em1.find(ReadOnlyEntity.class, Long.valueOf(6)));
+            Assert.assertTrue(em1.createQuery("select e from ReadOnlyEntity e where e.id = :id", ReadOnlyEntity.class)
+                                 .setParameter("id", Long.valueOf(6)).getResultList().isEmpty());
+        } finally {
+            em1.getTransaction().rollback();
+        }
+    }
+
+    @Test
+    public void otherQueriesAreExecuted() {
+        Assert.assertEquals(9, em1.createQuery("select e from ReadOnlyEntity e where e.name = :name", ReadOnlyEntity.class)
+                                  .setParameter("name", "readOnly1").getResultList().size());
+        assertStat(em1, 1, 0, 0, 0);
+    }
+
+}
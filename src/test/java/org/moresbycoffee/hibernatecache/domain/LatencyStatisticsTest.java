@@ -0,0 +1,207 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.After;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.stat.LatencyHistogram;
+import org.moresbycoffee.hibernatecache.cache.stat.LatencyStatistics;
+import org.moresbycoffee.hibernatecache.cache.stat.LatencyStatisticsFactory;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies;
+import org.moresbycoffee.hibernatecache.cache.stat.Latencies.Operation;
+
+/**
+ * Tests the latencies recorded by the {@link LatencyStatistics} and measures the cost of the recording
+ * on a workload of second level cache hits.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class LatencyStatisticsTest extends EntityManagerTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(LatencyStatisticsTest.class);
+
+    private static final int ROUNDS = 10;
+
+    private static final int FINDS = 50000;
+
+    /** The finds of an entity manager of the workload. */
+    private static final int FINDS_PER_EM = 100;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put("hibernate.stats.factory", LatencyStatisticsFactory.class.getName());
+        return properties;
+    }
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    public void latenciesAreRecorded() {
+        EntityManager em = emf.createEntityManager();
+        final List<ReadWriteEntity> entities = getEntities(em, ReadWriteEntity.class, "EM1");
+        em.close();
+
+        em = emf.createEntityManager();
+        getEntities(em, ReadWriteEntity.class, "EM2");
+        for (final ReadWriteEntity entity : entities) {
+            em.clear();
+            assertNotNull(em.find(ReadWriteEntity.class, entity.getId()));
+        }
+        em.close();
+
+        final LatencyStatistics statistics = getLatencyStatistics();
+        final Latencies region = statistics.getRegionLatencies(ReadWriteEntity.class.getName());
+        assertTrue(region.getCount(Operation.PUT) >= 90);
+        assertTrue(region.getCount(Operation.GET_HIT) >= 90);
+        assertOrdered(region.get(Operation.GET_HIT));
+
+        final String[] queries = statistics.getQueries();
+        assertTrue(queries.length > 0);
+        final Latencies query = statistics.getQueryLatencies(queries[0]);
+        assertEquals(1, query.getCount(Operation.QUERY_CACHE_MISS));
+        assertEquals(1, query.getCount(Operation.QUERY_CACHE_HIT));
+        assertEquals(1, query.getCount(Operation.QUERY_EXECUTION));
+        assertEquals(1, query.get(Operation.QUERY_EXECUTION).getCount());
+
+        final Latencies entity = statistics.getEntityLatencies(ReadWriteEntity.class.getName());
+        assertTrue(entity.getCount(Operation.LOAD) >= 90);
+        assertTrue(entity.getCount(Operation.HYDRATE) >= 90);
+        assertOrdered(entity.get(Operation.LOAD));
+
+        statistics.logSummary();
+        statistics.clear();
+        assertEquals(0, region.getCount(Operation.GET_HIT));
+    }
+
+    /**
+     * Compares the cost of the recording of a cached find (the region get, the load and the hydration
+     * of the entity) to the time of the find. The recording is measured in isolation, as the
+     * difference of two runs of the finds is dominated by the noise of the runs.
+     */
+    @Test
+    public void recordingCostOnCacheHits() {
+        final EntityManager em = emf.createEntityManager();
+        final List<ReadWriteEntity> entities = getEntities(em, ReadWriteEntity.class, "EM1");
+        em.close();
+        final Long[] ids = new Long[entities.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = entities.get(i).getId();
+        }
+        final LatencyStatistics statistics = getLatencyStatistics();
+
+        /* Warm up. */
+        runFinds(ids);
+        runRecordings(statistics);
+        long finds = Long.MAX_VALUE;
+        long recordings = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            finds = Math.min(finds, runFinds(ids));
+            recordings = Math.min(recordings, runRecordings(statistics));
+        }
+        final double overhead = (double) recordings / finds;
+        LOG.info(String.format("%d finds of cached entities: %d ms, recording their latencies: %d ms, overhead: %.2f%%",
+                               FINDS, finds / 1000000, recordings / 1000000, overhead * 100));
+        LOG.info(statistics.getEntityLatencies(ReadWriteEntity.class.getName()));
+
+        assertTrue("The overhead is too high: " + overhead, overhead < 0.1);
+    }
+
+    /**
+     * @return The time of the recordings of {@link #FINDS} cached finds in nanoseconds.
+     */
+    private long runRecordings(final LatencyStatistics statistics) {
+        final String entityName = ReadWriteEntity.class.getName();
+        final Latencies region = statistics.getRegionLatencies(entityName);
+        final long start = System.nanoTime();
+        for (int i = 0; i < FINDS; i++) {
+            final Latencies entity = statistics.getLatency().forEntity(entityName);
+            final long load = entity.start();
+            final long get = region.start();
+            region.finish(Operation.GET_HIT, get);
+            final long hydrate = entity.start();
+            entity.finish(Operation.HYDRATE, hydrate);
+            entity.finish(Operation.LOAD, load);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return The time of the finds in nanoseconds.
+     */
+    private long runFinds(final Long[] ids) {
+        final long start = System.nanoTime();
+        EntityManager em = null;
+        for (int i = 0; i < FINDS; i++) {
+            if (i % FINDS_PER_EM == 0) {
+                if (em != null) {
+                    em.close();
+                }
+                em = emf.createEntityManager();
+            }
+            assertNotNull(em.find(ReadWriteEntity.class, ids[i % ids.length]));
+            em.clear();
+        }
+        em.close();
+        return System.nanoTime() - start;
+    }
+
+    private LatencyStatistics getLatencyStatistics() {
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(emf);
+        return (LatencyStatistics) sessionFactory.getStatistics();
+    }
+
+    private static void assertOrdered(final LatencyHistogram histogram) {
+        if (histogram == null) {
+            /* None of the operations has been sampled. */
+            return;
+        }
+        assertTrue(histogram.getP50() > 0);
+        assertTrue(histogram.getP50() <= histogram.getP99());
+        assertTrue(histogram.getP99() <= histogram.getP999());
+        assertTrue(histogram.getP999() <= histogram.getMax());
+    }
+
+}
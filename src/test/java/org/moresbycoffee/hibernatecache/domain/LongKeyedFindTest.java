@@ -0,0 +1,104 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.store.LongKeyedCacheStoreTest;
+
+/**
+ * The {@link SecondLevelCache#findable()} scenario with long keyed entity regions,
+ * measuring the bytes allocated by the <code>find</code> calls served from the 2nd level cache.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class LongKeyedFindTest extends EntityManagerTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(LongKeyedFindTest.class);
+
+    private static final int FIND_COUNT = 10000;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.STORAGE, "long_keyed");
+        return properties;
+    }
+
+    @Test
+    public void findable() {
+        final EntityManager em1 = emf.createEntityManager();
+        final List<ReadOnlyEntity> entitiesEm1 = getROEntities(em1, "EM1");
+        printStat(em1, "EM1");
+        /* Entities have put into 2nd level cache. */
+        assertStat(em1, 1, 0, 0, 90);
+        em1.close();
+
+        final EntityManager em2 = emf.createEntityManager();
+        final ReadOnlyEntity em2Entity = em2.find(ReadOnlyEntity.class, entitiesEm1.get(0).getId());
+        assertNotNull(em2Entity);
+        printStat(em2, "EM2");
+        /* The entity has been found in the 2nd level cache. */
+        assertStat(em2, 0, 0, 1, 0);
+
+        /* Warm up. */
+        findAll(em2, entitiesEm1);
+        initStat(em2);
+
+        final long startBytes = LongKeyedCacheStoreTest.allocatedBytes();
+        final long startTime = System.nanoTime();
+        findAll(em2, entitiesEm1);
+        final long time = System.nanoTime() - startTime;
+        final long bytes = LongKeyedCacheStoreTest.allocatedBytes() - startBytes;
+        LOG.info(String.format("%d em.find from the 2nd level cache: %,d bytes/find, %d ns/find", FIND_COUNT, bytes / FIND_COUNT, time / FIND_COUNT));
+        /* Everything from the 2nd level cache. */
+        assertStat(em2, 0, 0, FIND_COUNT, 0);
+        em2.close();
+    }
+
+    private void findAll(final EntityManager em, final List<ReadOnlyEntity> entities) {
+        for (int i = 0; i < FIND_COUNT; i++) {
+            em.clear();
+            assertNotNull(em.find(ReadOnlyEntity.class, entities.get(i % entities.size()).getId()));
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.junit.After;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory;
+import org.moresbycoffee.hibernatecache.cache.store.MemoryBudget;
+
+/**
+ * Tests the on-heap regions sharing a {@link MemoryBudget}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class MemoryBudgetRegionTest extends EntityManagerTest {
+
+    private static final long BUDGET = 4 * 1024 * 1024;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.STORAGE, "heap");
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.MEMORY_MAX_BYTES, String.valueOf(BUDGET));
+        return properties;
+    }
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    public void regionsReportTheirSize() {
+        final EntityManager em = emf.createEntityManager();
+        getROEntities(em, "EM1");
+        assertStat(em, 1, 0, 0, 90);
+        printStat(em, "EM1");
+
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(emf);
+        final MemoryBudget budget = ((TinyLfuRegionFactory) sessionFactory.getSettings().getRegionFactory()).getMemoryBudget();
+        assertNotNull(budget);
+        assertEquals(BUDGET, budget.getMaxBytes());
+
+        final SecondLevelCacheStatistics statistics = getStatistics(em).getSecondLevelCacheStatistics(ReadOnlyEntity.class.getName());
+        assertEquals(90, statistics.getElementCountInMemory());
+        assertTrue(statistics.getSizeInMemory() > 90 * 100);
+        assertTrue(statistics.getSizeInMemory() <= budget.getAllocation(ReadOnlyEntity.class.getName()));
+        assertTrue(budget.getUsedBytes() >= statistics.getSizeInMemory());
+        em.close();
+    }
+
+}
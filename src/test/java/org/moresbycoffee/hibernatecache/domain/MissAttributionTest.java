@@ -0,0 +1,205 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.CacheRetrieveMode;
+import javax.persistence.EntityManager;
+
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.persister.entity.EntityPersister;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.stat.CacheMisses;
+import org.moresbycoffee.hibernatecache.cache.stat.LatencyStatistics;
+import org.moresbycoffee.hibernatecache.cache.stat.LatencyStatisticsFactory;
+import org.moresbycoffee.hibernatecache.cache.stat.MissReason;
+import org.moresbycoffee.hibernatecache.cache.stat.Misses;
+
+/**
+ * Tests the attribution of the database loads to the {@link MissReason}s by the {@link LatencyStatistics}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class MissAttributionTest extends EntityManagerTest {
+
+    private static final String CACHEABLE_QUERY = "select e from ReadWriteEntity e";
+
+    private LatencyStatistics statistics;
+
+    private Long id;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put("hibernate.stats.factory", LatencyStatisticsFactory.class.getName());
+        return properties;
+    }
+
+    /**
+     * Starts with an empty entity region and no attribution, the inserts have put the entities into the cache.
+     */
+    @Before
+    public void setUp() {
+        statistics = (LatencyStatistics) getSessionFactory(emf).getStatistics();
+        final EntityManager em = emf.createEntityManager();
+        id = em.createQuery("select e.id from ReadWriteEntity e", Long.class).getResultList().get(0);
+        em.close();
+        emf.getCache().evictAll();
+        getSessionFactory(emf).getCache().evictCollectionRegions();
+        statistics.clear();
+    }
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    public void missingAndEvictedEntries() {
+        find(ReadWriteEntity.class, id);
+        assertEquals(1, misses(ReadWriteEntity.class).getCount(MissReason.MISSING));
+
+        /* Cached. */
+        find(ReadWriteEntity.class, id);
+        assertEquals(1, misses(ReadWriteEntity.class).getTotal());
+
+        emf.getCache().evict(ReadWriteEntity.class, id);
+        find(ReadWriteEntity.class, id);
+        assertEquals(1, misses(ReadWriteEntity.class).getCount(MissReason.EVICTED));
+        assertEquals(2, misses(ReadWriteEntity.class).getTotal());
+    }
+
+    @Test
+    public void entryNewerThanTheTransaction() {
+        final EntityManager older = emf.createEntityManager();
+        find(ReadWriteEntity.class, id);
+        assertNotNull(older.find(ReadWriteEntity.class, id));
+        older.close();
+
+        final Misses misses = misses(ReadWriteEntity.class);
+        assertEquals(1, misses.getCount(MissReason.MISSING));
+        assertEquals(1, misses.getCount(MissReason.NEWER_THAN_TRANSACTION));
+    }
+
+    @Test
+    public void softLockedEntry() {
+        find(ReadWriteEntity.class, id);
+        final EntityPersister persister = getSessionFactory(emf).getEntityPersister(ReadWriteEntity.class.getName());
+        final EntityRegionAccessStrategy strategy = persister.getCacheAccessStrategy();
+        final CacheKey key = new CacheKey(id, persister.getIdentifierType(), persister.getRootEntityName(), null, getSessionFactory(emf));
+        final SoftLock lock = strategy.lockItem(key, null);
+        try {
+            find(ReadWriteEntity.class, id);
+        } finally {
+            strategy.unlockItem(key, lock);
+        }
+        assertEquals(1, misses(ReadWriteEntity.class).getCount(MissReason.SOFT_LOCKED));
+    }
+
+    @Test
+    public void uncachedLoads() {
+        EntityManager em = emf.createEntityManager();
+        final Long noCacheId = em.createQuery("select e.id from NoCacheEntity e", Long.class).getResultList().get(0);
+        em.close();
+        find(NoCacheEntity.class, noCacheId);
+        assertEquals(1, misses(NoCacheEntity.class).getCount(MissReason.NOT_CACHEABLE));
+
+        em = emf.createEntityManager();
+        assertNotNull(em.find(ReadWriteEntity.class, id, Collections.<String, Object>singletonMap("javax.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS)));
+        em.close();
+        assertEquals(1, misses(ReadWriteEntity.class).getCount(MissReason.REGION_ABSENT));
+
+        /* The ids have been loaded by a query which isn't cacheable. */
+        assertEquals(1, statistics.getQueryMisses("select e.id from NoCacheEntity e").getCount(MissReason.NOT_CACHEABLE));
+    }
+
+    @Test
+    public void collectionMiss() {
+        EntityManager em = emf.createEntityManager();
+        final Long lineId = em.createQuery("select l.id from Line l", Long.class).getResultList().get(0);
+        em.close();
+
+        em = emf.createEntityManager();
+        assertEquals(2, em.find(Line.class, lineId).getStations().size());
+        em.close();
+        assertEquals(1, statistics.getEntityMisses(Line.class.getName() + ".stations").getCount(MissReason.MISSING));
+    }
+
+    @Test
+    public void invalidatedQuery() {
+        runCacheableQuery();
+        runCacheableQuery();
+        final Misses misses = statistics.getQueryMisses(CACHEABLE_QUERY);
+        assertEquals(1, misses.getTotal());
+        assertEquals(1, misses.getCount(MissReason.MISSING));
+
+        final EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.find(ReadWriteEntity.class, id).setName("updated");
+        em.getTransaction().commit();
+        em.close();
+
+        runCacheableQuery();
+        assertEquals(1, misses.getCount(MissReason.QUERY_INVALIDATED));
+
+        final CacheMisses cacheMisses = statistics.getMisses();
+        assertTrue(cacheMisses.report().contains(CACHEABLE_QUERY));
+        statistics.logSummary();
+    }
+
+    private void runCacheableQuery() {
+        final EntityManager em = emf.createEntityManager();
+        final List<ReadWriteEntity> entities = em.createQuery(CACHEABLE_QUERY, ReadWriteEntity.class).setHint("org.hibernate.cacheable", true).getResultList();
+        assertEquals(90, entities.size());
+        em.close();
+    }
+
+    private void find(final Class<?> type, final Long entityId) {
+        final EntityManager em = emf.createEntityManager();
+        assertNotNull(em.find(type, entityId));
+        em.close();
+    }
+
+    private Misses misses(final Class<?> type) {
+        return statistics.getEntityMisses(type.getName());
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+
+/**
+ * Tests the {@link org.hibernate.annotations.CacheConcurrencyStrategy#READ_WRITE read-write}
+ * entities with multi-versioned regions. The steps are the same as in the {@link ReadWriteTest},
+ * but the older transactions are served from the 2nd level cache too.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class MultiVersionReadWriteTest extends EntityManagerTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(MultiVersionReadWriteTest.class);
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.MAX_VERSIONS, "4");
+        return properties;
+    }
+
+    @Test
+    public void addReadWriteEntityCacheTest() {
+        final EntityManager em1 = emf.createEntityManager();
+        final EntityManager em2 = emf.createEntityManager();
+
+        final EntityTransaction transaction1Em1 = em1.getTransaction();
+        transaction1Em1.begin();
+
+        LOG.info("*** STEP 1");
+        /*
+         * Query cache: New query added.
+         * 2nd level cache: Entities from the result added.
+         */
+        getEntities(em1, ReadWriteEntity.class, "EM1");
+        printStat(em1, "EM1");
+        assertStat(em1, 1, 0, 0, 90);
+
+        LOG.info("*** STEP 2");
+        /*
+         * The entities have been put into the cache after the em2 started, but
+         * the region hasn't been written since the cache was cleared, so the
+         * cached state had been committed before the em2 started.
+         * Query cache: In use.
+         * 2nd level cache: In use.
+         */
+        getEntities(em2, ReadWriteEntity.class, "EM2");
+        printStat(em2, "EM2");
+        assertStat(em1, 0, 1, 90, 0);
+
+        LOG.info("*** STEP 3 - INSERT AND COMMIT");
+        final ReadWriteEntity newEntity = new ReadWriteEntity("newEntity");
+        em1.persist(newEntity);
+        em1.flush();
+        transaction1Em1.commit();
+        assertStat(em1, 1, 0, 0, 0);
+
+        LOG.info("*** STEP 4");
+        /*
+         * The new entity has been committed after the em2 started,
+         * it must be loaded from the database.
+         * 2nd level cache: The new entity added.
+         */
+        em2.clear();
+        Assert.assertEquals("newEntity", em2.find(ReadWriteEntity.class, newEntity.getId()).getName());
+        printStat(em2, "EM2");
+        assertStat(em1, 1, 0, 0, 1);
+
+        LOG.info("*** STEP 5");
+        /*
+         * A new EntityManager reads the new entity from the cache.
+         */
+        {
+            final EntityManager em3 = emf.createEntityManager();
+            Assert.assertEquals("newEntity", em3.find(ReadWriteEntity.class, newEntity.getId()).getName());
+            assertStat(em1, 0, 0, 1, 0);
+            em3.close();
+        }
+
+        em2.close();
+        em1.close();
+    }
+
+    @Test
+    public void updateReadWriteEntityCacheTest() {
+        final EntityManager em1 = emf.createEntityManager();
+        final EntityManager em2 = emf.createEntityManager();
+
+        final EntityTransaction transaction1Em1 = em1.getTransaction();
+        transaction1Em1.begin();
+
+        LOG.info("*** STEP 1");
+        getEntities(em1, ReadWriteEntity.class, "EM1");
+        printStat(em1, "EM1");
+        assertStat(em1, 1, 0, 0, 90);
+
+        LOG.info("*** STEP 2");
+        getEntities(em2, ReadWriteEntity.class, "EM2");
+        printStat(em2, "EM2");
+        assertStat(em1, 0, 1, 90, 0);
+
+        LOG.info("*** STEP 3 - UPDATE");
+        @SuppressWarnings("unchecked")
+        final List<ReadWriteEntity> readWriteEntities = em1.createQuery("select rw from ReadWriteEntity rw").setHint("org.hibernate.cacheable", true).getResultList();
+        final ReadWriteEntity readWriteEntity = readWriteEntities.get(0);
+        final String oldName = readWriteEntity.getName();
+        readWriteEntity.setName("NEW NAME");
+        em1.flush();
+        assertStat(em1, 1, 1, 0, 0);
+
+        LOG.info("*** STEP 4");
+        /*
+         * The entity is soft locked, but the em2 started before the lock,
+         * so it is served with the locked version.
+         */
+        em2.clear();
+        Assert.assertEquals(oldName, em2.find(ReadWriteEntity.class, readWriteEntity.getId()).getName());
+        assertStat(em1, 0, 0, 1, 0);
+
+        LOG.info("*** STEP 5 - COMMIT");
+        transaction1Em1.commit();
+        assertStat(em1, 0, 0, 0, 1);
+
+        LOG.info("*** STEP 6");
+        /*
+         * The em2 still reads the version committed before it started
+         * (repeatable read) from the 2nd level cache.
+         */
+        em2.clear();
+        Assert.assertEquals(oldName, em2.find(ReadWriteEntity.class, readWriteEntity.getId()).getName());
+        assertStat(em1, 0, 0, 1, 0);
+
+        LOG.info("*** STEP 7");
+        /*
+         * A new EntityManager reads the new version from the 2nd level cache.
+         */
+        {
+            final EntityManager em3 = emf.createEntityManager();
+            Assert.assertEquals("NEW NAME", em3.find(ReadWriteEntity.class, readWriteEntity.getId()).getName());
+            assertStat(em1, 0, 0, 1, 0);
+            em3.close();
+        }
+
+        em2.close();
+        em1.close();
+    }
+
+}
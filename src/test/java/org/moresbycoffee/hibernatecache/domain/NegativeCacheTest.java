@@ -0,0 +1,259 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.After;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.region.BaseTransactionalDataRegion;
+import org.moresbycoffee.hibernatecache.cache.region.NegativeCache;
+
+/**
+ * Tests the {@link NegativeCache} of the {@link ReadWriteEntity} region and compares the statements
+ * of a find workload with 20% missing identifiers with the {@link NoStrictEntity} region without negative cache.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class NegativeCacheTest extends EntityManagerTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(NegativeCacheTest.class);
+
+    private static final int FINDS = 100000;
+
+    private static final double MISSING_RATIO = 0.2;
+
+    private static final int MISSING_IDS = 1000;
+
+    /** The finds of an entity manager of the workload. */
+    private static final int FINDS_PER_EM = 1000;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put(CacheSettings.REGION_PREFIX + ReadWriteEntity.class.getName() + "." + CacheSettings.NEGATIVE_MAX_ENTRIES, "10000");
+        properties.put(CacheSettings.REGION_PREFIX + Train.class.getName() + "." + CacheSettings.NEGATIVE_MAX_ENTRIES, "10000");
+        return properties;
+    }
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    public void missingIdIsAnsweredWithoutStatement() {
+        EntityManager em = emf.createEntityManager();
+        initStat(em);
+        assertNull(em.find(ReadWriteEntity.class, -1L));
+        assertStat(em, 1, 0, 0, 0);
+        em.close();
+
+        em = emf.createEntityManager();
+        assertNull(em.find(ReadWriteEntity.class, -1L));
+        assertStat(em, 0, 0, 0, 0);
+        em.close();
+
+        final NegativeCache negativeCache = getNegativeCache(ReadWriteEntity.class);
+        assertEquals(1, negativeCache.getRecordCount());
+        assertEquals(1, negativeCache.getHitCount());
+        assertNull(getNegativeCache(NoStrictEntity.class));
+    }
+
+    @Test
+    public void insertRemovesTheMissingId() {
+        EntityManager em = emf.createEntityManager();
+        final List<ReadWriteEntity> entities = getEntities(em, ReadWriteEntity.class, "EM1");
+        em.close();
+        long maxId = 0;
+        for (final ReadWriteEntity entity : entities) {
+            maxId = Math.max(maxId, entity.getId());
+        }
+
+        /* The identifiers generated next are missing. */
+        em = emf.createEntityManager();
+        for (long id = maxId + 1; id <= maxId + 1000; id++) {
+            assertNull(em.find(ReadWriteEntity.class, id));
+        }
+        em.close();
+
+        em = emf.createEntityManager();
+        em.getTransaction().begin();
+        final ReadWriteEntity inserted = new ReadWriteEntity("inserted");
+        em.persist(inserted);
+        em.getTransaction().commit();
+        em.close();
+        assertTrue(inserted.getId() > maxId && inserted.getId() <= maxId + 1000);
+
+        em = emf.createEntityManager();
+        final ReadWriteEntity found = em.find(ReadWriteEntity.class, inserted.getId());
+        assertNotNull(found);
+        assertEquals("inserted", found.getName());
+        em.close();
+    }
+
+    @Test
+    public void rolledBackDeleteIsNotRecorded() {
+        EntityManager em = emf.createEntityManager();
+        final Long id = getEntities(em, ReadWriteEntity.class, "EM1").get(0).getId();
+        em.close();
+
+        em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.remove(em.find(ReadWriteEntity.class, id));
+        em.flush();
+        em.clear();
+        assertNull(em.find(ReadWriteEntity.class, id));
+        em.getTransaction().rollback();
+        em.close();
+
+        em = emf.createEntityManager();
+        assertNotNull(em.find(ReadWriteEntity.class, id));
+        em.close();
+        assertEquals(0, getNegativeCache(ReadWriteEntity.class).getRecordCount());
+    }
+
+    @Test
+    public void committedDeleteIsRecordedByTheNextFind() {
+        EntityManager em = emf.createEntityManager();
+        final Long id = getEntities(em, ReadWriteEntity.class, "EM1").get(0).getId();
+        em.close();
+
+        em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.remove(em.find(ReadWriteEntity.class, id));
+        em.getTransaction().commit();
+        em.close();
+
+        em = emf.createEntityManager();
+        initStat(em);
+        assertNull(em.find(ReadWriteEntity.class, id));
+        em.clear();
+        assertNull(em.find(ReadWriteEntity.class, id));
+        assertStat(em, 1, 0, 0, 0);
+        em.close();
+    }
+
+    @Test
+    public void subclassMissDoesNotHideTheSiblingSubclass() {
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        final FreightTrain freight = new FreightTrain("freight");
+        em.persist(freight);
+        em.getTransaction().commit();
+        em.close();
+        emf.getCache().evict(Train.class);
+
+        /* The row is a freight train, so the express train find misses it. */
+        em = emf.createEntityManager();
+        assertNull(em.find(ExpressTrain.class, freight.getId()));
+        assertNull(em.find(ExpressTrain.class, -1L));
+        em.close();
+        assertEquals(0, getNegativeCache(Train.class).getRecordCount());
+
+        em = emf.createEntityManager();
+        assertTrue(em.find(Train.class, freight.getId()) instanceof FreightTrain);
+        em.clear();
+        assertNotNull(em.find(FreightTrain.class, freight.getId()));
+        em.clear();
+        assertNull(em.find(Train.class, -1L));
+        em.close();
+        assertEquals(1, getNegativeCache(Train.class).getRecordCount());
+    }
+
+    @Test
+    public void statementsSavedWithMissingIds() {
+        final long withNegativeCache = runWorkload(ReadWriteEntity.class);
+        final long withoutNegativeCache = runWorkload(NoStrictEntity.class);
+        /* Every hit of the negative cache is a find which would have issued a statement. */
+        final NegativeCache negativeCache = getNegativeCache(ReadWriteEntity.class);
+        final long savedPerMillion = negativeCache.getHitCount() * 1000000L / FINDS;
+        LOG.info(String.format("%d finds with %.0f%% missing identifiers: %d statements with negative cache, %d statements of the %s region without it, %d statements saved per 1M finds",
+                               FINDS, MISSING_RATIO * 100, withNegativeCache, withoutNegativeCache, NoStrictEntity.class.getSimpleName(), savedPerMillion));
+        LOG.info(negativeCache);
+
+        assertEquals(MISSING_IDS, negativeCache.getRecordCount());
+        assertTrue(withNegativeCache < withoutNegativeCache / 5);
+        assertTrue(savedPerMillion > MISSING_RATIO * 1000000 * 0.9);
+    }
+
+    /**
+     * @return The number of the statements of the workload.
+     */
+    private long runWorkload(final Class<?> type) {
+        EntityManager em = emf.createEntityManager();
+        final List<?> entities = getEntities(em, type, "EM1");
+        final Long[] ids = new Long[entities.size()];
+        for (int i = 0; i < ids.length; i++) {
+            final Object entity = entities.get(i);
+            ids[i] = entity instanceof ReadWriteEntity ? ((ReadWriteEntity) entity).getId() : ((NoStrictEntity) entity).getId();
+        }
+        em.close();
+        emf.getCache().evict(type);
+
+        final Random random = new Random(42);
+        final long statements = getStatementCount();
+        em = null;
+        for (int i = 0; i < FINDS; i++) {
+            if (i % FINDS_PER_EM == 0) {
+                if (em != null) {
+                    em.close();
+                }
+                em = emf.createEntityManager();
+            }
+            if (random.nextDouble() < MISSING_RATIO) {
+                assertNull(em.find(type, (long) -1 - random.nextInt(MISSING_IDS)));
+            } else {
+                assertNotNull(em.find(type, ids[random.nextInt(ids.length)]));
+            }
+            em.clear();
+        }
+        em.close();
+        return getStatementCount() - statements;
+    }
+
+    private NegativeCache getNegativeCache(final Class<?> type) {
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(emf);
+        return ((BaseTransactionalDataRegion) sessionFactory.getEntityPersister(type.getName()).getCacheAccessStrategy().getRegion()).getNegativeCache();
+    }
+
+}
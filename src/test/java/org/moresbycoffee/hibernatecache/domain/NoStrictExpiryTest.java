@@ -0,0 +1,113 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.After;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.strategy.AdaptiveTtl;
+import org.moresbycoffee.hibernatecache.cache.strategy.NonStrictReadWriteEntityRegionAccessStrategy;
+
+/**
+ * Tests the expiry of the {@link NoStrictEntity}s with {@link CacheSettings#MAX_STALENESS}.
+ * The region is stored off-heap, so the expiring entries are encoded by the codec.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class NoStrictExpiryTest extends EntityManagerTest {
+
+    private static final long MAX_STALENESS = 300;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put(CacheSettings.REGION_PREFIX + NoStrictEntity.class.getName() + "." + CacheSettings.MAX_STALENESS, String.valueOf(MAX_STALENESS));
+        return properties;
+    }
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    public void entriesExpire() throws InterruptedException {
+        EntityManager em = emf.createEntityManager();
+        final Long id = getEntities(em, NoStrictEntity.class, "EM1").get(0).getId();
+        assertStat(em, 1, 0, 0, 90);
+        em.close();
+
+        em = emf.createEntityManager();
+        assertNotNull(em.find(NoStrictEntity.class, id));
+        assertStat(em, 0, 0, 1, 0);
+        em.close();
+
+        Thread.sleep(MAX_STALENESS + 100);
+
+        em = emf.createEntityManager();
+        assertNotNull(em.find(NoStrictEntity.class, id));
+        /* The expired entry is loaded again. */
+        assertStat(em, 1, 0, 0, 1);
+        em.close();
+
+        final AdaptiveTtl ttl = getAdaptiveTtl();
+        assertEquals(1, ttl.getExpiredCount());
+        assertEquals(MAX_STALENESS, ttl.getMaxStaleness());
+    }
+
+    @Test
+    public void updatesAreRecorded() {
+        final EntityManager em = emf.createEntityManager();
+        final NoStrictEntity entity = getEntities(em, NoStrictEntity.class, "EM1").get(0);
+        em.getTransaction().begin();
+        entity.setName("updated");
+        em.getTransaction().commit();
+        em.close();
+
+        final AdaptiveTtl ttl = getAdaptiveTtl();
+        assertEquals(1, ttl.getWriteCount());
+        assertTrue(ttl.getWriteRate(System.currentTimeMillis()) > 0);
+    }
+
+    private AdaptiveTtl getAdaptiveTtl() {
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(emf);
+        return ((NonStrictReadWriteEntityRegionAccessStrategy) sessionFactory.getEntityPersister(NoStrictEntity.class.getName()).getCacheAccessStrategy()).getAdaptiveTtl();
+    }
+
+}
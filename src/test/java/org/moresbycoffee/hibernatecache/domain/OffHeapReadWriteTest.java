@@ -0,0 +1,75 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.internal.SessionImpl;
+import org.junit.Assert;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.region.EntityRegionImpl;
+import org.moresbycoffee.hibernatecache.cache.store.OffHeapCacheStore;
+
+/**
+ * Runs the {@link ReadWriteTest} scenarios with off-heap entity regions.
+ * The off-heap storage must not change the behavior of the cache.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class OffHeapReadWriteTest extends ReadWriteTest {
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.STORAGE, "offheap");
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.OFFHEAP_MAX_BYTES, String.valueOf(4 * 1024 * 1024));
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.OFFHEAP_SEGMENT_SIZE, String.valueOf(64 * 1024));
+        return properties;
+    }
+
+    @Test
+    public void entityRegionIsOffHeap() {
+        final EntityManager em = emf.createEntityManager();
+        try {
+            final SessionFactoryImplementor sessionFactory = ((SessionImpl) em.getDelegate()).getSessionFactory();
+            final EntityRegionImpl region = (EntityRegionImpl) sessionFactory.getSecondLevelCacheRegion(ReadWriteEntity.class.getName());
+            Assert.assertTrue(region.getStore() instanceof OffHeapCacheStore);
+        } finally {
+            em.close();
+        }
+    }
+
+}
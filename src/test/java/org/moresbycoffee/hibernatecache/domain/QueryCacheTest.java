@@ -37,7 +37,10 @@ import java.util.List;
 import javax.persistence.EntityManager;
 
 import org.apache.log4j.Logger;
+import org.hibernate.internal.SessionImpl;
 import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.region.BaseRegion;
+import org.moresbycoffee.hibernatecache.cache.store.TinyLfuCache;
 import org.moresbycoffee.hibernatecache.domain.NoCacheEntity;
 
 /**
@@ -54,8 +57,8 @@ public class QueryCacheTest extends EntityManagerTest {
 
     /**
      * Using Query cache without 2nd level cache can cause a huge number of database hit
-     * because the query cache result contains only the primary keys and the entities will
-     * be picked up from the database one-by-one.
+     * because the query cache result contains only the primary keys and the entities would
+     * be picked up from the database one-by-one. The query cache loads them in batches instead.
      */
     @Test
     public void withoutSecondLevelCacheTest() {
@@ -70,17 +73,25 @@ public class QueryCacheTest extends EntityManagerTest {
         em1.close();
 
         final EntityManager em2 = emf.createEntityManager();
+        final long queryResultsHits = getQueryResultsHits(em2);
         final List<NoCacheEntity> entitiesNoChacheEm2 = getNoCacheEntities(em2, "EM1");
 
         printStat(em2, "EM2");
-        /* Entities haven't been added to 2nd level cache. */
-        assertStat(em2, 90, 1, 0, 0);
+        /* Entities haven't been added to 2nd level cache, they are loaded in batches. */
+        assertStat(em2, batches(90), 1, 0, 0);
+        /* The cached result has been read once. */
+        assertEquals(queryResultsHits + 1, getQueryResultsHits(em2));
 
         assertEquals(entitiesNoChacheEm1.size(), entitiesNoChacheEm2.size());
         em2.close();
 
     }
 
+    private static long getQueryResultsHits(final EntityManager em) {
+        final BaseRegion region = (BaseRegion) ((SessionImpl) em.getDelegate()).getSessionFactory().getQueryCache().getRegion();
+        return ((TinyLfuCache<?, ?>) region.getStore()).getHitCount();
+    }
+
 
 
 }
@@ -86,7 +86,9 @@ public class ReadOnlyTest extends EntityManagerTest {
          * Query cache: The query retrieved
          * 2nd level cache: The entities are retrieved.
          */
+        budget.begin("STEP 2").maxStatements(0).minL2Hits(90);
         countEntities(em2, "EM2");
+        budget.end();
         printStat(em2, "EM2");
         assertStat(em2, 0, 1, 90, 0);
 
@@ -0,0 +1,149 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.apache.log4j.Logger;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.type.LongType;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Multi-threaded throughput of the {@link org.hibernate.annotations.CacheConcurrencyStrategy#READ_WRITE read-write}
+ * access strategy of the {@link ReadWriteEntity} region, compared to the stock Ehcache strategy.
+ * The threads call the access strategies directly: 95% reads and 5% lock - update - unlock cycles on random keys.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class ReadWriteStrategyThroughputTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(ReadWriteStrategyThroughputTest.class);
+
+    private static final int KEYS = 1000;
+
+    private static final int THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final long DURATION_MS = 1000;
+
+    private EntityManagerFactory emf;
+
+    @After
+    public void tearDown() {
+        if (emf != null) {
+            emf.close();
+        }
+    }
+
+    @Test
+    public void stripedStrategy() throws Exception {
+        final Map<String, String> properties = new HashMap<String, String>();
+        final long ops = measure(properties);
+        LOG.info(String.format("Striped read-write strategy: %,d ops/s with %d threads", ops * 1000 / DURATION_MS, THREADS));
+        assertTrue(ops > 0);
+    }
+
+    @Test
+    public void ehcacheStrategy() throws Exception {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("hibernate.cache.region.factory_class", "org.hibernate.cache.ehcache.EhCacheRegionFactory");
+        final long ops = measure(properties);
+        LOG.info(String.format("Ehcache read-write strategy: %,d ops/s with %d threads", ops * 1000 / DURATION_MS, THREADS));
+        assertTrue(ops > 0);
+    }
+
+    /**
+     * @return The number of operations executed in {@link #DURATION_MS}.
+     */
+    private long measure(final Map<String, String> properties) throws InterruptedException {
+        emf = Persistence.createEntityManagerFactory("cached", properties);
+        final SessionFactoryImplementor sessionFactory = EntityManagerTest.getSessionFactory(emf);
+        final EntityRegionAccessStrategy strategy = sessionFactory.getEntityPersister(ReadWriteEntity.class.getName()).getCacheAccessStrategy();
+
+        final CacheKey[] keys = new CacheKey[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new CacheKey(Long.valueOf(i), LongType.INSTANCE, ReadWriteEntity.class.getName(), null, sessionFactory);
+            strategy.putFromLoad(keys[i], "value" + i, strategy.getRegion().nextTimestamp(), null, false);
+        }
+
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        final long end = System.currentTimeMillis() + DURATION_MS;
+                        long count = 0;
+                        while ((count & 0xff) != 0 || System.currentTimeMillis() < end) {
+                            final CacheKey key = keys[random.nextInt(KEYS)];
+                            if (random.nextInt(20) == 0) {
+                                final SoftLock lock = strategy.lockItem(key, null);
+                                strategy.update(key, "updated", null, null);
+                                strategy.afterUpdate(key, "updated", null, null, lock);
+                            } else {
+                                strategy.get(key, Long.MAX_VALUE);
+                            }
+                            count++;
+                        }
+                        ops.addAndGet(count);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return ops.get();
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.junit.After;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.strategy.NonStrictReadWriteEntityRegionAccessStrategy;
+import org.moresbycoffee.hibernatecache.cache.warmup.RefreshAhead;
+
+/**
+ * Tests the {@link RefreshAhead} of the {@link NoStrictEntity}s.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class RefreshAheadTest extends EntityManagerTest {
+
+    private static final long MAX_STALENESS = 2000;
+
+    private static final int HOT_ENTITIES = 10;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        final String prefix = CacheSettings.REGION_PREFIX + NoStrictEntity.class.getName() + ".";
+        properties.put(prefix + CacheSettings.MAX_STALENESS, String.valueOf(MAX_STALENESS));
+        properties.put(prefix + CacheSettings.REFRESH_AHEAD, "0.5");
+        return properties;
+    }
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    /**
+     * The entities read twice in the second half of their time-to-live are reloaded by a single
+     * statement, they are hit after the original entries would have expired.
+     */
+    @Test
+    public void hotEntitiesAreRefreshed() throws InterruptedException {
+        EntityManager em = emf.createEntityManager();
+        final List<Long> ids = new ArrayList<Long>();
+        for (final NoStrictEntity entity : getEntities(em, NoStrictEntity.class, "EM1")) {
+            ids.add(entity.getId());
+        }
+        /* Every entry has been loaded by now. */
+        final long loadedAt = System.currentTimeMillis();
+        assertStat(em, 1, 0, 0, 90);
+        em.close();
+
+        sleepUntil(loadedAt + MAX_STALENESS * 6 / 10);
+        for (int i = 0; i < 2; i++) {
+            em = emf.createEntityManager();
+            for (final Long id : ids.subList(0, HOT_ENTITIES)) {
+                assertNotNull(em.find(NoStrictEntity.class, id));
+            }
+            em.close();
+        }
+
+        final RefreshAhead refreshAhead = RefreshAhead.of(getSessionFactory(emf));
+        final long deadline = System.currentTimeMillis() + MAX_STALENESS;
+        while (refreshAhead.getIssuedCount() < HOT_ENTITIES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(HOT_ENTITIES, refreshAhead.getIssuedCount());
+        assertTrue(refreshAhead.getQueryCount() <= 2);
+        assertEquals(0, refreshAhead.getUsedCount());
+
+        sleepUntil(loadedAt + MAX_STALENESS + 100);
+        em = emf.createEntityManager();
+        initStat(em);
+        for (final Long id : ids.subList(0, HOT_ENTITIES)) {
+            assertNotNull(em.find(NoStrictEntity.class, id));
+        }
+        /* The refreshed entities are hit. */
+        assertStat(em, 0, 0, HOT_ENTITIES, 0);
+        /* The other ones have expired. */
+        assertNotNull(em.find(NoStrictEntity.class, ids.get(HOT_ENTITIES)));
+        assertStat(em, 1, 0, 0, 1);
+        em.close();
+
+        assertEquals(HOT_ENTITIES, refreshAhead.getUsedCount());
+        assertEquals(HOT_ENTITIES, refreshAhead.getAvoidedLoadCount());
+        assertEquals(0, refreshAhead.getDroppedCount());
+    }
+
+    /**
+     * A reload doesn't replace the entry put again or resurrect the entry removed since the refresh has been scheduled.
+     */
+    @Test
+    public void refreshKeepsTheEntriesWrittenMeanwhile() {
+        final EntityManager em = emf.createEntityManager();
+        final Long id = getEntities(em, NoStrictEntity.class, "EM1").get(0).getId();
+        em.close();
+
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(emf);
+        final EntityPersister persister = sessionFactory.getEntityPersister(NoStrictEntity.class.getName());
+        final NonStrictReadWriteEntityRegionAccessStrategy strategy = (NonStrictReadWriteEntityRegionAccessStrategy) persister.getCacheAccessStrategy();
+        final CacheKey key = new CacheKey(id, persister.getIdentifierType(), persister.getRootEntityName(), null, sessionFactory);
+        final Object entry = strategy.get(key, System.currentTimeMillis());
+        assertNotNull(entry);
+
+        /* The entry has just been loaded, it isn't in its refresh window. */
+        assertFalse(strategy.refresh(key, entry));
+        strategy.remove(key);
+        assertFalse(strategy.refresh(key, entry));
+        assertNull(strategy.get(key, System.currentTimeMillis()));
+    }
+
+    private static void sleepUntil(final long time) throws InterruptedException {
+        final long delay = time - System.currentTimeMillis();
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+}
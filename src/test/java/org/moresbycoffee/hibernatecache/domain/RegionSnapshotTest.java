@@ -0,0 +1,194 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.hibernate.cache.internal.StandardQueryCache;
+import org.hibernate.cache.spi.Region;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.TinyLfuRegionFactory;
+import org.moresbycoffee.hibernatecache.cache.region.RegionSnapshot;
+
+/**
+ * Tests the {@link RegionSnapshot}. The snapshots are restored by new persistence units
+ * started on the database generated by the {@link EntityManagerTest}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class RegionSnapshotTest extends EntityManagerTest {
+
+    private File file;
+
+    private EntityManagerFactory restoredEmf;
+
+    @Before
+    public void createFile() throws Exception {
+        file = File.createTempFile("hibernatecache", ".snapshot");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        if (restoredEmf != null) {
+            restoredEmf.close();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void snapshotIsWrittenAtCloseAndRestoredAtStart() {
+        final EntityManagerFactory snapshotEmf = createSnapshotEntityManagerFactory();
+        EntityManager em = snapshotEmf.createEntityManager();
+        initStat(em);
+        final List<Long> ids = new ArrayList<Long>();
+        for (final ReadOnlyEntity entity : getROEntities(em, "EM1")) {
+            ids.add(entity.getId());
+        }
+        /* Entities have been put into the 2nd level cache, the result into the query cache. */
+        assertStat(em, 1, 0, 0, 90);
+        em.close();
+        assertFalse(file.exists());
+        snapshotEmf.close();
+        assertTrue(file.exists());
+
+        restoredEmf = createSnapshotEntityManagerFactory();
+        /*
+         * The query result has been restored, but it can't be hit in the same JVM: the column aliases
+         * of the SQL in the query key are numbered by a counter of the JVM, so they differ in the new unit.
+         */
+        assertEquals(1, elementCount(getSessionFactory(restoredEmf).getAllSecondLevelCacheRegions(), StandardQueryCache.class.getName()));
+        em = restoredEmf.createEntityManager();
+        initStat(em);
+        for (final Long id : ids) {
+            assertNotNull(em.find(ReadOnlyEntity.class, id));
+        }
+        printStat(em, "EM2");
+        /* The entities have been restored. */
+        assertStat(em, 0, 0, 90, 0);
+        em.close();
+    }
+
+    @Test
+    public void staleEntriesAreDropped() throws Exception {
+        final EntityManager em1 = emf.createEntityManager();
+        final List<ReadWriteEntity> entities = getEntities(em1, ReadWriteEntity.class, "EM1");
+        getROEntities(em1, "EM1");
+        assertStat(em1, 2, 0, 0, 180);
+        em1.close();
+
+        /* The table of the ReadWriteEntities is updated after the result of the query has been cached. */
+        final EntityManager em2 = emf.createEntityManager();
+        em2.getTransaction().begin();
+        em2.find(ReadWriteEntity.class, entities.get(0).getId()).setName("updated");
+        em2.getTransaction().commit();
+        em2.close();
+
+        /* The entity updated by the running transaction is soft locked. */
+        final EntityManager em3 = emf.createEntityManager();
+        em3.getTransaction().begin();
+        em3.find(ReadWriteEntity.class, entities.get(1).getId()).setName("running");
+        em3.flush();
+        final long written = getRegionFactory(emf).writeSnapshot(file);
+        em3.getTransaction().rollback();
+        em3.close();
+
+        restoredEmf = createSnapshotEntityManagerFactory();
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(restoredEmf);
+        final Map<?, ?> regions = sessionFactory.getAllSecondLevelCacheRegions();
+        assertEquals(89, elementCount(regions, ReadWriteEntity.class.getName()));
+        assertEquals(90, elementCount(regions, ReadOnlyEntity.class.getName()));
+        /* Only the result of the ReadOnlyEntity query is up to date. */
+        assertEquals(1, elementCount(regions, StandardQueryCache.class.getName()));
+        /*
+         * Dropped: the soft lock of the running transaction, the stale query result and the released
+         * locks of the Line.stations and Station.lines collections created by the generation of the database.
+         */
+        assertEquals(written - 1 - 1 - 2 - 2, getRegionFactory(restoredEmf).writeSnapshot(file));
+
+        final EntityManager em = restoredEmf.createEntityManager();
+        initStat(em);
+        final List<ReadWriteEntity> restored = getEntities(em, ReadWriteEntity.class, "EM");
+        assertEquals(90, restored.size());
+        printStat(em, "EM");
+        /* The query has been executed, the rows of the result are put into the cache. */
+        assertStat(em, 1, 0, 0, 1);
+        em.close();
+    }
+
+    @Test
+    public void snapshotOfOtherFormatIsRejected() throws Exception {
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        out.close();
+        try {
+            getRegionFactory(emf).restoreSnapshot(file);
+            fail();
+        } catch (final IOException e) {
+            /* Expected. */
+        }
+    }
+
+    private static long elementCount(final Map<?, ?> regions, final String name) {
+        return ((Region) regions.get(name)).getElementCountInMemory();
+    }
+
+    /**
+     * @return An entity manager factory on the existing database using the snapshot file. (NonNull)
+     */
+    private EntityManagerFactory createSnapshotEntityManagerFactory() {
+        final Map<String, String> properties = getPersistenceProperties();
+        properties.put("hibernate.hbm2ddl.auto", "validate");
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.SNAPSHOT_FILE, file.getPath());
+        return Persistence.createEntityManagerFactory("cached", properties);
+    }
+
+    private static TinyLfuRegionFactory getRegionFactory(final EntityManagerFactory factory) {
+        return (TinyLfuRegionFactory) getSessionFactory(factory).getSettings().getRegionFactory();
+    }
+
+}
@@ -146,29 +146,5 @@ public class SecondLevelCache extends EntityManagerTest {
 
     }
 
-    /**
-     * In this test I'm retrieving all the ReadOnlyEntity-s,
-     * and put them into the 2nd level cache.
-     * After it a second query tries to find one of them with a
-     * JPQL expression but Hibernate won't use 2nd level cache
-     * it is forwarding the query to the database.
-     */
-    @Test
-    public void noQueryable() {
-        final List<ReadOnlyEntity> entitiesEm1 = getROEntities(em1, "EM1");
-
-        /* Entities have put into 2nd level cache. */
-        printStat(em1, "EM1");
-        assertStat(em1, 1, 0, 0, 90);
-
-        final EntityManager em3 = emf.createEntityManager();
-        final ReadOnlyEntity em3Entity = (ReadOnlyEntity) em3.createQuery("select e from ReadOnlyEntity e where e.id = " + entitiesEm1.get(0).getId()).getSingleResult();
-        assertNotNull(em3Entity);
-        printStat(em3, "EM3");
-        /* The 2nd level cache hit won't increase */
-        assertStat(em1, 1, 0, 0, 0);
-        em3.close();
-    }
-
 
 }
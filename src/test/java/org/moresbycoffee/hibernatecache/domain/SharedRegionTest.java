@@ -0,0 +1,163 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+import org.hibernate.cache.CacheException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.CacheSettings;
+import org.moresbycoffee.hibernatecache.cache.store.SharedMemoryCacheStore;
+
+/**
+ * Tests the regions stored in {@link SharedMemoryCacheStore}s by two persistence units sharing the files.
+ * The persistence units run in the same JVM, the store is tested with forked JVMs by its own test.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class SharedRegionTest extends EntityManagerTest {
+
+    private static File directory;
+
+    private EntityManagerFactory otherEmf;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put(CacheSettings.REGION_PREFIX + ReadOnlyEntity.class.getName() + "." + CacheSettings.STORAGE, "shared");
+        properties.put(CacheSettings.REGION_PREFIX + NoStrictEntity.class.getName() + "." + CacheSettings.STORAGE, "shared");
+        properties.put(CacheSettings.DEFAULT_PREFIX + CacheSettings.SHARED_DIRECTORY, directory.getPath());
+        return properties;
+    }
+
+    @Override
+    @Before
+    public void prepareTest() throws Exception {
+        directory = File.createTempFile("hibernatecache", "");
+        assertTrue(directory.delete());
+        super.prepareTest();
+        otherEmf = createEntityManagerFactory(getPersistenceProperties());
+        /* The statements of the schema export of the other unit aren't counted. */
+        initStat(getSessionFactory(emf).getStatistics());
+    }
+
+    @After
+    public void tearDown() {
+        otherEmf.close();
+        emf.close();
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void readOnlyEntitiesAreShared() {
+        EntityManager em = emf.createEntityManager();
+        final List<Long> ids = new ArrayList<Long>();
+        for (final ReadOnlyEntity entity : getROEntities(em, "EM1")) {
+            ids.add(entity.getId());
+        }
+        assertStat(em, 1, 0, 0, 90);
+        em.close();
+
+        em = otherEmf.createEntityManager();
+        initStat(em);
+        for (final Long id : ids) {
+            assertNotNull(em.find(ReadOnlyEntity.class, id));
+        }
+        /* The entities put by the other unit are hit. */
+        assertStat(em, 0, 0, 90, 0);
+        em.close();
+    }
+
+    @Test
+    public void nonStrictUpdateInvalidatesTheOtherUnit() {
+        EntityManager em = emf.createEntityManager();
+        final Long id = getEntities(em, NoStrictEntity.class, "EM1").get(0).getId();
+        em.close();
+
+        em = otherEmf.createEntityManager();
+        initStat(em);
+        em.getTransaction().begin();
+        em.find(NoStrictEntity.class, id).setName("updated");
+        em.getTransaction().commit();
+        /* The entity has been hit and removed by the update. */
+        assertStat(em, 1, 0, 1, 0);
+        em.close();
+
+        em = emf.createEntityManager();
+        initStat(em);
+        assertEquals("updated", em.find(NoStrictEntity.class, id).getName());
+        /* The removed entity is loaded again. */
+        assertStat(em, 1, 0, 0, 1);
+        em.close();
+    }
+
+    @Test
+    public void readWriteRegionIsRejected() {
+        final Map<String, String> properties = getPersistenceProperties();
+        properties.put(CacheSettings.REGION_PREFIX + ReadWriteEntity.class.getName() + "." + CacheSettings.STORAGE, "shared");
+        try {
+            createEntityManagerFactory(properties).close();
+            fail();
+        } catch (final PersistenceException e) {
+            Throwable cause = e;
+            while (!(cause instanceof CacheException)) {
+                cause = cause.getCause();
+            }
+            assertTrue(cause.getMessage(), cause.getMessage().startsWith("Read-write access is not supported"));
+        }
+    }
+
+    /**
+     * @return An entity manager factory on the existing database. (NonNull)
+     */
+    private static EntityManagerFactory createEntityManagerFactory(final Map<String, String> properties) {
+        properties.put("hibernate.hbm2ddl.auto", "validate");
+        return Persistence.createEntityManagerFactory("cached", properties);
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.apache.log4j.Logger;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.stat.SqlHotSpotReport;
+import org.moresbycoffee.hibernatecache.cache.stat.SqlHotSpotReport.Advice;
+import org.moresbycoffee.hibernatecache.cache.stat.SqlHotSpotReport.HotSpot;
+import org.moresbycoffee.hibernatecache.cache.stat.SqlHotSpotReport.Recommendation;
+import org.moresbycoffee.hibernatecache.cache.stat.SqlHotSpotReport.ServedBy;
+import org.moresbycoffee.hibernatecache.jdbc.FingerprintStatementSink;
+import org.moresbycoffee.hibernatecache.jdbc.StatementPipeline;
+
+/**
+ * Tests the {@link SqlHotSpotReport} of a workload reading every entity type, modifying the {@link NoStrictEntity}s only.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class SqlHotSpotReportTest extends EntityManagerTest {
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(SqlHotSpotReportTest.class);
+
+    private final FingerprintStatementSink statements = new FingerprintStatementSink();
+
+    /**
+     * Aggregates the statements of the workload only.
+     */
+    @Before
+    public void addSink() {
+        StatementPipeline.getDefault().flush();
+        StatementPipeline.getDefault().addSink(statements);
+    }
+
+    @After
+    public void tearDown() {
+        StatementPipeline.getDefault().removeSink(statements);
+        emf.close();
+    }
+
+    @Test
+    public void reportRecommendsTheCacheConfiguration() {
+        for (int i = 0; i < 2; i++) {
+            final EntityManager em = emf.createEntityManager();
+            for (final Class<?> type : new Class<?>[] { ReadWriteEntity.class, ReadOnlyEntity.class, NoCacheEntity.class, NoStrictEntity.class }) {
+                getEntities(em, type, "EM" + i);
+            }
+            em.close();
+        }
+        EntityManager em = emf.createEntityManager();
+        for (final NoCacheEntity entity : getNoCacheEntities(em, "EM2")) {
+            final EntityManager findEm = emf.createEntityManager();
+            assertNotNull(findEm.find(NoCacheEntity.class, entity.getId()));
+            findEm.close();
+        }
+        for (final Line line : getEntities(em, Line.class, "EM2")) {
+            assertEquals(2, line.getStations().size());
+        }
+        em.close();
+
+        em = emf.createEntityManager();
+        em.getTransaction().begin();
+        getEntities(em, NoStrictEntity.class, "EM3").get(0).setName("modified");
+        em.getTransaction().commit();
+        em.close();
+
+        StatementPipeline.getDefault().flush();
+        final SessionFactoryImplementor sessionFactory = getSessionFactory(emf);
+        final SqlHotSpotReport report = new SqlHotSpotReport(sessionFactory, statements.getShapes());
+        LOG.info(report.report());
+
+        final HotSpot noCacheFind = find(report.getHotSpots(), NoCacheEntity.class.getName(), ServedBy.ENTITY, ".id=?");
+        assertEquals(90, noCacheFind.getShape().getCount());
+        assertEquals(NoCacheEntity.class.getName(), noCacheFind.getRegionName());
+        assertTrue(Double.isNaN(noCacheFind.getHitRate()));
+        final HotSpot readWriteQuery = find(report.getHotSpots(), ReadWriteEntity.class.getName(), ServedBy.QUERY, "");
+        assertEquals(1, readWriteQuery.getShape().getCount());
+        assertTrue(readWriteQuery.getHitRate() > 0 && readWriteQuery.getHitRate() < 1);
+        assertNotNull(find(report.getHotSpots(), Line.class.getName() + ".stations", ServedBy.COLLECTION, ""));
+
+        final List<Recommendation> recommendations = report.getRecommendations();
+        for (int i = 1; i < recommendations.size(); i++) {
+            assertTrue(recommendations.get(i - 1).getImpactNanos() >= recommendations.get(i).getImpactNanos());
+        }
+        assertEquals(Advice.CACHE, advice(recommendations, NoCacheEntity.class.getName()));
+        assertEquals(Advice.READ_ONLY, advice(recommendations, ReadWriteEntity.class.getName()));
+        assertEquals(Advice.READ_ONLY, advice(recommendations, Line.class.getName()));
+        assertNull(advice(recommendations, ReadOnlyEntity.class.getName()));
+        assertNull(advice(recommendations, NoStrictEntity.class.getName()));
+    }
+
+    private static HotSpot find(final List<HotSpot> hotSpots, final String type, final ServedBy servedBy, final String suffix) {
+        for (final HotSpot hotSpot : hotSpots) {
+            if (type.equals(hotSpot.getType()) && hotSpot.getServedBy() == servedBy && hotSpot.getShape().getFingerprint().endsWith(suffix)) {
+                return hotSpot;
+            }
+        }
+        fail("No " + servedBy + " hot spot of " + type + " found.");
+        return null;
+    }
+
+    private static Advice advice(final List<Recommendation> recommendations, final String name) {
+        for (final Recommendation recommendation : recommendations) {
+            if (recommendation.getName().equals(name)) {
+                return recommendation.getAdvice();
+            }
+        }
+        return null;
+    }
+
+}
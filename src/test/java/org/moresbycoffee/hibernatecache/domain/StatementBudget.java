@@ -0,0 +1,334 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.log4j.Logger;
+import org.hibernate.stat.Statistics;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.moresbycoffee.hibernatecache.jdbc.FingerprintStatementSink;
+import org.moresbycoffee.hibernatecache.jdbc.StatementPipeline;
+import org.moresbycoffee.hibernatecache.jdbc.StatementShape;
+
+/**
+ * Checks the performance budget of a test, see {@link Budget}, or of a block of a test: the maximum number of the
+ * statements executed through the {@link StatementPipeline#getDefault() default statement pipeline}, the minimum
+ * number of the second level cache hits and the maximum number of the bytes allocated by the thread of the test.
+ * A budget exceeded fails the test with the difference and the statements executed by their fingerprints, so an N+1
+ * select or a cache regression can be spotted in the report.
+ * <pre>
+ * budget.begin("STEP 2").maxStatements(0).minL2Hits(90);
+ * ...
+ * budget.end();
+ * </pre>
+ * The budget of the test is counted from the start of the test or from the last {@link #reset()}, e.g. after the
+ * database has been generated by the {@link org.junit.Before} methods, until the end of the {@link org.junit.After}
+ * methods. The DDL statements (e.g. the schema drop of the closed session factory) aren't counted.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class StatementBudget implements TestRule {
+
+    /**
+     * Provides the statistics of the session factory under test.
+     */
+    public interface StatisticsSource {
+        /**
+         * @return The statistics of the session factory or <tt>null</tt> if it doesn't exist yet.
+         */
+        Statistics getStatistics();
+    }
+
+    /** Logger. */
+    private static final Logger LOG = Logger.getLogger(StatementBudget.class);
+
+    /** The maximum number of the fingerprints listed in the failure. */
+    private static final int MAX_SHAPES_REPORTED = 20;
+
+    /** <code>com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long)</code>, <tt>null</tt> if it isn't supported by the JVM. */
+    private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+
+    private final StatisticsSource statisticsSource;
+
+    /** The block of the test with the limits of its {@link Budget}, <tt>null</tt> if the test hasn't got budget. */
+    private Block test;
+
+    /** The block of the test being measured. (Nullable) */
+    private Block block;
+
+    /**
+     * @param statisticsSource The statistics of the session factory under test. (NonNull)
+     */
+    public StatementBudget(final StatisticsSource statisticsSource) {
+        this.statisticsSource = statisticsSource;
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        final Budget budget = description.getAnnotation(Budget.class);
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                if (budget != null) {
+                    test = new Block(description.getMethodName())
+                            .maxStatements(budget.maxStatements()).minL2Hits(budget.minL2Hits()).maxAllocatedBytes(budget.maxAllocatedBytes());
+                    test.start();
+                }
+                try {
+                    base.evaluate();
+                    if (test != null) {
+                        test.check();
+                    }
+                } finally {
+                    if (block != null) {
+                        block.stop();
+                        block = null;
+                    }
+                    if (test != null) {
+                        test.stop();
+                        test = null;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Restarts the counting of the budget of the test, e.g. at the end of the {@link org.junit.Before} methods.
+     */
+    public void reset() {
+        if (test != null) {
+            test.stop();
+            test.start();
+        }
+    }
+
+    /**
+     * Starts the measurement of a block of the test. The limits are set on the returned block.
+     *
+     * @param name The name of the block reported. (NonNull)
+     * @return The block. (NonNull)
+     * @throws IllegalStateException If a block is being measured.
+     */
+    public Block begin(final String name) {
+        if (block != null) {
+            throw new IllegalStateException("The block " + block.name + " hasn't been ended.");
+        }
+        block = new Block(name);
+        block.start();
+        return block;
+    }
+
+    /**
+     * Ends the block of the test and checks its limits.
+     *
+     * @throws AssertionError If the budget of the block has been exceeded.
+     * @throws IllegalStateException If no block is being measured.
+     */
+    public void end() {
+        if (block == null) {
+            throw new IllegalStateException("No block has been begun.");
+        }
+        final Block ended = block;
+        block = null;
+        try {
+            ended.check();
+        } finally {
+            ended.stop();
+        }
+    }
+
+    /**
+     * @return The bytes allocated by the current thread or <code>-1</code> if it isn't supported by the JVM.
+     */
+    private static long getAllocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+        } catch (final Exception e) {
+            return -1;
+        }
+    }
+
+    private static Method allocatedBytesMethod() {
+        try {
+            final Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            return type.isInstance(ManagementFactory.getThreadMXBean()) ? type.getMethod("getThreadAllocatedBytes", long.class) : null;
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * A measured part of a test with its limits, the negative limits aren't checked.
+     */
+    public final class Block {
+
+        private final String name;
+
+        private final FingerprintStatementSink statements = new FingerprintStatementSink();
+
+        private int maxStatements = -1;
+        private int minL2Hits = -1;
+        private long maxAllocatedBytes = -1;
+
+        /**
+         * The statistics of the session factory when the block has started, they are readable after the
+         * session factory has been closed by the {@link org.junit.After} methods. (Nullable)
+         */
+        private Statistics statistics;
+
+        private long l2Hits;
+        private long allocatedBytes;
+
+        Block(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param max The maximum number of the statements executed by the block.
+         * @return The block.
+         */
+        public Block maxStatements(final int max) {
+            this.maxStatements = max;
+            return this;
+        }
+
+        /**
+         * @param min The minimum number of the second level cache hits of the block.
+         * @return The block.
+         */
+        public Block minL2Hits(final int min) {
+            this.minL2Hits = min;
+            return this;
+        }
+
+        /**
+         * @param max The maximum number of the bytes allocated by the thread of the block.
+         * @return The block.
+         */
+        public Block maxAllocatedBytes(final long max) {
+            this.maxAllocatedBytes = max;
+            return this;
+        }
+
+        void start() {
+            final StatementPipeline pipeline = StatementPipeline.getDefault();
+            pipeline.flush();
+            statements.clear();
+            pipeline.addSink(statements);
+            statistics = statisticsSource.getStatistics();
+            l2Hits = getL2Hits();
+            allocatedBytes = getAllocatedBytes();
+        }
+
+        void stop() {
+            StatementPipeline.getDefault().removeSink(statements);
+        }
+
+        /**
+         * @throws AssertionError If the budget has been exceeded.
+         */
+        void check() {
+            final long allocated = allocatedBytes >= 0 ? getAllocatedBytes() - allocatedBytes : -1;
+            final long hits = getL2Hits() - l2Hits;
+            StatementPipeline.getDefault().flush();
+            long executed = 0;
+            for (final StatementShape shape : getShapes()) {
+                executed += shape.getCount();
+            }
+
+            final StringBuilder diff = new StringBuilder();
+            if (maxStatements >= 0 && executed > maxStatements) {
+                diff.append("\n  statements: expected <= ").append(maxStatements).append(" but was ").append(executed)
+                    .append(" (+").append(executed - maxStatements).append(')');
+            }
+            if (minL2Hits >= 0 && hits < minL2Hits) {
+                diff.append("\n  L2 hits: expected >= ").append(minL2Hits).append(" but was ").append(hits)
+                    .append(" (-").append(minL2Hits - hits).append(')');
+            }
+            if (maxAllocatedBytes >= 0) {
+                if (allocated < 0) {
+                    LOG.warn("The allocated bytes of " + name + " can't be measured by this JVM.");
+                } else if (allocated > maxAllocatedBytes) {
+                    diff.append("\n  allocated bytes: expected <= ").append(maxAllocatedBytes).append(" but was ").append(allocated)
+                        .append(" (+").append(allocated - maxAllocatedBytes).append(')');
+                }
+            }
+            if (diff.length() > 0) {
+                throw new AssertionError("The budget of " + name + " has been exceeded:" + diff + report());
+            }
+            LOG.debug("Budget of " + name + ": " + executed + " statements, " + hits + " L2 hits, " + allocated + " bytes allocated.");
+        }
+
+        /**
+         * @return The statements executed by the block without the DDL statements, the slowest first. (NonNull)
+         */
+        private List<StatementShape> getShapes() {
+            final List<StatementShape> shapes = new ArrayList<StatementShape>();
+            for (final StatementShape shape : statements.getShapes()) {
+                final String sql = shape.getFingerprint().toLowerCase(Locale.ENGLISH);
+                if (!sql.startsWith("alter ") && !sql.startsWith("create ") && !sql.startsWith("drop ")) {
+                    shapes.add(shape);
+                }
+            }
+            return shapes;
+        }
+
+        private long getL2Hits() {
+            return statistics != null ? statistics.getSecondLevelCacheHitCount() : 0;
+        }
+
+        private String report() {
+            final StringBuilder report = new StringBuilder("\nStatements:");
+            int reported = 0;
+            for (final StatementShape shape : getShapes()) {
+                if (reported++ == MAX_SHAPES_REPORTED) {
+                    report.append("\n  ...");
+                    break;
+                }
+                report.append("\n  ").append(shape);
+            }
+            return report.toString();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Tests the {@link StatementBudget} of the tests and of the blocks of the tests.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class StatementBudgetTest extends EntityManagerTest {
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    @Budget(maxStatements = 1, minL2Hits = 90)
+    public void budgetOfTheTestIsKept() {
+        getROEntities(emf.createEntityManager(), "EM1");
+        getROEntities(emf.createEntityManager(), "EM2");
+    }
+
+    @Test
+    public void nPlusOneSelectsExceedTheBudgetOfTheBlock() {
+        EntityManager em = emf.createEntityManager();
+        final List<Long> ids = em.createQuery("select e.id from ReadWriteEntity e", Long.class).getResultList();
+        em.close();
+
+        em = emf.createEntityManager();
+        budget.begin("finds").maxStatements(0).minL2Hits(5);
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(em.find(ReadWriteEntity.class, ids.get(i)));
+        }
+        try {
+            budget.end();
+            fail("The finds of the uncached entities should have exceeded the budget.");
+        } catch (final AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("statements: expected <= 0 but was 5 (+5)"));
+            assertTrue(e.getMessage(), e.getMessage().contains("L2 hits: expected >= 5 but was 0 (-5)"));
+            assertTrue(e.getMessage(), e.getMessage().contains("5 x "));
+            assertTrue(e.getMessage(), e.getMessage().contains("from ReadWriteEntity readwritee0_ where readwritee0_.id=?"));
+        }
+        em.close();
+    }
+
+    @Test
+    public void allocationsExceedTheBudgetOfTheBlock() {
+        budget.begin("allocation").maxAllocatedBytes(1024);
+        final byte[][] allocated = new byte[16][];
+        for (int i = 0; i < allocated.length; i++) {
+            allocated[i] = new byte[1 << 16];
+        }
+        try {
+            budget.end();
+        } catch (final AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("allocated bytes: expected <= 1024"));
+            return;
+        }
+        /* The JVM doesn't measure the allocations. */
+        assertEquals(16, allocated.length);
+    }
+
+    @Test
+    public void budgetOfTheTestFailsTheTest() throws Throwable {
+        final StatementBudget rule = new StatementBudget(new StatementBudget.StatisticsSource() {
+            @Override
+            public Statistics getStatistics() {
+                return null;
+            }
+        });
+        final Budget annotation = getClass().getDeclaredMethod("noStatements").getAnnotation(Budget.class);
+        final Statement statement = rule.apply(new Statement() {
+            @Override
+            public void evaluate() {
+                getNoCacheEntities(emf.createEntityManager(), "EM1");
+            }
+        }, Description.createTestDescription(getClass(), "noStatements", annotation));
+        try {
+            statement.evaluate();
+            fail("The query should have exceeded the budget.");
+        } catch (final AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("The budget of noStatements has been exceeded:"));
+            assertTrue(e.getMessage(), e.getMessage().contains("from NoCacheEntity"));
+        }
+    }
+
+    /** The budget of {@link #budgetOfTheTestFailsTheTest()}. */
+    @Budget(maxStatements = 0)
+    private void noStatements() {
+        /* NOP */
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.domain;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.persistence.EntityManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.moresbycoffee.hibernatecache.cache.stat.LatencyStatistics;
+import org.moresbycoffee.hibernatecache.cache.stat.LatencyStatisticsFactory;
+import org.moresbycoffee.hibernatecache.cache.stat.StatisticsScope;
+import org.moresbycoffee.hibernatecache.cache.stat.StatisticsScope.Counter;
+import org.moresbycoffee.hibernatecache.cache.stat.StatisticsScopes;
+
+/**
+ * Tests the {@link StatisticsScope}s of concurrent units of work: every thread finds its own entities,
+ * its scope has to count exactly the statements and the cache accesses of the thread.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class StatisticsScopeTest extends EntityManagerTest {
+
+    private static final int THREADS = 64;
+
+    private StatisticsScopes scopes;
+
+    private List<Long> readWriteIds;
+    private List<Long> readOnlyIds;
+    private List<Long> noCacheIds;
+
+    @Override
+    protected Map<String, String> getPersistenceProperties() {
+        final Map<String, String> properties = super.getPersistenceProperties();
+        properties.put("hibernate.stats.factory", LatencyStatisticsFactory.class.getName());
+        return properties;
+    }
+
+    /**
+     * Caches the {@link ReadOnlyEntity}s only.
+     */
+    @Before
+    public void setUp() {
+        final EntityManager em = emf.createEntityManager();
+        readWriteIds = em.createQuery("select e.id from ReadWriteEntity e order by e.id", Long.class).getResultList();
+        noCacheIds = em.createQuery("select e.id from NoCacheEntity e order by e.id", Long.class).getResultList();
+        readOnlyIds = new ArrayList<Long>();
+        for (final ReadOnlyEntity entity : getROEntities(em, "EM1")) {
+            readOnlyIds.add(entity.getId());
+        }
+        em.close();
+        emf.getCache().evict(ReadWriteEntity.class);
+        final LatencyStatistics statistics = (LatencyStatistics) getSessionFactory(emf).getStatistics();
+        statistics.clear();
+        scopes = statistics.getScopes();
+    }
+
+    @After
+    public void tearDown() {
+        emf.close();
+    }
+
+    @Test
+    public void concurrentScopesCountTheirOwnWork() throws Exception {
+        final StatisticsScope[] results = new StatisticsScope[THREADS];
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int index = i;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results[index] = work(index);
+                    } catch (final Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            }, "scope-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Failures: " + failures, failures.isEmpty());
+
+        long readOnlyFinds = 0;
+        for (int i = 0; i < THREADS; i++) {
+            final StatisticsScope scope = results[i];
+            assertTrue(scope.isClosed());
+            /* The miss of the read-write entity and the find of the uncached entity. */
+            assertEquals(scope.toString(), 2, scope.get(Counter.STATEMENTS));
+            assertEquals(scope.toString(), 1, scope.get(Counter.L2_MISSES));
+            assertEquals(scope.toString(), 1, scope.get(Counter.L2_PUTS));
+            assertEquals(scope.toString(), 1 + readOnlyFinds(i), scope.get(Counter.L2_HITS));
+            assertTrue(scope.get(Counter.ACTIVE_NANOS) > 0);
+            readOnlyFinds += readOnlyFinds(i);
+        }
+        assertEquals(2 * THREADS, scopes.getTotal(Counter.STATEMENTS));
+        assertEquals(THREADS, scopes.getTotal(Counter.L2_MISSES));
+        assertEquals(THREADS + readOnlyFinds, scopes.getTotal(Counter.L2_HITS));
+        assertNull(scopes.current());
+    }
+
+    @Test
+    public void entityManagerScopeMovesBetweenThreads() throws Exception {
+        final EntityManager em = emf.createEntityManager();
+        final StatisticsScope scope = scopes.open("em");
+        assertSame(scope, scopes.current());
+        assertNotNull(em.find(NoCacheEntity.class, noCacheIds.get(0)));
+        scope.suspend();
+        assertNull(scopes.current());
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scope.resume();
+                em.find(NoCacheEntity.class, noCacheIds.get(1));
+                scope.close();
+            }
+        });
+        thread.start();
+        thread.join();
+        em.close();
+
+        assertTrue(scope.isClosed());
+        assertEquals(2, scope.get(Counter.STATEMENTS));
+        assertEquals(2, scopes.getTotal(Counter.STATEMENTS));
+    }
+
+    @Test
+    public void nestedScopesAreAddedToTheEnclosingScope() {
+        scopes.setRollUp(false);
+        final EntityManager em = emf.createEntityManager();
+        final StatisticsScope outer = scopes.open("request");
+        assertNotNull(em.find(ReadOnlyEntity.class, readOnlyIds.get(0)));
+        final StatisticsScope inner = scopes.open("find");
+        assertNotNull(em.find(NoCacheEntity.class, noCacheIds.get(0)));
+        inner.close();
+        assertSame(outer, scopes.current());
+        outer.close();
+        em.close();
+
+        assertEquals(1, inner.get(Counter.STATEMENTS));
+        assertEquals(0, inner.get(Counter.L2_HITS));
+        assertEquals(1, outer.get(Counter.STATEMENTS));
+        assertEquals(1, outer.get(Counter.L2_HITS));
+        assertEquals(0, scopes.getTotal(Counter.STATEMENTS));
+        try {
+            outer.resume();
+            fail("A closed scope can't be resumed.");
+        } catch (final IllegalStateException e) {
+            assertNull(scopes.current());
+        }
+    }
+
+    /**
+     * Finds a read-write entity twice (a miss and a hit), an uncached entity and some read-only entities.
+     */
+    private StatisticsScope work(final int index) {
+        final StatisticsScope scope = scopes.open("thread-" + index);
+        try {
+            EntityManager em = emf.createEntityManager();
+            assertNotNull(em.find(ReadWriteEntity.class, readWriteIds.get(index)));
+            assertNotNull(em.find(NoCacheEntity.class, noCacheIds.get(index)));
+            em.close();
+            em = emf.createEntityManager();
+            assertNotNull(em.find(ReadWriteEntity.class, readWriteIds.get(index)));
+            for (int i = 0; i < readOnlyFinds(index); i++) {
+                assertNotNull(em.find(ReadOnlyEntity.class, readOnlyIds.get((index + i) % readOnlyIds.size())));
+            }
+            em.close();
+        } finally {
+            scope.close();
+        }
+        return scope;
+    }
+
+    private static int readOnlyFinds(final int index) {
+        return 1 + index % 8;
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Moresby Coffee Bean
+ *
+ * Copyright (c) 2012, Barnabas Sudy (barnabas.sudy@gmail.com)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies,
+ * either expressed or implied, of the FreeBSD Project.
+ */
+package org.moresbycoffee.hibernatecache.jdbc;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests the draining of the {@link StatementPipeline}, the {@link SqlFingerprint}s and the statements recorded by the
+ * {@link InterceptingDriver}.
+ *
+ * @author Barnabas Sudy (barnabas.sudy@gmail.com)
+ * @since 2012
+ */
+public class StatementPipelineTest {
+
+    private static final int THREADS = 8;
+
+    private static final int STATEMENTS_PER_THREAD = 20000;
+
+    @Test
+    public void fingerprintsIgnoreTheLiterals() {
+        assertEquals("select * from T where id = ? and name = ?", SqlFingerprint.of("select *  from T\n where id = 12 and name = 'it''s'"));
+        assertEquals("select * from T where id in (?)", SqlFingerprint.of("select * from T where id in (?, ?, ?)"));
+        assertEquals("select * from T1 where a = ?", SqlFingerprint.of("select * from T1 where a = 1.5e3"));
+    }
+
+    @Test
+    public void concurrentStatementsAreDrained() throws Exception {
+        final StatementPipeline pipeline = new StatementPipeline(1024, false);
+        final MemoryStatementSink sink = new MemoryStatementSink(10);
+        final HistogramStatementSink histogram = new HistogramStatementSink();
+        pipeline.addSink(sink);
+        pipeline.addSink(histogram);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < STATEMENTS_PER_THREAD; j++) {
+                        pipeline.record("select " + (j % 10), 1, 1, 1000, 100);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(pipeline.flush());
+        assertEquals(THREADS * STATEMENTS_PER_THREAD, sink.getCount());
+        assertEquals(THREADS * STATEMENTS_PER_THREAD, histogram.getExecutions().getCount());
+        assertEquals(THREADS * STATEMENTS_PER_THREAD, pipeline.getDrainedCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(10, sink.getStatements().size());
+        pipeline.close();
+    }
+
+    @Test
+    public void statementsAreDroppedWhenTheBufferIsFull() throws Exception {
+        final StatementPipeline pipeline = new StatementPipeline(16, true);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MemoryStatementSink sink = new MemoryStatementSink();
+        pipeline.addSink(new StatementSink() {
+            @Override
+            public void accept(final ExecutedStatement statement) {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void flush() {
+                /* NOP */
+            }
+        });
+        pipeline.addSink(sink);
+        for (int i = 0; i < 100; i++) {
+            pipeline.record("select 1", 0, 1, 1000, 0);
+        }
+        release.countDown();
+        assertTrue(pipeline.flush());
+        assertEquals(100, sink.getCount() + pipeline.getDroppedCount());
+        assertTrue(pipeline.getDroppedCount() > 0);
+        pipeline.close();
+    }
+
+    @Test
+    public void driverRecordsTheStatements() throws Exception {
+        Class.forName(InterceptingDriver.class.getName());
+        final List<String> statements = new ArrayList<String>();
+        final StatementSink sink = new StatementSink() {
+            @Override
+            public void accept(final ExecutedStatement statement) {
+                statements.add(statement.toString());
+            }
+
+            @Override
+            public void flush() {
+                /* NOP */
+            }
+        };
+        final HistogramStatementSink histogram = new HistogramStatementSink();
+        final StatementPipeline pipeline = StatementPipeline.getDefault();
+        final Properties info = new Properties();
+        info.setProperty(InterceptingDriver.DRIVER, "org.h2.Driver");
+        final Connection connection = DriverManager.getConnection("jdbc:intercept:h2:mem:pipelinetest", info);
+        pipeline.flush();
+        pipeline.addSink(sink);
+        pipeline.addSink(histogram);
+        try {
+            final Statement statement = connection.createStatement();
+            statement.executeUpdate("create table T (id int primary key, name varchar(10))");
+            statement.close();
+            final PreparedStatement insert = connection.prepareStatement("insert into T (id, name) values (?, ?)");
+            for (int i = 0; i < 3; i++) {
+                insert.setInt(1, i);
+                insert.setString(2, "name" + i);
+                assertEquals(1, insert.executeUpdate());
+            }
+            insert.close();
+            final PreparedStatement select = connection.prepareStatement("select * from T where id >= ?");
+            select.setInt(1, 1);
+            final ResultSet resultSet = select.executeQuery();
+            assertSame(select, resultSet.getStatement());
+            while (resultSet.next()) {
+                resultSet.getString(2);
+            }
+            resultSet.close();
+            select.close();
+            pipeline.flush();
+        } finally {
+            pipeline.removeSink(sink);
+            pipeline.removeSink(histogram);
+            connection.close();
+        }
+        assertEquals(5, statements.size());
+        assertEquals(5, histogram.getExecutions().getCount());
+        assertTrue(statements.get(1), statements.get(1).endsWith("|2|1|insert into T (id, name) values (?, ?)"));
+        assertTrue(statements.get(4), statements.get(4).endsWith("|1|2|select * from T where id >= ?"));
+    }
+
+}